@@ -0,0 +1,267 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.callhistory;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.callhistory.*;
+
+/**
+ * An in-memory index of the call history by peer address. The call records
+ * are kept in the order they were written and every peer address, primary or
+ * secondary, maps to the positions of the calls it took part in. The calls
+ * of a contact are thus found by looking at its own calls only, instead of
+ * reading and filtering the whole call history.
+ * <p>
+ * The index is loaded from the history once by the
+ * <tt>CallHistoryServiceImpl</tt> and is kept up to date as calls are
+ * written.
+ */
+class CallHistoryIndex
+{
+    /**
+     * The indexed call records, in the order they were written.
+     */
+    private final List<CallRecord> records = new ArrayList<CallRecord>();
+
+    /**
+     * The positions in <tt>records</tt> of the calls of each normalized peer
+     * address, in ascending order.
+     */
+    private final Map<String, int[]> positions = new HashMap<String, int[]>();
+
+    /**
+     * Adds a call record to the index.
+     *
+     * @param record the call record to add
+     */
+    synchronized void add(CallRecord record)
+    {
+        int position = records.size();
+
+        records.add(record);
+
+        for (CallPeerRecord peerRecord : record.getPeerRecords())
+        {
+            addPosition(peerRecord.getPeerAddress(), position);
+            addPosition(peerRecord.getPeerSecondaryAddress(), position);
+        }
+    }
+
+    /**
+     * Sets the secondary address of the peer with the given address in the
+     * call it started at the given time, and indexes the call under it.
+     *
+     * @param date the start time of the peer in the call
+     * @param peerAddress the address of the peer
+     * @param address the secondary address of the peer
+     */
+    synchronized void updatePeerSecondaryAddress(
+        Date date, String peerAddress, String address)
+    {
+        int[] peerPositions = positions.get(normalize(peerAddress));
+
+        if (peerPositions == null)
+            return;
+
+        for (int i = 1; i <= peerPositions[0]; i++)
+        {
+            int position = peerPositions[i];
+
+            for (CallPeerRecord peerRecord
+                    : records.get(position).getPeerRecords())
+            {
+                if (peerRecord.getPeerAddress().equals(peerAddress)
+                    && peerRecord.getStartTime().equals(date))
+                {
+                    peerRecord.setPeerSecondaryAddress(address);
+                    addPosition(address, position);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the most recent calls with any of the given peer addresses
+     * which started in the given period.
+     *
+     * @param addresses the peer addresses
+     * @param startDate the start of the period or <tt>null</tt> for no start
+     * @param endDate the end of the period or <tt>null</tt> for no end
+     * @param count the maximum number of calls to return or a negative value
+     * to return all of them
+     * @return the matching calls, the most recent first
+     */
+    synchronized List<CallRecord> find(
+        Collection<String> addresses, Date startDate, Date endDate, int count)
+    {
+        // the positions of the calls of every address, deduplicated as a
+        // call may have several of the addresses
+        SortedSet<Integer> matching = new TreeSet<Integer>();
+
+        for (String address : addresses)
+        {
+            int[] peerPositions = positions.get(normalize(address));
+
+            if (peerPositions == null)
+                continue;
+
+            for (int i = 1; i <= peerPositions[0]; i++)
+                matching.add(peerPositions[i]);
+        }
+
+        List<CallRecord> result = new ArrayList<CallRecord>();
+
+        for (int position : matching)
+        {
+            CallRecord record = records.get(position);
+            Date startTime = record.getStartTime();
+
+            if ((startDate == null || !startTime.before(startDate))
+                && (endDate == null || startTime.before(endDate)))
+            {
+                result.add(record);
+            }
+        }
+
+        // the calls are written when they end, so their start times are
+        // only mostly in order
+        Collections.sort(result, new Comparator<CallRecord>()
+        {
+            public int compare(CallRecord r1, CallRecord r2)
+            {
+                return r2.getStartTime().compareTo(r1.getStartTime());
+            }
+        });
+
+        if (count >= 0 && result.size() > count)
+            return new ArrayList<CallRecord>(result.subList(0, count));
+        return result;
+    }
+
+    /**
+     * Returns the number of indexed calls.
+     *
+     * @return the number of indexed calls
+     */
+    synchronized int size()
+    {
+        return records.size();
+    }
+
+    /**
+     * Adds a position to the positions of the given address, unless it is
+     * already the last one.
+     *
+     * @param address the peer address, ignored if <tt>null</tt> or empty
+     * @param position the position of the call
+     */
+    private void addPosition(String address, int position)
+    {
+        if (address == null || address.length() == 0)
+            return;
+
+        String key = normalize(address);
+        int[] peerPositions = positions.get(key);
+
+        if (peerPositions == null)
+        {
+            // the first element is the number of positions
+            peerPositions = new int[4];
+        }
+        else if (peerPositions[peerPositions[0]] >= position
+            && peerPositions[0] > 0)
+        {
+            if (peerPositions[peerPositions[0]] == position)
+                return;
+
+            // an older call, updated later, keep the positions sorted
+            int i = Arrays.binarySearch(
+                peerPositions, 1, peerPositions[0] + 1, position);
+
+            if (i >= 0)
+                return;
+
+            peerPositions = ensureCapacity(peerPositions);
+            i = -i - 1;
+            System.arraycopy(
+                peerPositions, i,
+                peerPositions, i + 1,
+                peerPositions[0] + 1 - i);
+            peerPositions[i] = position;
+            peerPositions[0]++;
+            positions.put(key, peerPositions);
+            return;
+        }
+
+        peerPositions = ensureCapacity(peerPositions);
+        peerPositions[++peerPositions[0]] = position;
+        positions.put(key, peerPositions);
+    }
+
+    /**
+     * Makes sure there is room for one more position.
+     *
+     * @param peerPositions the positions of an address
+     * @return <tt>peerPositions</tt> or a larger copy of it
+     */
+    private static int[] ensureCapacity(int[] peerPositions)
+    {
+        if (peerPositions[0] + 1 < peerPositions.length)
+            return peerPositions;
+        return Arrays.copyOf(peerPositions, peerPositions.length * 2);
+    }
+
+    /**
+     * Normalizes a peer or contact address, so that the different forms of
+     * the same address used by the protocols are indexed together: the case,
+     * the URI scheme, the URI parameters and the XMPP resource are ignored.
+     *
+     * @param address the address to normalize
+     * @return the normalized address
+     */
+    static String normalize(String address)
+    {
+        String normalized = address.trim().toLowerCase();
+
+        int colon = normalized.indexOf(':');
+        if (colon > 0)
+        {
+            String scheme = normalized.substring(0, colon);
+
+            if (scheme.equals("sip")
+                || scheme.equals("sips")
+                || scheme.equals("tel")
+                || scheme.equals("xmpp"))
+            {
+                normalized = normalized.substring(colon + 1);
+            }
+        }
+
+        int params = normalized.indexOf(';');
+        if (params >= 0)
+            normalized = normalized.substring(0, params);
+
+        int at = normalized.indexOf('@');
+        int slash = normalized.indexOf('/', Math.max(at, 0));
+        if (at > 0 && slash > at)
+            normalized = normalized.substring(0, slash);
+
+        return normalized;
+    }
+}
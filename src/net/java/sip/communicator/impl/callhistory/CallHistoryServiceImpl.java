@@ -89,6 +89,12 @@
     private List<CallHistoryPeerRecordListener> callHistoryRecordlisteners
         = new LinkedList<CallHistoryPeerRecordListener>();
 
+    /**
+     * The index of the default call history by peer address, used for the
+     * queries about the calls of a contact. Loaded when first needed.
+     */
+    private CallHistoryIndex index = null;
+
     /**
      * Returns the underlying history service.
      * @return the underlying history service
@@ -112,7 +118,7 @@ public Collection<CallRecord> findByStartDate(
         MetaContact contact, Date startDate)
         throws RuntimeException
     {
-        throw new UnsupportedOperationException("Not implemented yet!");
+        return findByContact(contact, startDate, null, -1);
     }
 
     /**
@@ -163,7 +169,7 @@ public Collection<CallRecord> findByEndDate(MetaContact contact,
                                                 Date endDate)
         throws RuntimeException
     {
-        throw new UnsupportedOperationException("Not implemented yet!");
+        return findByContact(contact, null, endDate, -1);
     }
 
     /**
@@ -215,7 +221,7 @@ public Collection<CallRecord> findByPeriod(MetaContact contact,
         Date startDate, Date endDate)
         throws RuntimeException
     {
-        throw new UnsupportedOperationException("Not implemented yet!");
+        return findByContact(contact, startDate, endDate, -1);
     }
 
     /**
@@ -267,7 +273,7 @@ public Collection<CallRecord> findByPeriod(Date startDate, Date endDate)
     public Collection<CallRecord> findLast(MetaContact contact, int count)
         throws RuntimeException
     {
-        throw new UnsupportedOperationException("Not implemented yet!");
+        return findByContact(contact, null, null, count);
     }
 
     /**
@@ -333,6 +339,70 @@ public CallHistoryQuery findByPeer(String address, int recordCount)
         return callQuery;
     }
 
+    /**
+     * Returns the calls of the contacts in the supplied metacontact which
+     * started in the given period, using the index by peer address.
+     *
+     * @param contact MetaContact which contacts participate in
+     *      the returned calls
+     * @param startDate the start of the period or <tt>null</tt> for no start
+     * @param endDate the end of the period or <tt>null</tt> for no end
+     * @param count the maximum number of calls to return, the most recent
+     *      ones, or a negative value to return all of them
+     * @return Collection of CallRecords with CallPeerRecord
+     */
+    private Collection<CallRecord> findByContact(
+        MetaContact contact, Date startDate, Date endDate, int count)
+    {
+        TreeSet<CallRecord> result
+            = new TreeSet<CallRecord>(new CallRecordComparator());
+        List<String> addresses = new ArrayList<String>();
+
+        Iterator<Contact> contacts = contact.getContacts();
+        while (contacts.hasNext())
+            addresses.add(contacts.next().getAddress());
+
+        try
+        {
+            result.addAll(
+                getIndex().find(addresses, startDate, endDate, count));
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read history", ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the index of the default call history by peer address, loading
+     * it from the history the first time.
+     *
+     * @return the index of the default call history
+     * @throws IOException if the history could not be read
+     */
+    private synchronized CallHistoryIndex getIndex()
+        throws IOException
+    {
+        if (index == null)
+        {
+            CallHistoryIndex newIndex = new CallHistoryIndex();
+            History history = this.getHistory(null, null);
+            QueryResultSet<HistoryRecord> rs
+                = history.getReader().findByStartDate(new Date(0));
+
+            while (rs.hasNext())
+                newIndex.add(convertHistoryRecordToCallRecord(rs.next()));
+
+            if (logger.isDebugEnabled())
+                logger.debug("Indexed " + newIndex.size() + " calls.");
+
+            index = newIndex;
+        }
+        return index;
+    }
+
     /**
      * Returns the history by specified local and remote contact
      * if one of them is null the default is used
@@ -739,6 +809,15 @@ private void writeCall( CallRecordImpl callRecord,
                     callPeerSecondaryIDs.toString()},
                     new Date());    // this date is when the history
                                     // record is written
+
+            if (source == null && destination == null)
+            {
+                synchronized (this)
+                {
+                    if (index != null)
+                        index.add(callRecord);
+                }
+            }
         }
         catch (IOException e)
         {
@@ -795,6 +874,11 @@ public void eraseLocallyStoredHistory()
         HistoryID historyId = HistoryID.createFromRawID(
                     new String[] {  "callhistory" });
         historyService.purgeLocallyStoredHistory(historyId);
+
+        synchronized (this)
+        {
+            index = null;
+        }
     }
 
     /**
@@ -1138,6 +1222,12 @@ public void updateCallRecordPeerSecondaryAddress(final Date date,
         if(callRecordFound)
             return;
 
+        synchronized (this)
+        {
+            if (index != null)
+                index.updatePeerSecondaryAddress(date, peerAddress, address);
+        }
+
         History history;
         try
         {
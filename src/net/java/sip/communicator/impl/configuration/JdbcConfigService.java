@@ -22,6 +22,7 @@
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
@@ -35,6 +36,11 @@
 
 /**
  * Implementation of the {@link ConfigurationService} based on JDBC.
+ * <p>
+ * The stored properties are loaded once at startup and are read from memory
+ * afterwards, without any locking. Changes are applied to memory immediately
+ * and written to the database asynchronously by a single writer thread, which
+ * writes all the changes made meanwhile in a single batch.
  * 
  * @author Ingo Bauersachs
  */
@@ -91,14 +97,124 @@
     private SetMultimap<String, PropertyChangeListener> listeners
         = HashMultimap.create();
 
+    /**
+     * The properties stored in the database, loaded at startup and kept up to
+     * date by the <tt>setProperty()</tt> methods. All the reads are served
+     * from this map.
+     */
+    private final Map<String, String> properties
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Index of the names of the {@link #properties}, maintained along with
+     * the map, for the prefix and suffix lookups.
+     */
+    private final PropertyNameIndex propertyNames = new PropertyNameIndex();
+
+    /**
+     * The changes which are not written to the database yet, mapped by
+     * property name. A <tt>null</tt> value deletes the property.
+     */
+    private final Map<String, String> pendingWrites
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * Whether a write of the {@link #pendingWrites} is already scheduled.
+     * Guarded by {@link #pendingWrites}.
+     */
+    private boolean writeScheduled = false;
+
+    /**
+     * The delay in milliseconds before the first retry of a failed write.
+     */
+    private static final long MIN_RETRY_DELAY = 1000;
+
+    /**
+     * The maximum delay in milliseconds between the retries of a failed
+     * write.
+     */
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    /**
+     * The number of times the pending changes are written when the
+     * configuration is stored, for example at shutdown, before giving up.
+     */
+    private static final int STORE_ATTEMPTS = 3;
+
+    /**
+     * The delay in milliseconds before the next retry of a failed write,
+     * doubled after each failure and reset after a successful write.
+     * Guarded by {@link #pendingWrites}.
+     */
+    private long retryDelay = MIN_RETRY_DELAY;
+
+    /**
+     * The number of times the stored configuration was purged, so that the
+     * changes of a failed write started before a purge are not retried.
+     * Guarded by {@link #pendingWrites}.
+     */
+    private int purgeCount = 0;
+
+    /**
+     * The single thread accessing the database once the configuration is
+     * loaded.
+     */
+    private final ScheduledExecutorService dbWriter
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "JdbcConfigWriter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Writes the {@link #pendingWrites} to the database.
+     */
+    private final Runnable writePendingTask = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                writePendingChanges();
+            }
+            catch (SQLException e)
+            {
+                scheduleRetry(e);
+            }
+        }
+    };
+
+    /**
+     * Removes all the properties from the database.
+     */
+    private final Runnable truncateTask = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                checkConnection();
+                Statement st = connection.createStatement();
+                st.executeUpdate("TRUNCATE TABLE Props");
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
     /**
      * Connection to the JDBC database.
      */
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -131,9 +247,16 @@ public JdbcConfigService(FileAccessService fas) throws Exception
             migrate = true;
         }
 
-        // open the connection
+        // open the connection and load the stored properties
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
         checkConnection();
+        ResultSet q = this.selectAll.executeQuery();
+        while (q.next())
+        {
+            properties.put(q.getString(1), q.getString(2));
+            propertyNames.add(q.getString(1));
+        }
+        q.close();
 
         // then do the actual migration
         if (migrate)
@@ -141,14 +264,12 @@ public JdbcConfigService(FileAccessService fas) throws Exception
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
                 this.setProperty(e.getKey().toString(), e.getValue(), false);
             }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            runOnDbWriter(writePendingTask);
         }
 
         // and finally load the (mandatory) system properties
@@ -156,6 +277,209 @@ public JdbcConfigService(FileAccessService fas) throws Exception
         loadDefaultProperties(DEFAULT_OVERRIDES_PROPS_FILE_NAME);
     }
 
+    /**
+     * Schedules the write of a changed property to the database. The changes
+     * made until the write is executed are written along with it.
+     *
+     * @param propertyName the name of the changed property
+     * @param value the new value of the property or <tt>null</tt> if it was
+     * removed
+     */
+    private void queueWrite(String propertyName, String value)
+    {
+        synchronized (pendingWrites)
+        {
+            pendingWrites.put(propertyName, value);
+
+            if (!writeScheduled)
+            {
+                writeScheduled = true;
+                dbWriter.execute(writePendingTask);
+            }
+        }
+    }
+
+    /**
+     * Writes all the pending changes to the database in a single transaction.
+     * Executed by the {@link #dbWriter} thread only. Changes which could not
+     * be written are kept in the {@link #pendingWrites}.
+     *
+     * @throws SQLException if the changes could not be written
+     */
+    private void writePendingChanges()
+        throws SQLException
+    {
+        Map<String, String> changes;
+        int purgeCount;
+        synchronized (pendingWrites)
+        {
+            purgeCount = this.purgeCount;
+            writeScheduled = false;
+            if (pendingWrites.isEmpty())
+            {
+                return;
+            }
+
+            changes = new LinkedHashMap<String, String>(pendingWrites);
+            pendingWrites.clear();
+        }
+
+        try
+        {
+            this.checkConnection();
+            this.connection.setAutoCommit(false);
+            boolean deletes = false;
+            boolean updates = false;
+            for (Map.Entry<String, String> e : changes.entrySet())
+            {
+                if (e.getValue() == null)
+                {
+                    this.delete.setString(1, e.getKey());
+                    this.delete.addBatch();
+                    deletes = true;
+                }
+                else
+                {
+                    this.insertOrUpdate.setString(1, e.getKey());
+                    this.insertOrUpdate.setString(2, e.getValue());
+                    this.insertOrUpdate.addBatch();
+                    updates = true;
+                }
+            }
+
+            if (deletes)
+            {
+                this.delete.executeBatch();
+            }
+
+            if (updates)
+            {
+                this.insertOrUpdate.executeBatch();
+            }
+
+            this.connection.commit();
+            this.connection.setAutoCommit(true);
+
+            synchronized (pendingWrites)
+            {
+                retryDelay = MIN_RETRY_DELAY;
+            }
+        }
+        catch (SQLException e)
+        {
+            rollback();
+
+            // keep the failed changes unless they were changed or purged
+            // meanwhile
+            synchronized (pendingWrites)
+            {
+                for (Map.Entry<String, String> c : changes.entrySet())
+                {
+                    if (purgeCount == this.purgeCount
+                        && !pendingWrites.containsKey(c.getKey()))
+                    {
+                        pendingWrites.put(c.getKey(), c.getValue());
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Schedules a new write of the pending changes after a failed one. The
+     * delay doubles with each failure up to {@link #MAX_RETRY_DELAY}.
+     *
+     * @param cause the failure of the write
+     */
+    private void scheduleRetry(SQLException cause)
+    {
+        synchronized (pendingWrites)
+        {
+            if (pendingWrites.isEmpty())
+            {
+                return;
+            }
+
+            logger.error("Cannot write " + pendingWrites.size()
+                + " configuration changes, will retry in "
+                + retryDelay + " ms", cause);
+
+            if (!writeScheduled)
+            {
+                writeScheduled = true;
+                dbWriter.schedule(
+                    writePendingTask, retryDelay, TimeUnit.MILLISECONDS);
+            }
+            retryDelay = Math.min(2 * retryDelay, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Rolls back the current transaction after a failed write and closes the
+     * connection, so that it is recreated on the next access.
+     */
+    private void rollback()
+    {
+        try
+        {
+            if (this.connection != null)
+            {
+                this.connection.rollback();
+                this.connection.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            logger.debug("Cannot rollback configuration changes", e);
+        }
+        finally
+        {
+            this.connection = null;
+        }
+    }
+
+    /**
+     * Executes a task on the {@link #dbWriter} thread after the writes
+     * already scheduled and waits for it to finish.
+     *
+     * @param task the task to execute
+     */
+    private void runOnDbWriter(Runnable task)
+    {
+        waitFor(dbWriter.submit(task));
+    }
+
+    /**
+     * Waits for a task submitted to the {@link #dbWriter} thread to finish.
+     *
+     * @param task the submitted task
+     * @return the result of the task or <tt>null</tt> if the current thread
+     * was interrupted
+     */
+    private <T> T waitFor(Future<T> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+
+            throw new RuntimeException(cause);
+        }
+    }
+
     /**
      * Verifies that the connection to the database and all prepared statement
      * are valid.
@@ -206,10 +530,6 @@ private void checkConnection() throws SQLException
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -269,29 +589,23 @@ public synchronized void setProperty(String propertyName, Object property,
                 return;
             }
 
-            try
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, property);
+            if (property == null)
             {
-                this.checkConnection();
-                Object oldValue = this.getProperty(propertyName);
-                this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
-                {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
-                }
-                else
-                {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
-                }
-
-                this.fireChange(propertyName, oldValue, property);
+                properties.remove(propertyName);
+                propertyNames.remove(propertyName);
+                queueWrite(propertyName, null);
             }
-            catch (SQLException e)
+            else
             {
-                throw new RuntimeException(e);
+                String value = property.toString();
+                properties.put(propertyName, value);
+                propertyNames.add(propertyName);
+                queueWrite(propertyName, value);
             }
+
+            this.fireChange(propertyName, oldValue, property);
         }
     }
 
@@ -305,21 +619,10 @@ public synchronized void setProperty(String propertyName, Object property,
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
-        try
-        {
-            checkConnection();
-            this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
-            {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
-        }
-        catch (SQLException e1)
+        // the changes are written in a single batch by the writer thread
+        for (Map.Entry<String, Object> e : properties.entrySet())
         {
-            throw new RuntimeException(e1);
+            this.setProperty(e.getKey(), e.getValue(), false);
         }
     }
 
@@ -331,7 +634,7 @@ public synchronized void setProperties(Map<String, Object> properties)
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -339,22 +642,7 @@ public synchronized Object getProperty(String propertyName)
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        value = properties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -401,21 +689,7 @@ public List<String> getAllPropertyNames()
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        data.addAll(properties.keySet());
         return data;
     }
 
@@ -430,46 +704,7 @@ public List<String> getAllPropertyNames()
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
-        {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-
-                if(exactPrefixMatch)
-                {
-                    int ix = key.lastIndexOf('.');
-                    if(ix == -1)
-                    {
-                        continue;
-                    }
-
-                    String keyPrefix = key.substring(0, ix);
-
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
-                {
-                    if(key.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-            }
-
-            return resultSet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return propertyNames.getNamesByPrefix(prefix, exactPrefixMatch);
     }
 
     /*
@@ -482,26 +717,7 @@ public List<String> getPropertyNamesByPrefix(String prefix,
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
-        {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return propertyNames.getNamesBySuffix(suffix);
     }
 
     /*
@@ -768,17 +984,72 @@ public void removeVetoableChangeListener(String propertyName,
     @Override
     public void storeConfiguration() throws IOException
     {
-        try
-        {
-            this.connection.close();
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-        }
-        finally
+        // write the pending changes and close the connection, it is reopened
+        // if the configuration is changed afterwards. The changes are written
+        // at once rather than retried later, as the configuration is stored
+        // at shutdown.
+        SQLException failure = waitFor(dbWriter.submit(
+            new Callable<SQLException>()
+            {
+                public SQLException call()
+                {
+                    SQLException failure = null;
+
+                    for (int i = 0; i < STORE_ATTEMPTS; i++)
+                    {
+                        if (failure != null)
+                        {
+                            logger.warn("Cannot write configuration changes,"
+                                + " trying again", failure);
+                            try
+                            {
+                                Thread.sleep(MIN_RETRY_DELAY << (i - 1));
+                            }
+                            catch (InterruptedException e)
+                            {
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                        }
+
+                        try
+                        {
+                            writePendingChanges();
+                            failure = null;
+                            break;
+                        }
+                        catch (SQLException e)
+                        {
+                            failure = e;
+                        }
+                    }
+
+                    if (connection != null)
+                    {
+                        try
+                        {
+                            connection.close();
+                        }
+                        catch (SQLException e)
+                        {
+                            logger.error(e);
+                        }
+                        finally
+                        {
+                            connection = null;
+                        }
+                    }
+                    return failure;
+                }
+            }));
+
+        if (failure != null)
         {
-            this.connection = null;
+            // the changes are kept and written later if the application
+            // keeps running
+            scheduleRetry(failure);
+            throw new IOException(
+                "Cannot store the configuration changes", failure);
         }
     }
 
@@ -801,17 +1072,24 @@ public void reloadConfiguration() throws IOException
     @Override
     public void purgeStoredConfiguration()
     {
-        try
-        {
-            this.checkConnection();
-            Statement st = this.connection.createStatement();
-            st.executeUpdate("TRUNCATE TABLE Props");
-        }
-        catch (SQLException e)
+        Future<?> truncate;
+
+        // the truncation is queued along with the clearing of the memory, so
+        // that the writes of the changes made afterwards are executed after
+        // it
+        synchronized (this)
         {
-            logger.error(e);
-            throw new RuntimeException(e);
+            synchronized (pendingWrites)
+            {
+                pendingWrites.clear();
+                purgeCount++;
+                properties.clear();
+                propertyNames.clear();
+                truncate = dbWriter.submit(truncateTask);
+            }
         }
+
+        waitFor(truncate);
     }
 
     /*
@@ -0,0 +1,180 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Index of property names answering the prefix and suffix queries of the
+ * <tt>ConfigurationService</tt> without scanning all the names. The names are
+ * kept sorted, so the names starting with a prefix are a contiguous range, and
+ * are grouped by their last component (the part after the last dot).
+ * <p>
+ * Lookups can run concurrently with each other and with the updates.
+ */
+class PropertyNameIndex
+{
+    /**
+     * All the indexed names, sorted.
+     */
+    private final ConcurrentSkipListSet<String> names
+        = new ConcurrentSkipListSet<String>();
+
+    /**
+     * The indexed names which contain a dot, mapped by the part after their
+     * last dot.
+     */
+    private final ConcurrentMap<String, Set<String>> namesBySuffix
+        = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Adds a name to the index.
+     *
+     * @param name the property name
+     */
+    public synchronized void add(String name)
+    {
+        if (!names.add(name))
+        {
+            return;
+        }
+
+        String suffix = getSuffix(name);
+        if (suffix != null)
+        {
+            Set<String> set = namesBySuffix.get(suffix);
+            if (set == null)
+            {
+                set = new ConcurrentSkipListSet<String>();
+                namesBySuffix.put(suffix, set);
+            }
+            set.add(name);
+        }
+    }
+
+    /**
+     * Removes a name from the index.
+     *
+     * @param name the property name
+     */
+    public synchronized void remove(String name)
+    {
+        if (!names.remove(name))
+        {
+            return;
+        }
+
+        String suffix = getSuffix(name);
+        if (suffix != null)
+        {
+            Set<String> set = namesBySuffix.get(suffix);
+            if (set != null)
+            {
+                set.remove(name);
+                if (set.isEmpty())
+                {
+                    namesBySuffix.remove(suffix);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all the names from the index.
+     */
+    public synchronized void clear()
+    {
+        names.clear();
+        namesBySuffix.clear();
+    }
+
+    /**
+     * Returns the indexed names starting with <tt>prefix</tt>.
+     *
+     * @param prefix the prefix of the names
+     * @param exactPrefixMatch if <tt>true</tt> only the names made of
+     * <tt>prefix</tt>, a dot and a last component are returned, so
+     * <tt>a.b</tt> matches <tt>a.b.c</tt> but neither <tt>a.b.c.d</tt> nor
+     * <tt>a.bc</tt>
+     * @return the matching names, sorted
+     */
+    public List<String> getNamesByPrefix(String prefix,
+                                         boolean exactPrefixMatch)
+    {
+        List<String> result = new ArrayList<String>();
+
+        if (exactPrefixMatch)
+        {
+            // all the names starting with "prefix." without a further dot
+            int length = prefix.length() + 1;
+            for (String name : names.subSet(prefix + '.', prefix + '/'))
+            {
+                if (name.indexOf('.', length) == -1)
+                {
+                    result.add(name);
+                }
+            }
+        }
+        else
+        {
+            for (String name : names.tailSet(prefix))
+            {
+                if (!name.startsWith(prefix))
+                {
+                    break;
+                }
+
+                result.add(name);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the indexed names whose part after the last dot is
+     * <tt>suffix</tt>.
+     *
+     * @param suffix the last component of the names
+     * @return the matching names
+     */
+    public List<String> getNamesBySuffix(String suffix)
+    {
+        Set<String> set = namesBySuffix.get(suffix);
+        if (set == null)
+        {
+            return new ArrayList<String>(0);
+        }
+
+        return new ArrayList<String>(set);
+    }
+
+    /**
+     * Returns the part of a name after its last dot.
+     *
+     * @param name the property name
+     * @return the part after the last dot or <tt>null</tt> if the name does
+     * not contain a dot
+     */
+    private static String getSuffix(String name)
+    {
+        int ix = name.lastIndexOf('.');
+        return (ix == -1) ? null : name.substring(ix + 1);
+    }
+}
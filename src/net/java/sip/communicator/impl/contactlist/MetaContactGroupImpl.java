@@ -710,6 +710,10 @@ void addMetaContact(MetaContactImpl metaContact)
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+
+        MetaContactIndex index = mclServiceImpl.getIndex();
+        if (index.isIndexed(this))
+            index.addMetaContact(metaContact);
     }
 
     /**
@@ -767,6 +771,10 @@ void removeMetaContact(MetaContactImpl metaContact)
     {
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
+
+        // unless it has already been added to another group
+        if (metaContact.getParentGroup() == null)
+            mclServiceImpl.getIndex().removeMetaContact(metaContact);
     }
 
     /**
@@ -977,6 +985,10 @@ void addSubgroup(MetaContactGroup subgroup)
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        MetaContactIndex index = mclServiceImpl.getIndex();
+        if (index.isIndexed(this))
+            index.addGroup((MetaContactGroupImpl)subgroup);
     }
 
     /**
@@ -994,6 +1006,8 @@ MetaContactGroupImpl removeSubgroup(int index)
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
+        mclServiceImpl.getIndex().removeGroup(subgroup);
+
         return subgroup;
     }
 
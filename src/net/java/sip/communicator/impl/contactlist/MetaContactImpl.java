@@ -714,6 +714,10 @@ void addProtoContact(Contact contact)
             if (parentGroup != null)
                 parentGroup.lightAddMetaContact(this);
 
+            MetaContactIndex index = getIndex();
+            if (index != null)
+                index.addProtoContact(this, contact);
+
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
 
@@ -807,6 +811,10 @@ void removeProtoContact(Contact contact)
             if (parentGroup != null)
                 parentGroup.lightAddMetaContact(this);
 
+            MetaContactIndex index = getIndex();
+            if (index != null)
+                index.removeProtoContact(this, contact);
+
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
 
@@ -836,6 +844,7 @@ void removeProtoContact(Contact contact)
     boolean removeContactsForProvider(ProtocolProviderService provider)
     {
         boolean modified = false;
+        List<Contact> removed = new LinkedList<Contact>();
         Iterator<Contact> contactsIter = protoContacts.iterator();
 
         while(contactsIter.hasNext())
@@ -846,6 +855,7 @@ boolean removeContactsForProvider(ProtocolProviderService provider)
             {
                 contactsIter.remove();
                 modified = true;
+                removed.add(contact);
             }
         }
 
@@ -855,6 +865,13 @@ boolean removeContactsForProvider(ProtocolProviderService provider)
             defaultContact = null;
         }
 
+        MetaContactIndex index = getIndex();
+        if (index != null)
+        {
+            for (Contact contact : removed)
+                index.removeProtoContact(this, contact);
+        }
+
         return modified;
     }
 
@@ -869,6 +886,7 @@ boolean removeContactsForProvider(ProtocolProviderService provider)
     boolean removeContactsForGroup(ContactGroup protoGroup)
     {
         boolean modified = false;
+        List<Contact> removed = new LinkedList<Contact>();
         Iterator<Contact> contactsIter = protoContacts.iterator();
 
         while(contactsIter.hasNext())
@@ -879,6 +897,7 @@ boolean removeContactsForGroup(ContactGroup protoGroup)
             {
                 contactsIter.remove();
                 modified = true;
+                removed.add(contact);
             }
         }
 
@@ -888,6 +907,13 @@ boolean removeContactsForGroup(ContactGroup protoGroup)
             defaultContact = null;
         }
 
+        MetaContactIndex index = getIndex();
+        if (index != null)
+        {
+            for (Contact contact : removed)
+                index.removeProtoContact(this, contact);
+        }
+
         return modified;
     }
 
@@ -945,6 +971,23 @@ MetaContactGroupImpl getParentGroup()
         return parentGroup;
     }
 
+    /**
+     * Returns the index of the meta contact list if this meta contact is in
+     * the list.
+     *
+     * @return the index of the meta contact list or <tt>null</tt> if this
+     * meta contact is not in the list
+     */
+    private MetaContactIndex getIndex()
+    {
+        MetaContactGroupImpl parent = parentGroup;
+        if (parent == null)
+            return null;
+
+        MetaContactIndex index = parent.getMclServiceImpl().getIndex();
+        return index.isIndexed(this) ? index : null;
+    }
+
     /**
      * Returns the MetaContactGroup currently containing this meta contact
      * @return a reference to the MetaContactGroup currently containing this
@@ -0,0 +1,413 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Hash indexes over the meta contacts and groups currently contained in the
+ * meta contact list, so that the <tt>find</tt> methods of the
+ * <tt>MetaContactListService</tt> do not have to walk the whole tree. The
+ * index is updated by <tt>MetaContactGroupImpl</tt> and
+ * <tt>MetaContactImpl</tt> whenever a meta contact, a group or a protocol
+ * contact is added to or removed from the tree rooted at the root group.
+ * <p>
+ * Lookups are lock free and may run concurrently with the updates.
+ */
+class MetaContactIndex
+{
+    /**
+     * The meta contacts in the list, mapped by their meta UID.
+     */
+    private final Map<String, MetaContactImpl> contactsByUID
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * The meta groups in the list, mapped by their meta UID.
+     */
+    private final Map<String, MetaContactGroupImpl> groupsByUID
+        = new ConcurrentHashMap<String, MetaContactGroupImpl>();
+
+    /**
+     * The meta contacts in the list, mapped by the addresses and the account
+     * IDs of their protocol contacts (see {@link #getKey(String, String)}).
+     */
+    private final Map<String, Set<MetaContactImpl>> contactsByKey
+        = new ConcurrentHashMap<String, Set<MetaContactImpl>>();
+
+    /**
+     * The meta contacts in the list, mapped by the addresses of their
+     * protocol contacts.
+     */
+    private final Map<String, Set<MetaContactImpl>> contactsByAddress
+        = new ConcurrentHashMap<String, Set<MetaContactImpl>>();
+
+    /**
+     * The meta contacts in the list, mapped by the providers of their
+     * protocol contacts.
+     */
+    private final Map<ProtocolProviderService, Set<MetaContactImpl>>
+        contactsByProvider
+            = new ConcurrentHashMap<ProtocolProviderService,
+                                    Set<MetaContactImpl>>();
+
+    /**
+     * Indexes a group which has been added to the list together with all the
+     * groups and meta contacts it contains.
+     *
+     * @param group the added group
+     */
+    synchronized void addGroup(MetaContactGroupImpl group)
+    {
+        groupsByUID.put(group.getMetaUID(), group);
+
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+        {
+            addMetaContact((MetaContactImpl) contacts.next());
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+        {
+            addGroup((MetaContactGroupImpl) subgroups.next());
+        }
+    }
+
+    /**
+     * Removes from the index a group which has been removed from the list
+     * together with all the groups and meta contacts it contains.
+     *
+     * @param group the removed group
+     */
+    synchronized void removeGroup(MetaContactGroupImpl group)
+    {
+        groupsByUID.remove(group.getMetaUID());
+
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while (contacts.hasNext())
+        {
+            MetaContactImpl metaContact = (MetaContactImpl) contacts.next();
+
+            // it may have been moved to another group meanwhile
+            if (metaContact.getParentGroup() == group)
+            {
+                removeMetaContact(metaContact);
+            }
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+        {
+            removeGroup((MetaContactGroupImpl) subgroups.next());
+        }
+    }
+
+    /**
+     * Indexes a meta contact which has been added to the list together with
+     * its protocol contacts.
+     *
+     * @param metaContact the added meta contact
+     */
+    synchronized void addMetaContact(MetaContactImpl metaContact)
+    {
+        contactsByUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> protoContacts = metaContact.getContacts();
+        while (protoContacts.hasNext())
+        {
+            addProtoContact(metaContact, protoContacts.next());
+        }
+    }
+
+    /**
+     * Removes from the index a meta contact which has been removed from the
+     * list together with its protocol contacts.
+     *
+     * @param metaContact the removed meta contact
+     */
+    synchronized void removeMetaContact(MetaContactImpl metaContact)
+    {
+        if (contactsByUID.get(metaContact.getMetaUID()) == metaContact)
+        {
+            contactsByUID.remove(metaContact.getMetaUID());
+        }
+
+        Iterator<Contact> protoContacts = metaContact.getContacts();
+        while (protoContacts.hasNext())
+        {
+            Contact protoContact = protoContacts.next();
+            ProtocolProviderService provider
+                = protoContact.getProtocolProvider();
+            String address = protoContact.getAddress();
+
+            remove(contactsByKey,
+                getKey(address, provider.getAccountID().getAccountUniqueID()),
+                metaContact);
+            remove(contactsByAddress, address, metaContact);
+            remove(contactsByProvider, provider, metaContact);
+        }
+    }
+
+    /**
+     * Determines whether a meta contact returned by one of the lookups is
+     * still in the list. Entries may be stale if a protocol contact changed
+     * its address, so the callers check the returned contacts.
+     *
+     * @param metaContact the meta contact to check
+     * @return <tt>true</tt> if <tt>metaContact</tt> is in the list
+     */
+    boolean isIndexed(MetaContactImpl metaContact)
+    {
+        return contactsByUID.get(metaContact.getMetaUID()) == metaContact;
+    }
+
+    /**
+     * Determines whether a meta group is in the list, that is whether it is
+     * the root group or one of its descendants.
+     *
+     * @param group the group to check
+     * @return <tt>true</tt> if <tt>group</tt> is in the list
+     */
+    boolean isIndexed(MetaContactGroupImpl group)
+    {
+        return groupsByUID.get(group.getMetaUID()) == group;
+    }
+
+    /**
+     * Indexes a protocol contact which has been added to a meta contact in the
+     * list.
+     *
+     * @param metaContact the meta contact the protocol contact was added to
+     * @param protoContact the added protocol contact
+     */
+    synchronized void addProtoContact(MetaContactImpl metaContact,
+                                      Contact protoContact)
+    {
+        ProtocolProviderService provider = protoContact.getProtocolProvider();
+        String address = protoContact.getAddress();
+
+        add(contactsByKey,
+            getKey(address, provider.getAccountID().getAccountUniqueID()),
+            metaContact);
+        add(contactsByAddress, address, metaContact);
+        add(contactsByProvider, provider, metaContact);
+    }
+
+    /**
+     * Removes from the index a protocol contact which has been removed from a
+     * meta contact. The meta contact stays indexed under the keys of its
+     * remaining protocol contacts.
+     *
+     * @param metaContact the meta contact the protocol contact was removed
+     * from
+     * @param protoContact the removed protocol contact
+     */
+    synchronized void removeProtoContact(MetaContactImpl metaContact,
+                                         Contact protoContact)
+    {
+        ProtocolProviderService provider = protoContact.getProtocolProvider();
+        String address = protoContact.getAddress();
+        String accountID = provider.getAccountID().getAccountUniqueID();
+
+        boolean sameKey = false;
+        boolean sameAddress = false;
+        boolean sameProvider = false;
+        Iterator<Contact> remaining = metaContact.getContacts();
+        while (remaining.hasNext())
+        {
+            Contact c = remaining.next();
+            if (c.getProtocolProvider() == provider)
+            {
+                sameProvider = true;
+            }
+
+            if (c.getAddress().equals(address))
+            {
+                sameAddress = true;
+                if (c.getProtocolProvider().getAccountID()
+                        .getAccountUniqueID().equals(accountID))
+                {
+                    sameKey = true;
+                }
+            }
+        }
+
+        if (!sameKey)
+        {
+            remove(contactsByKey, getKey(address, accountID), metaContact);
+        }
+
+        if (!sameAddress)
+        {
+            remove(contactsByAddress, address, metaContact);
+        }
+
+        if (!sameProvider)
+        {
+            remove(contactsByProvider, provider, metaContact);
+        }
+    }
+
+    /**
+     * Returns the indexed meta contact with the specified meta UID.
+     *
+     * @param metaUID the meta UID of the meta contact
+     * @return the meta contact or <tt>null</tt> if there is no such contact
+     */
+    MetaContactImpl findMetaContactByMetaUID(String metaUID)
+    {
+        return contactsByUID.get(metaUID);
+    }
+
+    /**
+     * Returns the indexed meta group with the specified meta UID.
+     *
+     * @param metaUID the meta UID of the group
+     * @return the group or <tt>null</tt> if there is no such group
+     */
+    MetaContactGroupImpl findMetaContactGroupByMetaUID(String metaUID)
+    {
+        return groupsByUID.get(metaUID);
+    }
+
+    /**
+     * Returns the indexed meta contacts containing a protocol contact with the
+     * specified address and account ID.
+     *
+     * @param address the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the matching meta contacts, usually none or one
+     */
+    Collection<MetaContactImpl> findMetaContactsByContact(String address,
+                                                          String accountID)
+    {
+        return get(contactsByKey, getKey(address, accountID));
+    }
+
+    /**
+     * Returns the indexed meta contacts containing a protocol contact with the
+     * specified address.
+     *
+     * @param address the address of the protocol contact
+     * @return the matching meta contacts
+     */
+    Collection<MetaContactImpl> findMetaContactsByAddress(String address)
+    {
+        return get(contactsByAddress, address);
+    }
+
+    /**
+     * Returns the indexed meta contacts containing a protocol contact of the
+     * specified provider.
+     *
+     * @param provider the provider of the protocol contacts
+     * @return the matching meta contacts
+     */
+    Collection<MetaContactImpl> findMetaContactsByProvider(
+        ProtocolProviderService provider)
+    {
+        return get(contactsByProvider, provider);
+    }
+
+    /**
+     * Returns all the indexed meta contacts.
+     *
+     * @return all the meta contacts in the list
+     */
+    Collection<MetaContactImpl> getMetaContacts()
+    {
+        return contactsByUID.values();
+    }
+
+    /**
+     * Returns the key of a protocol contact in {@link #contactsByKey}.
+     *
+     * @param address the address of the protocol contact
+     * @param accountID the unique ID of the account of the protocol contact
+     * @return the key combining the address and the account ID
+     */
+    private static String getKey(String address, String accountID)
+    {
+        // the account ID does not contain a new line
+        return accountID + '\n' + address;
+    }
+
+    /**
+     * Returns a copy of the meta contacts mapped by a key.
+     *
+     * @param map the map to look in
+     * @param key the key
+     * @return the meta contacts mapped by <tt>key</tt>
+     */
+    private static <K> Collection<MetaContactImpl> get(
+        Map<K, Set<MetaContactImpl>> map, K key)
+    {
+        Set<MetaContactImpl> set = map.get(key);
+        if (set == null)
+        {
+            return Collections.emptyList();
+        }
+
+        return new ArrayList<MetaContactImpl>(set);
+    }
+
+    /**
+     * Maps a meta contact by a key.
+     *
+     * @param map the map to add to
+     * @param key the key
+     * @param metaContact the meta contact
+     */
+    private static <K> void add(Map<K, Set<MetaContactImpl>> map, K key,
+                                MetaContactImpl metaContact)
+    {
+        Set<MetaContactImpl> set = map.get(key);
+        if (set == null)
+        {
+            set = new CopyOnWriteArraySet<MetaContactImpl>();
+            map.put(key, set);
+        }
+        set.add(metaContact);
+    }
+
+    /**
+     * Unmaps a meta contact from a key.
+     *
+     * @param map the map to remove from
+     * @param key the key
+     * @param metaContact the meta contact
+     */
+    private static <K> void remove(Map<K, Set<MetaContactImpl>> map, K key,
+                                   MetaContactImpl metaContact)
+    {
+        Set<MetaContactImpl> set = map.get(key);
+        if (set != null)
+        {
+            set.remove(metaContact);
+            if (set.isEmpty())
+            {
+                map.remove(key);
+            }
+        }
+    }
+}
@@ -66,6 +66,12 @@
      */
     final MetaContactGroupImpl rootMetaGroup;
 
+    /**
+     * The index of the meta contacts and groups in the list, used by the
+     * <tt>find</tt> methods.
+     */
+    private final MetaContactIndex index = new MetaContactIndex();
+
     /**
      * The event handler that will be handling our subscription events.
      */
@@ -134,6 +140,17 @@ public MetaContactListServiceImpl()
             = new MetaContactGroupImpl(
                     this, ContactlistActivator.getResources().getI18NString(
                         "service.gui.CONTACTS"), "RootMetaContactGroup");
+        index.addGroup(rootMetaGroup);
+    }
+
+    /**
+     * Returns the index of the meta contacts and groups in this list.
+     *
+     * @return the index of the meta contacts and groups in this list
+     */
+    MetaContactIndex getIndex()
+    {
+        return index;
     }
 
     /**
@@ -1644,7 +1661,19 @@ private void locallyRemoveAllContactsForProvider(
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        ProtocolProviderService provider = contact.getProtocolProvider();
+        String address = contact.getAddress();
+
+        for (MetaContactImpl metaContact
+                : index.findMetaContactsByContact(
+                    address, provider.getAccountID().getAccountUniqueID()))
+        {
+            if (index.isIndexed(metaContact)
+                && metaContact.getContact(address, provider) != null)
+                return metaContact;
+        }
+
+        return null;
     }
 
     /**
@@ -1667,8 +1696,15 @@ public MetaContact findMetaContactByContact(Contact contact)
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        for (MetaContactImpl metaContact
+                : index.findMetaContactsByContact(contactAddress, accountID))
+        {
+            if (index.isIndexed(metaContact)
+                && metaContact.getContact(contactAddress, accountID) != null)
+                return metaContact;
+        }
+
+        return null;
     }
 
     /**
@@ -1681,8 +1717,7 @@ public MetaContact findMetaContactByContact(String contactAddress,
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
-
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return index.findMetaContactByMetaUID(metaContactID);
     }
 
     /**
@@ -1696,7 +1731,7 @@ public MetaContact findMetaContactByMetaUID(String metaContactID)
      */
     public MetaContactGroup findMetaContactGroupByMetaUID(String metaGroupID)
     {
-        return rootMetaGroup.findMetaContactGroupByMetaUID(metaGroupID);
+        return index.findMetaContactGroupByMetaUID(metaGroupID);
     }
 
     /**
@@ -1713,9 +1748,14 @@ public Iterator<MetaContact> findAllMetaContactsForProvider(
     {
         List<MetaContact> resultList = new ArrayList<MetaContact>();
 
-        this.findAllMetaContactsForProvider(protocolProvider,
-                                            rootMetaGroup,
-                                            resultList);
+        for (MetaContactImpl metaContact
+                : index.findMetaContactsByProvider(protocolProvider))
+        {
+            if (index.isIndexed(metaContact)
+                && metaContact.getContactsForProvider(protocolProvider)
+                        .hasNext())
+                resultList.add(metaContact);
+        }
 
         return resultList.iterator();
     }
@@ -1756,63 +1796,33 @@ public Iterator<MetaContact> findAllMetaContactsForProvider(
     public Iterator<MetaContact> findAllMetaContactsForAddress(
         String contactAddress)
     {
-        List<MetaContact> resultList = new LinkedList<MetaContact>();
-
-        findAllMetaContactsForAddress(rootMetaGroup, contactAddress, resultList);
-
-        return resultList.iterator();
-    }
-
-    /**
-     * Returns a list of all <tt>MetaContact</tt>s containing a protocol contact
-     * corresponding to the given <tt>contactAddress</tt> string.
-     *
-     * @param contactAddress the contact address for which we're looking for
-     * a parent <tt>MetaContact</tt>.
-     * @param metaContactGroup the parent group.
-     * @param resultList the list containing the result of the search.
-     */
-    private void findAllMetaContactsForAddress(
-        MetaContactGroup metaContactGroup,
-        String contactAddress,
-        List<MetaContact> resultList)
-    {
-        Iterator<MetaContact> childContacts
-            = metaContactGroup.getChildContacts();
+        Set<MetaContact> result = new LinkedHashSet<MetaContact>();
 
-        while (childContacts.hasNext())
+        for (MetaContactImpl metaContact
+                : index.findMetaContactsByAddress(contactAddress))
         {
-            MetaContact metaContact = childContacts.next();
+            if (index.isIndexed(metaContact))
+                result.add(metaContact);
+        }
 
+        // display names are not indexed as they may change without notice,
+        // so go through the indexed contacts instead of walking the groups
+        for (MetaContactImpl metaContact : index.getMetaContacts())
+        {
             Iterator<Contact> protocolContacts = metaContact.getContacts();
 
             while (protocolContacts.hasNext())
             {
-                Contact protocolContact = protocolContacts.next();
-
-                if (protocolContact.getAddress().equals(contactAddress)
-                    || protocolContact.getDisplayName().equals(contactAddress))
-                    resultList.add(metaContact);
+                if (protocolContacts.next().getDisplayName()
+                        .equals(contactAddress))
+                {
+                    result.add(metaContact);
+                    break;
+                }
             }
         }
 
-        Iterator<MetaContactGroup> subGroups
-            = metaContactGroup.getSubgroups();
-
-        while (subGroups.hasNext())
-        {
-            MetaContactGroup subGroup = subGroups.next();
-
-            Iterator<ContactGroup> protocolSubgroups
-                = subGroup.getContactGroups();
-
-            if (protocolSubgroups.hasNext())
-            {
-                this.findAllMetaContactsForAddress( subGroup,
-                                                    contactAddress,
-                                                    resultList);
-            }
-        }
+        return new ArrayList<MetaContact>(result).iterator();
     }
 
     /**
@@ -982,7 +982,8 @@ private void finishMessageAdd(final String message)
     */
     void processReplacement(final String messageID, final String chatString)
     {
-        new ReplacementWorker(messageID, chatString).start();
+        new ReplacementWorker(messageID, chatString)
+            .start(ReplacementPatternCache.getExecutor());
     }
 
     /**
@@ -1621,10 +1622,7 @@ public String processMeCommand(ChatMessage chatMessage)
             {
                 continue;
             }
-            String sourcePattern = source.getPattern();
-            Pattern p =
-                Pattern.compile(sourcePattern, Pattern.CASE_INSENSITIVE
-                    | Pattern.DOTALL);
+            Pattern p = ReplacementPatternCache.getPattern(source);
             Matcher m = p.matcher(chatString);
             chatString =
                 m.replaceAll(ChatHtmlUtils.HTML_CONTENT_TYPE
@@ -2054,6 +2052,11 @@ public void debug()
          */
         private final boolean isProposalEnabled;
 
+        /**
+         * Is smiley replacement enabled.
+         */
+        private final boolean isSmileyEnabled;
+
         /**
          * Constructs worker.
          *
@@ -2074,6 +2077,10 @@ private ReplacementWorker(final String messageID,
                 = cfg.getBoolean(
                 ReplacementProperty.REPLACEMENT_PROPOSAL,
                 true);
+            isSmileyEnabled
+                = cfg.getBoolean(
+                ReplacementProperty.getPropertyName("SMILEY"),
+                true);
         }
 
         /**
@@ -2134,11 +2141,15 @@ public Object construct() throws Exception
                 closingTag = divMatcher.group(3);
             }
 
+            Map<String, ReplacementService> sources
+                = GuiActivator.getReplacementSources();
+            ReplacementPatternCache.retain(sources.values());
+
             StringBuilder msgBuff;
-            for (Map.Entry<String, ReplacementService> entry : GuiActivator
-                .getReplacementSources().entrySet())
+            for (Map.Entry<String, ReplacementService> entry
+                    : sources.entrySet())
             {
-                msgBuff = new StringBuilder();
+                msgBuff = new StringBuilder(msgStore.length() + 64);
                 processReplacementService(entry.getValue(), msgStore, msgBuff);
                 msgStore = msgBuff.toString();
             }
@@ -2156,10 +2167,12 @@ public Object construct() throws Exception
         private void processReplacementService(final ReplacementService service,
             final String msg, final StringBuilder buff)
         {
-            String sourcePattern = service.getPattern();
-            Pattern pattern =
-                Pattern.compile(sourcePattern, Pattern.CASE_INSENSITIVE
-                    | Pattern.DOTALL);
+            Pattern pattern = ReplacementPatternCache.getPattern(service);
+            boolean isEnabledForSource
+                = GuiActivator.getConfigurationService().getBoolean(
+                    ReplacementProperty.getPropertyName(
+                        service.getSourceName()),
+                    true);
 
             int startPos = 0;
 
@@ -2189,7 +2202,8 @@ private void processReplacementService(final ReplacementService service,
                     final boolean isURL =
                         URL_PATTERN.matcher(plaintext).matches();
 
-                    processText(plaintext, buff, pattern, service, isURL);
+                    processText(plaintext, buff, pattern, service, isURL,
+                        isEnabledForSource);
 
                     startPos = endMatchPosition;
                 }
@@ -2208,12 +2222,15 @@ private void processReplacementService(final ReplacementService service,
          *            earlier so we don't create it for every text we check.
          * @param rService the replacement service.
          * @param isURL whether this content matches the URL pattern
+         * @param isEnabledForSource whether replacement is enabled for the
+         *            replacement service
          */
         private void processText(final String plainText,
                                  final StringBuilder msgBuff,
                                  final Pattern pattern,
                                  final ReplacementService rService,
-                                 final boolean isURL)
+                                 final boolean isURL,
+                                 final boolean isEnabledForSource)
         {
             final ShowPreviewDialog previewDialog = showPreview;
             // There is a race between the replacement worker and the
@@ -2227,15 +2244,10 @@ private void processText(final String plainText,
 
             Matcher m = pattern.matcher(plainText);
 
-            ConfigurationService cfg = GuiActivator.getConfigurationService();
             boolean isSmiley
                 = rService instanceof SmiliesReplacementService;
             boolean isDirectImage
                 = rService instanceof DirectImageReplacementService;
-            boolean isEnabledForSource
-                = cfg.getBoolean(
-                ReplacementProperty.getPropertyName(
-                    rService.getSourceName()), true);
 
             int startPos = 0;
             while (m.find())
@@ -2252,9 +2264,7 @@ private void processText(final String plainText,
                 {
                     if (isSmiley)
                     {
-                        if (cfg.getBoolean(ReplacementProperty.
-                                getPropertyName("SMILEY"),
-                            true) && !isURL)
+                        if (isSmileyEnabled && !isURL)
                         {
                             msgBuff.append("<IMG SRC=\"");
                             msgBuff.append(temp);
@@ -0,0 +1,147 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+import net.java.sip.communicator.service.replacement.*;
+
+/**
+ * Caches the compiled patterns of the <tt>ReplacementService</tt>s, so that
+ * they are not compiled again for every chat message. A pattern is compiled
+ * again only when its service returns a different pattern, e.g. after the
+ * smiley set has changed, and the patterns of the services which have been
+ * unregistered are dropped.
+ */
+final class ReplacementPatternCache
+{
+    /**
+     * The compiled patterns mapped by the services they belong to.
+     */
+    private static final Map<ReplacementService, CompiledPattern> patterns
+        = new ConcurrentHashMap<ReplacementService, CompiledPattern>();
+
+    /**
+     * The executor shared by all the chat panels to run the replacements,
+     * so that a busy chat room does not start a thread for each message.
+     */
+    private static ExecutorService executor;
+
+    /**
+     * Prevents the creation of instances.
+     */
+    private ReplacementPatternCache()
+    {
+    }
+
+    /**
+     * Returns the compiled pattern of a replacement service.
+     *
+     * @param service the replacement service
+     * @return the compiled, case insensitive, pattern of <tt>service</tt>
+     */
+    static Pattern getPattern(ReplacementService service)
+    {
+        String source = service.getPattern();
+        CompiledPattern compiled = patterns.get(service);
+
+        if (compiled == null || !compiled.source.equals(source))
+        {
+            compiled = new CompiledPattern(source);
+            patterns.put(service, compiled);
+        }
+
+        return compiled.pattern;
+    }
+
+    /**
+     * Drops the patterns of the services which are no longer registered.
+     *
+     * @param services the currently registered services
+     */
+    static void retain(Collection<ReplacementService> services)
+    {
+        if (patterns.size() > services.size())
+            patterns.keySet().retainAll(services);
+    }
+
+    /**
+     * Returns the executor the replacements are run on. It has at most as
+     * many threads as there are processors, up to four.
+     *
+     * @return the executor the replacements are run on
+     */
+    static synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            int threads
+                = Math.max(1,
+                    Math.min(4, Runtime.getRuntime().availableProcessors()));
+            ThreadPoolExecutor pool
+                = new ThreadPoolExecutor(
+                        threads, threads,
+                        30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory()
+                        {
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t = new Thread(r, "ChatReplacement");
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+
+        return executor;
+    }
+
+    /**
+     * A pattern together with the source it has been compiled from.
+     */
+    private static class CompiledPattern
+    {
+        /**
+         * The source of the pattern.
+         */
+        private final String source;
+
+        /**
+         * The compiled pattern.
+         */
+        private final Pattern pattern;
+
+        /**
+         * Compiles a pattern.
+         *
+         * @param source the source of the pattern
+         */
+        private CompiledPattern(String source)
+        {
+            this.source = source;
+            this.pattern
+                = Pattern.compile(
+                    source, Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+        }
+    }
+}
@@ -107,6 +107,12 @@
 
     private int lastProgress = 0;
 
+    /**
+     * The loader of the messages shown in the conversation panel, canceled
+     * when other messages are to be shown or the window is closed.
+     */
+    private MessagesLoader messagesLoader;
+
     /**
      * If the <code>historyContact</code> is a <code>MetaContact</code>,
      * contains the <code>OperationSetBasicInstantMessaging</code> instances to
@@ -238,10 +244,26 @@ public void showHistoryByPeriod(Date startDate, Date endDate)
             //init progress bar by precising the date that will be loaded.
             this.initProgressBar(startDate);
 
-            new MessagesLoader(startDate, endDate).start();
+            loadMessages(startDate, endDate);
         }
     }
 
+    /**
+     * Starts loading the messages between the given dates in the conversation
+     * panel, canceling the loading of the previously requested ones.
+     *
+     * @param startDate the start date of the history to load
+     * @param endDate the end date of the history to load
+     */
+    private void loadMessages(Date startDate, Date endDate)
+    {
+        if (messagesLoader != null)
+            messagesLoader.cancel();
+
+        messagesLoader = new MessagesLoader(startDate, endDate);
+        messagesLoader.start();
+    }
+
     /**
      * Shows a history for a given keyword.
      * @param keyword the keyword to search
@@ -569,6 +591,16 @@ private class MessagesLoader extends Thread
         private final Date startDate;
         private final Date endDate;
 
+        /**
+         * The cursor over the loaded messages.
+         */
+        private MetaHistoryCursor cursor;
+
+        /**
+         * Indicates whether the loading was canceled.
+         */
+        private boolean canceled = false;
+
         /**
          * Creates a MessageLoader thread charged to load history messages in
          * the right panel.
@@ -582,17 +614,27 @@ public MessagesLoader (Date startDate, Date endDate)
             this.endDate = endDate;
         }
 
+        /**
+         * Cancels the loading of the messages.
+         */
+        public synchronized void cancel()
+        {
+            canceled = true;
+            if (cursor != null)
+                cursor.cancel();
+        }
+
         @Override
         public void run()
         {
-            final Collection<Object> msgList;
+            final MetaHistoryCursor cursor;
 
             if(historyContact instanceof MetaContact)
             {
-                msgList = history.findByPeriod(
+                cursor = history.iterateByPeriod(
                     HISTORY_FILTER,
                     historyContact,
-                    startDate, endDate);
+                    startDate, endDate, -1);
             }
             else if (historyContact instanceof ChatRoomWrapper)
             {
@@ -602,10 +644,31 @@ else if (historyContact instanceof ChatRoomWrapper)
                 if(chatRoomWrapper.getChatRoom() == null)
                     return;
 
-                msgList = history.findByPeriod(
+                cursor = history.iterateByPeriod(
                     HISTORY_FILTER,
                     chatRoomWrapper.getChatRoom(),
-                    startDate, endDate);
+                    startDate, endDate, -1);
+            }
+            else
+                cursor = null;
+
+            final Collection<Object> msgList;
+
+            if (cursor != null)
+            {
+                synchronized (this)
+                {
+                    if (canceled)
+                        cursor.cancel();
+                    this.cursor = cursor;
+                }
+
+                msgList = new ArrayList<Object>();
+                while (cursor.hasNext())
+                    msgList.add(cursor.next());
+
+                if (cursor.isCanceled())
+                    return;
             }
             else
                 msgList = null;
@@ -789,6 +852,12 @@ else if(historyMenu != null && historyMenu.isPopupMenuVisible())
             GuiActivator.getUIService().getHistoryWindowManager()
                 .removeHistoryWindowForContact(historyContact);
 
+            if (messagesLoader != null)
+            {
+                messagesLoader.cancel();
+                messagesLoader = null;
+            }
+
             if(datesPanel != null)
                 datesPanel.dispose();
 
@@ -969,6 +1038,6 @@ public void loadSkin()
         //init progress bar by precising the date that will be loaded.
         this.initProgressBar(startDate);
 
-        new MessagesLoader(startDate, getNextDateFromHistory(startDate)).start();
+        loadMessages(startDate, getNextDateFromHistory(startDate));
     }
 }
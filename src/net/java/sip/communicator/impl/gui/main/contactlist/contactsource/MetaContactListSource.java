@@ -21,6 +21,7 @@
 import java.awt.event.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.swing.*;
@@ -95,6 +96,17 @@
      */
     private int index = 0;
 
+    /**
+     * The search index of the contact list, used to answer the queries of
+     * the <tt>SearchFilter</tt>.
+     */
+    private MetaContactSearchIndex searchIndex;
+
+    /**
+     * The executor running the queries.
+     */
+    private ExecutorService queryExecutor;
+
     /**
      * The logger.
      */
@@ -208,16 +220,24 @@ public static boolean isRootGroup(MetaContactGroup group)
     public void startQuery(final MetaContactQuery query,
         final Pattern filterPattern)
     {
-        new Thread()
+        getQueryExecutor().execute(new Runnable()
         {
-            @Override
             public void run()
             {
-                int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
+                String searchString = getSearchString(filterPattern);
+
+                if (searchString != null)
+                {
+                    querySearchIndex(filterPattern, searchString, query);
+                }
+                else
+                {
+                    int resultCount = 0;
+                    queryMetaContactSource( filterPattern,
+                            GuiActivator.getContactListService().getRoot(),
+                            query,
+                            resultCount);
+                }
 
                 if (!query.isCanceled())
                     query.fireQueryEvent(
@@ -226,7 +246,182 @@ public void run()
                     query.fireQueryEvent(
                         MetaContactQueryStatusEvent.QUERY_CANCELED);
             }
-        }.start();
+        });
+    }
+
+    /**
+     * Returns the executor running the queries, one after the other, creating
+     * it if necessary.
+     *
+     * @return the executor running the queries
+     */
+    private synchronized ExecutorService getQueryExecutor()
+    {
+        if (queryExecutor == null)
+        {
+            queryExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "MetaContactListQuery");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return queryExecutor;
+    }
+
+    /**
+     * Returns the search index of the contact list, creating it if necessary.
+     *
+     * @return the search index of the contact list
+     */
+    private synchronized MetaContactSearchIndex getSearchIndex()
+    {
+        if (searchIndex == null)
+        {
+            searchIndex = new MetaContactSearchIndex(
+                GuiActivator.getContactListService().getRoot());
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Returns the search index of the contact list if it has already been
+     * created by a query.
+     *
+     * @return the search index of the contact list or <tt>null</tt>
+     */
+    private synchronized MetaContactSearchIndex getExistingSearchIndex()
+    {
+        return searchIndex;
+    }
+
+    /**
+     * Updates the given <tt>MetaContact</tt> in the search index, if there is
+     * one, after it has been added or its name or protocol contacts have
+     * changed.
+     *
+     * @param metaContact the added or changed <tt>MetaContact</tt>
+     */
+    private void updateSearchIndex(MetaContact metaContact)
+    {
+        MetaContactSearchIndex searchIndex = getExistingSearchIndex();
+
+        if (searchIndex != null && metaContact != null)
+            searchIndex.updateMetaContact(metaContact);
+    }
+
+    /**
+     * Returns the literal string the given pattern searches for, if it has
+     * been created by <tt>Pattern.quote</tt>, as the <tt>SearchFilter</tt>
+     * does.
+     *
+     * @param filterPattern the pattern to filter through
+     * @return the literal string searched by <tt>filterPattern</tt> or
+     * <tt>null</tt> if it is not a quoted literal
+     */
+    private static String getSearchString(Pattern filterPattern)
+    {
+        String pattern = filterPattern.pattern();
+
+        if (pattern.length() < 4
+            || !pattern.startsWith("\\Q")
+            || !pattern.endsWith("\\E"))
+            return null;
+
+        String searchString = pattern.substring(2, pattern.length() - 2);
+
+        return searchString.contains("\\E") ? null : searchString;
+    }
+
+    /**
+     * Adds the <tt>MetaContact</tt>s found by the search index for the given
+     * search string and matching the given <tt>filterPattern</tt> to the
+     * contact list, the same way <tt>queryMetaContactSource</tt> does.
+     *
+     * @param filterPattern the pattern to filter through
+     * @param searchString the literal string searched by
+     * <tt>filterPattern</tt>
+     * @param query the object that tracks the query
+     */
+    private void querySearchIndex(Pattern filterPattern,
+                                  String searchString,
+                                  MetaContactQuery query)
+    {
+        int resultCount = 0;
+
+        for (MetaContact metaContact
+                : getSearchIndex().search(searchString))
+        {
+            if (query.isCanceled())
+                return;
+
+            MetaContactGroup parentGroup
+                = metaContact.getParentMetaContactGroup();
+
+            if (parentGroup == null
+                || !isMatching(filterPattern, metaContact))
+                continue;
+
+            resultCount++;
+
+            if (resultCount <= INITIAL_CONTACT_COUNT)
+            {
+                addMatchingContact(metaContact, parentGroup);
+                query.setInitialResultCount(resultCount);
+            }
+            else
+            {
+                query.fireQueryEvent(metaContact);
+            }
+        }
+    }
+
+    /**
+     * Adds the given <tt>MetaContact</tt> matching a query directly to the
+     * contact list.
+     *
+     * @param metaContact the matching <tt>MetaContact</tt>
+     * @param parentGroup the parent group of <tt>metaContact</tt>
+     */
+    private void addMatchingContact(MetaContact metaContact,
+                                    MetaContactGroup parentGroup)
+    {
+        UIGroup uiGroup = null;
+        if (!MetaContactListSource.isRootGroup(parentGroup))
+        {
+            synchronized (parentGroup)
+            {
+                uiGroup = MetaContactListSource
+                    .getUIGroup(parentGroup);
+                if (uiGroup == null)
+                    uiGroup = MetaContactListSource
+                        .createUIGroup(parentGroup);
+            }
+        }
+
+        UIContact newUIContact;
+        synchronized (metaContact)
+        {
+            newUIContact 
+                = MetaContactListSource.getUIContact(metaContact);
+
+            if (newUIContact == null)
+            {
+                newUIContact
+                    = MetaContactListSource
+                        .createUIContact(metaContact);
+            }
+            
+            GuiActivator.getContactList().addContact(
+                newUIContact,
+                uiGroup,
+                true,
+                true);
+        }
     }
 
     /**
@@ -256,39 +451,8 @@ public void queryMetaContactSource(Pattern filterPattern,
 
                 if (resultCount <= INITIAL_CONTACT_COUNT)
                 {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
-                    {
-                        synchronized (parentGroup)
-                        {
-                            uiGroup = MetaContactListSource
-                                .getUIGroup(parentGroup);
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
-                                    .createUIGroup(parentGroup);
-                        }
-                    }
+                    addMatchingContact(metaContact, parentGroup);
 
-                    UIContact newUIContact;
-                    synchronized (metaContact)
-                    {
-                        newUIContact 
-                            = MetaContactListSource.getUIContact(metaContact);
-    
-                        if (newUIContact == null)
-                        {
-                            newUIContact
-                                = MetaContactListSource
-                                    .createUIContact(metaContact);
-                        }
-                        
-                        GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
-                    }
-                    
                     query.setInitialResultCount(resultCount);
                 }
                 else
@@ -501,6 +665,8 @@ public void childContactsReordered(MetaContactGroupEvent evt)
      */
     public void metaContactAdded(final MetaContactEvent evt)
     {
+        updateSearchIndex(evt.getSourceMetaContact());
+
         metaContactAdded(evt.getSourceMetaContact(),
                         evt.getParentGroup());
     }
@@ -562,6 +728,10 @@ public void metaContactGroupAdded(MetaContactGroupEvent evt)
     {
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        MetaContactSearchIndex searchIndex = getExistingSearchIndex();
+        if (searchIndex != null)
+            searchIndex.addMetaContactGroup(metaGroup);
+
         UIGroup uiGroup;
 
         synchronized (metaGroup)
@@ -639,6 +809,10 @@ public void metaContactGroupRemoved(final MetaContactGroupEvent evt)
     {
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
+        MetaContactSearchIndex searchIndex = getExistingSearchIndex();
+        if (searchIndex != null)
+            searchIndex.removeMetaContactGroup(metaGroup);
+
         UIGroup uiGroup;
         synchronized (metaGroup)
         {
@@ -768,6 +942,10 @@ public void metaContactRemoved(final MetaContactEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        MetaContactSearchIndex searchIndex = getExistingSearchIndex();
+        if (searchIndex != null)
+            searchIndex.removeMetaContact(metaContact);
+
         UIContact uiContact;
         synchronized (metaContact)
         {
@@ -788,6 +966,8 @@ public void metaContactRenamed(final MetaContactRenamedEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        updateSearchIndex(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -841,6 +1021,8 @@ public void metaContactAvatarUpdated(final MetaContactAvatarUpdateEvent evt)
      */
     public void protoContactAdded(ProtoContactEvent evt)
     {
+        updateSearchIndex(evt.getNewParent());
+
         final MetaContact metaContact = evt.getNewParent();
 
         UIContact parentUIContact;
@@ -898,6 +1080,8 @@ public void protoContactAdded(ProtoContactEvent evt)
      */
     public void protoContactModified(ProtoContactEvent evt)
     {
+        updateSearchIndex(evt.getNewParent());
+
         MetaContact metaContact = evt.getNewParent();
 
         UIContactImpl uiContact;
@@ -925,6 +1109,9 @@ public void protoContactModified(ProtoContactEvent evt)
      */
     public void protoContactMoved(ProtoContactEvent evt)
     {
+        updateSearchIndex(evt.getOldParent());
+        updateSearchIndex(evt.getNewParent());
+
         final MetaContact oldParent = evt.getOldParent();
         final MetaContact newParent = evt.getNewParent();
 
@@ -998,6 +1185,8 @@ public void protoContactMoved(ProtoContactEvent evt)
      */
     public void protoContactRemoved(ProtoContactEvent evt)
     {
+        updateSearchIndex(evt.getOldParent());
+
         final MetaContact oldParent = evt.getOldParent();
 
         UIContactImpl oldUIContact;
@@ -0,0 +1,380 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * An in-memory search index over the display names of the
+ * <tt>MetaContact</tt>s and over the display names and addresses of their
+ * protocol contacts. The searchable strings are case folded and split in
+ * trigrams, so that the contacts containing a search string are found by
+ * intersecting the contact sets of its trigrams instead of walking the whole
+ * contact list. The result of the last search is kept, so that a search for
+ * a string containing the previous one, as happens when the user types in the
+ * search field, only looks through the previous result.
+ * <p>
+ * The index is built from the contact list on the first search and is kept
+ * up to date by the <tt>MetaContactListSource</tt> through the
+ * <tt>MetaContactListListener</tt> events.
+ */
+class MetaContactSearchIndex
+{
+    /**
+     * The length of the indexed character sequences.
+     */
+    private static final int GRAM_LENGTH = 3;
+
+    /**
+     * The root group of the indexed contact list.
+     */
+    private final MetaContactGroup root;
+
+    /**
+     * The folded searchable strings of every indexed <tt>MetaContact</tt>.
+     */
+    private final Map<MetaContact, String[]> contactStrings
+        = new HashMap<MetaContact, String[]>();
+
+    /**
+     * The indexed <tt>MetaContact</tt>s per trigram.
+     */
+    private final Map<String, Set<MetaContact>> gramContacts
+        = new HashMap<String, Set<MetaContact>>();
+
+    /**
+     * Indicates whether the index has been built from the contact list.
+     */
+    private boolean built = false;
+
+    /**
+     * The folded string of the last search.
+     */
+    private String lastSearch;
+
+    /**
+     * The result of the last search.
+     */
+    private List<MetaContact> lastResult;
+
+    /**
+     * Creates an index over the contacts of the given root group.
+     *
+     * @param root the root group of the contact list to index
+     */
+    MetaContactSearchIndex(MetaContactGroup root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * Returns the indexed <tt>MetaContact</tt>s which display name or the
+     * display name or address of one of their protocol contacts contains the
+     * given string, ignoring case.
+     *
+     * @param searchString the string to search for
+     * @return the <tt>MetaContact</tt>s containing <tt>searchString</tt>
+     */
+    synchronized List<MetaContact> search(String searchString)
+    {
+        if (!built)
+        {
+            addGroup(root);
+            built = true;
+        }
+
+        String search = fold(searchString);
+        Collection<MetaContact> candidates;
+
+        if (lastSearch != null && search.contains(lastSearch))
+            candidates = lastResult;
+        else if (search.length() < GRAM_LENGTH)
+            candidates = contactStrings.keySet();
+        else
+            candidates = getGramCandidates(search);
+
+        List<MetaContact> result = new ArrayList<MetaContact>();
+
+        for (MetaContact metaContact : candidates)
+        {
+            String[] strings = contactStrings.get(metaContact);
+
+            if (strings != null && contains(strings, search))
+                result.add(metaContact);
+        }
+
+        lastSearch = search;
+        lastResult = result;
+
+        return new ArrayList<MetaContact>(result);
+    }
+
+    /**
+     * Adds or updates the given <tt>MetaContact</tt> in the index, or removes
+     * it if it is no longer in the contact list.
+     *
+     * @param metaContact the added or changed <tt>MetaContact</tt>
+     */
+    synchronized void updateMetaContact(MetaContact metaContact)
+    {
+        if (!built)
+            return;
+
+        removeContact(metaContact);
+
+        if (metaContact.getParentMetaContactGroup() != null)
+            addContact(metaContact);
+    }
+
+    /**
+     * Removes the given <tt>MetaContact</tt> from the index.
+     *
+     * @param metaContact the removed <tt>MetaContact</tt>
+     */
+    synchronized void removeMetaContact(MetaContact metaContact)
+    {
+        if (built)
+            removeContact(metaContact);
+    }
+
+    /**
+     * Adds the contacts of the given group and of its subgroups to the index.
+     *
+     * @param metaGroup the added <tt>MetaContactGroup</tt>
+     */
+    synchronized void addMetaContactGroup(MetaContactGroup metaGroup)
+    {
+        if (built)
+            addGroup(metaGroup);
+    }
+
+    /**
+     * Removes the contacts of the given group and of its subgroups from the
+     * index.
+     *
+     * @param metaGroup the removed <tt>MetaContactGroup</tt>
+     */
+    synchronized void removeMetaContactGroup(MetaContactGroup metaGroup)
+    {
+        if (!built)
+            return;
+
+        Iterator<MetaContact> contacts = metaGroup.getChildContacts();
+        while (contacts.hasNext())
+            removeContact(contacts.next());
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+        while (subgroups.hasNext())
+            removeMetaContactGroup(subgroups.next());
+    }
+
+    /**
+     * Adds the contacts of the given group and of its subgroups to the index.
+     *
+     * @param metaGroup the <tt>MetaContactGroup</tt> to add
+     */
+    private void addGroup(MetaContactGroup metaGroup)
+    {
+        Iterator<MetaContact> contacts = metaGroup.getChildContacts();
+        while (contacts.hasNext())
+        {
+            MetaContact metaContact = contacts.next();
+
+            if (!contactStrings.containsKey(metaContact))
+                addContact(metaContact);
+        }
+
+        Iterator<MetaContactGroup> subgroups = metaGroup.getSubgroups();
+        while (subgroups.hasNext())
+            addGroup(subgroups.next());
+    }
+
+    /**
+     * Indexes the searchable strings of the given <tt>MetaContact</tt>.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to add
+     */
+    private void addContact(MetaContact metaContact)
+    {
+        List<String> strings = new ArrayList<String>();
+
+        addString(strings, metaContact.getDisplayName());
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+        {
+            Contact contact = contacts.next();
+
+            addString(strings, contact.getDisplayName());
+            addString(strings, contact.getAddress());
+        }
+
+        contactStrings.put(metaContact, strings.toArray(new String[0]));
+
+        for (String string : strings)
+        {
+            for (int i = 0; i + GRAM_LENGTH <= string.length(); i++)
+            {
+                String gram = string.substring(i, i + GRAM_LENGTH);
+                Set<MetaContact> gramSet = gramContacts.get(gram);
+
+                if (gramSet == null)
+                {
+                    gramSet = new HashSet<MetaContact>();
+                    gramContacts.put(gram, gramSet);
+                }
+                gramSet.add(metaContact);
+            }
+        }
+
+        lastSearch = null;
+        lastResult = null;
+    }
+
+    /**
+     * Removes the given <tt>MetaContact</tt> and its trigrams from the index.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to remove
+     */
+    private void removeContact(MetaContact metaContact)
+    {
+        String[] strings = contactStrings.remove(metaContact);
+
+        if (strings == null)
+            return;
+
+        for (String string : strings)
+        {
+            for (int i = 0; i + GRAM_LENGTH <= string.length(); i++)
+            {
+                String gram = string.substring(i, i + GRAM_LENGTH);
+                Set<MetaContact> gramSet = gramContacts.get(gram);
+
+                if (gramSet != null)
+                {
+                    gramSet.remove(metaContact);
+                    if (gramSet.isEmpty())
+                        gramContacts.remove(gram);
+                }
+            }
+        }
+
+        lastSearch = null;
+        lastResult = null;
+    }
+
+    /**
+     * Returns the contacts containing all the trigrams of the given folded
+     * search string.
+     *
+     * @param search the folded search string, at least three characters long
+     * @return the contacts containing all the trigrams of <tt>search</tt>
+     */
+    private Collection<MetaContact> getGramCandidates(String search)
+    {
+        Set<MetaContact> smallest = null;
+        List<Set<MetaContact>> gramSets = new ArrayList<Set<MetaContact>>();
+
+        for (int i = 0; i + GRAM_LENGTH <= search.length(); i++)
+        {
+            Set<MetaContact> gramSet
+                = gramContacts.get(search.substring(i, i + GRAM_LENGTH));
+
+            if (gramSet == null)
+                return Collections.emptyList();
+
+            gramSets.add(gramSet);
+            if (smallest == null || gramSet.size() < smallest.size())
+                smallest = gramSet;
+        }
+
+        List<MetaContact> candidates = new ArrayList<MetaContact>();
+
+        candidates:
+        for (MetaContact metaContact : smallest)
+        {
+            for (Set<MetaContact> gramSet : gramSets)
+            {
+                if (gramSet != smallest && !gramSet.contains(metaContact))
+                    continue candidates;
+            }
+            candidates.add(metaContact);
+        }
+        return candidates;
+    }
+
+    /**
+     * Adds the folded form of the given string to the given list, if it is
+     * not empty and not already there.
+     *
+     * @param strings the list to add to
+     * @param string the string to add
+     */
+    private static void addString(List<String> strings, String string)
+    {
+        if (string == null || string.length() == 0)
+            return;
+
+        String folded = fold(string);
+
+        if (!strings.contains(folded))
+            strings.add(folded);
+    }
+
+    /**
+     * Checks whether one of the given strings contains the given one.
+     *
+     * @param strings the strings to check
+     * @param search the string to look for
+     * @return <tt>true</tt> if one of <tt>strings</tt> contains
+     * <tt>search</tt>
+     */
+    private static boolean contains(String[] strings, String search)
+    {
+        for (String string : strings)
+        {
+            if (string.contains(search))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Folds the case of the given string in the way case insensitive
+     * <tt>Pattern</tt>s compare characters, so that two strings matching
+     * each other ignoring case have the same folded form.
+     *
+     * @param string the string to fold
+     * @return the folded string
+     */
+    static String fold(String string)
+    {
+        StringBuilder folded = new StringBuilder(string.length());
+
+        for (int i = 0; i < string.length(); i++)
+        {
+            folded.append(
+                Character.toLowerCase(
+                    Character.toUpperCase(string.charAt(i))));
+        }
+        return folded.toString();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.utils;
+
+import java.util.*;
+
+import javax.swing.*;
+
+/**
+ * A least recently used cache of the avatars scaled for display, keyed by
+ * the contact they belong to and the size they are scaled to. An entry is
+ * only valid for the exact avatar bytes it was scaled from, so that a
+ * changed avatar is scaled again.
+ */
+class AvatarImageCache
+{
+    /**
+     * The scaled avatars, the least recently used first.
+     */
+    private final LinkedHashMap<Key, Entry> entries;
+
+    /**
+     * The number of lookups which found a scaled avatar.
+     */
+    private long hits = 0;
+
+    /**
+     * The number of lookups which did not find a scaled avatar.
+     */
+    private long misses = 0;
+
+    /**
+     * Creates a cache keeping at most the given number of scaled avatars.
+     *
+     * @param maxEntries the maximum number of scaled avatars kept
+     */
+    AvatarImageCache(final int maxEntries)
+    {
+        entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the avatar of the given contact scaled to the given size.
+     *
+     * @param contact the contact the avatar belongs to
+     * @param avatarBytes the avatar bytes the scaled avatar is to be scaled
+     * from
+     * @param width the width of the scaled avatar
+     * @param height the height of the scaled avatar
+     * @return the scaled avatar or <tt>null</tt> if there is none for these
+     * exact avatar bytes
+     */
+    synchronized ImageIcon get(
+        Object contact, byte[] avatarBytes, int width, int height)
+    {
+        Entry entry = entries.get(new Key(contact, width, height));
+
+        if (entry != null && entry.avatarBytes == avatarBytes)
+        {
+            hits++;
+            return entry.icon;
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Keeps the avatar of the given contact scaled to the given size.
+     *
+     * @param contact the contact the avatar belongs to
+     * @param avatarBytes the avatar bytes the avatar is scaled from
+     * @param width the width of the scaled avatar
+     * @param height the height of the scaled avatar
+     * @param icon the scaled avatar
+     */
+    synchronized void put(
+        Object contact, byte[] avatarBytes, int width, int height,
+        ImageIcon icon)
+    {
+        entries.put(
+            new Key(contact, width, height), new Entry(avatarBytes, icon));
+    }
+
+    /**
+     * Removes all the scaled avatars.
+     */
+    synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of lookups which found a scaled avatar.
+     *
+     * @return the number of lookups which found a scaled avatar
+     */
+    synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups which did not find a scaled avatar.
+     *
+     * @return the number of lookups which did not find a scaled avatar
+     */
+    synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * The key of a scaled avatar.
+     */
+    private static class Key
+    {
+        private final Object contact;
+
+        private final int width;
+
+        private final int height;
+
+        Key(Object contact, int width, int height)
+        {
+            this.contact = contact;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key key = (Key) obj;
+
+            return contact.equals(key.contact)
+                && width == key.width
+                && height == key.height;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (contact.hashCode() * 31 + width) * 31 + height;
+        }
+    }
+
+    /**
+     * A scaled avatar and the avatar bytes it is scaled from.
+     */
+    private static class Entry
+    {
+        final byte[] avatarBytes;
+
+        final ImageIcon icon;
+
+        Entry(byte[] avatarBytes, ImageIcon icon)
+        {
+            this.avatarBytes = avatarBytes;
+            this.icon = icon;
+        }
+    }
+}
@@ -52,6 +52,17 @@
      */
     private static ImageLoaderServiceImpl imageLoaderService = null;
 
+    /**
+     * The maximum number of scaled avatars kept in memory.
+     */
+    private static final int MAX_SCALED_AVATARS = 512;
+
+    /**
+     * The avatars scaled for display.
+     */
+    private static final AvatarImageCache scaledAvatars
+        = new AvatarImageCache(MAX_SCALED_AVATARS);
+
     /**
      * The SIP Communicator logo 16x16 icon.
      */
@@ -1927,11 +1938,63 @@ public static ImageIcon getImageForPath(String imagePath)
         return new ImageIcon(icon);
     }
 
+    /**
+     * Returns the avatar of the given contact scaled to the given size with
+     * rounded corners. The scaled avatars are cached per contact and size
+     * as long as the avatar bytes of the contact do not change.
+     *
+     * @param contact the contact the avatar belongs to
+     * @param avatarBytes the bytes of the avatar
+     * @param width the width of the scaled avatar
+     * @param height the height of the scaled avatar
+     * @return the scaled avatar or <tt>null</tt> if the avatar bytes are not
+     * an image
+     */
+    public static ImageIcon getScaledRoundedAvatar(
+        Object contact, byte[] avatarBytes, int width, int height)
+    {
+        ImageIcon avatar
+            = scaledAvatars.get(contact, avatarBytes, width, height);
+
+        if (avatar == null)
+        {
+            avatar
+                = ImageUtils.getScaledRoundedIcon(avatarBytes, width, height);
+            if (avatar != null)
+                scaledAvatars.put(contact, avatarBytes, width, height, avatar);
+        }
+        return avatar;
+    }
+
+    /**
+     * Returns the number of scaled avatar lookups which were served from the
+     * cache.
+     *
+     * @return the number of scaled avatar lookups served from the cache
+     */
+    public static long getScaledAvatarHitCount()
+    {
+        return scaledAvatars.getHitCount();
+    }
+
+    /**
+     * Returns the number of scaled avatar lookups which had to scale the
+     * avatar.
+     *
+     * @return the number of scaled avatar lookups which had to scale the
+     * avatar
+     */
+    public static long getScaledAvatarMissCount()
+    {
+        return scaledAvatars.getMissCount();
+    }
+
     /**
      * Clears the images cache.
      */
     public static void clearCache()
     {
         getImageLoaderService().clearCache();
+        scaledAvatars.clear();
     }
 }
@@ -21,8 +21,6 @@
 import java.text.*;
 import java.util.*;
 
-import javax.xml.parsers.*;
-
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
 
@@ -57,8 +55,7 @@ public DBStructSerializer(HistoryServiceImpl historyService)
      */
     public void writeHistory(File dbDatFile, History history)
             throws IOException {
-        DocumentBuilder builder = this.historyService.getDocumentBuilder();
-        Document doc = builder.newDocument();
+        Document doc = this.historyService.newDocument();
 
         Element root = doc.createElement("dbstruct");
         root.setAttribute("version", "1.0");
@@ -140,8 +137,8 @@ public History loadHistory(File dbDatFile) throws SAXException,
         HistoryID id = loadID(root);
         HistoryRecordStructure structure = loadStructure(root);
 
-        return new HistoryImpl(id, dbDatFile.getParentFile(), structure,
-                historyService);
+        return historyService.createHistoryImpl(
+                id, dbDatFile.getParentFile(), structure);
     }
 
     /**
@@ -0,0 +1,262 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A cache of the snapshots of parsed history documents shared by all the
+ * histories of a <tt>HistoryServiceImpl</tt>. The cache is bounded by an
+ * estimate of the memory used by the snapshots and evicts the least recently
+ * used ones when the estimate exceeds its capacity.
+ * <p>
+ * Snapshots are stored with the length and the modification time of their
+ * files, so a snapshot is not returned once its file was changed.
+ */
+public class DocumentCache
+{
+    /**
+     * The cached entries in access order, the least recently used first.
+     */
+    private final LinkedHashMap<File, CacheEntry> entries
+        = new LinkedHashMap<File, CacheEntry>(16, 0.75f, true);
+
+    /**
+     * The maximum estimated memory of the cached snapshots in bytes.
+     */
+    private final long capacity;
+
+    /**
+     * The estimated memory of the cached snapshots in bytes.
+     */
+    private long weight = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    private long evictionCount = 0;
+
+    /**
+     * Creates a cache bounded to <tt>capacity</tt> bytes. A cache with a
+     * capacity of 0 does not store any snapshot.
+     *
+     * @param capacity the maximum estimated memory of the cached snapshots
+     * in bytes
+     */
+    public DocumentCache(long capacity)
+    {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Indicates whether this cache stores snapshots at all.
+     * @return <tt>true</tt> if the capacity of this cache is not 0
+     */
+    public boolean isEnabled()
+    {
+        return capacity > 0;
+    }
+
+    /**
+     * Returns the cached snapshot of <tt>file</tt> if the file did not
+     * change since it was cached.
+     *
+     * @param file the file of the snapshot
+     * @return the cached snapshot or <tt>null</tt>
+     */
+    public synchronized HistoryFileSnapshot get(File file)
+    {
+        CacheEntry entry = entries.get(file);
+
+        if (entry != null)
+        {
+            if (entry.length == file.length()
+                && entry.lastModified == file.lastModified())
+            {
+                hitCount++;
+                return entry.snapshot;
+            }
+
+            remove(file);
+        }
+
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Caches the snapshot of <tt>file</tt> and evicts the least recently
+     * used snapshots if the capacity is exceeded.
+     *
+     * @param file the file the snapshot was created from
+     * @param snapshot the snapshot of the file
+     */
+    public synchronized void put(File file, HistoryFileSnapshot snapshot)
+    {
+        remove(file);
+
+        CacheEntry entry
+            = new CacheEntry(
+                    snapshot,
+                    file.length(),
+                    file.lastModified(),
+                    snapshot.getWeight());
+
+        if (entry.weight > capacity)
+            return;
+
+        entries.put(file, entry);
+        weight += entry.weight;
+
+        Iterator<CacheEntry> iter = entries.values().iterator();
+
+        while (weight > capacity && iter.hasNext())
+        {
+            weight -= iter.next().weight;
+            iter.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Removes the snapshot of <tt>file</tt> from the cache.
+     *
+     * @param file the file of the snapshot
+     */
+    public synchronized void remove(File file)
+    {
+        CacheEntry entry = entries.remove(file);
+
+        if (entry != null)
+            weight -= entry.weight;
+    }
+
+    /**
+     * Removes the snapshots of the files in <tt>directory</tt> and its sub
+     * directories from the cache.
+     *
+     * @param directory the directory
+     */
+    public synchronized void removeAll(File directory)
+    {
+        String path = directory.getAbsolutePath() + File.separator;
+        Iterator<Map.Entry<File, CacheEntry>> iter
+            = entries.entrySet().iterator();
+
+        while (iter.hasNext())
+        {
+            Map.Entry<File, CacheEntry> entry = iter.next();
+
+            if (entry.getKey().getAbsolutePath().startsWith(path))
+            {
+                weight -= entry.getValue().weight;
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the snapshots from the cache.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Returns the maximum estimated memory of the cached snapshots.
+     * @return the capacity of the cache in bytes
+     */
+    public long getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns the estimated memory of the cached snapshots.
+     * @return the estimated memory of the cached snapshots in bytes
+     */
+    public synchronized long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * Returns the number of cached snapshots.
+     * @return the number of cached snapshots
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of requests which returned a cached snapshot.
+     * @return the number of hits
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of requests which did not find a cached snapshot.
+     * @return the number of misses
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of snapshots evicted to stay within the capacity.
+     * @return the number of evictions
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * A cached snapshot with the state of its file and its estimated memory.
+     */
+    private static class CacheEntry
+    {
+        final HistoryFileSnapshot snapshot;
+
+        final long length;
+
+        final long lastModified;
+
+        final long weight;
+
+        CacheEntry(HistoryFileSnapshot snapshot,
+                   long length,
+                   long lastModified,
+                   long weight)
+        {
+            this.snapshot = snapshot;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.weight = weight;
+        }
+    }
+}
@@ -35,6 +35,11 @@
      */
     private ServiceRegistration serviceRegistration;
 
+    /**
+     * The registered history service.
+     */
+    private HistoryServiceImpl historyService;
+
     /**
      * Initialize and start history service
      *
@@ -43,9 +48,10 @@
      */
     public void start(BundleContext bundleContext) throws Exception
     {
+        historyService = new HistoryServiceImpl(bundleContext);
         serviceRegistration =
             bundleContext.registerService(HistoryService.class.getName(),
-                new HistoryServiceImpl(bundleContext), null);
+                historyService, null);
     }
 
     /**
@@ -62,5 +68,12 @@ public void stop(BundleContext bundleContext)
             serviceRegistration.unregister();
             serviceRegistration = null;
         }
+
+        // write the records which are not written yet
+        if (historyService != null)
+        {
+            historyService.stop();
+            historyService = null;
+        }
     }
 }
@@ -0,0 +1,445 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * The catalog of the existing histories, stored in a single file in the
+ * history directory. It lists the <tt>HistoryID</tt> of every history with
+ * records, its record structure when known, and the timestamp of its last
+ * record, so that the existing and most recent histories are found without
+ * walking the history directory tree.
+ * <p>
+ * The catalog is built by scanning the history directory when its file does
+ * not exist or cannot be read, and is kept up to date by the
+ * <tt>HistoryServiceImpl</tt> and the history writers afterwards.
+ */
+class HistoryCatalog
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(HistoryCatalog.class);
+
+    /**
+     * The name of the catalog file in the history directory.
+     */
+    static final String CATALOG_FILE = "catalog.dat";
+
+    /**
+     * The first bytes of a catalog file.
+     */
+    private static final int MAGIC = 0x4A484354;
+
+    /**
+     * The version of the catalog file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The catalog file.
+     */
+    private final File file;
+
+    /**
+     * The catalogued histories.
+     */
+    private final Map<HistoryID, Entry> entries
+        = new HashMap<HistoryID, Entry>();
+
+    /**
+     * Whether the catalog was changed since it was last saved.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates a catalog stored in the given history directory. The catalog
+     * file is read, or the directory scanned when it cannot be read.
+     *
+     * @param historyDirectory the history directory
+     */
+    HistoryCatalog(File historyDirectory)
+    {
+        this.file = new File(historyDirectory, CATALOG_FILE);
+
+        if (!load())
+        {
+            entries.clear();
+            scan(historyDirectory, new ArrayList<String>());
+            dirty = true;
+            save();
+        }
+    }
+
+    /**
+     * Returns the histories which ID starts with the given components and
+     * which have records, the history with the most recent record first.
+     *
+     * @param prefix the first components of the IDs
+     * @return the IDs of the matching histories
+     */
+    synchronized List<HistoryID> getHistories(String[] prefix)
+    {
+        List<Entry> matching = new ArrayList<Entry>();
+
+        for (Map.Entry<HistoryID, Entry> e : entries.entrySet())
+        {
+            if (e.getValue().lastRecord > 0 && startsWith(e.getKey(), prefix))
+                matching.add(e.getValue());
+        }
+
+        Collections.sort(matching, new Comparator<Entry>()
+        {
+            public int compare(Entry e1, Entry e2)
+            {
+                return (e1.lastRecord < e2.lastRecord)
+                    ? 1
+                    : ((e1.lastRecord == e2.lastRecord) ? 0 : -1);
+            }
+        });
+
+        List<HistoryID> result = new ArrayList<HistoryID>(matching.size());
+        for (Entry e : matching)
+            result.add(e.id);
+        return result;
+    }
+
+    /**
+     * Checks whether the given history is catalogued with the given record
+     * structure.
+     *
+     * @param id the history
+     * @param structure the record structure
+     * @return <tt>true</tt> if the history has this structure
+     */
+    synchronized boolean hasStructure(
+        HistoryID id, HistoryRecordStructure structure)
+    {
+        Entry entry = entries.get(id);
+
+        return entry != null
+            && entry.propertyNames != null
+            && Arrays.equals(entry.propertyNames, structure.getPropertyNames());
+    }
+
+    /**
+     * Records the structure of a created or loaded history.
+     *
+     * @param id the history
+     * @param structure the record structure
+     * @return <tt>true</tt> if the catalog was changed
+     */
+    synchronized boolean historyCreated(
+        HistoryID id, HistoryRecordStructure structure)
+    {
+        Entry entry = getEntry(id);
+        String[] propertyNames = structure.getPropertyNames();
+
+        if (Arrays.equals(entry.propertyNames, propertyNames))
+            return false;
+
+        entry.propertyNames = propertyNames.clone();
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Records that a record with the given timestamp was added to a history.
+     *
+     * @param id the history
+     * @param timestamp the timestamp of the record
+     * @return <tt>true</tt> if the history had no records before
+     */
+    synchronized boolean recordAdded(HistoryID id, long timestamp)
+    {
+        Entry entry = getEntry(id);
+        boolean first = (entry.lastRecord <= 0);
+
+        if (timestamp > entry.lastRecord)
+        {
+            entry.lastRecord = timestamp;
+            dirty = true;
+        }
+        return first;
+    }
+
+    /**
+     * Removes the given history and the histories below it.
+     *
+     * @param id the removed history
+     */
+    synchronized void remove(HistoryID id)
+    {
+        String[] prefix = id.getID();
+        Iterator<HistoryID> iter = entries.keySet().iterator();
+
+        while (iter.hasNext())
+        {
+            if (startsWith(iter.next(), prefix))
+            {
+                iter.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Moves the given history to a new ID.
+     *
+     * @param oldId the old ID of the history
+     * @param newId the new ID of the history
+     */
+    synchronized void move(HistoryID oldId, HistoryID newId)
+    {
+        Entry entry = entries.remove(oldId);
+
+        if (entry != null)
+        {
+            entry.id = newId;
+            entries.put(newId, entry);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the catalog to its file if it was changed. The file is replaced
+     * atomically, so that a crash leaves either the old or the new catalog.
+     */
+    synchronized void save()
+    {
+        if (!dirty)
+            return;
+
+        File tmpFile = new File(file.getParentFile(), CATALOG_FILE + ".tmp");
+
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values())
+                {
+                    writeStrings(out, entry.id.getID());
+                    out.writeBoolean(entry.propertyNames != null);
+                    if (entry.propertyNames != null)
+                        writeStrings(out, entry.propertyNames);
+                    out.writeLong(entry.lastRecord);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(file)
+                && !(file.delete() && tmpFile.renameTo(file)))
+            {
+                throw new IOException("Cannot replace " + file);
+            }
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot write the history catalog", e);
+        }
+    }
+
+    /**
+     * Reads the catalog from its file.
+     *
+     * @return <tt>true</tt> if the catalog was read
+     */
+    private boolean load()
+    {
+        if (!file.isFile())
+            return false;
+
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+
+            try
+            {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return false;
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    Entry entry
+                        = new Entry(
+                            HistoryID.createFromRawStrings(readStrings(in)));
+
+                    if (in.readBoolean())
+                        entry.propertyNames = readStrings(in);
+                    entry.lastRecord = in.readLong();
+                    entries.put(entry.id, entry);
+                }
+                return true;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot read the history catalog, rebuilding it", e);
+            return false;
+        }
+    }
+
+    /**
+     * Catalogues the histories with records in the given directory and its
+     * subdirectories. The timestamp of the last record of a history is
+     * approximated by the last modification of its files.
+     *
+     * @param directory the directory to scan
+     * @param rawID the ID components of the directory
+     */
+    private void scan(File directory, List<String> rawID)
+    {
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        long lastModified = 0;
+
+        for (File f : files)
+        {
+            if (f.isDirectory())
+            {
+                List<String> subID = new ArrayList<String>(rawID);
+                subID.add(f.getName());
+                scan(f, subID);
+            }
+            else if (HistoryServiceImpl.isHistoryDataFile(f.getName()))
+            {
+                lastModified = Math.max(lastModified, f.lastModified());
+            }
+        }
+
+        if (lastModified > 0 && !rawID.isEmpty())
+        {
+            recordAdded(
+                HistoryID.createFromRawStrings(
+                    rawID.toArray(new String[rawID.size()])),
+                lastModified);
+        }
+    }
+
+    /**
+     * Returns the entry of the given history, creating it if needed.
+     *
+     * @param id the history
+     * @return the entry of the history
+     */
+    private Entry getEntry(HistoryID id)
+    {
+        Entry entry = entries.get(id);
+
+        if (entry == null)
+        {
+            entry = new Entry(id);
+            entries.put(id, entry);
+            dirty = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Checks whether the given history ID starts with the given components.
+     *
+     * @param id the history ID
+     * @param prefix the components
+     * @return <tt>true</tt> if <tt>id</tt> starts with <tt>prefix</tt>
+     */
+    private static boolean startsWith(HistoryID id, String[] prefix)
+    {
+        String[] components = id.getID();
+
+        if (components.length < prefix.length)
+            return false;
+
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (!prefix[i].equals(components[i]))
+                return false;
+        }
+        return true;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings)
+        throws IOException
+    {
+        out.writeInt(strings.length);
+        for (String s : strings)
+            out.writeUTF(s);
+    }
+
+    private static String[] readStrings(DataInputStream in)
+        throws IOException
+    {
+        String[] strings = new String[in.readInt()];
+
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = in.readUTF();
+        return strings;
+    }
+
+    /**
+     * A catalogued history.
+     */
+    private static class Entry
+    {
+        /**
+         * The ID of the history.
+         */
+        HistoryID id;
+
+        /**
+         * The names of the record properties or <tt>null</tt> if not known.
+         */
+        String[] propertyNames;
+
+        /**
+         * The timestamp of the last record or 0 if the history has none.
+         */
+        long lastRecord;
+
+        Entry(HistoryID id)
+        {
+            this.id = id;
+        }
+    }
+}
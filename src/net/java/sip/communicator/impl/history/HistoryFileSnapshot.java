@@ -0,0 +1,311 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+import org.apache.commons.lang3.*;
+import org.w3c.dom.*;
+
+/**
+ * An immutable copy of the records of a history file. Snapshots are created
+ * from the parsed documents of the files and can be shared by any number of
+ * concurrent readers, which a DOM cannot. A writer changing a file publishes
+ * a new snapshot of it, while the readers holding the previous one keep
+ * reading a consistent state.
+ */
+public class HistoryFileSnapshot
+{
+    /**
+     * The estimated number of bytes of memory used by every record and every
+     * string of a snapshot besides its characters.
+     */
+    private static final int MEMORY_PER_OBJECT = 48;
+
+    private final long[] timestamps;
+
+    /**
+     * The names of the properties of every record which have a value.
+     */
+    private final String[][] names;
+
+    /**
+     * The values of the properties of every record as they are stored in
+     * the document, with the escaped xml characters.
+     */
+    private final String[][] values;
+
+    /**
+     * Whether every record has a property without a value.
+     */
+    private final boolean[] broken;
+
+    /**
+     * The estimated memory used by this snapshot in bytes.
+     */
+    private final long weight;
+
+    private HistoryFileSnapshot(long[] timestamps,
+                                String[][] names,
+                                String[][] values,
+                                boolean[] broken)
+    {
+        this.timestamps = timestamps;
+        this.names = names;
+        this.values = values;
+        this.broken = broken;
+
+        long weight = MEMORY_PER_OBJECT;
+
+        for (int i = 0; i < timestamps.length; i++)
+        {
+            weight += MEMORY_PER_OBJECT;
+            for (int j = 0; j < names[i].length; j++)
+            {
+                weight += 2 * MEMORY_PER_OBJECT
+                    + 2 * (names[i][j].length() + values[i][j].length());
+            }
+        }
+        this.weight = weight;
+    }
+
+    /**
+     * Creates the snapshot of the records of a document. The caller must
+     * make sure the document is not changed meanwhile.
+     *
+     * @param doc the document
+     * @return the snapshot of the records of <tt>doc</tt>
+     */
+    static HistoryFileSnapshot create(Document doc)
+    {
+        NodeList nodes = doc.getElementsByTagName("record");
+        List<Node> records = new ArrayList<Node>(nodes.getLength());
+
+        for (int i = 0; i < nodes.getLength(); i++)
+            records.add(nodes.item(i));
+
+        return create(records);
+    }
+
+    /**
+     * Creates the snapshot of record elements.
+     *
+     * @param records the record elements
+     * @return the snapshot of <tt>records</tt>
+     */
+    static HistoryFileSnapshot create(List<Node> records)
+    {
+        int count = records.size();
+        long[] timestamps = new long[count];
+        String[][] names = new String[count][];
+        String[][] values = new String[count][];
+        boolean[] broken = new boolean[count];
+        List<String> recordNames = new ArrayList<String>();
+        List<String> recordValues = new ArrayList<String>();
+
+        for (int i = 0; i < count; i++)
+        {
+            Node node = records.get(i);
+            NodeList propertyNodes = node.getChildNodes();
+
+            timestamps[i] = HistoryReaderImpl.getTimestamp(node).getTime();
+            recordNames.clear();
+            recordValues.clear();
+
+            for (int j = 0; j < propertyNodes.getLength(); j++)
+            {
+                Node propertyNode = propertyNodes.item(j);
+
+                if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+
+                // Get nested TEXT node's value
+                Node nodeValue = propertyNode.getFirstChild();
+
+                if (nodeValue == null)
+                {
+                    broken[i] = true;
+                    continue;
+                }
+
+                recordNames.add(propertyNode.getNodeName());
+                recordValues.add(nodeValue.getNodeValue());
+            }
+
+            names[i] = recordNames.toArray(new String[recordNames.size()]);
+            values[i] = recordValues.toArray(new String[recordValues.size()]);
+        }
+
+        return new HistoryFileSnapshot(timestamps, names, values, broken);
+    }
+
+    /**
+     * Returns the snapshot of the records at positions <tt>from</tt>
+     * (inclusive) to <tt>to</tt> (exclusive) of this snapshot.
+     *
+     * @param from the position of the first record
+     * @param to the position after the last record
+     * @return the snapshot of the records in the range
+     */
+    HistoryFileSnapshot subSnapshot(int from, int to)
+    {
+        to = Math.min(to, timestamps.length);
+        from = Math.min(from, to);
+
+        return new HistoryFileSnapshot(
+            Arrays.copyOfRange(timestamps, from, to),
+            Arrays.copyOfRange(names, from, to),
+            Arrays.copyOfRange(values, from, to),
+            Arrays.copyOfRange(broken, from, to));
+    }
+
+    /**
+     * Returns the number of records in this snapshot.
+     * @return the number of records
+     */
+    int getRecordCount()
+    {
+        return timestamps.length;
+    }
+
+    /**
+     * Returns the timestamp of the record at <tt>position</tt>.
+     * @param position the position of the record
+     * @return the timestamp of the record
+     */
+    long getTimestamp(int position)
+    {
+        return timestamps[position];
+    }
+
+    /**
+     * Returns the names of the properties of the record at
+     * <tt>position</tt> which have a value.
+     * @param position the position of the record
+     * @return the names of the properties of the record
+     */
+    String[] getPropertyNames(int position)
+    {
+        return names[position].clone();
+    }
+
+    /**
+     * Returns the unescaped values of the properties of the record at
+     * <tt>position</tt> which have a value.
+     * @param position the position of the record
+     * @return the values of the properties of the record
+     */
+    String[] getPropertyValues(int position)
+    {
+        String[] result = new String[values[position].length];
+
+        for (int i = 0; i < result.length; i++)
+            result[i] = StringEscapeUtils.unescapeXml(values[position][i]);
+        return result;
+    }
+
+    /**
+     * Returns the values of the properties of the record at
+     * <tt>position</tt> which have a value, as they are stored in the
+     * document.
+     * @param position the position of the record
+     * @return the stored values of the properties of the record
+     */
+    String[] getStoredValues(int position)
+    {
+        return values[position].clone();
+    }
+
+    /**
+     * Returns the estimated memory used by this snapshot.
+     * @return the estimated memory used by this snapshot in bytes
+     */
+    long getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * Returns the record at <tt>position</tt> with the values as they are
+     * stored in the document.
+     *
+     * @param position the position of the record
+     * @return the record or <tt>null</tt> if it has a property without a
+     * value
+     */
+    HistoryRecord getRecord(int position)
+    {
+        // if we found a broken record - just skip it
+        if (broken[position])
+            return null;
+
+        return new HistoryRecord(
+            names[position].clone(),
+            values[position].clone(),
+            new Date(timestamps[position]));
+    }
+
+    /**
+     * Returns the record at <tt>position</tt> if the value of its property
+     * <tt>field</tt> contains all <tt>keywords</tt>.
+     *
+     * @param position the position of the record
+     * @param keywords the keywords to search for or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the record with unescaped values or <tt>null</tt> if it does
+     * not match
+     */
+    HistoryRecord getRecord(int position,
+                            String[] keywords,
+                            String field,
+                            boolean caseSensitive)
+    {
+        String[] recordNames = names[position];
+        String[] recordValues = new String[recordNames.length];
+        boolean targetNodeFound = false;
+
+        for (int i = 0; i < recordNames.length; i++)
+        {
+            // unescape xml chars, we have escaped when writing values
+            recordValues[i]
+                = StringEscapeUtils.unescapeXml(values[position][i]);
+
+            if (field != null && field.equals(recordNames[i]))
+            {
+                targetNodeFound = true;
+
+                if (!HistoryReaderImpl.matchKeyword(
+                        recordValues[i], keywords, caseSensitive))
+                {
+                    return null;
+                }
+            }
+        }
+
+        // if we need to find a particular record but the target node is not
+        // present skip this record
+        if (keywords != null && keywords.length > 0 && !targetNodeFound)
+            return null;
+
+        return new HistoryRecord(
+            recordNames.clone(), recordValues, new Date(timestamps[position]));
+    }
+}
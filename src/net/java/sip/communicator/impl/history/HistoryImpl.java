@@ -59,9 +59,25 @@
 
     private HistoryWriter writer;
 
+    /**
+     * The files of this history by name. Documents which were created and
+     * not written yet are stored instead of their files.
+     */
     private SortedMap<String, Object> historyDocuments
         = new TreeMap<String, Object>();
 
+    /**
+     * The index of the words in the records of this history, created when
+     * first needed.
+     */
+    private KeywordIndex keywordIndex;
+
+    /**
+     * The index of the timestamps and the offsets of the records in the files
+     * of this history, created when first needed.
+     */
+    private TimestampIndex timestampIndex;
+
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
      * identifier, the directory, the <tt>HistoryRecordStructure</tt> to use
@@ -173,6 +189,114 @@ protected HistoryServiceImpl getHistoryServiceImpl()
         return this.historyServiceImpl;
     }
 
+    /**
+     * Returns the index of the words in the records of this history.
+     * @return the index of the words in the records of this history
+     */
+    synchronized KeywordIndex getKeywordIndex()
+    {
+        if (keywordIndex == null)
+        {
+            keywordIndex
+                = new KeywordIndex(
+                        new File(directory, KeywordIndex.INDEX_FILE));
+        }
+        return keywordIndex;
+    }
+
+    /**
+     * Returns the index of the timestamps and the offsets of the records in
+     * the files of this history.
+     * @return the index of the timestamps of the records of this history
+     */
+    synchronized TimestampIndex getTimestampIndex()
+    {
+        if (timestampIndex == null)
+        {
+            timestampIndex
+                = new TimestampIndex(
+                        new File(directory, TimestampIndex.INDEX_FILE));
+        }
+        return timestampIndex;
+    }
+
+    /**
+     * Returns the snapshot of the records at positions <tt>from</tt>
+     * (inclusive) to <tt>to</tt> (exclusive) of a file. Unless the snapshot
+     * of the file is loaded, if the entry of the file has byte offsets only
+     * the bytes of these records are read and parsed.
+     *
+     * @param filename the name of the file
+     * @param entry the entry of the file in the timestamp index
+     * @param from the position of the first record
+     * @param to the position after the last record
+     * @return the snapshot of the records or <tt>null</tt> if the file cannot
+     * be read
+     */
+    HistoryFileSnapshot readRecords(String filename,
+        TimestampIndex.Entry entry, int from, int to)
+    {
+        HistoryFileSnapshot snapshot = getLoadedSnapshot(filename);
+
+        if (snapshot == null && entry.hasOffsets() && from < to)
+        {
+            try
+            {
+                long start = entry.getOffset(from);
+                byte[] bytes = new byte[(int) (entry.getOffset(to) - start)];
+                RandomAccessFile raf
+                    = new RandomAccessFile(getFile(filename), "r");
+
+                try
+                {
+                    raf.seek(start);
+                    raf.readFully(bytes);
+                }
+                finally
+                {
+                    raf.close();
+                }
+
+                ByteArrayOutputStream fragment
+                    = new ByteArrayOutputStream(bytes.length + 32);
+
+                fragment.write("<history>".getBytes("UTF-8"));
+                fragment.write(bytes);
+                fragment.write("</history>".getBytes("UTF-8"));
+
+                HistoryFileSnapshot records
+                    = HistoryFileSnapshot.create(
+                        historyServiceImpl.parse(
+                            new ByteArrayInputStream(
+                                    fragment.toByteArray())));
+
+                if (records.getRecordCount() == to - from)
+                    return records;
+            }
+            catch (Exception e)
+            {
+                // the file was changed after it was indexed
+                if (log.isDebugEnabled())
+                    log.debug("Cannot read indexed records of " + filename, e);
+            }
+        }
+
+        if (snapshot == null)
+            snapshot = getSnapshot(filename);
+
+        return (snapshot == null) ? null : snapshot.subSnapshot(from, to);
+    }
+
+    /**
+     * Returns the file with the given name in the directory of this history.
+     * @param filename the name of the file
+     * @return the file with the given name
+     */
+    File getFile(String filename)
+    {
+        return new File(this.directory, filename);
+    }
+
     void reloadDocumentList()
     {
         synchronized (this.historyDocuments)
@@ -208,8 +332,7 @@ protected Document createDocument(String filename)
             {
                 retVal = getDocumentForFile(filename);
             } else {
-                retVal = this.historyServiceImpl.getDocumentBuilder()
-                        .newDocument();
+                retVal = this.historyServiceImpl.newDocument();
                 retVal.appendChild(retVal.createElement("history"));
 
                 this.historyDocuments.put(filename, retVal);
@@ -219,9 +342,21 @@ protected Document createDocument(String filename)
         return retVal;
     }
 
-    protected void writeFile(String filename) throws InvalidParameterException,
-            IOException {
+    /**
+     * Writes a document to its file and publishes the snapshot of its records
+     * for the readers.
+     *
+     * @param filename the name of the file
+     * @param doc the document to write
+     * @throws InvalidParameterException if the file is not in the document
+     * list
+     * @throws IOException if writing fails
+     */
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
         File file = new File(this.directory, filename);
+        DocumentCache documentCache = historyServiceImpl.getDocumentCache();
 
         synchronized (this.historyDocuments)
         {
@@ -231,24 +366,99 @@ protected void writeFile(String filename) throws InvalidParameterException,
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
-
-            if (obj instanceof Document)
+            synchronized (doc)
             {
-                Document doc = (Document) obj;
+                XMLUtils.writeXML(doc, file);
 
-                synchronized (doc)
-                {
-                    XMLUtils.writeXML(doc, file);
-                }
+                if (documentCache.isEnabled())
+                    documentCache.put(file, HistoryFileSnapshot.create(doc));
+                else
+                    documentCache.remove(file);
             }
+
+            // the document is written, it is read from its file from now on
+            this.historyDocuments.put(filename, file);
         }
     }
 
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    /**
+     * Replaces the file of a document with the document, which has records
+     * that are not written yet. Until the document is written, readers and
+     * writers use it instead of the file.
+     *
+     * @param filename the name of the file
+     * @param doc the document with unwritten records
+     */
+    void setUnwrittenDocument(String filename, Document doc)
     {
-        File file = new File(this.directory, filename);
+        synchronized (this.historyDocuments)
+        {
+            this.historyDocuments.put(filename, doc);
+        }
+    }
+
+    /**
+     * Indicates whether a file has a document which is not written yet, so
+     * its file and the indexes of the file are not up to date.
+     *
+     * @param filename the name of the file
+     * @return <tt>true</tt> if the document of the file is not written yet
+     */
+    boolean isUnwritten(String filename)
+    {
+        synchronized (this.historyDocuments)
+        {
+            return this.historyDocuments.get(filename) instanceof Document;
+        }
+    }
+
+    /**
+     * Forces a written file to the storage device.
+     *
+     * @param file the file
+     * @throws IOException if the file cannot be synchronized
+     */
+    static void sync(File file)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            raf.getFD().sync();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the names of the files of this history. The returned iterator
+     * is not affected by files added later.
+     * @return the names of the files of this history
+     */
+    protected Iterator<String> getFileList()
+    {
+        synchronized (this.historyDocuments)
+        {
+            return new ArrayList<String>(this.historyDocuments.keySet())
+                .iterator();
+        }
+    }
+
+    /**
+     * Returns the document of a file. Unless the file was created and not
+     * written yet, the document is parsed for the caller which may change it.
+     * Readers should use the shared snapshot returned by
+     * <tt>getSnapshot</tt> instead.
+     *
+     * @param filename the name of the file
+     * @return the document or <tt>null</tt> if the file cannot be parsed
+     */
+    protected Document getDocumentForFile(String filename)
+            throws InvalidParameterException, RuntimeException {
+        Object obj;
 
         synchronized (this.historyDocuments)
         {
@@ -258,21 +468,46 @@ protected void writeFile(String filename, Document doc)
                         + "filename does not exist in the document list.");
             }
 
-            synchronized (doc)
+            obj = this.historyDocuments.get(filename);
+        }
+
+        if (obj instanceof Document)
+        {
+            // Document created and not written yet. Use it directly
+            return (Document) obj;
+        } else if (obj instanceof File)
+        {
+            File file = (File) obj;
+
+            try {
+                return this.historyServiceImpl.parse(file);
+            } catch (Exception e)
             {
-                XMLUtils.writeXML(doc, file);
+//                throw new RuntimeException("Error occured while "
+//                        + "parsing XML document.", e);
+//                log.error("Error occured while parsing XML document.", e);
+                log.error("Error occured while parsing XML document.", e);
+
+                // will try to fix the xml file
+                return getFixedDocument(file);
             }
+        } else {
+            // TODO: Assert: Assert.fail("Internal error - the data type " +
+            // "should be either Document or File.");
+            return null;
         }
     }
 
-    protected Iterator<String> getFileList()
+    /**
+     * Returns the snapshot of a file if it does not need to be parsed, i.e.
+     * if it is cached or if the file was created and not written yet.
+     *
+     * @param filename the name of the file
+     * @return the snapshot of the file or <tt>null</tt>
+     */
+    private HistoryFileSnapshot getLoadedSnapshot(String filename)
     {
-        return this.historyDocuments.keySet().iterator();
-    }
-
-    protected Document getDocumentForFile(String filename)
-            throws InvalidParameterException, RuntimeException {
-        Document retVal = null;
+        Object obj;
 
         synchronized (this.historyDocuments)
         {
@@ -282,42 +517,55 @@ protected Document getDocumentForFile(String filename)
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
-            {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
+            obj = this.historyDocuments.get(filename);
+        }
+
+        if (obj instanceof Document)
+        {
+            Document doc = (Document) obj;
+
+            synchronized (doc)
             {
-                File file = (File) obj;
+                return HistoryFileSnapshot.create(doc);
+            }
+        }
 
-                try {
-                    retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
-                {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
-                    log.error("Error occured while parsing XML document.", e);
+        return historyServiceImpl.getDocumentCache().get(getFile(filename));
+    }
+
+    /**
+     * Returns the snapshot of the records of a file, parsing the file if its
+     * snapshot is not cached. Snapshots are immutable and can be read
+     * concurrently.
+     *
+     * @param filename the name of the file
+     * @return the snapshot or <tt>null</tt> if the file cannot be parsed
+     */
+    HistoryFileSnapshot getSnapshot(String filename)
+    {
+        HistoryFileSnapshot snapshot = getLoadedSnapshot(filename);
 
-                    // will try to fix the xml file
-                    retVal = getFixedDocument(file);
+        if (snapshot != null)
+            return snapshot;
 
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
-                }
+        File file = getFile(filename);
+        DocumentCache documentCache = historyServiceImpl.getDocumentCache();
+        long[] fingerprint = KeywordIndex.fingerprint(file);
+        Document doc = getDocumentForFile(filename);
 
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
-            }
+        if (doc == null)
+            return null;
+
+        snapshot = HistoryFileSnapshot.create(doc);
+
+        // do not cache a snapshot of a file written meanwhile
+        if (documentCache.isEnabled()
+            && Arrays.equals(fingerprint, KeywordIndex.fingerprint(file)))
+        {
+            documentCache.put(file, snapshot);
         }
 
-        return retVal;
+        return snapshot;
     }
 
     /**
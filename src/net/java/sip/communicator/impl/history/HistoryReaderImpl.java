@@ -28,7 +28,6 @@
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.apache.commons.lang3.*;
 import org.w3c.dom.*;
 
 /**
@@ -67,7 +66,7 @@ protected HistoryReaderImpl(HistoryImpl historyImpl)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+    public QueryResultSet<HistoryRecord> findByStartDate(
                                                                 Date startDate)
             throws RuntimeException
     {
@@ -84,7 +83,7 @@ public synchronized QueryResultSet<HistoryRecord> findByStartDate(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
         throws RuntimeException
     {
         return find(null, endDate, null, null, false);
@@ -101,7 +100,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate, Date endDate)
             throws RuntimeException
     {
@@ -118,7 +117,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeyword(String keyword, String field)
             throws RuntimeException
     {
@@ -135,7 +134,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeywords(String[] keywords, String field)
             throws RuntimeException
     {
@@ -155,7 +154,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate,
                      Date endDate,
                      String[] keywords,
@@ -174,7 +173,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      * @return QueryResultSet
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(int count)
+    public QueryResultSet<HistoryRecord> findLast(int count)
         throws RuntimeException
     {
         return findLast(count, null, null, false);
@@ -191,7 +190,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(int count)
      * @return the found records
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(
+    public QueryResultSet<HistoryRecord> findLast(
         int count,
         String[] keywords,
         String field,
@@ -207,66 +206,37 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        TimestampIndex index = this.historyImpl.getTimestampIndex();
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            String filename = filelist.get(currentFile);
+            TimestampIndex.Entry entry = index.getEntry(historyImpl, filename);
 
-            if(doc == null)
+            if(entry == null)
             {
                 currentFile--;
                 continue;
             }
 
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
+            // only the last records of the file are read
+            int recordCount = entry.getRecordCount();
+            int from = Math.max(0, recordCount - leftCount);
+            HistoryFileSnapshot records
+                = historyImpl.readRecords(filename, entry, from, recordCount);
 
-            List<Node> lNodes = null;
+            leftCount -= recordCount - from;
 
-            if (nodes.size() > leftCount)
+            if(records != null)
             {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
-
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                for (int i = 0; i < records.getRecordCount(); i++)
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
-                        keywords, field, caseSensitive);
+                    HistoryRecord record =
+                        records.getRecord(i, keywords, field, caseSensitive);
 
-                if(record != null)
-                {
-                    result.add(record);
+                    if(record != null)
+                    {
+                        result.add(record);
+                    }
                 }
             }
 
@@ -287,7 +257,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeyword(String keyword, String field, boolean caseSensitive)
             throws RuntimeException
     {
@@ -305,7 +275,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeywords(String[] keywords, String field, boolean caseSensitive)
             throws RuntimeException
     {
@@ -326,7 +296,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate,
                      Date endDate,
                      String[] keywords,
@@ -358,84 +328,39 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         int leftCount = count;
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        TimestampIndex index = this.historyImpl.getTimestampIndex();
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            String filename = filelist.get(currentFile);
+            TimestampIndex.Entry entry = index.getEntry(historyImpl, filename);
 
-            if(doc == null)
+            currentFile++;
+            if(entry == null
+                || (date != null && entry.getMaxTimestamp() < date.getTime()))
             {
-                currentFile++;
                 continue;
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
+            // read the first records in the period, again if some of them
+            // are broken and skipped
+            int position = 0;
+            while(leftCount > 0 && position < entry.getRecordCount())
             {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
+                List<Integer> positions = new ArrayList<Integer>();
 
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                for (; position < entry.getRecordCount()
+                        && positions.size() < leftCount;
+                    position++)
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    if(isInPeriod(
+                            new Date(entry.getTimestamp(position)), date, null))
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
+                        positions.add(position);
                     }
                 }
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+                leftCount -= readRecords(filename, entry, positions, result);
             }
-
-            currentFile++;
         }
 
         return new OrderedQueryResultSet<HistoryRecord>(result);
@@ -463,83 +388,39 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        TimestampIndex index = this.historyImpl.getTimestampIndex();
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            String filename = filelist.get(currentFile);
+            TimestampIndex.Entry entry = index.getEntry(historyImpl, filename);
 
-            if(doc == null)
+            currentFile--;
+            if(entry == null
+                || (date != null
+                    && entry.getMinTimestamp() >= date.getTime()))
             {
-                currentFile--;
                 continue;
             }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
+            // read the last records in the period, again if some of them
+            // are broken and skipped
+            int position = entry.getRecordCount() - 1;
+            while(leftCount > 0 && position >= 0)
             {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                List<Integer> positions = new ArrayList<Integer>();
 
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
+                for (; position >= 0 && positions.size() < leftCount;
+                    position--)
                 {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    if(isInPeriod(
+                            new Date(entry.getTimestamp(position)), null, date))
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
+                        positions.add(0, position);
                     }
                 }
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+                leftCount -= readRecords(filename, entry, positions, result);
             }
-
-            currentFile--;
         }
 
         return new OrderedQueryResultSet<HistoryRecord>(result);
@@ -570,48 +451,63 @@ private QueryResultSet<HistoryRecord> find(
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        // the positions of the records which may match the keywords, per
+        // file, or null if all the records have to be checked
+        Map<String, BitSet> candidates = null;
+
+        if(keywords != null && keywords.length > 0 && field != null)
+        {
+            candidates = this.historyImpl.getKeywordIndex()
+                .find(this.historyImpl, filelist, keywords, field);
+        }
+
         Iterator<String> fileIterator = filelist.iterator();
         while (fileIterator.hasNext())
         {
             String filename = fileIterator.next();
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+            BitSet positions = null;
 
-            if(doc == null)
-                continue;
+            // the records which are not written yet are not indexed
+            if(candidates != null && !this.historyImpl.isUnwritten(filename))
+            {
+                positions = candidates.get(filename);
 
-            NodeList nodes = doc.getElementsByTagName("record");
+                if(positions == null)
+                {
+                    // no record of this file matches, skip parsing it
+                    currentProgress += fileProgressStep;
+                    fireProgressStateChanged(
+                        startDate, endDate, keywords, (int)currentProgress);
+                    continue;
+                }
+            }
+
+            HistoryFileSnapshot records = this.historyImpl.getSnapshot(filename);
 
+            if(records == null)
+                continue;
+
+            int recordCount = records.getRecordCount();
             double nodesProgressStep = fileProgressStep;
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+            if(recordCount != 0)
+                nodesProgressStep = fileProgressStep / recordCount;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            for (int i = 0; i < recordCount; i++)
             {
-                node = nodes.item(i);
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                if(positions != null && !positions.get(i))
                 {
-                    timestamp = new Date(Long.parseLong(ts));
+                    currentProgress += nodesProgressStep;
+                    continue;
                 }
 
+                Date timestamp = new Date(records.getTimestamp(i));
+
                 if(isInPeriod(timestamp, startDate, endDate))
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
                     HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                        records.getRecord(i, keywords, field, caseSensitive);
 
                     if(record != null)
                     {
@@ -637,6 +533,70 @@ private QueryResultSet<HistoryRecord> find(
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
+    /**
+     * Reads the records at the given positions of a file and adds them to
+     * <tt>result</tt>. Broken records are skipped.
+     *
+     * @param filename the name of the file
+     * @param entry the entry of the file in the timestamp index
+     * @param positions the ascending positions of the records to read
+     * @param result the set the records are added to
+     * @return the number of records added to <tt>result</tt>
+     */
+    private int readRecords(String filename,
+                            TimestampIndex.Entry entry,
+                            List<Integer> positions,
+                            Set<HistoryRecord> result)
+    {
+        if(positions.isEmpty())
+            return 0;
+
+        int from = positions.get(0);
+        HistoryFileSnapshot records = historyImpl.readRecords(
+            filename, entry, from, positions.get(positions.size() - 1) + 1);
+
+        if(records == null)
+            return 0;
+
+        int added = 0;
+        for (int position : positions)
+        {
+            if(position - from >= records.getRecordCount())
+                break;
+
+            // broken records are skipped
+            HistoryRecord record = records.getRecord(position - from);
+
+            if(record != null)
+            {
+                result.add(record);
+                added++;
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Returns the timestamp of a record node.
+     *
+     * @param node the record node
+     * @return the timestamp of the record
+     */
+    static Date getTimestamp(Node node)
+    {
+        String ts = node.getAttributes().getNamedItem("timestamp")
+                .getNodeValue();
+        try
+        {
+            return new SimpleDateFormat(DATE_FORMAT).parse(ts);
+        }
+        catch (ParseException e)
+        {
+            return new Date(Long.parseLong(ts));
+        }
+    }
+
     /**
      * Evaluetes does <tt>timestamp</tt> is in the given time period.
      *
@@ -664,79 +624,6 @@ static boolean isInPeriod(Date timestamp, Date startDate, Date endDate)
         return startLong <= tsLong && tsLong < endLong;
     }
 
-    /**
-     * If there is keyword restriction and doesn't match the conditions
-     * return null. Otherwise return the HistoryRecord corresponding the
-     * given nodes.
-     *
-     * @param propertyNodes NodeList
-     * @param timestamp Date
-     * @param keywords String[]
-     * @param field String
-     * @param caseSensitive boolean
-     * @return HistoryRecord
-     */
-    static HistoryRecord filterByKeyword(   NodeList propertyNodes,
-                                            Date timestamp,
-                                            String[] keywords,
-                                            String field,
-                                            boolean caseSensitive)
-    {
-        ArrayList<String> nameVals = new ArrayList<String>();
-        int len = propertyNodes.getLength();
-        boolean targetNodeFound = false;
-        for (int j = 0; j < len; j++)
-        {
-            Node propertyNode = propertyNodes.item(j);
-            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-            {
-                String nodeName = propertyNode.getNodeName();
-
-                Node nestedNode = propertyNode.getFirstChild();
-
-                if(nestedNode == null)
-                    continue;
-
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
-
-                // unescape xml chars, we have escaped when writing values
-                nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
-
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
-
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
-
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
-
-            }
-        }
-
-        // if we need to find a particular record but the target node is not
-        // present skip this record
-        if(keywords != null && keywords.length > 0 && !targetNodeFound)
-        {
-            return null;
-        }
-
-        String[] propertyNames = new String[nameVals.size() / 2];
-        String[] propertyValues = new String[propertyNames.length];
-        for (int j = 0; j < propertyNames.length; j++)
-        {
-            propertyNames[j] = nameVals.get(j * 2);
-            propertyValues[j] = nameVals.get(j * 2 + 1);
-        }
-
-        return new HistoryRecord(propertyNames, propertyValues, timestamp);
-    }
-
     /**
      * Check if a value is in the given keyword(s)
      * If no keyword(s) given must return true
@@ -825,13 +712,14 @@ public int compare(String o1, String o2)
             return result;
         }
         // first convert all files to long
-        TreeSet<Long> files = new TreeSet<Long>();
+        TreeMap<Long, String> files = new TreeMap<Long, String>();
         while (filelist.hasNext())
         {
             String filename = filelist.next();
 
-            files.add(
-                Long.parseLong(filename.substring(0, filename.length() - 4)));
+            files.put(
+                Long.parseLong(filename.substring(0, filename.length() - 4)),
+                filename);
         }
 
         TreeSet<Long> resultAsLong = new TreeSet<Long>();
@@ -856,7 +744,7 @@ public int compare(String o1, String o2)
             endLong = endDate.getTime();
 
         // get all records inclusive the one before the startdate
-        for(Long f : files)
+        for(Long f : files.keySet())
         {
             if(startLong <= f
                && f <= endLong)
@@ -867,12 +755,12 @@ public int compare(String o1, String o2)
 
         // get the subset before the start date, to get its last element
         // if exists
-        if(!files.isEmpty() && files.first() <= startLong)
+        if(!files.isEmpty() && files.firstKey() <= startLong)
         {
-            SortedSet<Long> setBeforeTheInterval =
-                files.subSet(files.first(), true, startLong, true);
+            SortedMap<Long, String> setBeforeTheInterval =
+                files.subMap(files.firstKey(), true, startLong, true);
             if(!setBeforeTheInterval.isEmpty())
-                resultAsLong.add(setBeforeTheInterval.last());
+                resultAsLong.add(setBeforeTheInterval.lastKey());
         }
 
         Vector<String> result = new Vector<String>();
@@ -881,7 +769,7 @@ public int compare(String o1, String o2)
         while (iter.hasNext())
         {
             Long item = iter.next();
-            result.add(item.toString() + ".xml");
+            result.add(files.get(item));
         }
 
         Collections.sort(result, new Comparator<String>() {
@@ -969,14 +857,13 @@ public int countRecords()
         if(lastFile == null)
             return result;
 
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
+        TimestampIndex.Entry entry = this.historyImpl.getTimestampIndex()
+            .getEntry(this.historyImpl, lastFile);
 
-        if(doc == null)
+        if(entry == null)
             return result;
 
-        NodeList nodes = doc.getElementsByTagName("record");
-
-        result += nodes.getLength();
+        result += entry.getRecordCount();
 
         return result;
     }
@@ -985,7 +872,7 @@ public int countRecords()
      * Used to compare HistoryRecords
      * ant to be ordered in TreeSet
      */
-    private static class HistoryRecordComparator
+    static class HistoryRecordComparator
         implements Comparator<HistoryRecord>
     {
         public int compare(HistoryRecord h1, HistoryRecord h2)
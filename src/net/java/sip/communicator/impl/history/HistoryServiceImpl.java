@@ -19,6 +19,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.xml.parsers.*;
 
@@ -62,9 +63,106 @@
 
     private final FileAccessService fileAccessService;
 
-    private final DocumentBuilder builder;
+    /**
+     * The maximum number of idle parsers kept for reuse.
+     */
+    private static final int MAX_IDLE_BUILDERS = 4;
+
+    private final DocumentBuilderFactory builderFactory;
+
+    /**
+     * The idle parsers. A <tt>DocumentBuilder</tt> cannot be used by several
+     * threads at once, so every parse takes one from this pool and returns it
+     * when done, which lets concurrent readers parse in parallel.
+     */
+    private final Queue<DocumentBuilder> idleBuilders
+        = new ConcurrentLinkedQueue<DocumentBuilder>();
+
+    /**
+     * The default maximum memory in bytes used to cache the opened history
+     * documents when caching is enabled without setting a size.
+     */
+    private static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The cache of the parsed documents shared by all the histories.
+     */
+    private final DocumentCache documentCache;
+
+    /**
+     * The default maximum delay in milliseconds before appended records are
+     * written.
+     */
+    private static final long DEFAULT_WRITE_DELAY = 1000;
+
+    /**
+     * The default number of appended records written without waiting for
+     * the write delay.
+     */
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 50;
+
+    /**
+     * The maximum delay in milliseconds before appended records are written.
+     */
+    private final long writeDelay;
+
+    /**
+     * The number of appended records written without waiting for the write
+     * delay.
+     */
+    private final int writeBatchSize;
+
+    /**
+     * Whether every record is written and synchronized to the storage device
+     * when it is appended.
+     */
+    private final boolean syncWrites;
+
+    /**
+     * The writers with appended records which are not written yet.
+     */
+    private final Set<HistoryWriterImpl> pendingWriters
+        = new LinkedHashSet<HistoryWriterImpl>();
+
+    /**
+     * The executor writing the pending records after the write delay,
+     * created when first needed.
+     */
+    private ScheduledExecutorService writeExecutor;
+
+    /**
+     * The scheduled write of the pending records or <tt>null</tt> if none
+     * is scheduled.
+     */
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * The delay in milliseconds after which the changes of the last record
+     * timestamps are written to the history catalog.
+     */
+    private static final long CATALOG_SAVE_DELAY = 10000;
+
+    /**
+     * The catalog of the existing histories, loaded when first needed.
+     */
+    private HistoryCatalog catalog;
+
+    /**
+     * The name of the history directory the catalog was opened in.
+     */
+    private String catalogDirectory;
 
-    private final boolean cacheEnabled;
+    /**
+     * The scheduled write of the history catalog or <tt>null</tt> if none is
+     * scheduled.
+     */
+    private ScheduledFuture<?> scheduledCatalogSave;
+
+    /**
+     * The storage engine used for new histories, one of
+     * <tt>STORAGE_ENGINE_XML</tt> and <tt>STORAGE_ENGINE_SEGMENT</tt>.
+     */
+    private final String storageEngine;
 
     /**
      *  Characters and their replacement in created folder names
@@ -92,11 +190,34 @@
     public HistoryServiceImpl(BundleContext bundleContext)
         throws Exception
     {
-        this.builder =
-            DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+        this.builderFactory = DocumentBuilderFactory.newInstance();
+        this.idleBuilders.add(this.builderFactory.newDocumentBuilder());
+        ConfigurationService configService
+            = getConfigurationService(bundleContext);
+
+        long cacheSize =
+            configService.getBoolean(CACHE_ENABLED_PROPERTY, false)
+                ? DEFAULT_CACHE_SIZE
+                : 0;
+
+        this.documentCache =
+            new DocumentCache(
+                configService.getLong(CACHE_SIZE_PROPERTY, cacheSize));
+        this.storageEngine =
+            configService.getString(
+                STORAGE_ENGINE_PROPERTY, STORAGE_ENGINE_XML);
+        this.syncWrites =
+            configService.getBoolean(SYNC_WRITES_PROPERTY, false);
+        this.writeDelay =
+            syncWrites
+                ? 0
+                : configService.getLong(
+                    WRITE_DELAY_PROPERTY, DEFAULT_WRITE_DELAY);
+        this.writeBatchSize =
+            (writeDelay > 0)
+                ? configService.getInt(
+                    WRITE_BATCH_SIZE_PROPERTY, DEFAULT_WRITE_BATCH_SIZE)
+                : 1;
         this.fileAccessService = getFileAccessService(bundleContext);
     }
 
@@ -105,14 +226,9 @@ public Iterator<HistoryID> getExistingIDs()
         List<File> vect = new Vector<File>();
         File histDir;
         try {
-            String userSetDataDirectory
-                = System.getProperty("HistoryServiceDirectory");
-
             histDir
                 = getFileAccessService().getPrivatePersistentDirectory(
-                        (userSetDataDirectory == null)
-                            ? DATA_DIRECTORY
-                            : userSetDataDirectory, FileCategory.PROFILE);
+                        getDataDirectory(), FileCategory.PROFILE);
 
             findDatFiles(vect, histDir);
         } catch (Exception e)
@@ -189,60 +305,302 @@ public History createHistory(
             else
             {
                 File dir = this.createHistoryDirectories(id);
-                HistoryImpl history = new HistoryImpl(id, dir, recordStructure,
-                        this);
+                History history = createHistoryImpl(id, dir, recordStructure);
 
+                // the structure of a known history is already stored
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
-                DBStructSerializer dbss = new DBStructSerializer(this);
-                dbss.writeHistory(dbDatFile, history);
+                HistoryCatalog catalog = getCatalog();
+                if (catalog == null
+                    || !catalog.hasStructure(id, recordStructure)
+                    || !dbDatFile.exists())
+                {
+                    DBStructSerializer dbss = new DBStructSerializer(this);
+                    dbss.writeHistory(dbDatFile, history);
+                }
 
                 this.histories.put(id, history);
                 retVal = history;
             }
         }
 
+        HistoryCatalog catalog = getCatalog();
+        if (catalog != null && catalog.historyCreated(id, recordStructure))
+            scheduleCatalogSave();
+
         return retVal;
     }
 
+    /**
+     * Returns the catalog of the existing histories, which is read or built
+     * when first needed.
+     *
+     * @return the catalog of the existing histories or <tt>null</tt> if the
+     * history directory is not available
+     */
+    private synchronized HistoryCatalog getCatalog()
+    {
+        String dataDirectory = getDataDirectory();
+
+        if (catalog != null && !dataDirectory.equals(catalogDirectory))
+        {
+            // the histories are now in another directory with its own catalog
+            catalog.save();
+            catalog = null;
+        }
+        if (catalog == null)
+        {
+            try
+            {
+                File histDir
+                    = getFileAccessService().getPrivatePersistentDirectory(
+                        dataDirectory, FileCategory.PROFILE);
+
+                if (histDir != null && (histDir.exists() || histDir.mkdirs()))
+                {
+                    catalog = new HistoryCatalog(histDir);
+                    catalogDirectory = dataDirectory;
+                }
+            }
+            catch (Exception e)
+            {
+                logger.error("Error opening directory", e);
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Records in the history catalog that a record was added to a history.
+     * A history which gets its first record is written to the catalog at
+     * once, the changed timestamps of the other ones after a delay.
+     *
+     * @param id the history
+     * @param timestamp the timestamp of the added record
+     */
+    void recordAdded(HistoryID id, long timestamp)
+    {
+        HistoryCatalog catalog = getCatalog();
+
+        if (catalog == null)
+            return;
+
+        if (catalog.recordAdded(id, timestamp))
+            catalog.save();
+        else
+            scheduleCatalogSave();
+    }
+
+    /**
+     * Schedules the write of the history catalog after a delay, together with
+     * the other changes made meanwhile.
+     */
+    private void scheduleCatalogSave()
+    {
+        synchronized (pendingWriters)
+        {
+            if (scheduledCatalogSave != null)
+                return;
+
+            scheduledCatalogSave
+                = getWriteExecutor().schedule(
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            synchronized (pendingWriters)
+                            {
+                                scheduledCatalogSave = null;
+                            }
+                            saveCatalog();
+                        }
+                    },
+                    CATALOG_SAVE_DELAY,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the changes of the history catalog.
+     */
+    private void saveCatalog()
+    {
+        HistoryCatalog catalog;
+
+        synchronized (this)
+        {
+            catalog = this.catalog;
+        }
+        if (catalog != null)
+            catalog.save();
+    }
+
+    /**
+     * Creates the <tt>History</tt> stored in <tt>directory</tt>. Histories
+     * which already have binary segments are always loaded with the segment
+     * storage engine, the other ones with the configured engine. Loading an
+     * XML history with the segment engine migrates it.
+     *
+     * @param id the identifier of the history
+     * @param directory the directory of the history
+     * @param recordStructure the structure of the history records
+     * @return the history stored in <tt>directory</tt>
+     */
+    History createHistoryImpl(HistoryID id,
+                              File directory,
+                              HistoryRecordStructure recordStructure)
+    {
+        if (STORAGE_ENGINE_SEGMENT.equals(storageEngine)
+            || SegmentHistoryImpl.containsSegments(directory))
+        {
+            return new SegmentHistoryImpl(id, directory, recordStructure, this);
+        }
+
+        return new HistoryImpl(id, directory, recordStructure, this);
+    }
+
+    /**
+     * Checks whether the file with the given name holds history records of
+     * one of the storage engines.
+     *
+     * @param filename the name of the file
+     * @return <tt>true</tt> if the file holds history records
+     */
+    static boolean isHistoryDataFile(String filename)
+    {
+        return filename.endsWith("." + HistoryImpl.SUPPORTED_FILETYPE)
+            || filename.endsWith("." + SegmentFile.SUPPORTED_FILETYPE);
+    }
+
+    /**
+     * Returns the name of the directory of the histories, which the
+     * <tt>HistoryServiceDirectory</tt> system property overrides.
+     *
+     * @return the name of the directory of the histories
+     */
+    private static String getDataDirectory()
+    {
+        String userSetDataDirectory
+            = System.getProperty("HistoryServiceDirectory");
+
+        return
+            (userSetDataDirectory == null)
+                ? DATA_DIRECTORY
+                : userSetDataDirectory;
+    }
+
     protected FileAccessService getFileAccessService()
     {
         return this.fileAccessService;
     }
 
-    protected DocumentBuilder getDocumentBuilder()
+    /**
+     * Takes an idle parser from the pool or creates a new one.
+     * @return a parser used by the calling thread only
+     */
+    private DocumentBuilder acquireBuilder()
+    {
+        DocumentBuilder builder = idleBuilders.poll();
+
+        if (builder != null)
+            return builder;
+
+        try
+        {
+            synchronized (builderFactory)
+            {
+                return builderFactory.newDocumentBuilder();
+            }
+        }
+        catch (ParserConfigurationException e)
+        {
+            throw new RuntimeException("Cannot create XML parser", e);
+        }
+    }
+
+    /**
+     * Returns a parser to the pool.
+     * @param builder the parser which is not used anymore
+     */
+    private void releaseBuilder(DocumentBuilder builder)
+    {
+        if (idleBuilders.size() < MAX_IDLE_BUILDERS)
+        {
+            builder.reset();
+            idleBuilders.offer(builder);
+        }
+    }
+
+    /**
+     * Creates an empty document.
+     * @return a new empty document
+     */
+    protected Document newDocument()
     {
-        return builder;
+        DocumentBuilder builder = acquireBuilder();
+
+        try
+        {
+            return builder.newDocument();
+        }
+        finally
+        {
+            releaseBuilder(builder);
+        }
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every parse uses a parser of its own from a pool, so
+     * documents can be parsed concurrently.
      * @param file File the file to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(File file)
+    protected Document parse(File file)
         throws SAXException, IOException
     {
         FileInputStream fis = new FileInputStream(file);
-        Document doc = builder.parse(fis);
-        fis.close();
-        return doc;
+
+        try
+        {
+            return parse(fis);
+        }
+        finally
+        {
+            fis.close();
+        }
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every parse uses a parser of its own from a pool, so
+     * documents can be parsed concurrently.
      * @param in ByteArrayInputStream the stream to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(ByteArrayInputStream in)
+    protected Document parse(ByteArrayInputStream in)
         throws SAXException, IOException
     {
-        return builder.parse(in);
+        return parse((InputStream) in);
+    }
+
+    /**
+     * Parses a document with a parser from the pool.
+     */
+    private Document parse(InputStream in)
+        throws SAXException, IOException
+    {
+        DocumentBuilder builder = acquireBuilder();
+
+        try
+        {
+            return builder.parse(in);
+        }
+        finally
+        {
+            releaseBuilder(builder);
+        }
     }
 
     private void findDatFiles(List<File> vect, File directory)
@@ -269,12 +627,7 @@ private File createHistoryDirectories(HistoryID id)
         // escape chars in directory names
         escapeCharacters(idComponents);
 
-        String userSetDataDirectory
-            = System.getProperty("HistoryServiceDirectory");
-
-        File dir = new File(userSetDataDirectory != null
-            ? userSetDataDirectory
-            : DATA_DIRECTORY);
+        File dir = new File(getDataDirectory());
 
         for (String s : idComponents)
         {
@@ -310,12 +663,151 @@ private File createHistoryDirectories(HistoryID id)
     }
 
     /**
-     * Returns whether caching of readed documents is enabled or desibled.
-     * @return boolean
+     * Returns whether every record is written and synchronized to the
+     * storage device when it is appended.
+     * @return <tt>true</tt> if the records are written synchronously
+     */
+    protected boolean isSyncWrites()
+    {
+        return syncWrites;
+    }
+
+    /**
+     * Returns the number of appended records written without waiting for
+     * the write delay.
+     * @return the number of records written at once
+     */
+    protected int getWriteBatchSize()
+    {
+        return writeBatchSize;
+    }
+
+    /**
+     * Schedules the write of the pending records of a writer after the write
+     * delay, together with the pending records of the other writers.
+     *
+     * @param writer the writer with pending records
      */
-    protected boolean isCacheEnabled()
+    void scheduleFlush(HistoryWriterImpl writer)
     {
-        return cacheEnabled;
+        synchronized (pendingWriters)
+        {
+            pendingWriters.add(writer);
+
+            if (scheduledFlush != null)
+                return;
+
+            scheduledFlush
+                = getWriteExecutor().schedule(
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            synchronized (pendingWriters)
+                            {
+                                scheduledFlush = null;
+                            }
+                            flush();
+                        }
+                    },
+                    writeDelay,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the executor writing the pending records and the history
+     * catalog, creating it if needed. Must be called while holding the lock
+     * of <tt>pendingWriters</tt>.
+     *
+     * @return the executor writing the pending records
+     */
+    private ScheduledExecutorService getWriteExecutor()
+    {
+        if (writeExecutor == null)
+        {
+            writeExecutor
+                = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory()
+                    {
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread thread = new Thread(r, "HistoryWriter");
+
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return writeExecutor;
+    }
+
+    /**
+     * Writes all the appended records which are not written yet to their
+     * files. The records of a writer which fails to write them are written
+     * again later.
+     */
+    public void flush()
+    {
+        List<HistoryWriterImpl> writers;
+
+        synchronized (pendingWriters)
+        {
+            writers = new ArrayList<HistoryWriterImpl>(pendingWriters);
+            pendingWriters.clear();
+
+            if (scheduledFlush != null)
+            {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        }
+
+        for (HistoryWriterImpl writer : writers)
+        {
+            try
+            {
+                writer.flush();
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot write history records", e);
+                scheduleFlush(writer);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records and the history catalog and stops the
+     * executor writing them.
+     */
+    void stop()
+    {
+        flush();
+        saveCatalog();
+
+        synchronized (pendingWriters)
+        {
+            if (scheduledCatalogSave != null)
+            {
+                scheduledCatalogSave.cancel(false);
+                scheduledCatalogSave = null;
+            }
+            if (writeExecutor != null)
+            {
+                writeExecutor.shutdown();
+                writeExecutor = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the cache of the parsed documents shared by all the histories.
+     * @return the cache of the parsed documents
+     */
+    protected DocumentCache getDocumentCache()
+    {
+        return documentCache;
     }
 
     /**
@@ -327,11 +819,22 @@ protected boolean isCacheEnabled()
     public void purgeLocallyStoredHistory(HistoryID id)
         throws IOException
     {
+        // the pending records must not be written after the removal
+        flush();
+
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
         if (logger.isTraceEnabled())
             logger.trace("Removing history directory " + dir);
         deleteDirAndContent(dir);
+        documentCache.removeAll(dir);
+
+        HistoryCatalog catalog = getCatalog();
+        if (catalog != null)
+        {
+            catalog.remove(id);
+            catalog.save();
+        }
 
         History history = histories.remove(id);
         if(history == null)
@@ -359,6 +862,7 @@ public void purgeLocallyStoredHistory(HistoryID id)
     public void purgeLocallyCachedHistories()
     {
         histories.clear();
+        documentCache.clear();
     }
 
     /**
@@ -463,6 +967,9 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
         if(!isHistoryCreated(oldId))// || !isHistoryExisting(newId))
             return;
 
+        // the pending records must be moved with the history
+        flush();
+
         File oldDir = this.createHistoryDirectories(oldId);
         File newDir = getDirForHistory(newId);
 
@@ -476,7 +983,15 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
             throw new IOException("Cannot move history!");
         }
 
+        documentCache.removeAll(oldDir);
         histories.remove(oldId);
+
+        HistoryCatalog catalog = getCatalog();
+        if (catalog != null)
+        {
+            catalog.move(oldId, newId);
+            catalog.save();
+        }
     }
 
     /**
@@ -500,15 +1015,9 @@ private File getDirForHistory(HistoryID id)
         File histDir = null;
         try
         {
-            String userSetDataDirectory
-                = System.getProperty("HistoryServiceDirectory");
-
             histDir
                 = getFileAccessService().getPrivatePersistentDirectory(
-                        (userSetDataDirectory == null)
-                            ? DATA_DIRECTORY
-                            : userSetDataDirectory,
-                        FileCategory.PROFILE);
+                        getDataDirectory(), FileCategory.PROFILE);
         }
         catch (Exception e)
         {
@@ -530,7 +1039,8 @@ public boolean isHistoryCreated(HistoryID id)
     }
 
     /**
-     * Enumerates existing histories.
+     * Enumerates existing histories. The histories are listed from the
+     * history catalog, the history with the most recent record first.
      * @param rawid the start of the HistoryID of all the histories that will be
      * returned.
      * @return list of histories which HistoryID starts with <tt>rawid</tt>.
@@ -541,84 +1051,11 @@ public List<HistoryID> getExistingHistories(
                             String[] rawid)
         throws IllegalArgumentException
     {
-        File histDir = null;
-        try
-        {
-            histDir = getFileAccessService()
-                .getPrivatePersistentDirectory(
-                    DATA_DIRECTORY, FileCategory.PROFILE);
-        }
-        catch (Exception e)
-        {
-            logger.error("Error opening directory", e);
-        }
+        HistoryCatalog catalog = getCatalog();
 
-        if(histDir == null || !histDir.exists())
+        if (catalog == null)
             return new ArrayList<HistoryID>();
 
-        StringBuilder folderPath = new StringBuilder();
-        for(String id : rawid)
-            folderPath.append(id).append(File.separator);
-
-        File srcFolder = new File(histDir, folderPath.toString());
-
-        if(!srcFolder.exists())
-            return new ArrayList<HistoryID>();
-
-        TreeMap<File, HistoryID> recentFiles =
-            new TreeMap<File, HistoryID>(new Comparator<File>()
-            {
-                @Override
-                public int compare(File o1, File o2)
-                {
-                    return o1.getName().compareTo(o2.getName());
-                }
-            });
-
-        getExistingFiles(srcFolder, Arrays.asList(rawid), recentFiles);
-
-        // return non duplicate
-        List<HistoryID> result = new ArrayList<HistoryID>();
-        for(Map.Entry<File, HistoryID> entry : recentFiles.entrySet())
-        {
-            HistoryID hid = entry.getValue();
-
-            if(result.contains(hid))
-                continue;
-
-            result.add(hid);
-        }
-
-        return result;
-    }
-
-    /**
-     * Get existing files in <tt>res</tt> and their corresponding historyIDs.
-     * @param sourceFolder the folder to search into.
-     * @param rawID the rawID.
-     * @param res the result map.
-     */
-    private void getExistingFiles(
-        File sourceFolder, List<String> rawID,
-        Map<File, HistoryID> res)
-    {
-        for(File f : sourceFolder.listFiles())
-        {
-            if(f.isDirectory())
-            {
-                List<String> newRawID = new ArrayList<String>(rawID);
-                newRawID.add(f.getName());
-
-                getExistingFiles(f, newRawID, res);
-            }
-            else
-            {
-                if(f.getName().equals(DATA_FILE))
-                    continue;
-
-                res.put(f, HistoryID.createFromRawStrings(
-                    rawID.toArray(new String[rawID.size()])));
-            }
-        }
+        return catalog.getHistories(rawid);
     }
 }
@@ -44,10 +44,18 @@
      */
     public static final int MAX_RECORDS_PER_FILE = 150;
 
-    private static final String CDATA_SUFFIX = "_CDATA";
+    static final String CDATA_SUFFIX = "_CDATA";
 
+    /**
+     * Serializes the changes of the history: the appends, the inserts and
+     * the updates.
+     */
     private Object docCreateLock = new Object();
 
+    /**
+     * Guards the current document, its file name and the pending records,
+     * which a scheduled flush writes.
+     */
     private Object docWriteLock = new Object();
 
     private HistoryImpl historyImpl;
@@ -60,6 +68,13 @@
 
     private int currentDocElements = -1;
 
+    /**
+     * The records appended to the current document which are not written to
+     * its file yet.
+     */
+    private final List<PendingRecord> pendingRecords
+        = new ArrayList<PendingRecord>();
+
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -138,41 +153,137 @@ private void addRecord(String[] propertyNames,
             if (this.currentDoc == null
                     || this.currentDocElements > MAX_RECORDS_PER_FILE)
             {
-                this.createNewDoc(date, this.currentDoc == null);
+                // the pending records belong to the current file
+                synchronized (this.docWriteLock)
+                {
+                    this.writePendingRecords();
+                    this.createNewDoc(date, this.currentDoc == null);
+                }
             }
-        }
 
-        synchronized (this.currentDoc)
-        {
-            Node root = this.currentDoc.getFirstChild();
-            synchronized (root)
+            // the record is appended and registered as pending atomically
+            // for a concurrent flush
+            synchronized (this.docWriteLock)
             {
-                // if we have setting for max number of records,
-                // check the number and when exceed them, remove the first one
-                if( maxNumberOfRecords > -1
-                    && this.currentDocElements >= maxNumberOfRecords)
+                // the position of the new record in the document or -1 when
+                // the positions of the other records changed
+                int position;
+
+                synchronized (this.currentDoc)
                 {
-                    // lets remove the first one
-                    removeFirstRecord(root);
+                    Node root = this.currentDoc.getFirstChild();
+                    synchronized (root)
+                    {
+                        boolean removed = false;
+
+                        // if we have setting for max number of records,
+                        // check the number and when exceed them, remove the
+                        // first one
+                        if( maxNumberOfRecords > -1
+                            && this.currentDocElements >= maxNumberOfRecords)
+                        {
+                            // lets remove the first one
+                            removed = removeFirstRecord(root);
+                        }
+
+                        Element elem = createRecord(
+                            this.currentDoc, propertyNames, propertyValues,
+                            date);
+                        root.appendChild(elem);
+                        this.currentDocElements++;
+
+                        position = removed
+                            ? -1
+                            : ((Element) root).getElementsByTagName("record")
+                                .getLength() - 1;
+                    }
                 }
 
-                Element elem = createRecord(
-                    this.currentDoc, propertyNames, propertyValues, date);
-                root.appendChild(elem);
-                this.currentDocElements++;
+                this.pendingRecords.add(
+                    new PendingRecord(position, propertyNames, propertyValues));
+
+                HistoryServiceImpl historyService
+                    = this.historyImpl.getHistoryServiceImpl();
+
+                historyService.recordAdded(
+                    this.historyImpl.getID(), date.getTime());
+
+                if (historyService.isSyncWrites()
+                    || this.pendingRecords.size()
+                        >= historyService.getWriteBatchSize())
+                {
+                    this.writePendingRecords();
+                }
+                else
+                {
+                    // readers see the records before they are written
+                    this.historyImpl.setUnwrittenDocument(
+                        this.currentFile, this.currentDoc);
+                    historyService.scheduleFlush(this);
+                }
             }
         }
+    }
 
-        // write changes
+    /**
+     * Writes the records which were appended to the current file and are
+     * not written yet.
+     *
+     * @throws IOException if writing the file fails, the records are then
+     * kept for the next flush
+     */
+    public void flush()
+        throws IOException
+    {
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            this.writePendingRecords();
         }
     }
 
+    /**
+     * Writes the current file with all the pending records at once and
+     * indexes them. Must be called while holding <tt>docWriteLock</tt>.
+     *
+     * @throws IOException if writing the file fails
+     */
+    private void writePendingRecords()
+        throws IOException
+    {
+        if (this.pendingRecords.isEmpty())
+            return;
+
+        File file = this.historyImpl.getFile(this.currentFile);
+        long[] previousFingerprint = KeywordIndex.fingerprint(file);
+
+        this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+
+        if (this.historyImpl.getHistoryServiceImpl().isSyncWrites())
+            HistoryImpl.sync(file);
+
+        boolean rewritten = false;
+
+        for (PendingRecord record : this.pendingRecords)
+        {
+            if (record.position == -1)
+                rewritten = true;
+        }
+
+        if (rewritten)
+        {
+            this.historyImpl.getKeywordIndex().fileChanged(
+                this.currentFile, file, this.currentDoc);
+        }
+        else
+        {
+            this.historyImpl.getKeywordIndex().recordsAdded(
+                this.currentFile, file, previousFingerprint,
+                this.pendingRecords);
+        }
+
+        this.pendingRecords.clear();
+    }
+
     /**
      * Creates a record element for the supplied <tt>doc</tt> and populates it
      * with the property names from <tt>propertyNames</tt> and corresponding
@@ -208,9 +319,7 @@ private Element createRecord(Document doc,
                     Element propertyElement = doc.createElement(propertyName);
 
                     Text value = doc.createCDATASection(
-                        XmlEscapers.xmlContentEscaper().escape(
-                            propertyValues[i].replaceAll("\0", " ")
-                        ));
+                        escapeValue(propertyValues[i]));
                     propertyElement.appendChild(value);
 
                     elem.appendChild(propertyElement);
@@ -223,9 +332,7 @@ private Element createRecord(Document doc,
                     Element propertyElement = doc.createElement(propertyName);
 
                     Text value = doc.createTextNode(
-                        XmlEscapers.xmlContentEscaper().escape(
-                            propertyValues[i].replaceAll("\0", " ")
-                        ));
+                        escapeValue(propertyValues[i]));
                     propertyElement.appendChild(value);
 
                     elem.appendChild(propertyElement);
@@ -236,11 +343,24 @@ private Element createRecord(Document doc,
         return elem;
     }
 
+    /**
+     * Returns <tt>value</tt> as it is stored in the history documents, with
+     * the xml characters escaped.
+     * @param value the value of a record property
+     * @return the stored value
+     */
+    static String escapeValue(String value)
+    {
+        return XmlEscapers.xmlContentEscaper().escape(
+            value.replaceAll("\0", " "));
+    }
+
     /**
      * Finds the oldest node by timestamp in current root and deletes it.
      * @param root where to search for records
+     * @return <tt>true</tt> if a record was removed
      */
-    private void removeFirstRecord(Node root)
+    private boolean removeFirstRecord(Node root)
     {
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
 
@@ -276,8 +396,11 @@ private void removeFirstRecord(Node root)
 
         }
 
-        if(oldestNode != null)
-            root.removeChild(oldestNode);
+        if(oldestNode == null)
+            return false;
+
+        root.removeChild(oldestNode);
+        return true;
     }
 
     /**
@@ -298,6 +421,36 @@ private void removeFirstRecord(Node root)
     public void insertRecord(
             String[] propertyValues, Date timestamp, String timestampProperty)
         throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            synchronized (this.docWriteLock)
+            {
+                // the pending records must be in the file which is changed
+                this.writePendingRecords();
+                this.insertRecordInFile(
+                    propertyValues, timestamp, timestampProperty);
+            }
+        }
+    }
+
+    /**
+     * Inserts a record in the file holding the records around its
+     * timestamp. Must be called while holding <tt>docCreateLock</tt> and
+     * <tt>docWriteLock</tt>, with no pending records, so that no record is
+     * appended to the current document while it is replaced with the changed
+     * one.
+     *
+     * @param propertyValues The values of the record.
+     * @param timestamp The timestamp of the record.
+     * @param timestampProperty the property name for the timestamp of the
+     * record
+     *
+     * @throws IOException
+     */
+    private void insertRecordInFile(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
     {
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator
@@ -359,20 +512,7 @@ public void insertRecord(
 
             if(changed)
             {
-                // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
-
-                // this prevents that the current writer, which holds
-                // instance for the last document he is editing will not
-                // override our last changes to the document
-                if(filename.equals(this.currentFile))
-                {
-                    this.currentDoc = doc;
-                }
-
+                writeChangedFile(filename, doc);
                 break;
             }
         }
@@ -441,6 +581,32 @@ private void createNewDoc(Date date, boolean loadLastFile)
     public void updateRecord(String idProperty, String idValue,
             String property, String newValue)
         throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            synchronized (this.docWriteLock)
+            {
+                // the pending records must be in the file which is changed
+                this.writePendingRecords();
+                this.updateRecordInFile(
+                    idProperty, idValue, property, newValue);
+            }
+        }
+    }
+
+    /**
+     * Updates the first record with idProperty which has idValue. Must be
+     * called while holding <tt>docCreateLock</tt> and <tt>docWriteLock</tt>,
+     * with no pending records.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     */
+    private void updateRecordInFile(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
     {
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
@@ -509,20 +675,7 @@ public void updateRecord(String idProperty, String idValue,
 
             if(changed)
             {
-                // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
-
-                // this prevents that the current writer, which holds
-                // instance for the last document he is editing will not
-                // override our last changes to the document
-                if(filename.equals(this.currentFile))
-                {
-                    this.currentDoc = doc;
-                }
-
+                writeChangedFile(filename, doc);
                 break;
             }
         }
@@ -535,6 +688,28 @@ public void updateRecord(String idProperty, String idValue,
      * @param updater the <tt>HistoryRecordUpdater</tt> instance.
      */
     public void updateRecord(HistoryRecordUpdater updater) throws IOException
+    {
+        synchronized (this.docCreateLock)
+        {
+            synchronized (this.docWriteLock)
+            {
+                // the pending records must be in the file which is changed
+                this.writePendingRecords();
+                this.updateRecordInFile(updater);
+            }
+        }
+    }
+
+    /**
+     * Updates the records matched by the <tt>HistoryRecordUpdater</tt> in the
+     * first file which has some. Must be called while holding
+     * <tt>docCreateLock</tt> and <tt>docWriteLock</tt>, with no pending
+     * records.
+     *
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     */
+    private void updateRecordInFile(HistoryRecordUpdater updater)
+        throws IOException
     {
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
@@ -583,25 +758,38 @@ public void updateRecord(HistoryRecordUpdater updater) throws IOException
 
             if(changed)
             {
-                // write changes
-                synchronized (this.docWriteLock)
-                {
-                    this.historyImpl.writeFile(filename, doc);
-                }
-
-                // this prevents that the current writer, which holds
-                // instance for the last document he is editing will not
-                // override our last changes to the document
-                if(filename.equals(this.currentFile))
-                {
-                    this.currentDoc = doc;
-                }
-
+                writeChangedFile(filename, doc);
                 break;
             }
         }
     }
 
+    /**
+     * Writes a document changed by an insert or an update to its file and
+     * makes it the current document if it is the one of the current file.
+     *
+     * @param filename the name of the changed file
+     * @param doc the changed document
+     * @throws IOException if writing the file fails
+     */
+    private void writeChangedFile(String filename, Document doc)
+        throws IOException
+    {
+        this.historyImpl.writeFile(filename, doc);
+        this.historyImpl.getKeywordIndex().fileChanged(
+            filename, this.historyImpl.getFile(filename), doc);
+
+        // this prevents that the current writer, which holds
+        // instance for the last document he is editing will not
+        // override our last changes to the document
+        if(filename.equals(this.currentFile))
+        {
+            this.currentDoc = doc;
+            this.currentDocElements
+                = doc.getFirstChild().getChildNodes().getLength();
+        }
+    }
+
     /**
      * Creates <tt>HistoryRecord</tt> instance from <tt>Node</tt> object.
      * @param node the node
@@ -629,4 +817,29 @@ private HistoryRecord createHistoryRecordFromNode(Node node)
 
         return new HistoryRecord(structure, propertyValues);
     }
+
+    /**
+     * A record appended to the current document and not written yet.
+     */
+    static class PendingRecord
+    {
+        /**
+         * The position of the record in the document or -1 if the positions
+         * of the other records changed when it was appended.
+         */
+        final int position;
+
+        final String[] propertyNames;
+
+        final String[] propertyValues;
+
+        PendingRecord(int position,
+                      String[] propertyNames,
+                      String[] propertyValues)
+        {
+            this.position = position;
+            this.propertyNames = propertyNames;
+            this.propertyValues = propertyValues;
+        }
+    }
 }
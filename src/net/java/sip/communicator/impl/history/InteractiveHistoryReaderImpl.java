@@ -17,18 +17,12 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
  * The <tt>InteractiveHistoryReaderImpl</tt> is an implementation of the
  * <tt>InteractiveHistoryReader</tt> interface. It allows to search in the
@@ -155,42 +149,24 @@ private void find(  Date startDate,
                                                     startDate, endDate, true);
         Iterator<String> fileIterator = filelist.iterator();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
+            HistoryFileSnapshot records = history.getSnapshot(filename);
 
-            if(doc == null)
+            if(records == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            for ( int i = nodes.getLength() - 1;
+            for ( int i = records.getRecordCount() - 1;
                   i >= 0 && !query.isCanceled();
                   i--)
             {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                Date timestamp = new Date(records.getTimestamp(i));
 
                 if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
                     HistoryRecord record =
-                        HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                        records.getRecord(i, keywords, field, caseSensitive);
 
                     if(record != null)
                     {
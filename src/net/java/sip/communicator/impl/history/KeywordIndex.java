@@ -0,0 +1,902 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.w3c.dom.*;
+
+/**
+ * An inverted index of the words in the records of a XML history. For every
+ * record field it maps the lower-cased words found in the field values to the
+ * positions of the records containing them, per history file. Keyword searches
+ * use it to parse only the files, and to check only the records, which may
+ * contain the searched keywords.
+ * <p>
+ * The index is persisted as an append-only log of checksummed operations, so
+ * that writers only append the words of the records they add and do not need
+ * to load the index. The log also stores the length and modification time of
+ * every indexed file. A file which was changed without the index being
+ * updated is detected by its changed fingerprint and is indexed again by the
+ * next search.
+ */
+public class KeywordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger = Logger.getLogger(KeywordIndex.class);
+
+    /**
+     * The name of the index file in the history directory.
+     */
+    public static final String INDEX_FILE = "keywords.idx";
+
+    /**
+     * The magic number starting the index file.
+     */
+    private static final int MAGIC = 0x4A484B49;
+
+    /**
+     * The version of the index format.
+     */
+    private static final short VERSION = 1;
+
+    /**
+     * Adds the words of the fields of a record.
+     */
+    private static final byte OP_ADD = 1;
+
+    /**
+     * Sets the fingerprint of a file.
+     */
+    private static final byte OP_FILE = 2;
+
+    /**
+     * Removes all the words of a file.
+     */
+    private static final byte OP_DROP = 3;
+
+    /**
+     * The minimum number of dropped operations before the log is compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    /**
+     * The file the log of the index is stored in.
+     */
+    private final File indexFile;
+
+    /**
+     * Whether the log was loaded in memory.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The record positions per file, per word, per field.
+     */
+    private final Map<String, Map<String, Map<String, BitSet>>> postings
+        = new HashMap<String, Map<String, Map<String, BitSet>>>();
+
+    /**
+     * The fingerprints of the files which are completely indexed.
+     */
+    private final Map<String, long[]> fingerprints
+        = new HashMap<String, long[]>();
+
+    /**
+     * The number of <tt>OP_ADD</tt> operations in the log whose words are
+     * still in the index.
+     */
+    private int liveOps = 0;
+
+    /**
+     * The number of <tt>OP_ADD</tt> operations in the log whose words were
+     * dropped.
+     */
+    private int deadOps = 0;
+
+    /**
+     * Creates the index stored in <tt>indexFile</tt>.
+     *
+     * @param indexFile the file of the index log
+     */
+    KeywordIndex(File indexFile)
+    {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Returns the fingerprint of <tt>file</tt>, which changes whenever the
+     * file is written.
+     *
+     * @param file the file
+     * @return the length and the modification time of the file
+     */
+    static long[] fingerprint(File file)
+    {
+        return new long[] { file.length(), file.lastModified() };
+    }
+
+    /**
+     * Splits <tt>text</tt> in lower-cased words made of letters and digits.
+     * Any keyword contained in <tt>text</tt>, regardless of case, has its own
+     * words contained in the words of <tt>text</tt>.
+     *
+     * @param text the text to split
+     * @return the words of <tt>text</tt>
+     */
+    static List<String> tokenize(String text)
+    {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+
+            if (Character.isLetterOrDigit(c))
+            {
+                word.append(Character.toLowerCase(c));
+            }
+            else if (word.length() > 0)
+            {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0)
+            words.add(word.toString());
+
+        return words;
+    }
+
+    /**
+     * Indexes records which were appended to a file and written at once.
+     *
+     * @param filename the name of the file
+     * @param file the file, already written with the new records
+     * @param previousFingerprint the fingerprint of the file before the
+     * records were written
+     * @param records the appended records with their positions in the file
+     */
+    synchronized void recordsAdded(
+            String filename,
+            File file,
+            long[] previousFingerprint,
+            List<HistoryWriterImpl.PendingRecord> records)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            for (HistoryWriterImpl.PendingRecord record : records)
+            {
+                List<String> names = new ArrayList<String>();
+                List<String> values = new ArrayList<String>();
+
+                for (int i = 0; i < record.propertyNames.length; i++)
+                {
+                    if (record.propertyValues[i] == null)
+                        continue;
+
+                    names.add(record.propertyNames[i].replaceFirst(
+                        HistoryWriterImpl.CDATA_SUFFIX + "$", ""));
+                    values.add(record.propertyValues[i]);
+                }
+
+                writeAdd(out, filename, record.position, names, values);
+            }
+            writeFile(out, filename, fingerprint(file), previousFingerprint);
+            append(bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update history index " + indexFile, e);
+        }
+    }
+
+    /**
+     * Indexes again all the records of a file which was changed.
+     *
+     * @param filename the name of the file
+     * @param file the file, already written with the changes
+     * @param doc the document of the file
+     */
+    synchronized void fileChanged(String filename, File file, Document doc)
+    {
+        try
+        {
+            HistoryFileSnapshot snapshot;
+
+            synchronized (doc)
+            {
+                snapshot = HistoryFileSnapshot.create(doc);
+            }
+            append(reindex(filename, fingerprint(file), snapshot));
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update history index " + indexFile, e);
+        }
+    }
+
+    /**
+     * Returns the positions of the records which may contain all
+     * <tt>keywords</tt> in their <tt>field</tt>, per file. Files among
+     * <tt>filenames</tt> which are not indexed yet, or which changed since they
+     * were indexed, are indexed first.
+     *
+     * @param history the history the files belong to
+     * @param filenames the names of the files to search
+     * @param keywords the keywords
+     * @param field the field the keywords are searched in
+     * @return the positions of the candidate records per file, files without
+     * candidates are omitted, or <tt>null</tt> if the index cannot be used
+     * for these keywords
+     */
+    synchronized Map<String, BitSet> find(HistoryImpl history,
+                                          List<String> filenames,
+                                          String[] keywords,
+                                          String field)
+    {
+        List<List<String>> keywordWords = new ArrayList<List<String>>();
+
+        for (String keyword : keywords)
+        {
+            List<String> words = tokenize(keyword);
+
+            // keywords made only of punctuation are not indexed
+            if (words.isEmpty())
+                return null;
+            keywordWords.add(words);
+        }
+
+        load();
+        update(history, filenames);
+
+        Map<String, Map<String, BitSet>> terms = postings.get(field);
+        Map<String, BitSet> result = null;
+
+        for (List<String> words : keywordWords)
+        {
+            for (String word : words)
+            {
+                Map<String, BitSet> wordResult
+                    = new HashMap<String, BitSet>();
+
+                if (terms != null)
+                {
+                    for (Map.Entry<String, Map<String, BitSet>> term
+                            : terms.entrySet())
+                    {
+                        if (term.getKey().contains(word))
+                            or(wordResult, term.getValue());
+                    }
+                }
+
+                result = (result == null)
+                    ? wordResult
+                    : and(result, wordResult);
+            }
+        }
+
+        if (result != null)
+            result.keySet().retainAll(filenames);
+
+        return result;
+    }
+
+    /**
+     * Indexes the files among <tt>filenames</tt> whose fingerprint is not the
+     * indexed one.
+     *
+     * @param history the history the files belong to
+     * @param filenames the names of the files to check
+     */
+    private void update(HistoryImpl history, List<String> filenames)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        for (String filename : filenames)
+        {
+            long[] fingerprint = fingerprint(history.getFile(filename));
+
+            if (Arrays.equals(fingerprint, fingerprints.get(filename)))
+                continue;
+
+            HistoryFileSnapshot snapshot = history.getSnapshot(filename);
+
+            if (snapshot == null)
+                continue;
+
+            try
+            {
+                bytes.write(reindex(filename, fingerprint, snapshot));
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot index history file " + filename, e);
+            }
+        }
+
+        if (bytes.size() > 0)
+        {
+            try
+            {
+                append(bytes.toByteArray());
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot update history index " + indexFile, e);
+            }
+        }
+    }
+
+    /**
+     * Creates the operations which replace the words of a file with the words
+     * of all records in <tt>snapshot</tt>.
+     *
+     * @param filename the name of the file
+     * @param fingerprint the fingerprint of the file
+     * @param snapshot the snapshot of the records of the file
+     * @return the encoded operations
+     * @throws IOException if encoding fails
+     */
+    private byte[] reindex(String filename,
+                           long[] fingerprint,
+                           HistoryFileSnapshot snapshot)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeOp(out, OP_DROP, filename);
+
+        for (int i = 0; i < snapshot.getRecordCount(); i++)
+        {
+            writeAdd(out, filename, i,
+                Arrays.asList(snapshot.getPropertyNames(i)),
+                Arrays.asList(snapshot.getPropertyValues(i)));
+        }
+
+        writeFile(out, filename, fingerprint, null);
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes an <tt>OP_ADD</tt> operation.
+     */
+    private void writeAdd(DataOutputStream out,
+                          String filename,
+                          int position,
+                          List<String> names,
+                          List<String> values)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream op = new DataOutputStream(bytes);
+
+        op.writeByte(OP_ADD);
+        op.writeUTF(filename);
+        op.writeInt(position);
+        op.writeShort(names.size());
+        for (int i = 0; i < names.size(); i++)
+        {
+            Set<String> words
+                = new LinkedHashSet<String>(tokenize(values.get(i)));
+
+            op.writeUTF(names.get(i));
+            op.writeInt(words.size());
+            for (String word : words)
+                op.writeUTF(word);
+        }
+
+        writeFrame(out, bytes.toByteArray());
+    }
+
+    /**
+     * Writes an <tt>OP_FILE</tt> operation. When a previous fingerprint is
+     * given, the new fingerprint is only valid if the file had the previous
+     * one when the operation is replayed, otherwise the file is considered
+     * not indexed.
+     */
+    private void writeFile(DataOutputStream out,
+                           String filename,
+                           long[] fingerprint,
+                           long[] previousFingerprint)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream op = new DataOutputStream(bytes);
+
+        op.writeByte(OP_FILE);
+        op.writeUTF(filename);
+        op.writeLong(fingerprint[0]);
+        op.writeLong(fingerprint[1]);
+        op.writeBoolean(previousFingerprint != null);
+        if (previousFingerprint != null)
+        {
+            op.writeLong(previousFingerprint[0]);
+            op.writeLong(previousFingerprint[1]);
+        }
+
+        writeFrame(out, bytes.toByteArray());
+    }
+
+    /**
+     * Writes an operation with only a file name as argument.
+     */
+    private void writeOp(DataOutputStream out, byte opCode, String filename)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream op = new DataOutputStream(bytes);
+
+        op.writeByte(opCode);
+        op.writeUTF(filename);
+
+        writeFrame(out, bytes.toByteArray());
+    }
+
+    /**
+     * Writes an operation preceded by its length and followed by its
+     * checksum.
+     */
+    private static void writeFrame(DataOutputStream out, byte[] op)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+
+        crc.update(op);
+        out.writeInt(op.length);
+        out.write(op);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Appends encoded operations to the log and applies them to the loaded
+     * index.
+     *
+     * @param ops the encoded operations
+     * @throws IOException if writing fails
+     */
+    private void append(byte[] ops)
+        throws IOException
+    {
+        boolean newFile = !indexFile.exists();
+        DataOutputStream out
+            = new DataOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(indexFile, true)));
+        try
+        {
+            if (newFile)
+            {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+            }
+            out.write(ops);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (loaded)
+        {
+            replay(new DataInputStream(new ByteArrayInputStream(ops)),
+                ops.length);
+            if (deadOps > COMPACT_THRESHOLD && deadOps > liveOps)
+                compact();
+        }
+    }
+
+    /**
+     * Loads the log in memory if it was not loaded yet. A log which ends with
+     * an incomplete or corrupted operation is truncated after the last valid
+     * one.
+     */
+    private void load()
+    {
+        if (loaded)
+            return;
+
+        loaded = true;
+
+        if (!indexFile.exists())
+            return;
+
+        long length = indexFile.length();
+        long validLength = 0;
+
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(
+                        new BufferedInputStream(
+                                new FileInputStream(indexFile)));
+            try
+            {
+                if (length >= 6
+                    && in.readInt() == MAGIC
+                    && in.readShort() == VERSION)
+                {
+                    validLength = 6 + replay(in, length - 6);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            if (validLength < length)
+            {
+                logger.warn("Truncating corrupted history index " + indexFile);
+                if (validLength == 0)
+                {
+                    indexFile.delete();
+                }
+                else
+                {
+                    RandomAccessFile raf
+                        = new RandomAccessFile(indexFile, "rw");
+                    try
+                    {
+                        raf.setLength(validLength);
+                    }
+                    finally
+                    {
+                        raf.close();
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot load history index " + indexFile, e);
+            postings.clear();
+            fingerprints.clear();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Applies the operations read from <tt>in</tt> to the index.
+     *
+     * @param in the stream to read the operations from
+     * @param length the number of bytes available in <tt>in</tt>
+     * @return the number of bytes of the valid operations
+     * @throws IOException if reading fails
+     */
+    private long replay(DataInputStream in, long length)
+        throws IOException
+    {
+        long position = 0;
+        CRC32 crc = new CRC32();
+
+        while (position + 4 <= length)
+        {
+            int opLength = in.readInt();
+
+            if (opLength <= 0 || position + 8 + opLength > length)
+                break;
+
+            byte[] op = new byte[opLength];
+
+            in.readFully(op);
+            crc.reset();
+            crc.update(op);
+            if (in.readInt() != (int) crc.getValue())
+                break;
+
+            apply(new DataInputStream(new ByteArrayInputStream(op)));
+            position += 8 + opLength;
+        }
+
+        return position;
+    }
+
+    /**
+     * Applies a single decoded operation to the index.
+     */
+    private void apply(DataInputStream op)
+        throws IOException
+    {
+        byte opCode = op.readByte();
+        String filename = op.readUTF();
+
+        switch (opCode)
+        {
+        case OP_ADD:
+            int position = op.readInt();
+            int fieldCount = op.readUnsignedShort();
+
+            for (int i = 0; i < fieldCount; i++)
+            {
+                String field = op.readUTF();
+                int wordCount = op.readInt();
+                Map<String, Map<String, BitSet>> terms = postings.get(field);
+
+                if (terms == null)
+                {
+                    terms = new HashMap<String, Map<String, BitSet>>();
+                    postings.put(field, terms);
+                }
+
+                for (int j = 0; j < wordCount; j++)
+                {
+                    String word = op.readUTF();
+                    Map<String, BitSet> files = terms.get(word);
+
+                    if (files == null)
+                    {
+                        files = new HashMap<String, BitSet>(2);
+                        terms.put(word, files);
+                    }
+
+                    BitSet positions = files.get(filename);
+
+                    if (positions == null)
+                    {
+                        positions = new BitSet();
+                        files.put(filename, positions);
+                    }
+                    positions.set(position);
+                }
+            }
+            liveOps++;
+            break;
+
+        case OP_FILE:
+            long[] fingerprint = new long[] { op.readLong(), op.readLong() };
+
+            if (op.readBoolean())
+            {
+                long[] previous = new long[] { op.readLong(), op.readLong() };
+                long[] current = fingerprints.get(filename);
+
+                // an empty file which was never indexed has nothing to index
+                boolean wasIndexed
+                    = (current == null)
+                        ? previous[0] == 0
+                        : Arrays.equals(current, previous);
+
+                if (!wasIndexed)
+                {
+                    fingerprints.remove(filename);
+                    break;
+                }
+            }
+            fingerprints.put(filename, fingerprint);
+            break;
+
+        case OP_DROP:
+            fingerprints.remove(filename);
+
+            Set<Integer> droppedPositions = new HashSet<Integer>();
+
+            for (Map<String, Map<String, BitSet>> terms : postings.values())
+            {
+                Iterator<Map<String, BitSet>> iter
+                    = terms.values().iterator();
+
+                while (iter.hasNext())
+                {
+                    Map<String, BitSet> files = iter.next();
+                    BitSet positions = files.remove(filename);
+
+                    if (positions != null)
+                    {
+                        for (int i = positions.nextSetBit(0);
+                                i >= 0;
+                                i = positions.nextSetBit(i + 1))
+                        {
+                            droppedPositions.add(i);
+                        }
+                    }
+                    if (files.isEmpty())
+                        iter.remove();
+                }
+            }
+            liveOps -= droppedPositions.size();
+            deadOps += droppedPositions.size();
+            break;
+
+        default:
+            throw new IOException("Unknown history index operation " + opCode);
+        }
+    }
+
+    /**
+     * Rewrites the log with only the operations needed to restore the current
+     * index.
+     */
+    private void compact()
+    {
+        // position -> field -> words, per file
+        Map<String, SortedMap<Integer, Map<String, List<String>>>> records
+            = new HashMap<String, SortedMap<Integer, Map<String, List<String>>>>();
+
+        for (Map.Entry<String, Map<String, Map<String, BitSet>>> field
+                : postings.entrySet())
+        {
+            for (Map.Entry<String, Map<String, BitSet>> term
+                    : field.getValue().entrySet())
+            {
+                for (Map.Entry<String, BitSet> file
+                        : term.getValue().entrySet())
+                {
+                    if (!fingerprints.containsKey(file.getKey()))
+                        continue;
+
+                    SortedMap<Integer, Map<String, List<String>>> positions
+                        = records.get(file.getKey());
+
+                    if (positions == null)
+                    {
+                        positions
+                            = new TreeMap<Integer, Map<String, List<String>>>();
+                        records.put(file.getKey(), positions);
+                    }
+
+                    BitSet bits = file.getValue();
+
+                    for (int i = bits.nextSetBit(0);
+                            i >= 0;
+                            i = bits.nextSetBit(i + 1))
+                    {
+                        Map<String, List<String>> fields = positions.get(i);
+
+                        if (fields == null)
+                        {
+                            fields = new HashMap<String, List<String>>();
+                            positions.put(i, fields);
+                        }
+
+                        List<String> words = fields.get(field.getKey());
+
+                        if (words == null)
+                        {
+                            words = new ArrayList<String>();
+                            fields.put(field.getKey(), words);
+                        }
+                        words.add(term.getKey());
+                    }
+                }
+            }
+        }
+
+        File tmpFile
+            = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+
+                for (Map.Entry<String, long[]> file : fingerprints.entrySet())
+                {
+                    SortedMap<Integer, Map<String, List<String>>> positions
+                        = records.get(file.getKey());
+
+                    if (positions != null)
+                    {
+                        for (Map.Entry<Integer, Map<String, List<String>>> record
+                                : positions.entrySet())
+                        {
+                            List<String> names = new ArrayList<String>();
+                            List<String> values = new ArrayList<String>();
+
+                            for (Map.Entry<String, List<String>> field
+                                    : record.getValue().entrySet())
+                            {
+                                StringBuilder value = new StringBuilder();
+
+                                for (String word : field.getValue())
+                                    value.append(word).append(' ');
+
+                                names.add(field.getKey());
+                                values.add(value.toString());
+                            }
+
+                            writeAdd(out, file.getKey(), record.getKey(),
+                                names, values);
+                        }
+                    }
+
+                    writeFile(out, file.getKey(), file.getValue(), null);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            Files.move(tmpFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+
+            // the index now only holds the words of the indexed files
+            loaded = false;
+            postings.clear();
+            fingerprints.clear();
+            liveOps = 0;
+            deadOps = 0;
+            load();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot compact history index " + indexFile, e);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Adds the positions of <tt>files</tt> to <tt>result</tt>.
+     */
+    private static void or(Map<String, BitSet> result, Map<String, BitSet> files)
+    {
+        for (Map.Entry<String, BitSet> file : files.entrySet())
+        {
+            BitSet positions = result.get(file.getKey());
+
+            if (positions == null)
+                result.put(file.getKey(), (BitSet) file.getValue().clone());
+            else
+                positions.or(file.getValue());
+        }
+    }
+
+    /**
+     * Returns the positions which are both in <tt>a</tt> and <tt>b</tt>.
+     */
+    private static Map<String, BitSet> and(Map<String, BitSet> a,
+                                           Map<String, BitSet> b)
+    {
+        Map<String, BitSet> result = new HashMap<String, BitSet>();
+
+        for (Map.Entry<String, BitSet> file : a.entrySet())
+        {
+            BitSet other = b.get(file.getKey());
+
+            if (other == null)
+                continue;
+
+            BitSet positions = (BitSet) file.getValue().clone();
+
+            positions.and(other);
+            if (!positions.isEmpty())
+                result.put(file.getKey(), positions);
+        }
+
+        return result;
+    }
+}
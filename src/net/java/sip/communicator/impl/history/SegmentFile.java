@@ -0,0 +1,540 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * A single file of the append-only binary history storage. A segment starts
+ * with a header (magic number and format version) which is followed by
+ * length-prefixed record frames. Every frame holds the record timestamp and
+ * its property names and values. When a segment is full it is sealed with a
+ * footer holding the number of records in the segment together with their
+ * minimum and maximum timestamps, so that sealed segments can be summarized
+ * without being read.
+ * <p>
+ * A frame which was not completely written (for example because the
+ * application was killed while appending) is ignored when reading and is
+ * truncated when the segment is opened for appending.
+ */
+public class SegmentFile
+{
+    /**
+     * The extension of the segment files.
+     */
+    public static final String SUPPORTED_FILETYPE = "seg";
+
+    /**
+     * The magic number starting every segment and ending its footer.
+     */
+    private static final int MAGIC = 0x4A485347;
+
+    /**
+     * The version of the segment format.
+     */
+    private static final short VERSION = 1;
+
+    /**
+     * The length of the segment header.
+     */
+    private static final int HEADER_LENGTH = 6;
+
+    /**
+     * The value written in place of a frame length to mark the footer.
+     */
+    private static final int FOOTER_MARK = -1;
+
+    /**
+     * The length of the footer, including the footer mark.
+     */
+    private static final int FOOTER_LENGTH = 28;
+
+    /**
+     * The file of this segment.
+     */
+    private final File file;
+
+    /**
+     * The summary of the records currently in the file.
+     */
+    private Summary summary;
+
+    /**
+     * Opens the segment stored in <tt>file</tt> for appending, creating it if
+     * it does not exist yet. Incomplete trailing frames are truncated.
+     *
+     * @param file the file of the segment
+     * @throws IOException if the segment cannot be read or created
+     */
+    public SegmentFile(File file)
+        throws IOException
+    {
+        this.file = file;
+
+        if (!file.exists() || file.length() < HEADER_LENGTH)
+        {
+            write(file, Collections.<HistoryRecord>emptyList(), false);
+        }
+
+        this.summary = scan(file, null);
+
+        if (file.length() > summary.validLength)
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.setLength(summary.validLength);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the file of this segment.
+     * @return the file of this segment
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns the number of records in this segment.
+     * @return the number of records in this segment
+     */
+    public synchronized int getRecordCount()
+    {
+        return summary.recordCount;
+    }
+
+    /**
+     * Indicates whether this segment is sealed and no longer accepts records.
+     * @return <tt>true</tt> if this segment is sealed
+     */
+    public synchronized boolean isSealed()
+    {
+        return summary.sealed;
+    }
+
+    /**
+     * Appends <tt>record</tt> at the end of this segment.
+     *
+     * @param record the record to append
+     * @throws IOException if writing fails
+     */
+    public synchronized void append(HistoryRecord record)
+        throws IOException
+    {
+        if (summary.sealed)
+            throw new IOException("Segment " + file + " is sealed.");
+
+        byte[] frame = encodeFrame(record);
+
+        FileOutputStream out = new FileOutputStream(file, true);
+        try
+        {
+            out.write(frame);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        summary.add(record.getTimestamp().getTime(), frame.length);
+    }
+
+    /**
+     * Writes the footer of this segment. No more records can be appended once
+     * the segment is sealed.
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void seal()
+        throws IOException
+    {
+        if (summary.sealed)
+            return;
+
+        DataOutputStream out
+            = new DataOutputStream(new FileOutputStream(file, true));
+        try
+        {
+            writeFooter(out, summary);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        summary.sealed = true;
+        summary.validLength += FOOTER_LENGTH;
+    }
+
+    /**
+     * Reads all complete records stored in the segment <tt>file</tt>.
+     *
+     * @param file the segment file
+     * @return the records in the order they were written
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    public static List<HistoryRecord> read(File file)
+        throws IOException
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+        scan(file, records);
+
+        return records;
+    }
+
+    /**
+     * Returns the summary of the segment <tt>file</tt>. For sealed segments
+     * only the footer is read.
+     *
+     * @param file the segment file
+     * @return the summary of the segment
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    public static Summary readSummary(File file)
+        throws IOException
+    {
+        long length = file.length();
+
+        if (length >= HEADER_LENGTH + FOOTER_LENGTH)
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                raf.seek(length - FOOTER_LENGTH);
+                if (raf.readInt() == FOOTER_MARK)
+                {
+                    Summary summary = new Summary();
+
+                    summary.recordCount = raf.readInt();
+                    summary.minTimestamp = raf.readLong();
+                    summary.maxTimestamp = raf.readLong();
+                    if (raf.readInt() == MAGIC)
+                    {
+                        summary.sealed = true;
+                        summary.validLength = length;
+                        return summary;
+                    }
+                }
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        return scan(file, null);
+    }
+
+    /**
+     * Replaces the content of the segment <tt>file</tt> with
+     * <tt>records</tt>. The records are first written in a temporary file
+     * which then replaces <tt>file</tt>, so that the segment is never left
+     * half written.
+     *
+     * @param file the segment file
+     * @param records the records to write
+     * @param seal whether to seal the written segment
+     * @throws IOException if writing fails
+     */
+    public static void write(File file, List<HistoryRecord> records,
+                             boolean seal)
+        throws IOException
+    {
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        Summary summary = new Summary();
+
+        DataOutputStream out
+            = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+
+            for (HistoryRecord record : records)
+            {
+                byte[] frame = encodeFrame(record);
+
+                out.write(frame);
+                summary.add(record.getTimestamp().getTime(), frame.length);
+            }
+
+            if (seal)
+                writeFooter(out, summary);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        Files.move(tmpFile.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the segment <tt>file</tt> frame by frame, stopping at the footer
+     * or at the first incomplete frame.
+     *
+     * @param file the segment file
+     * @param records the list to add the decoded records to or <tt>null</tt>
+     * if only the summary of the segment is needed
+     * @return the summary of the segment
+     * @throws IOException if the file cannot be read or is not a segment
+     */
+    private static Summary scan(File file, List<HistoryRecord> records)
+        throws IOException
+    {
+        long length = file.length();
+        Summary summary = new Summary();
+
+        DataInputStream in
+            = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            if (length < HEADER_LENGTH
+                || in.readInt() != MAGIC
+                || in.readShort() != VERSION)
+            {
+                throw new IOException("Not a history segment: " + file);
+            }
+
+            summary.validLength = HEADER_LENGTH;
+
+            while (summary.validLength + 4 <= length)
+            {
+                int frameLength = in.readInt();
+
+                if (frameLength == FOOTER_MARK)
+                {
+                    if (summary.validLength + FOOTER_LENGTH <= length)
+                    {
+                        summary.sealed = true;
+                        summary.validLength += FOOTER_LENGTH;
+                    }
+                    break;
+                }
+
+                if (frameLength <= 8
+                    || summary.validLength + 4 + frameLength > length)
+                {
+                    // incomplete frame, the rest of the file is ignored
+                    break;
+                }
+
+                byte[] payload = new byte[frameLength];
+
+                in.readFully(payload);
+
+                HistoryRecord record = decode(payload);
+
+                if (records != null)
+                    records.add(record);
+                summary.add(record.getTimestamp().getTime(), 4 + frameLength);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return summary;
+    }
+
+    /**
+     * Encodes <tt>record</tt> as a length-prefixed frame.
+     *
+     * @param record the record to encode
+     * @return the frame bytes
+     * @throws IOException if encoding fails
+     */
+    private static byte[] encodeFrame(HistoryRecord record)
+        throws IOException
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        // placeholder for the frame length
+        out.writeInt(0);
+        out.writeLong(record.getTimestamp().getTime());
+        out.writeShort(names.length);
+        for (int i = 0; i < names.length; i++)
+        {
+            byte[] value = values[i].getBytes("UTF-8");
+
+            out.writeUTF(names[i]);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.flush();
+
+        byte[] frame = bytes.toByteArray();
+        int payloadLength = frame.length - 4;
+
+        frame[0] = (byte) (payloadLength >>> 24);
+        frame[1] = (byte) (payloadLength >>> 16);
+        frame[2] = (byte) (payloadLength >>> 8);
+        frame[3] = (byte) payloadLength;
+
+        return frame;
+    }
+
+    /**
+     * Decodes the payload of a frame.
+     *
+     * @param payload the frame payload without its length prefix
+     * @return the decoded record
+     * @throws IOException if the payload is malformed
+     */
+    private static HistoryRecord decode(byte[] payload)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(payload));
+        long timestamp = in.readLong();
+        int count = in.readUnsignedShort();
+        String[] names = new String[count];
+        String[] values = new String[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = in.readUTF();
+
+            byte[] value = new byte[in.readInt()];
+
+            in.readFully(value);
+            values[i] = new String(value, "UTF-8");
+        }
+
+        return new HistoryRecord(names, values, new Date(timestamp));
+    }
+
+    /**
+     * Writes the footer described by <tt>summary</tt>.
+     *
+     * @param out the stream to write to
+     * @param summary the summary of the sealed segment
+     * @throws IOException if writing fails
+     */
+    private static void writeFooter(DataOutputStream out, Summary summary)
+        throws IOException
+    {
+        out.writeInt(FOOTER_MARK);
+        out.writeInt(summary.recordCount);
+        out.writeLong(summary.minTimestamp);
+        out.writeLong(summary.maxTimestamp);
+        out.writeInt(MAGIC);
+    }
+
+    /**
+     * The number of records and the timestamp range of a segment.
+     */
+    public static class Summary
+    {
+        /**
+         * The number of records in the segment.
+         */
+        private int recordCount = 0;
+
+        /**
+         * The smallest record timestamp in the segment.
+         */
+        private long minTimestamp = Long.MAX_VALUE;
+
+        /**
+         * The biggest record timestamp in the segment.
+         */
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        /**
+         * Whether the segment is sealed.
+         */
+        private boolean sealed = false;
+
+        /**
+         * The length of the readable part of the segment.
+         */
+        private long validLength = 0;
+
+        /**
+         * Accounts for a record with the given timestamp.
+         *
+         * @param timestamp the timestamp of the record
+         * @param frameLength the length of the record frame
+         */
+        private void add(long timestamp, int frameLength)
+        {
+            recordCount++;
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            validLength += frameLength;
+        }
+
+        /**
+         * Returns the number of records in the segment.
+         * @return the number of records in the segment
+         */
+        public int getRecordCount()
+        {
+            return recordCount;
+        }
+
+        /**
+         * Returns the smallest record timestamp in the segment or
+         * <tt>Long.MAX_VALUE</tt> if the segment is empty.
+         * @return the smallest record timestamp in the segment
+         */
+        public long getMinTimestamp()
+        {
+            return minTimestamp;
+        }
+
+        /**
+         * Returns the biggest record timestamp in the segment or
+         * <tt>Long.MIN_VALUE</tt> if the segment is empty.
+         * @return the biggest record timestamp in the segment
+         */
+        public long getMaxTimestamp()
+        {
+            return maxTimestamp;
+        }
+
+        /**
+         * Indicates whether the segment is sealed.
+         * @return <tt>true</tt> if the segment is sealed
+         */
+        public boolean isSealed()
+        {
+            return sealed;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A <tt>History</tt> stored in append-only binary segments (see
+ * <tt>SegmentFile</tt>) instead of XML documents. Appending a record to such a
+ * history writes only the new record, while the XML storage re-serializes the
+ * whole current document on every write.
+ * <p>
+ * When created over a directory which still contains XML history files, the
+ * records of every XML file are copied to a segment with the same name and
+ * the XML file is renamed with the <tt>MIGRATED_SUFFIX</tt>, so that it is no
+ * longer loaded.
+ */
+public class SegmentHistoryImpl
+    implements History
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryImpl.class);
+
+    /**
+     * The suffix appended to the names of the XML files which were migrated
+     * to segments.
+     */
+    public static final String MIGRATED_SUFFIX = ".migrated";
+
+    private final HistoryID id;
+
+    private HistoryRecordStructure historyRecordStructure;
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    private final File directory;
+
+    private HistoryReader reader;
+
+    private InteractiveHistoryReader interactiveReader;
+
+    private HistoryWriter writer;
+
+    /**
+     * The names of the segment files of this history.
+     */
+    private final SortedSet<String> segments = new TreeSet<String>();
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryImpl</tt> by specifying the
+     * history identifier, the directory, the <tt>HistoryRecordStructure</tt>
+     * to use and the parent <tt>HistoryServiceImpl</tt>. XML history files
+     * found in <tt>directory</tt> are migrated to segments.
+     *
+     * @param id the identifier
+     * @param directory the directory
+     * @param historyRecordStructure the structure
+     * @param historyServiceImpl the parent history service
+     */
+    protected SegmentHistoryImpl(HistoryID id, File directory,
+            HistoryRecordStructure historyRecordStructure,
+            HistoryServiceImpl historyServiceImpl)
+    {
+        this.id = id;
+        this.directory = directory;
+        this.historyServiceImpl = historyServiceImpl;
+        this.historyRecordStructure = historyRecordStructure;
+
+        migrateXmlFiles();
+        reloadSegmentList();
+    }
+
+    /**
+     * Indicates whether <tt>directory</tt> contains history segments.
+     *
+     * @param directory the history directory to check
+     * @return <tt>true</tt> if <tt>directory</tt> contains segment files
+     */
+    static boolean containsSegments(File directory)
+    {
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return false;
+
+        for (File file : files)
+        {
+            if (file.isFile()
+                && file.getName().endsWith("." + SegmentFile.SUPPORTED_FILETYPE))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the identifier of this history.
+     * @return the identifier of this history
+     */
+    public HistoryID getID()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the current <tt>HistoryRecordStructure</tt>.
+     * @return the current <tt>HistoryRecordStructure</tt>
+     */
+    public HistoryRecordStructure getHistoryRecordsStructure()
+    {
+        return historyRecordStructure;
+    }
+
+    /**
+     * Sets the given <tt>structure</tt> to be the new history records
+     * structure used in this history implementation.
+     * @param structure the new <tt>HistoryRecordStructure</tt> to use
+     */
+    public void setHistoryRecordsStructure(HistoryRecordStructure structure)
+    {
+        this.historyRecordStructure = structure;
+
+        try
+        {
+            File dbDatFile = new File(directory, HistoryServiceImpl.DATA_FILE);
+            DBStructSerializer dbss = new DBStructSerializer(historyServiceImpl);
+            dbss.writeHistory(dbDatFile, this);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not create new history structure");
+        }
+    }
+
+    /**
+     * Returns an object which can be used to read and query this history.
+     * @return an object which can be used to read and query this history
+     */
+    public synchronized HistoryReader getReader()
+    {
+        if (reader == null)
+            reader = new SegmentHistoryReaderImpl(this);
+        return reader;
+    }
+
+    /**
+     * Returns an object that can be used to read and query this history
+     * interactively.
+     * @return an object that can be used to read and query this history
+     */
+    public synchronized InteractiveHistoryReader getInteractiveReader()
+    {
+        if (interactiveReader == null)
+        {
+            interactiveReader
+                = new SegmentInteractiveHistoryReaderImpl(this);
+        }
+        return interactiveReader;
+    }
+
+    /**
+     * Returns an object which can be used to append records to this history.
+     * @return an object which can be used to append records to this history
+     */
+    public synchronized HistoryWriter getWriter()
+    {
+        if (writer == null)
+            writer = new SegmentHistoryWriterImpl(this);
+        return writer;
+    }
+
+    /**
+     * Returns the parent history service.
+     * @return the parent history service
+     */
+    protected HistoryServiceImpl getHistoryServiceImpl()
+    {
+        return historyServiceImpl;
+    }
+
+    /**
+     * Reloads the names of the segments of this history from the file system.
+     */
+    void reloadSegmentList()
+    {
+        synchronized (segments)
+        {
+            segments.clear();
+
+            File[] files = directory.listFiles();
+
+            if (files == null)
+                return;
+
+            for (File file : files)
+            {
+                String filename = file.getName();
+
+                if (file.isFile()
+                    && filename.endsWith("." + SegmentFile.SUPPORTED_FILETYPE))
+                {
+                    segments.add(filename);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the names of the segments of this history ordered from the
+     * oldest to the newest.
+     * @return the names of the segments of this history
+     */
+    protected Iterator<String> getFileList()
+    {
+        synchronized (segments)
+        {
+            return new ArrayList<String>(segments).iterator();
+        }
+    }
+
+    /**
+     * Returns the name of the newest segment of this history.
+     * @return the name of the newest segment or <tt>null</tt> if this history
+     * has no segments yet
+     */
+    String getLastSegment()
+    {
+        synchronized (segments)
+        {
+            return segments.isEmpty() ? null : segments.last();
+        }
+    }
+
+    /**
+     * Returns the file of the segment with the given name.
+     *
+     * @param filename the name of the segment
+     * @return the file of the segment
+     */
+    File getSegmentFile(String filename)
+    {
+        return new File(directory, filename);
+    }
+
+    /**
+     * Registers a new segment of this history. Makes sure no other segment
+     * has the same name.
+     *
+     * @param timestamp the timestamp of the first record of the segment
+     * @return the name of the new segment
+     */
+    String addSegment(long timestamp)
+    {
+        synchronized (segments)
+        {
+            String filename;
+
+            do
+            {
+                filename
+                    = Long.toString(timestamp++) + "."
+                        + SegmentFile.SUPPORTED_FILETYPE;
+            }
+            while (segments.contains(filename)
+                    || getSegmentFile(filename).exists());
+
+            segments.add(filename);
+            return filename;
+        }
+    }
+
+    /**
+     * Reads all records of the segment with the given name. Errors are logged
+     * and result in an empty list, as done for unreadable XML documents.
+     *
+     * @param filename the name of the segment
+     * @return the records of the segment ordered as they were written
+     */
+    List<HistoryRecord> readSegment(String filename)
+    {
+        try
+        {
+            return SegmentFile.read(getSegmentFile(filename));
+        }
+        catch (IOException e)
+        {
+            logger.error("Error occured while reading segment " + filename, e);
+            return new ArrayList<HistoryRecord>();
+        }
+    }
+
+    /**
+     * Returns the summary of the segment with the given name.
+     *
+     * @param filename the name of the segment
+     * @return the summary of the segment or <tt>null</tt> if the segment
+     * cannot be read
+     */
+    SegmentFile.Summary readSegmentSummary(String filename)
+    {
+        try
+        {
+            return SegmentFile.readSummary(getSegmentFile(filename));
+        }
+        catch (IOException e)
+        {
+            logger.error("Error occured while reading segment " + filename, e);
+            return null;
+        }
+    }
+
+    /**
+     * Copies the records of the XML files in the directory of this history to
+     * segments. Every XML file is migrated to a sealed segment with the same
+     * base name and is then renamed, so an interrupted migration is simply
+     * resumed the next time the history is loaded.
+     */
+    private void migrateXmlFiles()
+    {
+        File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        List<String> xmlFiles = new ArrayList<String>();
+
+        for (File file : files)
+        {
+            if (file.isFile()
+                && file.getName().endsWith("." + HistoryImpl.SUPPORTED_FILETYPE))
+            {
+                xmlFiles.add(file.getName());
+            }
+        }
+
+        if (xmlFiles.isEmpty())
+            return;
+
+        if (logger.isInfoEnabled())
+        {
+            logger.info("Migrating " + xmlFiles.size()
+                + " XML history files of " + id + " to segments");
+        }
+
+        HistoryImpl xmlHistory
+            = new HistoryImpl(id, directory, historyRecordStructure,
+                    historyServiceImpl);
+
+        for (String xmlFile : xmlFiles)
+        {
+            HistoryFileSnapshot snapshot = xmlHistory.getSnapshot(xmlFile);
+
+            if (snapshot == null)
+            {
+                logger.error("Cannot migrate unreadable history file "
+                    + xmlFile);
+                continue;
+            }
+
+            List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+            for (int i = 0; i < snapshot.getRecordCount(); i++)
+            {
+                // keep the values escaped, as the segment writer stores them
+                records.add(
+                    new HistoryRecord(
+                        snapshot.getPropertyNames(i),
+                        snapshot.getStoredValues(i),
+                        new Date(snapshot.getTimestamp(i))));
+            }
+
+            String baseName
+                = xmlFile.substring(
+                    0,
+                    xmlFile.length() - HistoryImpl.SUPPORTED_FILETYPE.length());
+            File segmentFile
+                = getSegmentFile(baseName + SegmentFile.SUPPORTED_FILETYPE);
+
+            try
+            {
+                SegmentFile.write(segmentFile, records, true);
+            }
+            catch (IOException e)
+            {
+                logger.error("Cannot migrate history file " + xmlFile, e);
+                segmentFile.delete();
+                continue;
+            }
+
+            File file = new File(directory, xmlFile);
+
+            if (!file.renameTo(new File(directory, xmlFile + MIGRATED_SUFFIX)))
+            {
+                logger.error("Cannot rename migrated history file " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.apache.commons.lang3.*;
+
+/**
+ * The <tt>HistoryReader</tt> of histories stored in binary segments. Sealed
+ * segments whose timestamp range is out of the searched period are skipped
+ * using their footers, without reading their records.
+ */
+public class SegmentHistoryReaderImpl
+    implements HistoryReader
+{
+    private final SegmentHistoryImpl historyImpl;
+
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryReaderImpl</tt>.
+     * @param historyImpl the parent History implementation
+     */
+    protected SegmentHistoryReaderImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+    }
+
+    public QueryResultSet<HistoryRecord> findByStartDate(Date startDate)
+        throws RuntimeException
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+        throws RuntimeException
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate)
+        throws RuntimeException
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field,
+                                                       boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field,
+                                                      boolean caseSensitive)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findLast(int count)
+        throws RuntimeException
+    {
+        return findLast(count, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findLast(int count,
+                                                  String[] keywords,
+                                                  String field,
+                                                  boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findBackwards(
+            null, count, keywords, field, caseSensitive, true);
+    }
+
+    public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+        Vector<String> filelist
+            = HistoryReaderImpl.filterFilesByDate(
+                    historyImpl.getFileList(), date, null);
+        int leftCount = count;
+
+        for (int i = 0; i < filelist.size() && leftCount > 0; i++)
+        {
+            String filename = filelist.get(i);
+
+            if (!isInRange(filename, date, null))
+                continue;
+
+            for (HistoryRecord record : historyImpl.readSegment(filename))
+            {
+                if (leftCount <= 0)
+                    break;
+
+                if (HistoryReaderImpl.isInPeriod(
+                        record.getTimestamp(), date, null))
+                {
+                    result.add(record);
+                    leftCount--;
+                }
+            }
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        return findBackwards(date, count, null, null, false, false);
+    }
+
+    /**
+     * Returns the last <tt>count</tt> records before <tt>endDate</tt> which
+     * match the given keywords. Segments are read from the newest to the
+     * oldest until enough records are found. Keywords are matched against the
+     * unescaped values.
+     *
+     * @param endDate the date before which records are searched or
+     * <tt>null</tt>
+     * @param count the maximum number of records to return
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @param unescape whether to return the records with unescaped values,
+     * like the XML storage does for <tt>findLast</tt>, or with the values as
+     * they are stored, like it does for <tt>findLastRecordsBefore</tt>
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> findBackwards(Date endDate,
+                                                        int count,
+                                                        String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive,
+                                                        boolean unescape)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+        Vector<String> filelist
+            = HistoryReaderImpl.filterFilesByDate(
+                    historyImpl.getFileList(), null, endDate);
+        int leftCount = count;
+
+        for (int i = filelist.size() - 1; i >= 0 && leftCount > 0; i--)
+        {
+            String filename = filelist.get(i);
+
+            if (!isInRange(filename, null, endDate))
+                continue;
+
+            List<HistoryRecord> records = historyImpl.readSegment(filename);
+
+            for (int j = records.size() - 1; j >= 0 && leftCount > 0; j--)
+            {
+                HistoryRecord record = records.get(j);
+
+                if (!HistoryReaderImpl.isInPeriod(
+                        record.getTimestamp(), null, endDate))
+                {
+                    continue;
+                }
+
+                HistoryRecord unescaped = unescape(record);
+
+                if (matches(unescaped, keywords, field, caseSensitive))
+                {
+                    result.add(unescape ? unescaped : record);
+                    leftCount--;
+                }
+            }
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Returns all records in the given period matching the given keywords,
+     * with unescaped values.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> find(Date startDate,
+                                               Date endDate,
+                                               String[] keywords,
+                                               String field,
+                                               boolean caseSensitive)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+        Vector<String> filelist
+            = HistoryReaderImpl.filterFilesByDate(
+                    historyImpl.getFileList(), startDate, endDate);
+
+        double currentProgress
+            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+        double fileProgressStep
+            = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
+
+        if (filelist.size() != 0)
+        {
+            fileProgressStep
+                = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    / filelist.size();
+        }
+
+        fireProgressStateChanged(startDate, endDate, keywords,
+            HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        for (String filename : filelist)
+        {
+            if (isInRange(filename, startDate, endDate))
+            {
+                for (HistoryRecord stored : historyImpl.readSegment(filename))
+                {
+                    HistoryRecord record = unescape(stored);
+
+                    if (HistoryReaderImpl.isInPeriod(
+                            record.getTimestamp(), startDate, endDate)
+                        && matches(record, keywords, field, caseSensitive))
+                    {
+                        result.add(record);
+                    }
+                }
+            }
+
+            currentProgress += fileProgressStep;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int) currentProgress);
+        }
+
+        if ((int) currentProgress
+                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Checks whether the segment with the given name may contain records in
+     * the given period. Only the footer of sealed segments is read, other
+     * segments are always considered in range.
+     *
+     * @param filename the name of the segment
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return <tt>false</tt> if the segment has no records in the period
+     */
+    private boolean isInRange(String filename, Date startDate, Date endDate)
+    {
+        if (startDate == null && endDate == null)
+            return true;
+
+        SegmentFile.Summary summary
+            = historyImpl.readSegmentSummary(filename);
+
+        if (summary == null)
+            return false;
+        if (!summary.isSealed())
+            return true;
+
+        return summary.getRecordCount() > 0
+            && (startDate == null
+                || summary.getMaxTimestamp() >= startDate.getTime())
+            && (endDate == null
+                || summary.getMinTimestamp() < endDate.getTime());
+    }
+
+    /**
+     * Returns a copy of <tt>record</tt> with the xml characters, which are
+     * escaped when writing values, unescaped.
+     *
+     * @param record the stored record
+     * @return the record with unescaped values
+     */
+    static HistoryRecord unescape(HistoryRecord record)
+    {
+        String[] values = record.getPropertyValues();
+        String[] result = new String[values.length];
+
+        for (int i = 0; i < values.length; i++)
+            result[i] = StringEscapeUtils.unescapeXml(values[i]);
+
+        return new HistoryRecord(
+            record.getPropertyNames(), result, record.getTimestamp());
+    }
+
+    /**
+     * Checks whether the value of <tt>field</tt> in <tt>record</tt> contains
+     * all <tt>keywords</tt>. Records are matching when no keywords are given.
+     *
+     * @param record the record to check
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return <tt>true</tt> if the record is matching
+     */
+    static boolean matches(HistoryRecord record,
+                           String[] keywords,
+                           String field,
+                           boolean caseSensitive)
+    {
+        if (keywords == null || keywords.length == 0)
+            return true;
+
+        String[] names = record.getPropertyNames();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(field))
+            {
+                return HistoryReaderImpl.matchKeyword(
+                    record.getPropertyValues()[i], keywords, caseSensitive);
+            }
+        }
+
+        return false;
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                                          String[] keywords, int progress)
+    {
+        ProgressEvent event
+            = new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized (progressListeners)
+        {
+            for (HistorySearchProgressListener listener : progressListeners)
+                listener.progressChanged(event);
+        }
+    }
+
+    public void addSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized (progressListeners)
+        {
+            progressListeners.add(listener);
+        }
+    }
+
+    public void removeSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        synchronized (progressListeners)
+        {
+            progressListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Counts the records of this history. Only the footers of the sealed
+     * segments are read.
+     *
+     * @return the number of records in this history
+     */
+    public int countRecords()
+        throws UnsupportedOperationException
+    {
+        int result = 0;
+        Iterator<String> filelist = historyImpl.getFileList();
+
+        while (filelist.hasNext())
+        {
+            SegmentFile.Summary summary
+                = historyImpl.readSegmentSummary(filelist.next());
+
+            if (summary != null)
+                result += summary.getRecordCount();
+        }
+
+        return result;
+    }
+}
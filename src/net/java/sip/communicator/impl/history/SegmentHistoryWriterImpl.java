@@ -0,0 +1,498 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of histories stored in binary segments. New
+ * records are appended to the current segment, which is sealed and replaced
+ * by a new one once it holds <tt>MAX_RECORDS_PER_SEGMENT</tt> records.
+ * Updates and inserts, which are rare, rewrite the segment they change.
+ */
+public class SegmentHistoryWriterImpl
+    implements HistoryWriter
+{
+    /**
+     * Maximum records per segment.
+     */
+    public static final int MAX_RECORDS_PER_SEGMENT = 1000;
+
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * Synchronizes appends with the rewrites of segments.
+     */
+    private final Object writeLock = new Object();
+
+    private final SegmentHistoryImpl historyImpl;
+
+    private final String[] structPropertyNames;
+
+    /**
+     * The segment new records are appended to.
+     */
+    private SegmentFile currentSegment = null;
+
+    /**
+     * The name of <tt>currentSegment</tt>.
+     */
+    private String currentFile = null;
+
+    protected SegmentHistoryWriterImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+        this.structPropertyNames
+            = historyImpl.getHistoryRecordsStructure().getPropertyNames();
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        addRecord(
+            record.getPropertyNames(),
+            record.getPropertyValues(),
+            record.getTimestamp(),
+            -1);
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(structPropertyNames, propertyValues, new Date(), -1);
+    }
+
+    public void addRecord(String[] propertyValues, int maxNumberOfRecords)
+        throws IOException
+    {
+        addRecord(
+            structPropertyNames, propertyValues, new Date(), maxNumberOfRecords);
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        addRecord(structPropertyNames, propertyValues, timestamp, -1);
+    }
+
+    /**
+     * Appends a new record to the current segment.
+     *
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param date the timestamp of the record
+     * @param maxNumberOfRecords the maximum number of records to keep in the
+     * current segment or value of -1 to ignore this param.
+     * @throws IOException if writing fails
+     */
+    private void addRecord(String[] propertyNames,
+                           String[] propertyValues,
+                           Date date,
+                           int maxNumberOfRecords)
+        throws IOException
+    {
+        HistoryRecord record
+            = createRecord(propertyNames, propertyValues, date);
+
+        synchronized (writeLock)
+        {
+            if (currentSegment == null
+                || currentSegment.isSealed()
+                || currentSegment.getRecordCount() >= MAX_RECORDS_PER_SEGMENT)
+            {
+                openSegment(date, currentSegment == null);
+            }
+
+            // if we have setting for max number of records,
+            // check the number and when exceed them, remove the first one
+            if (maxNumberOfRecords > -1
+                && currentSegment.getRecordCount() >= maxNumberOfRecords)
+            {
+                List<HistoryRecord> records
+                    = SegmentFile.read(currentSegment.getFile());
+
+                removeFirstRecord(records);
+                rewriteSegment(currentFile, records, false);
+            }
+
+            currentSegment.append(record);
+
+            if (currentSegment.getRecordCount() >= MAX_RECORDS_PER_SEGMENT)
+                currentSegment.seal();
+        }
+
+        historyImpl.getHistoryServiceImpl().recordAdded(
+            historyImpl.getID(), date.getTime());
+    }
+
+    /**
+     * Opens the segment new records are appended to. When no segment was
+     * opened yet, the newest segment of the history is reused unless it is
+     * sealed.
+     *
+     * @param date the timestamp of the first record of a new segment
+     * @param loadLastFile whether to reuse the newest segment
+     * @throws IOException if the segment cannot be opened
+     */
+    private void openSegment(Date date, boolean loadLastFile)
+        throws IOException
+    {
+        if (loadLastFile)
+        {
+            String lastFile = historyImpl.getLastSegment();
+
+            if (lastFile != null)
+            {
+                SegmentFile segment
+                    = new SegmentFile(historyImpl.getSegmentFile(lastFile));
+
+                if (!segment.isSealed()
+                    && segment.getRecordCount() < MAX_RECORDS_PER_SEGMENT)
+                {
+                    currentSegment = segment;
+                    currentFile = lastFile;
+                    return;
+                }
+            }
+        }
+
+        currentFile = historyImpl.addSegment(date.getTime());
+        currentSegment
+            = new SegmentFile(historyImpl.getSegmentFile(currentFile));
+    }
+
+    /**
+     * Creates the record which is stored for the given property values. As in
+     * the XML storage, the <tt>_CDATA</tt> suffix is removed from the property
+     * names, <tt>null</tt> values are not stored and the xml characters of the
+     * values are escaped, so that readers return the same values for both
+     * storages.
+     *
+     * @param propertyNames the names of the record properties
+     * @param propertyValues the values of the record properties
+     * @param date the timestamp of the record
+     * @return the record to store
+     */
+    private HistoryRecord createRecord(String[] propertyNames,
+                                       String[] propertyValues,
+                                       Date date)
+    {
+        List<String> names = new ArrayList<String>(propertyNames.length);
+        List<String> values = new ArrayList<String>(propertyNames.length);
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String propertyName = propertyNames[i];
+
+            if (propertyName.endsWith(CDATA_SUFFIX))
+                propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
+
+            names.add(propertyName);
+            values.add(HistoryWriterImpl.escapeValue(propertyValues[i]));
+        }
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            date);
+    }
+
+    /**
+     * Removes the oldest record by timestamp from <tt>records</tt>.
+     * @param records the records to remove from
+     */
+    private void removeFirstRecord(List<HistoryRecord> records)
+    {
+        HistoryRecord oldest = null;
+
+        for (HistoryRecord record : records)
+        {
+            if (oldest == null
+                || oldest.getTimestamp().after(record.getTimestamp()))
+            {
+                oldest = record;
+            }
+        }
+
+        if (oldest != null)
+            records.remove(oldest);
+    }
+
+    /**
+     * Inserts a record from the passed <tt>propertyValues</tt> before the
+     * first record whose <tt>timestampProperty</tt> is not before
+     * <tt>timestamp</tt>, so that segments keep holding records with
+     * consecutive times.
+     *
+     * @param propertyValues The values of the record.
+     * @param timestamp The timestamp of the record.
+     * @param timestampProperty the property name for the timestamp of the
+     * record
+     * @throws IOException if writing fails
+     */
+    public void insertRecord(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        HistoryRecord newRecord
+            = createRecord(structPropertyNames, propertyValues, timestamp);
+
+        synchronized (writeLock)
+        {
+            Iterator<String> fileIterator
+                = HistoryReaderImpl.filterFilesByDate(
+                        historyImpl.getFileList(), timestamp, null)
+                    .iterator();
+
+            while (fileIterator.hasNext())
+            {
+                String filename = fileIterator.next();
+                List<HistoryRecord> records = historyImpl.readSegment(filename);
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    String value
+                        = getValue(records.get(i), timestampProperty);
+
+                    if (value == null)
+                        continue;
+
+                    Date recordTimestamp;
+                    try
+                    {
+                        recordTimestamp = sdf.parse(value);
+                    }
+                    catch (ParseException e)
+                    {
+                        recordTimestamp = new Date(Long.parseLong(value));
+                    }
+
+                    if (recordTimestamp.before(timestamp))
+                        continue;
+
+                    records.add(i, newRecord);
+                    rewriteSegment(filename, records, null);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates a record by searching for record with idProperty which have
+     * idValue and updating/creating the property with newValue.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     */
+    public void updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        synchronized (writeLock)
+        {
+            Iterator<String> fileIterator = historyImpl.getFileList();
+
+            while (fileIterator.hasNext())
+            {
+                String filename = fileIterator.next();
+                List<HistoryRecord> records = historyImpl.readSegment(filename);
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord record = records.get(i);
+
+                    if (!idValue.equals(getValue(record, idProperty)))
+                        continue;
+
+                    Map<String, String> changes
+                        = Collections.singletonMap(
+                            property, newValue.replaceAll("\0", " "));
+
+                    records.set(i, updateRecord(record, changes, true));
+                    rewriteSegment(filename, records, null);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates history record using given <tt>HistoryRecordUpdater</tt> instance
+     * to find which is the record to be updated and to get the new values for
+     * the fields
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     */
+    public void updateRecord(HistoryRecordUpdater updater)
+        throws IOException
+    {
+        synchronized (writeLock)
+        {
+            Iterator<String> fileIterator = historyImpl.getFileList();
+
+            while (fileIterator.hasNext())
+            {
+                String filename = fileIterator.next();
+                List<HistoryRecord> records = historyImpl.readSegment(filename);
+                boolean changed = false;
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord record = records.get(i);
+
+                    updater.setHistoryRecord(
+                        toStructureRecord(record));
+                    if (!updater.isMatching())
+                        continue;
+
+                    records.set(
+                        i,
+                        updateRecord(record, updater.getUpdateChanges(), false));
+                    changed = true;
+                }
+
+                if (changed)
+                {
+                    rewriteSegment(filename, records, null);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a copy of <tt>record</tt> with the given changes applied and
+     * with the current time as timestamp, to reflect there was a change.
+     *
+     * @param record the record to update
+     * @param changes the new values of the changed properties
+     * @param addMissing whether to add the changed properties which are not in
+     * <tt>record</tt>
+     * @return the updated record
+     */
+    private HistoryRecord updateRecord(HistoryRecord record,
+                                       Map<String, String> changes,
+                                       boolean addMissing)
+    {
+        List<String> names
+            = new ArrayList<String>(Arrays.asList(record.getPropertyNames()));
+        List<String> values
+            = new ArrayList<String>(Arrays.asList(record.getPropertyValues()));
+
+        for (Map.Entry<String, String> change : changes.entrySet())
+        {
+            int index = names.indexOf(change.getKey());
+
+            if (index != -1)
+            {
+                values.set(index, change.getValue());
+            }
+            else if (addMissing)
+            {
+                names.add(change.getKey());
+                values.add(change.getValue());
+            }
+        }
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            new Date());
+    }
+
+    /**
+     * Creates a record holding the values of <tt>record</tt> in the order of
+     * the history record structure, as expected by the
+     * <tt>HistoryRecordUpdater</tt>s.
+     *
+     * @param record the stored record
+     * @return the record complying with the history record structure
+     */
+    private HistoryRecord toStructureRecord(HistoryRecord record)
+    {
+        HistoryRecordStructure structure
+            = historyImpl.getHistoryRecordsStructure();
+        String[] propertyValues = new String[structure.getPropertyCount()];
+        String[] propertyNames = structure.getPropertyNames();
+
+        for (int i = 0; i < propertyNames.length; i++)
+            propertyValues[i] = getValue(record, propertyNames[i]);
+
+        return new HistoryRecord(structure, propertyValues);
+    }
+
+    /**
+     * Returns the value of a property of <tt>record</tt>.
+     *
+     * @param record the record
+     * @param propertyName the name of the property
+     * @return the value of the property or <tt>null</tt> if the record has no
+     * such property
+     */
+    private static String getValue(HistoryRecord record, String propertyName)
+    {
+        String[] names = record.getPropertyNames();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(propertyName))
+                return record.getPropertyValues()[i];
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the content of a segment and reopens it if it is the current
+     * one. Must be called while holding <tt>writeLock</tt>.
+     *
+     * @param filename the name of the segment
+     * @param records the new records of the segment
+     * @param seal whether to seal the segment or <tt>null</tt> to keep its
+     * current state
+     * @throws IOException if writing fails
+     */
+    private void rewriteSegment(String filename,
+                                List<HistoryRecord> records,
+                                Boolean seal)
+        throws IOException
+    {
+        File file = historyImpl.getSegmentFile(filename);
+
+        if (seal == null)
+            seal = SegmentFile.readSummary(file).isSealed();
+
+        SegmentFile.write(file, records, seal);
+
+        if (filename.equals(currentFile))
+            currentSegment = new SegmentFile(file);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>InteractiveHistoryReader</tt> of histories stored in binary
+ * segments. Segments are searched from the newest to the oldest and the search
+ * can be canceled at any time through the returned <tt>HistoryQuery</tt>.
+ */
+public class SegmentInteractiveHistoryReaderImpl
+    implements InteractiveHistoryReader
+{
+    /**
+     * The <tt>SegmentHistoryImpl</tt> where this reader is registered.
+     */
+    private final SegmentHistoryImpl history;
+
+    /**
+     * Creates an instance of <tt>SegmentInteractiveHistoryReaderImpl</tt> by
+     * specifying the corresponding <tt>history</tt> implementation.
+     * @param history the corresponding <tt>SegmentHistoryImpl</tt> to read
+     * from
+     */
+    public SegmentInteractiveHistoryReaderImpl(SegmentHistoryImpl history)
+    {
+        this.history = history;
+    }
+
+    public HistoryQuery findByKeyword(String keyword,
+                                      String field,
+                                      int recordCount)
+    {
+        return findByKeywords(new String[]{keyword}, field, recordCount);
+    }
+
+    public HistoryQuery findByKeywords(final String[] keywords,
+                                       final String field,
+                                       final int recordCount)
+    {
+        StringBuilder queryString = new StringBuilder();
+        for (String s : keywords)
+        {
+            queryString.append(' ');
+            queryString.append(s);
+        }
+
+        final HistoryQueryImpl query
+            = new HistoryQueryImpl(queryString.toString());
+
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                find(keywords, field, recordCount, query);
+            }
+        }.start();
+
+        return query;
+    }
+
+    /**
+     * Finds the history results corresponding to the given criteria.
+     * @param keywords an array of keywords to search for
+     * @param field the field, where to search the keywords
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    private void find(String[] keywords,
+                      String field,
+                      int resultCount,
+                      HistoryQueryImpl query)
+    {
+        Vector<String> filelist
+            = HistoryReaderImpl.filterFilesByDate(
+                    history.getFileList(), null, null, true);
+        Iterator<String> fileIterator = filelist.iterator();
+
+        while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
+        {
+            List<HistoryRecord> records
+                = history.readSegment(fileIterator.next());
+
+            for (int i = records.size() - 1;
+                    i >= 0 && resultCount > 0 && !query.isCanceled();
+                    i--)
+            {
+                HistoryRecord record
+                    = SegmentHistoryReaderImpl.unescape(records.get(i));
+
+                if (SegmentHistoryReaderImpl.matches(
+                        record, keywords, field, false))
+                {
+                    query.addHistoryRecord(record);
+                    resultCount--;
+                }
+            }
+        }
+
+        if (query.isCanceled())
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+        else
+            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    }
+}
@@ -0,0 +1,633 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.nio.file.*;
+import java.text.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A sparse index of the files of a XML history. For every file it stores the
+ * number of records, their timestamps and the byte offsets of their elements,
+ * so that the last or the first records of a history can be decoded without
+ * parsing the whole files they are in.
+ * <p>
+ * Entries are built by scanning the bytes of the files, which is much cheaper
+ * than building their DOM, and are validated against the length and
+ * modification time of the files. The index is persisted as an append-only
+ * log of checksummed entries in which the last entry of a file replaces the
+ * previous ones.
+ */
+public class TimestampIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(TimestampIndex.class);
+
+    /**
+     * The name of the index file in the history directory.
+     */
+    public static final String INDEX_FILE = "timestamps.idx";
+
+    /**
+     * The magic number starting the index file.
+     */
+    private static final int MAGIC = 0x4A485449;
+
+    /**
+     * The version of the index format.
+     */
+    private static final short VERSION = 1;
+
+    private static final byte[] RECORD_START = bytes("<record");
+
+    private static final byte[] TIMESTAMP_ATTRIBUTE = bytes("timestamp=\"");
+
+    private static final byte[] HISTORY_END = bytes("</history>");
+
+    /**
+     * The file the log of the index is stored in.
+     */
+    private final File indexFile;
+
+    /**
+     * The loaded entries per file name or <tt>null</tt> if the log was not
+     * loaded yet.
+     */
+    private Map<String, Entry> entries = null;
+
+    /**
+     * The number of entries in the log.
+     */
+    private int logEntries = 0;
+
+    /**
+     * Creates the index stored in <tt>indexFile</tt>.
+     *
+     * @param indexFile the file of the index log
+     */
+    TimestampIndex(File indexFile)
+    {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Returns the entry of a file of <tt>history</tt>, building it if the
+     * file changed since it was indexed. When the file cannot be scanned or
+     * has records which are not written yet, the entry is built from its
+     * snapshot and has no byte offsets.
+     *
+     * @param history the history the file belongs to
+     * @param filename the name of the file
+     * @return the entry of the file or <tt>null</tt> if the file cannot be
+     * read
+     */
+    synchronized Entry getEntry(HistoryImpl history, String filename)
+    {
+        load();
+
+        File file = history.getFile(filename);
+
+        if (history.isUnwritten(filename))
+            return createEntry(history, filename, null);
+
+        long[] fingerprint = KeywordIndex.fingerprint(file);
+        Entry entry = entries.get(filename);
+
+        if (entry != null && entry.hasFingerprint(fingerprint))
+            return entry;
+
+        entry = scan(file, fingerprint);
+        if (entry != null)
+        {
+            entries.put(filename, entry);
+            append(filename, entry);
+            return entry;
+        }
+
+        return createEntry(history, filename, fingerprint);
+    }
+
+    /**
+     * Creates an entry without byte offsets from the snapshot of a file.
+     *
+     * @param history the history the file belongs to
+     * @param filename the name of the file
+     * @param fingerprint the fingerprint of the file or <tt>null</tt> if the
+     * file is not written yet
+     * @return the entry of the file or <tt>null</tt> if the file cannot be
+     * read
+     */
+    private static Entry createEntry(HistoryImpl history,
+                                     String filename,
+                                     long[] fingerprint)
+    {
+        HistoryFileSnapshot snapshot = history.getSnapshot(filename);
+
+        if (snapshot == null)
+            return null;
+
+        long[] timestamps = new long[snapshot.getRecordCount()];
+
+        for (int i = 0; i < timestamps.length; i++)
+            timestamps[i] = snapshot.getTimestamp(i);
+
+        if (fingerprint == null)
+            fingerprint = new long[] { -1, -1 };
+
+        return new Entry(fingerprint, null, timestamps, -1);
+    }
+
+    /**
+     * Builds the entry of <tt>file</tt> by scanning its bytes for the start
+     * tags of the records and their timestamp attributes.
+     *
+     * @param file the file to scan
+     * @param fingerprint the fingerprint of the file
+     * @return the entry of the file or <tt>null</tt> if the file cannot be
+     * scanned
+     */
+    private static Entry scan(File file, long[] fingerprint)
+    {
+        byte[] content;
+
+        try
+        {
+            content = Files.readAllBytes(file.toPath());
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+
+        // the file changed while it was read
+        if (content.length != fingerprint[0])
+            return null;
+
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        List<long[]> records = new ArrayList<long[]>();
+        int index = 0;
+
+        while ((index = indexOf(content, RECORD_START, index)) != -1)
+        {
+            int offset = index;
+
+            index += RECORD_START.length;
+            if (index >= content.length)
+                return null;
+
+            byte next = content[index];
+
+            // another element whose name starts with "record"
+            if (next != '>' && next != '/' && !Character.isWhitespace(next))
+                continue;
+
+            int tagEnd = indexOf(content, new byte[] { '>' }, index);
+            int attribute = indexOf(content, TIMESTAMP_ATTRIBUTE, index);
+
+            if (tagEnd == -1 || attribute == -1 || attribute > tagEnd)
+                return null;
+
+            int valueStart = attribute + TIMESTAMP_ATTRIBUTE.length;
+            int valueEnd = indexOf(content, new byte[] { '"' }, valueStart);
+
+            if (valueEnd == -1 || valueEnd > tagEnd)
+                return null;
+
+            String value;
+            long timestamp;
+
+            try
+            {
+                value = new String(
+                    content, valueStart, valueEnd - valueStart, "UTF-8");
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                return null;
+            }
+            try
+            {
+                timestamp = sdf.parse(value).getTime();
+            }
+            catch (ParseException e)
+            {
+                try
+                {
+                    timestamp = Long.parseLong(value);
+                }
+                catch (NumberFormatException nfe)
+                {
+                    return null;
+                }
+            }
+
+            records.add(new long[] { offset, timestamp });
+            index = tagEnd;
+        }
+
+        int endOffset = lastIndexOf(content, HISTORY_END);
+
+        if (endOffset == -1)
+            return null;
+
+        long[] offsets = new long[records.size()];
+        long[] timestamps = new long[records.size()];
+
+        for (int i = 0; i < offsets.length; i++)
+        {
+            offsets[i] = records.get(i)[0];
+            timestamps[i] = records.get(i)[1];
+        }
+
+        return new Entry(fingerprint, offsets, timestamps, endOffset);
+    }
+
+    /**
+     * Loads the log in memory if it was not loaded yet.
+     */
+    private void load()
+    {
+        if (entries != null)
+            return;
+
+        entries = new HashMap<String, Entry>();
+
+        if (!indexFile.exists())
+            return;
+
+        long length = indexFile.length();
+        long validLength = 0;
+
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(
+                        new BufferedInputStream(
+                                new FileInputStream(indexFile)));
+            try
+            {
+                if (length >= 6
+                    && in.readInt() == MAGIC
+                    && in.readShort() == VERSION)
+                {
+                    validLength = 6;
+
+                    CRC32 crc = new CRC32();
+
+                    while (validLength + 4 <= length)
+                    {
+                        int entryLength = in.readInt();
+
+                        if (entryLength <= 0
+                            || validLength + 8 + entryLength > length)
+                        {
+                            break;
+                        }
+
+                        byte[] bytes = new byte[entryLength];
+
+                        in.readFully(bytes);
+                        crc.reset();
+                        crc.update(bytes);
+                        if (in.readInt() != (int) crc.getValue())
+                            break;
+
+                        readEntry(bytes);
+                        validLength += 8 + entryLength;
+                        logEntries++;
+                    }
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot load history index " + indexFile, e);
+            entries.clear();
+            validLength = 0;
+        }
+
+        if (validLength < length)
+        {
+            // rewrite the log without the corrupted entries
+            logger.warn("Rewriting corrupted history index " + indexFile);
+            compact();
+        }
+    }
+
+    /**
+     * Decodes a log entry and puts it in the loaded entries.
+     */
+    private void readEntry(byte[] bytes)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(bytes));
+        String filename = in.readUTF();
+        long[] fingerprint = new long[] { in.readLong(), in.readLong() };
+        long endOffset = in.readLong();
+        int count = in.readInt();
+        long[] offsets = new long[count];
+        long[] timestamps = new long[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            offsets[i] = in.readLong();
+            timestamps[i] = in.readLong();
+        }
+
+        entries.put(
+            filename, new Entry(fingerprint, offsets, timestamps, endOffset));
+    }
+
+    /**
+     * Encodes an entry as it is stored in the log.
+     */
+    private static byte[] encode(String filename, Entry entry)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF(filename);
+        out.writeLong(entry.length);
+        out.writeLong(entry.lastModified);
+        out.writeLong(entry.endOffset);
+        out.writeInt(entry.timestamps.length);
+        for (int i = 0; i < entry.timestamps.length; i++)
+        {
+            out.writeLong(entry.offsets[i]);
+            out.writeLong(entry.timestamps[i]);
+        }
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes an encoded entry preceded by its length and followed by its
+     * checksum.
+     */
+    private static void writeFrame(DataOutputStream out, byte[] bytes)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Appends an entry to the log. The log is compacted when most of its
+     * entries were replaced.
+     */
+    private void append(String filename, Entry entry)
+    {
+        if (logEntries > 2 * entries.size() + 16)
+        {
+            compact();
+            return;
+        }
+
+        boolean newFile = !indexFile.exists();
+
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(indexFile, true)));
+            try
+            {
+                if (newFile)
+                {
+                    out.writeInt(MAGIC);
+                    out.writeShort(VERSION);
+                }
+                writeFrame(out, encode(filename, entry));
+            }
+            finally
+            {
+                out.close();
+            }
+            logEntries++;
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot update history index " + indexFile, e);
+        }
+    }
+
+    /**
+     * Rewrites the log with the loaded entries only.
+     */
+    private void compact()
+    {
+        File tmpFile
+            = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeShort(VERSION);
+                for (Map.Entry<String, Entry> entry : entries.entrySet())
+                    writeFrame(out, encode(entry.getKey(), entry.getValue()));
+            }
+            finally
+            {
+                out.close();
+            }
+
+            Files.move(tmpFile.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+            logEntries = entries.size();
+        }
+        catch (IOException e)
+        {
+            logger.error("Cannot compact history index " + indexFile, e);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Returns the UTF-8 bytes of an ASCII string.
+     */
+    private static byte[] bytes(String s)
+    {
+        try
+        {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the index of the first occurrence of <tt>pattern</tt> in
+     * <tt>content</tt> at or after <tt>from</tt>, or -1.
+     */
+    private static int indexOf(byte[] content, byte[] pattern, int from)
+    {
+        outer:
+        for (int i = from; i <= content.length - pattern.length; i++)
+        {
+            for (int j = 0; j < pattern.length; j++)
+            {
+                if (content[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the last occurrence of <tt>pattern</tt> in
+     * <tt>content</tt>, or -1.
+     */
+    private static int lastIndexOf(byte[] content, byte[] pattern)
+    {
+        outer:
+        for (int i = content.length - pattern.length; i >= 0; i--)
+        {
+            for (int j = 0; j < pattern.length; j++)
+            {
+                if (content[i + j] != pattern[j])
+                    continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The number, timestamps and byte offsets of the records of a file.
+     */
+    static class Entry
+    {
+        private final long length;
+
+        private final long lastModified;
+
+        /**
+         * The offsets of the record elements or <tt>null</tt> if the file
+         * could not be scanned.
+         */
+        private final long[] offsets;
+
+        private final long[] timestamps;
+
+        /**
+         * The offset of the end tag of the root element.
+         */
+        private final long endOffset;
+
+        private final long minTimestamp;
+
+        private final long maxTimestamp;
+
+        Entry(long[] fingerprint,
+              long[] offsets,
+              long[] timestamps,
+              long endOffset)
+        {
+            this.length = fingerprint[0];
+            this.lastModified = fingerprint[1];
+            this.offsets = offsets;
+            this.timestamps = timestamps;
+            this.endOffset = endOffset;
+
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+
+            for (long timestamp : timestamps)
+            {
+                min = Math.min(min, timestamp);
+                max = Math.max(max, timestamp);
+            }
+            this.minTimestamp = min;
+            this.maxTimestamp = max;
+        }
+
+        boolean hasFingerprint(long[] fingerprint)
+        {
+            return length == fingerprint[0] && lastModified == fingerprint[1];
+        }
+
+        /**
+         * Indicates whether records can be read by their byte offsets.
+         */
+        boolean hasOffsets()
+        {
+            return offsets != null;
+        }
+
+        int getRecordCount()
+        {
+            return timestamps.length;
+        }
+
+        long getTimestamp(int position)
+        {
+            return timestamps[position];
+        }
+
+        long getMinTimestamp()
+        {
+            return minTimestamp;
+        }
+
+        long getMaxTimestamp()
+        {
+            return maxTimestamp;
+        }
+
+        /**
+         * Returns the offset of the record at <tt>position</tt>, or the
+         * offset of the end of the records for the position after the last
+         * record.
+         */
+        long getOffset(int position)
+        {
+            return (position < offsets.length) ? offsets[position] : endOffset;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.ldap;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import net.java.sip.communicator.plugin.desktoputil.*;
@@ -270,20 +271,11 @@ private void processLdapResponse(LdapEvent evt)
             if (!contactDetails.isEmpty())
             {
                 GenericSourceContact sourceContact
-                    = new GenericSourceContact(
-                            getContactSource(),
+                    = new LdapSourceContact(
+                            person,
                             displayName,
                             contactDetails);
 
-                try
-                {
-                    sourceContact.setImage(person.getPhoto());
-                }
-                catch (OutOfMemoryError oome)
-                {
-                    // Ignore it, the image is not vital.
-                }
-
                 if (person.getOrganization() != null)
                 {
                     sourceContact.setDisplayDetails(person.getOrganization());
@@ -393,4 +385,100 @@ public void cancel()
         }
         super.cancel();
     }
+
+    /**
+     * A <tt>SourceContact</tt> found in the LDAP directory which photo is
+     * fetched when its image is first asked for, that is when the contact is
+     * shown, instead of when it is found. The contact is reported as changed
+     * when the photo fetched in the background is available.
+     */
+    private class LdapSourceContact
+        extends GenericSourceContact
+    {
+        /**
+         * The person found in the directory for this contact.
+         */
+        private final LdapPersonFound person;
+
+        /**
+         * Indicates whether the photo of the person has been asked for.
+         */
+        private boolean photoRequested = false;
+
+        /**
+         * Creates a contact for the given person found in the directory.
+         *
+         * @param person the person found in the directory
+         * @param displayName the display name of the contact
+         * @param contactDetails the details of the contact
+         */
+        LdapSourceContact(LdapPersonFound person,
+                          String displayName,
+                          List<ContactDetail> contactDetails)
+        {
+            super(LdapContactQuery.this.getContactSource(),
+                displayName,
+                contactDetails);
+
+            this.person = person;
+        }
+
+        /**
+         * Returns the photo of the person, starting its retrieval if it has
+         * not been asked for yet.
+         *
+         * @return the photo of the person or <tt>null</tt> if it is not
+         * available yet
+         */
+        @Override
+        public byte[] getImage()
+        {
+            CompletableFuture<byte[]> photo = null;
+
+            synchronized (this)
+            {
+                if (!photoRequested)
+                {
+                    photoRequested = true;
+                    photo = person.fetchPhotoAsync();
+                }
+            }
+
+            if (photo != null)
+            {
+                if (photo.isDone())
+                    setPhoto(photo.getNow(null));
+                else
+                {
+                    photo.thenAccept(p ->
+                        {
+                            if (p != null && setPhoto(p))
+                                fireContactChanged(this);
+                        });
+                }
+            }
+
+            return super.getImage();
+        }
+
+        /**
+         * Sets the given photo as the image of this contact.
+         *
+         * @param photo the photo of the person
+         * @return <tt>true</tt> if the image has been set
+         */
+        private boolean setPhoto(byte[] photo)
+        {
+            try
+            {
+                setImage(photo);
+                return true;
+            }
+            catch (OutOfMemoryError oome)
+            {
+                // Ignore it, the image is not vital.
+                return false;
+            }
+        }
+    }
 }
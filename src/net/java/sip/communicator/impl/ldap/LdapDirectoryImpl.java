@@ -18,10 +18,12 @@
 package net.java.sip.communicator.impl.ldap;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.naming.*;
 import javax.naming.directory.*;
+import javax.naming.ldap.*;
 
 import net.java.sip.communicator.service.ldap.*;
 import net.java.sip.communicator.service.ldap.event.*;
@@ -146,6 +148,54 @@
      */
     private final List<String> phoneNumberAttributes = new ArrayList<String>();
 
+    /**
+     * The time in milliseconds the results of a search are cached.
+     */
+    private static final long SEARCH_CACHE_TTL = 5 * 60 * 1000;
+
+    /**
+     * The maximum number of searches which results are cached.
+     */
+    private static final int SEARCH_CACHE_SIZE = 64;
+
+    /**
+     * The maximum number of searches run at the same time on the directory.
+     */
+    private static final int MAX_SEARCH_THREADS = 4;
+
+    /**
+     * The cached results of the searches on this directory.
+     */
+    private final LdapSearchCache searchCache
+        = new LdapSearchCache(SEARCH_CACHE_TTL, SEARCH_CACHE_SIZE);
+
+    /**
+     * The executor running the searches on this directory.
+     */
+    private final ThreadPoolExecutor searchExecutor;
+
+    /**
+     * The maximum number of photos fetched by a single search.
+     */
+    private static final int PHOTO_BATCH_SIZE = 20;
+
+    /**
+     * The time in milliseconds the photos asked for are gathered before
+     * they are fetched together.
+     */
+    private static final long PHOTO_BATCH_DELAY = 50;
+
+    /**
+     * The maximum number of bytes of the cached photos, including a fixed
+     * overhead per cached person.
+     */
+    private static final long PHOTO_CACHE_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * The loader of the photos of the persons found in this directory.
+     */
+    private final LdapPhotoLoader photoLoader;
+
     /**
      * The contructor for this class.
      * Since this element is immutable (otherwise it would be a real pain
@@ -178,6 +228,38 @@ public LdapDirectoryImpl(LdapDirectorySettings settings)
 
         this.settings = settings.clone();
 
+        searchExecutor = new ThreadPoolExecutor(
+            MAX_SEARCH_THREADS, MAX_SEARCH_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            createThreadFactory("LdapSearch"));
+        searchExecutor.allowCoreThreadTimeOut(true);
+
+        ScheduledThreadPoolExecutor photoExecutor
+            = new ScheduledThreadPoolExecutor(
+                1, createThreadFactory("LdapPhotoLoader"));
+
+        photoExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        photoExecutor.allowCoreThreadTimeOut(true);
+        photoLoader = new LdapPhotoLoader(
+            new LdapPhotoLoader.Fetcher()
+            {
+                public Map<String, byte[]> fetchPhotos(List<String> dns)
+                    throws NamingException
+                {
+                    return fetchPhotosForPersons(dns);
+                }
+
+                public byte[] fetchPhoto(String dn)
+                    throws NamingException
+                {
+                    return fetchPhotoForPerson(dn);
+                }
+            },
+            photoExecutor,
+            PHOTO_BATCH_SIZE,
+            PHOTO_BATCH_DELAY,
+            PHOTO_CACHE_BYTES);
+
         if(this.settings.getPort() == 0)
             portText = ":" + this.settings.getEncryption().defaultPort();
         else
@@ -259,6 +341,32 @@ public LdapDirectoryImpl(LdapDirectorySettings settings)
         }
     }
 
+    /**
+     * Creates a factory of the daemon threads running the operations on the
+     * directory.
+     *
+     * @param name the name of the threads
+     * @return the factory of the threads
+     */
+    private static ThreadFactory createThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name);
+
+                // setting the classloader is necessary so that the
+                // BundleContext can be accessed from classes instantiated
+                // from JNDI (specifically from our custom SocketFactory)
+                thread.setContextClassLoader(
+                    LdapDirectoryImpl.class.getClassLoader());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
     /**
      * Returns the state of the enabled marker.
      * Required by LdapDirectory interface.
@@ -392,7 +500,7 @@ private void performSearch(final LdapQuery query,
             final LdapSearchSettings searchSettings,
             final LdapListener caller)
     {
-        Thread searchThread = new Thread()
+        searchExecutor.execute(new Runnable()
         {
             int cancelState = 0;
 
@@ -409,62 +517,43 @@ public void run()
 
                 SearchControls searchControls =
                     buildSearchControls(searchSettings);
+                String key = LdapSearchCache.getKey(
+                        filter,
+                        searchControls.getSearchScope(),
+                        searchControls.getCountLimit());
+                String substring = getSearchedSubstring(realQueryString);
 
                 LdapEvent endEvent = null;
-                InitialDirContext dirContext = null;
 
                 try
                 {
-                    if(searchSettings.isDelaySet())
-                        Thread.sleep(searchSettings.getDelay());
+                    List<LdapSearchCache.Result> results = searchCache.get(
+                            key, substring, searchControls.getSearchScope());
 
-                    checkCancel();
-                    dirContext = connect();
-                    checkCancel();
-
-                    long time0 = System.currentTimeMillis();
-
-                    NamingEnumeration<?> results = dirContext.search(
-                            LdapDirectoryImpl.this.settings.getBaseDN(),
-                            filter,
-                            searchControls
-                            );
-
-                    checkCancel();
-
-                    while (results.hasMore())
+                    if(results == null)
                     {
-                        checkCancel();
+                        if(searchSettings.isDelaySet())
+                            Thread.sleep(searchSettings.getDelay());
 
-                        SearchResult searchResult =
-                            (SearchResult) results.next();
-                        Map<String, Set<Object>> retrievedAttributes =
-                            retrieveAttributes(searchResult);
-
-                        if(!checkRetrievedAttributes(
-                                query.toString(),
-                                searchPattern,
-                                retrievedAttributes))
-                            continue;
-
-                        LdapPersonFound person =
-                            buildPerson(
-                                query,
-                                searchResult.getName(),
-                                retrievedAttributes
-                                );
-                        LdapEvent resultEvent =
-                            new LdapEvent(LdapDirectoryImpl.this,
-                                    LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
-                                    person);
-                        fireLdapEvent(resultEvent, caller);
+                        checkCancel();
+                        results = searchOrJoin(
+                                filter, key, substring, searchPattern,
+                                searchControls);
                     }
 
-                    long time1 = System.currentTimeMillis();
-                    logger.trace("search for real query \"" + filter +
-                            "\" (initial query: \"" + query.toString() +
-                            "\") on directory \"" + LdapDirectoryImpl.this +
-                            "\" took " + (time1-time0) + "ms");
+                    if(results != null)
+                    {
+                        logger.trace("answering real query \"" + filter +
+                                "\" (initial query: \"" + query.toString() +
+                                "\") on directory \"" +
+                                LdapDirectoryImpl.this + "\" from the cache: " +
+                                searchCache);
+                        for(LdapSearchCache.Result result : results)
+                        {
+                            checkCancel();
+                            fireResult(searchPattern, result);
+                        }
+                    }
 
                     endEvent = new LdapEvent(LdapDirectoryImpl.this,
                             LdapEvent.LdapEventCause.SEARCH_ACHIEVED, query);
@@ -545,9 +634,125 @@ public void run()
                 finally
                 {
                     fireLdapEvent(endEvent, caller);
+                }
+            }
+
+            /**
+             * Waits for an identical search running for another query, or
+             * runs the search on the directory if there is none. The results
+             * of a search run here are fired as they are found.
+             *
+             * @return the results of the identical search to fire or
+             * <tt>null</tt> if the search ran here
+             */
+            private List<LdapSearchCache.Result> searchOrJoin(
+                    String filter,
+                    String key,
+                    String substring,
+                    Pattern searchPattern,
+                    SearchControls searchControls)
+                throws NamingException,
+                       LdapQueryCancelledException,
+                       InterruptedException
+            {
+                while(true)
+                {
+                    LdapSearchCache.Search running = searchCache.join(key);
+
+                    if(running == null)
+                        break;
+
+                    while(!running.await(100))
+                        checkCancel();
+
+                    // the identical search failed or was cancelled,
+                    // try again
+                    if(running.getResults() != null)
+                        return running.getResults();
+                    checkCancel();
+                }
+
+                List<LdapSearchCache.Result> results
+                    = new ArrayList<LdapSearchCache.Result>();
+                InitialDirContext dirContext = null;
+                long time0 = System.currentTimeMillis();
+                boolean completed = false;
+
+                try
+                {
+                    checkCancel();
+                    dirContext = connect();
+                    checkCancel();
+
+                    NamingEnumeration<?> enumeration = dirContext.search(
+                            LdapDirectoryImpl.this.settings.getBaseDN(),
+                            filter,
+                            searchControls
+                            );
+
+                    checkCancel();
+
+                    while (enumeration.hasMore())
+                    {
+                        checkCancel();
+
+                        SearchResult searchResult =
+                            (SearchResult) enumeration.next();
+                        LdapSearchCache.Result result
+                            = new LdapSearchCache.Result(
+                                    searchResult.getName(),
+                                    retrieveAttributes(searchResult));
+
+                        results.add(result);
+                        fireResult(searchPattern, result);
+                    }
+                    completed = true;
+                }
+                finally
+                {
+                    long time1 = System.currentTimeMillis();
+
+                    searchCache.complete(
+                            key,
+                            substring,
+                            searchControls.getSearchScope(),
+                            completed ? results : null,
+                            time1 - time0);
+                    logger.trace("search for real query \"" + filter +
+                            "\" (initial query: \"" + query.toString() +
+                            "\") on directory \"" + LdapDirectoryImpl.this +
+                            "\" took " + (time1-time0) + "ms");
+
                     if(dirContext != null)
                         disconnect(dirContext);
                 }
+                return null;
+            }
+
+            /**
+             * Fires the person of a search result if it matches the query.
+             */
+            private void fireResult(
+                    Pattern searchPattern,
+                    LdapSearchCache.Result result)
+            {
+                if(!checkRetrievedAttributes(
+                        query.toString(),
+                        searchPattern,
+                        result.attributes))
+                    return;
+
+                LdapPersonFound person =
+                    buildPerson(
+                        query,
+                        result.name,
+                        result.attributes
+                        );
+                LdapEvent resultEvent =
+                    new LdapEvent(LdapDirectoryImpl.this,
+                            LdapEvent.LdapEventCause.NEW_SEARCH_RESULT,
+                            person);
+                fireLdapEvent(resultEvent, caller);
             }
 
             /**
@@ -567,14 +772,31 @@ private void checkCancel()
                 }
                 this.cancelState++;
             }
-        };
+        });
+    }
 
-        // setting the classloader is necessary so that the BundleContext can be
-        // accessed from classes instantiated from JNDI (specifically from our
-        // custom SocketFactory)
-        searchThread.setContextClassLoader(getClass().getClassLoader());
-        searchThread.setDaemon(true);
-        searchThread.start();
+    /**
+     * Returns the substring searched by an intermediate query string if the
+     * search filter matches the entries containing it in one of the
+     * searchable attributes, and so a search for a string containing it
+     * returns a subset of its results.
+     *
+     * @param realQueryString the intermediate query string
+     * @return the substring searched or <tt>null</tt> if it is not a
+     * substring search
+     */
+    private String getSearchedSubstring(String realQueryString)
+    {
+        if ("custom".equals(settings.getQueryMode())
+            || realQueryString.length() < 3
+            || !realQueryString.startsWith("*")
+            || !realQueryString.endsWith("*"))
+            return null;
+
+        String substring
+            = realQueryString.substring(1, realQueryString.length() - 1);
+
+        return (substring.indexOf('*') < 0) ? substring : null;
     }
 
     /**
@@ -1093,14 +1315,33 @@ public Collection<String> searchChildren(final String dn)
         return nodes;
     }
 
+    /**
+     * Fetches the photo of the person with the given distinguished name in
+     * the background. The photos asked for at the same time are fetched
+     * together and the fetched photos are cached.
+     *
+     * @param dn distinguished name of the person to fetch the photo
+     * @return the future photo, completed with <tt>null</tt> if the person
+     * has none
+     */
+    CompletableFuture<byte[]> fetchPhotoAsync(String dn)
+    {
+        if (this.settings.isPhotoInline())
+            return CompletableFuture.completedFuture(null);
+
+        return photoLoader.getPhoto(dn);
+    }
+
     /**
      * Tries to fetch the photo of the person with
      * the given distinguished name in the directory
      *
      * @param dn distinguished name of the person to fetch the photo
      * @return the bytes of the photo
+     * @throws NamingException if the search fails
      */
     byte[] fetchPhotoForPerson(String dn)
+        throws NamingException
     {
         if (this.settings.isPhotoInline())
         {
@@ -1120,36 +1361,14 @@ byte[] fetchPhotoForPerson(String dn)
         try
         {
             dirContext = connect();
-            String newBaseDN;
-            if(settings.getBaseDN().equals(""))
-                newBaseDN = dn;
-            else
-                newBaseDN = dn + "," + this.settings.getBaseDN();
             NamingEnumeration<?> result = dirContext.search(
-                    newBaseDN, "(objectClass=*)", searchCtl);
+                    getFullDN(dn), "(objectClass=*)", searchCtl);
             if(result.hasMore())
             {
                 SearchResult searchResult = (SearchResult) result.next();
-                Attributes attributes = searchResult.getAttributes();
-                for (String a : PHOTO_ATTRIBUTES)
-                {
-                    Attribute attribute = attributes.get(a);
-                    if(attribute != null)
-                    {
-                        NamingEnumeration<?> values = attribute.getAll();
-                        if(values.hasMore())
-                        {
-                            photo = (byte[]) values.next();
-                        }
-                    }
-                }
+                photo = getPhoto(searchResult.getAttributes());
             }
         }
-        catch (NamingException e)
-        {
-            logger.trace("error when performing photo retrieval" + e);
-            e.printStackTrace();
-        }
         finally
         {
             if(dirContext != null)
@@ -1159,6 +1378,152 @@ byte[] fetchPhotoForPerson(String dn)
         return photo;
     }
 
+    /**
+     * Fetches the photos of the persons with the given distinguished names
+     * with a single search, which filter matches the distinguished name of
+     * the entries with the <tt>distinguishedName</tt> attribute of Active
+     * Directory or the <tt>entryDN</tt> attribute of RFC 5020.
+     *
+     * @param dns the distinguished names of the persons
+     * @return the photos of the persons found, per distinguished name as
+     * given in <tt>dns</tt>, an empty array for the persons without photo
+     * @throws NamingException if the search fails
+     */
+    Map<String, byte[]> fetchPhotosForPersons(List<String> dns)
+        throws NamingException
+    {
+        Map<Name, String> names = new HashMap<Name, String>();
+        StringBuilder filter = new StringBuilder("(|");
+
+        for (String dn : dns)
+        {
+            String fullDN = getFullDN(dn);
+            String value = escapeFilterValue(fullDN);
+
+            names.put(new LdapName(fullDN), dn);
+            filter.append("(distinguishedName=").append(value).append(")");
+            filter.append("(entryDN=").append(value).append(")");
+        }
+        filter.append(")");
+
+        SearchControls searchCtl = new SearchControls();
+        searchCtl.setSearchScope(this.settings.getScope().getConstant());
+        searchCtl.setReturningAttributes(PHOTO_ATTRIBUTES);
+
+        Map<String, byte[]> photos = new HashMap<String, byte[]>();
+        InitialDirContext dirContext = connect();
+
+        try
+        {
+            long time0 = System.currentTimeMillis();
+            NamingEnumeration<?> results = dirContext.search(
+                    this.settings.getBaseDN(), filter.toString(), searchCtl);
+
+            while (results.hasMore())
+            {
+                SearchResult searchResult = (SearchResult) results.next();
+                String dn
+                    = names.get(
+                        new LdapName(searchResult.getNameInNamespace()));
+
+                if (dn != null)
+                {
+                    byte[] photo = getPhoto(searchResult.getAttributes());
+
+                    photos.put(dn, (photo == null) ? new byte[0] : photo);
+                }
+            }
+
+            logger.trace("retrieval of " + photos.size() + " photos out of "
+                    + dns.size() + " took "
+                    + (System.currentTimeMillis() - time0) + " ms");
+        }
+        finally
+        {
+            disconnect(dirContext);
+        }
+        return photos;
+    }
+
+    /**
+     * Returns the distinguished name of a person found in the directory.
+     *
+     * @param dn the distinguished name of the person relative to the base DN
+     * @return the distinguished name of the person
+     */
+    private String getFullDN(String dn)
+    {
+        if(settings.getBaseDN().equals(""))
+            return dn;
+        else
+            return dn + "," + this.settings.getBaseDN();
+    }
+
+    /**
+     * Returns the photo in the given attributes of an entry.
+     *
+     * @param attributes the attributes of the entry
+     * @return the photo or <tt>null</tt> if there is none
+     * @throws NamingException if the attribute values cannot be read
+     */
+    private static byte[] getPhoto(Attributes attributes)
+        throws NamingException
+    {
+        byte[] photo = null;
+
+        for (String a : PHOTO_ATTRIBUTES)
+        {
+            Attribute attribute = attributes.get(a);
+            if(attribute != null)
+            {
+                NamingEnumeration<?> values = attribute.getAll();
+                if(values.hasMore())
+                {
+                    photo = (byte[]) values.next();
+                }
+            }
+        }
+        return photo;
+    }
+
+    /**
+     * Escapes a value of a search filter as specified by RFC 4515.
+     *
+     * @param value the value to escape
+     * @return the escaped value
+     */
+    static String escapeFilterValue(String value)
+    {
+        StringBuilder escaped = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            switch (c)
+            {
+            case '*':
+                escaped.append("\\2a");
+                break;
+            case '(':
+                escaped.append("\\28");
+                break;
+            case ')':
+                escaped.append("\\29");
+                break;
+            case '\\':
+                escaped.append("\\5c");
+                break;
+            case '\0':
+                escaped.append("\\00");
+                break;
+            default:
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
     private SearchControls buildSearchControls(LdapSearchSettings
             searchSettings)
     {
@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.ldap;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.ldap.*;
 
@@ -76,7 +77,7 @@
     /**
      * the photo found in the directory for this person.
      */
-    private byte[] photo = null;
+    private volatile byte[] photo = null;
 
     /**
      * the set storing the mail addresses
@@ -163,7 +164,29 @@ public String getDisplayName()
      */
     public void fetchPhoto()
     {
-        this.photo = this.server.fetchPhotoForPerson(this.dn);
+        this.photo = this.server.fetchPhotoAsync(this.dn).join();
+    }
+
+    /**
+     * Fetches the photo in the directory for this person in the background.
+     *
+     * @return the future photo found in the directory for this person,
+     * completed with <tt>null</tt> if there is none
+     */
+    @Override
+    public CompletableFuture<byte[]> fetchPhotoAsync()
+    {
+        byte[] photo = this.photo;
+
+        if (photo != null)
+            return CompletableFuture.completedFuture(photo);
+
+        return this.server.fetchPhotoAsync(this.dn).thenApply(p ->
+            {
+                if (p != null)
+                    this.photo = p;
+                return p;
+            });
     }
 
     /**
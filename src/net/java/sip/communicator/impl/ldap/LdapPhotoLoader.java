@@ -0,0 +1,326 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Loads the photos of the persons found in an LDAP directory when they are
+ * first asked for. The photos asked for within a short delay, as happens
+ * when the rows of a search result are displayed, are fetched together by a
+ * single search. The loaded photos are kept in a least recently used cache
+ * bounded by their size.
+ */
+class LdapPhotoLoader
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>LdapPhotoLoader</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(LdapPhotoLoader.class);
+
+    /**
+     * The photo of the persons which have none.
+     */
+    private static final byte[] NO_PHOTO = new byte[0];
+
+    /**
+     * The approximate number of bytes a cached photo takes in addition to
+     * its data, for the distinguished name and the map entry. It bounds the
+     * number of cached persons without photo.
+     */
+    static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Fetches photos from the directory.
+     */
+    interface Fetcher
+    {
+        /**
+         * Fetches the photos of several persons with a single search.
+         *
+         * @param dns the distinguished names of the persons
+         * @return the photos of the persons found by the search, per
+         * distinguished name as given in <tt>dns</tt>, an empty array for
+         * the persons which have no photo
+         * @throws Exception if the search fails
+         */
+        Map<String, byte[]> fetchPhotos(List<String> dns)
+            throws Exception;
+
+        /**
+         * Fetches the photo of one person.
+         *
+         * @param dn the distinguished name of the person
+         * @return the photo of the person or <tt>null</tt> if there is none
+         * @throws Exception if the search fails
+         */
+        byte[] fetchPhoto(String dn)
+            throws Exception;
+    }
+
+    /**
+     * The fetcher of the photos.
+     */
+    private final Fetcher fetcher;
+
+    /**
+     * The maximum number of photos fetched by a single search.
+     */
+    private final int batchSize;
+
+    /**
+     * The time in milliseconds the photos asked for are gathered before
+     * they are fetched.
+     */
+    private final long batchDelay;
+
+    /**
+     * The maximum number of bytes of the cached photos, including the
+     * {@link #ENTRY_OVERHEAD} of each.
+     */
+    private final long maxCacheBytes;
+
+    /**
+     * The executor fetching the photos.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The cached photos per distinguished name, the least recently used
+     * first.
+     */
+    private final LinkedHashMap<String, byte[]> photos
+        = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**
+     * The number of bytes of the cached photos, including the
+     * {@link #ENTRY_OVERHEAD} of each.
+     */
+    private long cacheBytes = 0;
+
+    /**
+     * The photos asked for which are not fetched yet, in the order they
+     * were asked for.
+     */
+    private final LinkedHashMap<String, CompletableFuture<byte[]>> pending
+        = new LinkedHashMap<String, CompletableFuture<byte[]>>();
+
+    /**
+     * Whether a fetch of the pending photos is scheduled.
+     */
+    private boolean fetchScheduled = false;
+
+    /**
+     * Whether the directory does not find the persons by distinguished name
+     * in a search filter, in which case the photos are fetched one by one.
+     */
+    private boolean batchUnsupported = false;
+
+    /**
+     * Creates a loader.
+     *
+     * @param fetcher the fetcher of the photos
+     * @param executor the executor fetching the photos
+     * @param batchSize the maximum number of photos fetched by a single
+     * search
+     * @param batchDelay the time in milliseconds the photos asked for are
+     * gathered before they are fetched
+     * @param maxCacheBytes the maximum number of bytes of the cached photos,
+     * including the {@link #ENTRY_OVERHEAD} of each
+     */
+    LdapPhotoLoader(
+        Fetcher fetcher,
+        ScheduledExecutorService executor,
+        int batchSize,
+        long batchDelay,
+        long maxCacheBytes)
+    {
+        this.fetcher = fetcher;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.batchDelay = batchDelay;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    /**
+     * Returns the photo of a person, fetching it if it is not cached.
+     *
+     * @param dn the distinguished name of the person
+     * @return the future photo of the person, completed with <tt>null</tt>
+     * if the person has no photo or it cannot be fetched
+     */
+    synchronized CompletableFuture<byte[]> getPhoto(String dn)
+    {
+        byte[] photo = photos.get(dn);
+
+        if (photo != null)
+        {
+            return CompletableFuture.completedFuture(
+                (photo.length == 0) ? null : photo);
+        }
+
+        CompletableFuture<byte[]> future = pending.get(dn);
+
+        if (future == null)
+        {
+            future = new CompletableFuture<byte[]>();
+            pending.put(dn, future);
+
+            if (!fetchScheduled)
+            {
+                fetchScheduled = true;
+                executor.schedule(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            fetchPending();
+                        }
+                    },
+                    batchDelay,
+                    TimeUnit.MILLISECONDS);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Fetches the pending photos, a batch at a time.
+     */
+    private void fetchPending()
+    {
+        while (true)
+        {
+            List<String> batch = new ArrayList<String>(batchSize);
+            boolean oneByOne;
+
+            synchronized (this)
+            {
+                Iterator<String> iter = pending.keySet().iterator();
+
+                while (iter.hasNext() && batch.size() < batchSize)
+                    batch.add(iter.next());
+
+                if (batch.isEmpty())
+                {
+                    fetchScheduled = false;
+                    return;
+                }
+                oneByOne = batchUnsupported;
+            }
+
+            Map<String, byte[]> fetched = null;
+
+            if (!oneByOne)
+            {
+                try
+                {
+                    fetched = fetcher.fetchPhotos(batch);
+                }
+                catch (Throwable t)
+                {
+                    logger.warn(
+                        "Failed to fetch " + batch.size() + " photos", t);
+                }
+
+                if (fetched != null && fetched.isEmpty())
+                {
+                    // the persons come from searches of the directory, so
+                    // it does not support searching them by name
+                    synchronized (this)
+                    {
+                        batchUnsupported = true;
+                    }
+                }
+            }
+
+            for (String dn : batch)
+            {
+                byte[] photo = null;
+                boolean known = true;
+
+                if (oneByOne || (fetched != null && !fetched.containsKey(dn)))
+                {
+                    try
+                    {
+                        photo = fetcher.fetchPhoto(dn);
+                    }
+                    catch (Throwable t)
+                    {
+                        logger.warn("Failed to fetch the photo of " + dn, t);
+                        known = false;
+                    }
+                }
+                else if (fetched != null)
+                    photo = fetched.get(dn);
+                else
+                    known = false;
+
+                if (photo != null && photo.length == 0)
+                    photo = null;
+
+                CompletableFuture<byte[]> future;
+
+                synchronized (this)
+                {
+                    future = pending.remove(dn);
+                    // a failed search is tried again when next asked for
+                    if (known)
+                        cache(dn, (photo == null) ? NO_PHOTO : photo);
+                }
+
+                if (future != null)
+                    future.complete(photo);
+            }
+        }
+    }
+
+    /**
+     * Caches a photo, evicting the least recently used photos if the cache
+     * is full.
+     *
+     * @param dn the distinguished name of the person
+     * @param photo the photo of the person or an empty array if there is
+     * none
+     */
+    private void cache(String dn, byte[] photo)
+    {
+        if (ENTRY_OVERHEAD + photo.length > maxCacheBytes)
+            return;
+
+        byte[] old = photos.put(dn, photo);
+
+        if (old != null)
+            cacheBytes -= ENTRY_OVERHEAD + old.length;
+        cacheBytes += ENTRY_OVERHEAD + photo.length;
+
+        Iterator<byte[]> iter = photos.values().iterator();
+
+        while (cacheBytes > maxCacheBytes && iter.hasNext())
+        {
+            cacheBytes -= ENTRY_OVERHEAD + iter.next().length;
+            iter.remove();
+        }
+    }
+}
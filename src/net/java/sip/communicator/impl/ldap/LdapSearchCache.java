@@ -0,0 +1,424 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+/**
+ * Caches the results of the searches of an <tt>LdapDirectoryImpl</tt> for a
+ * limited time and coalesces identical searches running at the same time.
+ * <p>
+ * The results are keyed by the normalized search filter and controls. A
+ * search for a substring which contains the substring of a cached search
+ * is answered from the results of the cached one, since every entry
+ * matching the longer substring matches the shorter one too. Only the
+ * searches which enumerated all their results are cached, so the cached
+ * results are never a truncated superset.
+ */
+class LdapSearchCache
+{
+    /**
+     * The time in milliseconds the results of a search are kept.
+     */
+    private final long ttl;
+
+    /**
+     * The maximum number of searches which results are kept.
+     */
+    private final int maxEntries;
+
+    /**
+     * The cached searches, the least recently used first.
+     */
+    private final LinkedHashMap<String, CachedSearch> cache;
+
+    /**
+     * The searches running, per key.
+     */
+    private final Map<String, Search> runningSearches
+        = new HashMap<String, Search>();
+
+    /**
+     * The number of lookups answered with the results of the same search.
+     */
+    private long hits = 0;
+
+    /**
+     * The number of lookups answered with the results of a search for a
+     * shorter substring.
+     */
+    private long refinedHits = 0;
+
+    /**
+     * The number of lookups which found no results.
+     */
+    private long misses = 0;
+
+    /**
+     * The number of searches which waited for an identical running search.
+     */
+    private long coalesced = 0;
+
+    /**
+     * The number of searches sent to the directory.
+     */
+    private long searches = 0;
+
+    /**
+     * The total time in milliseconds of the searches sent to the directory.
+     */
+    private long searchTime = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param ttl the time in milliseconds the results of a search are kept
+     * @param maxEntries the maximum number of searches which results are
+     * kept
+     */
+    LdapSearchCache(long ttl, final int maxEntries)
+    {
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<String, CachedSearch>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, CachedSearch> eldest)
+            {
+                return size() > LdapSearchCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the key of a search.
+     *
+     * @param filter the search filter
+     * @param scope the search scope
+     * @param countLimit the maximum number of results of the search
+     * @return the key of the search
+     */
+    static String getKey(String filter, int scope, long countLimit)
+    {
+        return scope + ":" + countLimit + ":" + filter.trim().toLowerCase();
+    }
+
+    /**
+     * Returns the cached results of a search, or the results of a cached
+     * search for a substring of the searched one if the search is a
+     * substring search. In the latter case the results are a superset of
+     * the ones of the search, which are to be filtered by the caller.
+     *
+     * @param key the key of the search
+     * @param substring the substring searched or <tt>null</tt> if it is not a
+     * substring search
+     * @param scope the search scope
+     * @return the cached results or <tt>null</tt> if there are none
+     */
+    synchronized List<Result> get(String key, String substring, int scope)
+    {
+        long now = System.currentTimeMillis();
+        CachedSearch cached = cache.get(key);
+
+        if (cached != null && cached.expires > now)
+        {
+            hits++;
+            return cached.results;
+        }
+
+        if (substring != null)
+        {
+            substring = substring.toLowerCase();
+
+            CachedSearch superset = null;
+
+            for (CachedSearch c : cache.values())
+            {
+                if (c.substring != null
+                    && c.scope == scope
+                    && c.expires > now
+                    && substring.contains(c.substring)
+                    && (superset == null
+                        || c.substring.length() > superset.substring.length()))
+                    superset = c;
+            }
+
+            if (superset != null)
+            {
+                refinedHits++;
+                return superset.results;
+            }
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Joins an identical running search, or registers the caller as the one
+     * running the search if there is none. A caller which is returned
+     * <tt>null</tt> must call {@link #complete} once the search is over.
+     *
+     * @param key the key of the search
+     * @return the identical running search or <tt>null</tt> if the caller is
+     * to run the search
+     */
+    synchronized Search join(String key)
+    {
+        Search search = runningSearches.get(key);
+
+        if (search != null)
+        {
+            coalesced++;
+            return search;
+        }
+
+        runningSearches.put(key, new Search());
+        return null;
+    }
+
+    /**
+     * Ends a search registered by {@link #join}, caches its results and
+     * hands them to the searches which joined it.
+     *
+     * @param key the key of the search
+     * @param substring the substring searched or <tt>null</tt> if it is not a
+     * substring search
+     * @param scope the search scope
+     * @param results all the results of the search or <tt>null</tt> if the
+     * search failed or was cancelled
+     * @param time the time in milliseconds the search took
+     */
+    void complete(
+        String key, String substring, int scope, List<Result> results,
+        long time)
+    {
+        Search search;
+
+        synchronized (this)
+        {
+            search = runningSearches.remove(key);
+
+            if (results != null)
+            {
+                results = Collections.unmodifiableList(results);
+
+                searches++;
+                searchTime += time;
+                cache.put(
+                    key,
+                    new CachedSearch(
+                        (substring == null) ? null : substring.toLowerCase(),
+                        scope,
+                        results,
+                        System.currentTimeMillis() + ttl));
+            }
+        }
+
+        if (search != null)
+            search.finish(results);
+    }
+
+    /**
+     * Removes all the cached results.
+     */
+    synchronized void clear()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Returns the number of lookups answered with the results of the same
+     * search.
+     *
+     * @return the number of lookups answered with the results of the same
+     * search
+     */
+    synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups answered with the results of a search
+     * for a shorter substring.
+     *
+     * @return the number of lookups answered with the results of a search
+     * for a shorter substring
+     */
+    synchronized long getRefinedHitCount()
+    {
+        return refinedHits;
+    }
+
+    /**
+     * Returns the number of lookups which found no results.
+     *
+     * @return the number of lookups which found no results
+     */
+    synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of searches which waited for an identical running
+     * search.
+     *
+     * @return the number of coalesced searches
+     */
+    synchronized long getCoalescedCount()
+    {
+        return coalesced;
+    }
+
+    /**
+     * Returns the average time in milliseconds of the searches which
+     * completed.
+     *
+     * @return the average time of the searches or 0 if none completed
+     */
+    synchronized long getAverageSearchTime()
+    {
+        return (searches == 0) ? 0 : searchTime / searches;
+    }
+
+    /**
+     * Returns a summary of the metrics of the cache, for logging.
+     *
+     * @return a summary of the metrics of the cache
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "hits=" + hits + " refined=" + refinedHits
+            + " misses=" + misses + " coalesced=" + coalesced
+            + " searches=" + searches + " avgTime=" + getAverageSearchTime()
+            + "ms";
+    }
+
+    /**
+     * A result of a search: the name of the entry found and its retrieved
+     * attributes.
+     */
+    static class Result
+    {
+        /**
+         * The name of the entry relative to the base DN.
+         */
+        final String name;
+
+        /**
+         * The retrieved attributes of the entry.
+         */
+        final Map<String, Set<Object>> attributes;
+
+        /**
+         * Creates a result.
+         *
+         * @param name the name of the entry relative to the base DN
+         * @param attributes the retrieved attributes of the entry
+         */
+        Result(String name, Map<String, Set<Object>> attributes)
+        {
+            this.name = name;
+            this.attributes = attributes;
+        }
+    }
+
+    /**
+     * A search running, which identical searches wait for.
+     */
+    static class Search
+    {
+        /**
+         * Whether the search is over.
+         */
+        private boolean done = false;
+
+        /**
+         * The results of the search or <tt>null</tt> if it failed.
+         */
+        private List<Result> results;
+
+        /**
+         * Ends the search and wakes up the searches waiting for it.
+         *
+         * @param results the results of the search or <tt>null</tt> if it
+         * failed
+         */
+        private synchronized void finish(List<Result> results)
+        {
+            this.results = results;
+            this.done = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits at most the given time for the search to end.
+         *
+         * @param timeout the maximum time to wait in milliseconds
+         * @return <tt>true</tt> if the search is over
+         * @throws InterruptedException if the waiting thread is interrupted
+         */
+        synchronized boolean await(long timeout)
+            throws InterruptedException
+        {
+            if (!done)
+                wait(timeout);
+            return done;
+        }
+
+        /**
+         * Returns the results of the search.
+         *
+         * @return the results of the search or <tt>null</tt> if it failed or
+         * is not over
+         */
+        synchronized List<Result> getResults()
+        {
+            return results;
+        }
+    }
+
+    /**
+     * The cached results of a search.
+     */
+    private static class CachedSearch
+    {
+        final String substring;
+
+        final int scope;
+
+        final List<Result> results;
+
+        final long expires;
+
+        CachedSearch(
+            String substring, int scope, List<Result> results, long expires)
+        {
+            this.substring = substring;
+            this.scope = scope;
+            this.results = results;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.metahistory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.metahistory.*;
+
+/**
+ * A <tt>MetaHistoryCursor</tt> merging the results of several history
+ * queries. The queries are run in parallel by an executor. The first call to
+ * {@link #hasNext()} waits for all of them and keeps their whole results;
+ * the cursor then merges them as it is iterated, with a priority queue
+ * ordered by the next record of each result. Each result is sorted on its
+ * own, which costs little as the history services return mostly sorted
+ * records, instead of sorting all of them together. The <tt>count</tt>
+ * limits the records returned, not the records the queries read.
+ */
+class MergedHistoryCursor
+    implements MetaHistoryCursor
+{
+    /**
+     * The running queries.
+     */
+    private final List<Future<Collection<?>>> queries
+        = new ArrayList<Future<Collection<?>>>();
+
+    /**
+     * The order in which the records are returned.
+     */
+    private final Comparator<Object> comparator;
+
+    /**
+     * The maximum number of records to return or a negative value for no
+     * limit.
+     */
+    private final int count;
+
+    /**
+     * The results which have records left, ordered by their next record.
+     * <tt>null</tt> until the results of the queries are collected.
+     */
+    private PriorityQueue<Result> results = null;
+
+    /**
+     * The number of records returned so far.
+     */
+    private int returned = 0;
+
+    /**
+     * Indicates whether the query was canceled.
+     */
+    private volatile boolean canceled = false;
+
+    /**
+     * Starts the given queries and creates a cursor over their merged
+     * results.
+     *
+     * @param queries the queries to merge the results of
+     * @param comparator the order in which the records are returned
+     * @param count the maximum number of records to return or a negative
+     * value for no limit
+     * @param executor the executor running the queries
+     */
+    MergedHistoryCursor(
+            List<Callable<Collection<?>>> queries,
+            Comparator<Object> comparator,
+            int count,
+            ExecutorService executor)
+    {
+        this.comparator = comparator;
+        this.count = count;
+
+        if (count != 0)
+        {
+            for (Callable<Collection<?>> query : queries)
+                this.queries.add(executor.submit(query));
+        }
+    }
+
+    /**
+     * Cancels the query and interrupts the queries which are still running.
+     */
+    public void cancel()
+    {
+        canceled = true;
+
+        for (Future<Collection<?>> query : queries)
+            query.cancel(true);
+    }
+
+    /**
+     * Checks whether the query was canceled.
+     *
+     * @return <tt>true</tt> if the query was canceled
+     */
+    public boolean isCanceled()
+    {
+        return canceled;
+    }
+
+    /**
+     * Checks whether there are more records. The first call waits for all
+     * the queries to complete and collects their whole results.
+     *
+     * @return <tt>true</tt> if there are more records
+     */
+    public synchronized boolean hasNext()
+    {
+        if (canceled || (count >= 0 && returned >= count))
+            return false;
+
+        if (results == null)
+            collectResults();
+
+        return !canceled && !results.isEmpty();
+    }
+
+    /**
+     * Returns the next record.
+     *
+     * @return the next record
+     */
+    public synchronized Object next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        Result result = results.poll();
+        Object record = result.records[result.index++];
+
+        if (result.index < result.records.length)
+            results.add(result);
+
+        returned++;
+        return record;
+    }
+
+    /**
+     * Called when the results of all the queries have been collected, before
+     * the first record is returned. Does nothing by default.
+     */
+    protected void loaded()
+    {
+    }
+
+    /**
+     * Waits for the queries to complete and puts their sorted results in the
+     * priority queue.
+     */
+    private void collectResults()
+    {
+        results
+            = new PriorityQueue<Result>(
+                Math.max(1, queries.size()),
+                new Comparator<Result>()
+                {
+                    public int compare(Result r1, Result r2)
+                    {
+                        int c
+                            = comparator.compare(
+                                r1.records[r1.index], r2.records[r2.index]);
+
+                        return (c != 0) ? c : r1.ordinal - r2.ordinal;
+                    }
+                });
+
+        for (int i = 0; i < queries.size() && !canceled; i++)
+        {
+            Collection<?> records;
+
+            try
+            {
+                records = queries.get(i).get();
+            }
+            catch (CancellationException e)
+            {
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                cancel();
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch (ExecutionException e)
+            {
+                cancel();
+
+                Throwable cause = e.getCause();
+
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new RuntimeException(cause);
+            }
+
+            if (records != null && !records.isEmpty())
+            {
+                Object[] sorted = records.toArray();
+
+                Arrays.sort(sorted, comparator);
+                results.add(new Result(sorted, i));
+            }
+        }
+
+        if (!canceled)
+            loaded();
+    }
+
+    /**
+     * The sorted records of a query and the position of the next one to
+     * return.
+     */
+    private static class Result
+    {
+        /**
+         * The sorted records.
+         */
+        final Object[] records;
+
+        /**
+         * The index of the query, so that records with equal timestamps are
+         * returned in the order of the queries.
+         */
+        final int ordinal;
+
+        /**
+         * The index of the next record to return.
+         */
+        int index = 0;
+
+        Result(Object[] records, int ordinal)
+        {
+            this.records = records;
+            this.ordinal = ordinal;
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -64,6 +65,11 @@
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The executor running the queries of the wrapped services in parallel.
+     */
+    private ExecutorService queryExecutor = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -207,56 +213,127 @@ public Collection<Object> findByPeriod(String[] services,
             Object descriptor, Date startDate, Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
+        return toList(
+            iterateByPeriod(services, descriptor, startDate, endDate, -1));
+    }
+
+    /**
+     * Returns a cursor over the records between the given dates, in the order
+     * of their timestamps. The wrapped services are queried in parallel and
+     * their results are merged while the cursor is iterated, without sorting
+     * them together. The progress listeners therefore receive the events of
+     * the services interleaved.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param startDate Date the date of the first record to return
+     * @param endDate Date the date of the last record to return
+     * @param count the maximum number of records to return or a negative
+     *  value to return all of them
+     * @return the cursor over the merged records of the services we wrap
+     * @throws RuntimeException
+     */
+    public MetaHistoryCursor iterateByPeriod(String[] services,
+            final Object descriptor, final Date startDate, final Date endDate,
+            int count)
+        throws RuntimeException
+    {
+        List<Callable<Collection<?>>> queries
+            = new ArrayList<Callable<Collection<?>>>();
 
-        LinkedList<Object> result = new LinkedList<Object>();
         for (int i = 0; i < services.length; i++)
         {
-            String name = services[i];
-            Object serv = getService(name);
+            Object serv = getService(services[i]);
+            final MessageProgressWrapper listenWrapper
+                = new MessageProgressWrapper(services.length);
+
+            listenWrapper.setIx(i);
+
             if(serv instanceof MessageHistoryService)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                final MessageHistoryService mhs = (MessageHistoryService)serv;
 
-                if(descriptor instanceof MetaContact)
-                {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
-                }
-                else if(descriptor instanceof ChatRoom)
+                queries.add(new Callable<Collection<?>>()
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+                    public Collection<?> call()
+                    {
+                        mhs.addSearchProgressListener(listenWrapper);
+                        try
+                        {
+                            if(descriptor instanceof MetaContact)
+                            {
+                                return mhs.findByPeriod(
+                                    (MetaContact)descriptor,
+                                    startDate, endDate);
+                            }
+                            else if(descriptor instanceof ChatRoom)
+                            {
+                                return mhs.findByPeriod(
+                                    (ChatRoom)descriptor, startDate, endDate);
+                            }
+                            return null;
+                        }
+                        finally
+                        {
+                            mhs.removeSearchProgressListener(listenWrapper);
+                        }
+                    }
+                });
             }
             else if(serv instanceof FileHistoryService
                     && descriptor instanceof MetaContact)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
+                final FileHistoryService fhs = (FileHistoryService)serv;
+
+                queries.add(new Callable<Collection<?>>()
+                {
+                    public Collection<?> call()
+                    {
+                        return fhs.findByPeriod(
+                            (MetaContact)descriptor, startDate, endDate);
+                    }
+                });
             }
             else if(serv instanceof CallHistoryService)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
+                final CallHistoryService chs = (CallHistoryService)serv;
+
+                queries.add(new Callable<Collection<?>>()
+                {
+                    public Collection<?> call()
+                    {
+                        chs.addSearchProgressListener(listenWrapper);
+                        try
+                        {
+                            return chs.findByPeriod(startDate, endDate);
+                        }
+                        finally
+                        {
+                            chs.removeSearchProgressListener(listenWrapper);
+                        }
+                    }
+                });
             }
         }
-        listenWrapper.fireLastProgress(startDate, endDate, null);
 
-        Collections.sort(result, new RecordsComparator());
-        return result;
+        final MessageProgressWrapper lastProgressWrapper
+            = new MessageProgressWrapper(services.length);
+
+        return
+            new MergedHistoryCursor(
+                    queries,
+                    new RecordsComparator(),
+                    count,
+                    getQueryExecutor())
+            {
+                @Override
+                protected void loaded()
+                {
+                    lastProgressWrapper.fireLastProgress(
+                        startDate, endDate, null);
+                }
+            };
     }
 
     /**
@@ -516,67 +593,99 @@ else if(serv instanceof CallHistoryService)
      * @throws RuntimeException
      */
     public Collection<Object> findLast(String[] services,
-            Object descriptor, int count)
+            final Object descriptor, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
+        List<Callable<Collection<?>>> queries
+            = new ArrayList<Callable<Collection<?>>>();
 
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
         for (int i = 0; i < services.length; i++)
         {
-            String name = services[i];
-            Object serv = getService(name);
+            Object serv = getService(services[i]);
+            final MessageProgressWrapper listenWrapper
+                = new MessageProgressWrapper(services.length);
+
+            listenWrapper.setIx(i);
+
             if(serv instanceof MessageHistoryService)
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                final MessageHistoryService mhs = (MessageHistoryService)serv;
 
-                if(descriptor instanceof MetaContact)
+                queries.add(new Callable<Collection<?>>()
                 {
-                    result.addAll(
-                        mhs.findLast(
-                            (MetaContact)descriptor,
-                            count));
-                }
-                else if(descriptor instanceof ChatRoom)
-                {
-                    result.addAll(
-                        mhs.findLast(
-                            (ChatRoom)descriptor,
-                            count));
-                }
-                mhs.removeSearchProgressListener(listenWrapper);
+                    public Collection<?> call()
+                    {
+                        mhs.addSearchProgressListener(listenWrapper);
+                        try
+                        {
+                            if(descriptor instanceof MetaContact)
+                            {
+                                return mhs.findLast(
+                                    (MetaContact)descriptor, count);
+                            }
+                            else if(descriptor instanceof ChatRoom)
+                            {
+                                return mhs.findLast(
+                                    (ChatRoom)descriptor, count);
+                            }
+                            return null;
+                        }
+                        finally
+                        {
+                            mhs.removeSearchProgressListener(listenWrapper);
+                        }
+                    }
+                });
             }
             else if(serv instanceof FileHistoryService
                     && descriptor instanceof MetaContact)
             {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
-                        (MetaContact)descriptor,
-                        count));
+                final FileHistoryService fhs = (FileHistoryService)serv;
+
+                queries.add(new Callable<Collection<?>>()
+                {
+                    public Collection<?> call()
+                    {
+                        return fhs.findLast((MetaContact)descriptor, count);
+                    }
+                });
             }
             else if(serv instanceof CallHistoryService)
             {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
+                final CallHistoryService chs = (CallHistoryService)serv;
+
+                queries.add(new Callable<Collection<?>>()
+                {
+                    public Collection<?> call()
+                    {
+                        chs.addSearchProgressListener(listenWrapper);
+                        try
+                        {
+                            return chs.findLast(count);
+                        }
+                        finally
+                        {
+                            chs.removeSearchProgressListener(listenWrapper);
+                        }
+                    }
+                });
             }
         }
-        listenWrapper.fireLastProgress(null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+        // merge from the most recent records and stop after count of them
+        List<Object> result
+            = toList(
+                new MergedHistoryCursor(
+                        queries,
+                        Collections.reverseOrder(new RecordsComparator()),
+                        Math.max(0, count),
+                        getQueryExecutor()));
 
-        if(startIndex < 0)
-            startIndex = 0;
+        new MessageProgressWrapper(services.length)
+            .fireLastProgress(null, null, null);
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        Collections.reverse(result);
+        return result;
     }
 
     /**
@@ -780,6 +889,47 @@ public void removeSearchProgressListener(HistorySearchProgressListener listener)
         }
    }
 
+   /**
+    * Reads all the records of a cursor.
+    *
+    * @param cursor the cursor to read
+    * @return the records of the cursor
+    */
+   private static List<Object> toList(MetaHistoryCursor cursor)
+   {
+       List<Object> result = new ArrayList<Object>();
+
+       while (cursor.hasNext())
+           result.add(cursor.next());
+       return result;
+   }
+
+   /**
+    * Returns the executor running the queries of the wrapped services,
+    * creating it if needed.
+    *
+    * @return the executor running the queries of the wrapped services
+    */
+   private synchronized ExecutorService getQueryExecutor()
+   {
+       if (queryExecutor == null)
+       {
+           queryExecutor
+               = Executors.newCachedThreadPool(
+                   new ThreadFactory()
+                   {
+                       public Thread newThread(Runnable r)
+                       {
+                           Thread thread = new Thread(r, "MetaHistoryQuery");
+
+                           thread.setDaemon(true);
+                           return thread;
+                       }
+                   });
+       }
+       return queryExecutor;
+   }
+
    private Object getService(String name)
    {
        Object serv = services.get(name);
@@ -893,6 +1043,15 @@ public void stop(BundleContext bc)
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        synchronized (this)
+        {
+            if (queryExecutor != null)
+            {
+                queryExecutor.shutdownNow();
+                queryExecutor = null;
+            }
+        }
     }
 
     /**
@@ -1119,6 +1119,7 @@ private void stopRecentMessages()
             messageSourceServiceReg.unregister();
             messageSourceServiceReg = null;
 
+            this.messageSourceService.stop();
             this.messageSourceService = null;
         }
     }
@@ -1134,6 +1135,7 @@ public void stop(BundleContext bc)
             configService.removePropertyChangeListener(msgHistoryPropListener);
 
         stopMessageHistoryService();
+        stopRecentMessages();
     }
 
     // //////////////////////////////////////////////////////////////////////////
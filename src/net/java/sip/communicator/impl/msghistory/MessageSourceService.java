@@ -21,6 +21,7 @@
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactlist.event.*;
@@ -135,15 +136,43 @@
     private History history = null;
 
     /**
-     * List of recent messages.
+     * The delay in milliseconds after which the changed timestamps of the
+     * recent messages are written to their history.
      */
-    private final List<ComparableEvtObj> recentMessages
-        = new LinkedList<ComparableEvtObj>();
+    private static final long HISTORY_UPDATE_DELAY = 5000;
 
     /**
-     * Date of the oldest shown message.
+     * The recent messages, one per contact or chat room, the most recent
+     * first. Changes which span several operations on the view synchronize
+     * on it.
      */
-    private Date oldestRecentMessage = null;
+    private final RecentMessagesView<List<Object>, ComparableEvtObj>
+        recentMessages;
+
+    /**
+     * The contacts stored in the recent messages history and the timestamps
+     * of their last messages, by provider and contact address. Loaded from
+     * the history when first needed and kept in sync with it afterwards.
+     */
+    private Map<List<String>, Date> storedRecentContacts = null;
+
+    /**
+     * The recent messages which changed timestamps are not written to the
+     * history yet.
+     */
+    private final Set<ComparableEvtObj> pendingHistoryUpdates
+        = new LinkedHashSet<ComparableEvtObj>();
+
+    /**
+     * The scheduled write of the pending history updates, if any.
+     */
+    private ScheduledFuture<?> historyUpdateTask = null;
+
+    /**
+     * The executor loading the recent messages of the added providers and
+     * writing the changed timestamps to the history.
+     */
+    private final ScheduledThreadPoolExecutor executor;
 
     /**
      * The last query created.
@@ -181,6 +210,24 @@
         numberOfMessages
             = conf.getInt(NUMBER_OF_RECENT_MSGS_PROP, numberOfMessages);
 
+        recentMessages
+            = new RecentMessagesView<List<Object>, ComparableEvtObj>(
+                numberOfMessages);
+
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "MessageSourceService");
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+
         isSMSEnabled
             = conf.getBoolean(IS_MESSAGE_SUBTYPE_SMS_PROP, isSMSEnabled);
 
@@ -256,7 +303,7 @@ public void updateRecentMessages()
             List<SourceContact> currentContactsInQuery
                 = recentQuery.getQueryResults();
 
-            for(ComparableEvtObj evtObj : recentMessages)
+            for(ComparableEvtObj evtObj : recentMessages.getValues())
             {
                 // the contains will use the correct equals method of
                 // the object evtObj
@@ -287,8 +334,8 @@ private List<ComparableEvtObj> getCachedRecentMessages(
         String providerID = provider.getAccountID().getAccountUniqueID();
         List<String> recentMessagesContactIDs =
             getRecentContactIDs(providerID,
-                recentMessages.size() < numberOfMessages
-                    ? null : oldestRecentMessage );
+                recentMessages.isFull()
+                    ? recentMessages.getOldestTimestamp() : null);
 
         List<ComparableEvtObj> cachedRecentMessages
             = new ArrayList<ComparableEvtObj>();
@@ -331,7 +378,8 @@ private void processEventObjects(
     {
         for(EventObject obj : res)
         {
-            ComparableEvtObj oldMsg = findRecentMessage(obj, recentMessages);
+            ComparableEvtObj oldMsg
+                = findRecentMessage(obj, recentMessages.getValues());
 
             if(oldMsg != null)
             {
@@ -386,7 +434,7 @@ private void addNewRecentMessages(
         List<ComparableEvtObj> duplicates = new ArrayList<ComparableEvtObj>();
         for(ComparableEvtObj msgToAdd : contactsToAdd)
         {
-            if(recentMessages.contains(msgToAdd))
+            if(recentMessages.contains(msgToAdd.getKey()))
             {
                 duplicates.add(msgToAdd);
 
@@ -394,54 +442,39 @@ private void addNewRecentMessages(
                 updateRecentMessageToHistory(msgToAdd);
             }
         }
-        recentMessages.removeAll(duplicates);
 
-        // now contacts to add has no duplicates, add them all
-        boolean changed = recentMessages.addAll(contactsToAdd);
-
-        if(changed)
+        // add them all, the duplicates are moved to their new position and
+        // the oldest ones are evicted when the list is full
+        List<ComparableEvtObj> removedItems = new ArrayList<ComparableEvtObj>();
+        for(ComparableEvtObj msgToAdd : contactsToAdd)
         {
-            Collections.sort(recentMessages);
-
-            if(recentQuery != null)
-            {
-                for(ComparableEvtObj obj : duplicates)
-                    recentQuery.updateContact(obj, obj.getEventObject());
-            }
+            removedItems.addAll(
+                recentMessages.put(
+                    msgToAdd.getKey(), msgToAdd, msgToAdd.getTimestamp()));
         }
 
-        if(!recentMessages.isEmpty())
-            oldestRecentMessage
-                = recentMessages.get(recentMessages.size() - 1).getTimestamp();
+        boolean changed = !contactsToAdd.isEmpty();
 
-        // trim
-        List<ComparableEvtObj> removedItems = null;
-        if(recentMessages.size() > numberOfMessages)
+        if(changed && recentQuery != null)
         {
-            removedItems = new ArrayList<ComparableEvtObj>(
-                recentMessages.subList(numberOfMessages, recentMessages.size()));
-
-            recentMessages.removeAll(removedItems);
+            for(ComparableEvtObj obj : duplicates)
+                recentQuery.updateContact(obj, obj.getEventObject());
         }
 
         if(recentQuery != null)
         {
             // now fire, removed for all that were in the list
             // and now are removed after trim
-            if(removedItems != null)
+            for(ComparableEvtObj msc : removedItems)
             {
-                for(ComparableEvtObj msc : removedItems)
-                {
-                    if(!contactsToAdd.contains(msc))
-                        recentQuery.fireContactRemoved(msc);
-                }
+                if(!contactsToAdd.contains(msc))
+                    recentQuery.fireContactRemoved(msc);
             }
 
             // fire new for all that were added, and not removed after trim
             for(ComparableEvtObj msc : contactsToAdd)
             {
-                if((removedItems == null
-                        || !removedItems.contains(msc))
+                if(!removedItems.contains(msc)
                     && !duplicates.contains(msc))
                 {
                     MessageSourceContact newSourceContact =
@@ -457,28 +490,38 @@ private void addNewRecentMessages(
             // if recent messages were changed, indexes have change lets
             // fire event for the last element which will reorder the whole
             // group if needed.
-            if(changed)
-                recentQuery.fireContactChanged(
-                    recentMessages.get(recentMessages.size() - 1));
+            ComparableEvtObj last = recentMessages.getLast();
+            if(changed && last != null)
+                recentQuery.fireContactChanged(last);
         }
     }
 
     /**
-     * When a provider is added, do not block and start executing in new thread.
+     * When a provider is added, do not block and handle it in the executor
+     * of this service, one provider after the other.
      *
      * @param provider ProtocolProviderService
      */
     void handleProviderAdded(final ProtocolProviderService provider,
                              final boolean isStatusChanged)
     {
-        new Thread(new Runnable()
+        executor.execute(new Runnable()
         {
             @Override
             public void run()
             {
-                handleProviderAddedInSeparateThread(provider, isStatusChanged);
+                try
+                {
+                    handleProviderAddedInSeparateThread(
+                        provider, isStatusChanged);
+                }
+                catch(Throwable t)
+                {
+                    logger.error("Cannot load the recent messages of "
+                        + provider, t);
+                }
             }
-        }).start();
+        });
     }
 
     /**
@@ -585,20 +628,15 @@ void handleProviderRemoved(ProtocolProviderService provider)
             {
                 List<ComparableEvtObj> removedItems
                     = new ArrayList<ComparableEvtObj>();
-                for(ComparableEvtObj msc : recentMessages)
+                for(ComparableEvtObj msc : recentMessages.getValues())
                 {
                     if(msc.getProtocolProviderService().equals(provider))
+                    {
+                        recentMessages.remove(msc.getKey());
                         removedItems.add(msc);
+                    }
                 }
 
-                recentMessages.removeAll(removedItems);
-                if(!recentMessages.isEmpty())
-                    oldestRecentMessage
-                        = recentMessages.get(recentMessages.size() - 1)
-                            .getTimestamp();
-                else
-                    oldestRecentMessage = null;
-
                 if(recentQuery != null)
                 {
                     for(ComparableEvtObj msc : removedItems)
@@ -638,6 +676,40 @@ List<String> getRecentContactIDs(String provider, Date after)
     {
         List<String> res = new ArrayList<String>();
 
+        synchronized(historyID)
+        {
+            for(Map.Entry<List<String>, Date> e
+                    : getStoredRecentContacts().entrySet())
+            {
+                Date timestamp = e.getValue();
+
+                if(after != null
+                    && timestamp != null
+                    && timestamp.before(after))
+                    continue;
+
+                if(e.getKey().get(0).equals(provider))
+                    res.add(e.getKey().get(1));
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Returns the contacts stored in the recent messages history, reading
+     * them from the history when first needed. Must be called while holding
+     * the lock of <tt>historyID</tt>.
+     *
+     * @return the stored contacts by provider and contact address
+     */
+    private Map<List<String>, Date> getStoredRecentContacts()
+    {
+        if(storedRecentContacts != null)
+            return storedRecentContacts;
+
+        storedRecentContacts = new LinkedHashMap<List<String>, Date>();
+
         try
         {
             History history = getHistory();
@@ -684,13 +756,14 @@ else if (propName.equals(STRUCTURE_NAMES[2]))
                     if(recordProvider == null || contact == null)
                         continue;
 
-                    if(after != null
-                        && timestamp != null
-                        && timestamp.before(after))
-                        continue;
+                    List<String> key = Arrays.asList(recordProvider, contact);
+                    Date stored = storedRecentContacts.get(key);
 
-                    if(recordProvider.equals(provider))
-                        res.add(contact);
+                    if(stored == null
+                        || (timestamp != null && timestamp.after(stored)))
+                    {
+                        storedRecentContacts.put(key, timestamp);
+                    }
                 }
             }
         }
@@ -699,7 +772,24 @@ else if (propName.equals(STRUCTURE_NAMES[2]))
             logger.error("cannot create recent_messages history", ex);
         }
 
-        return res;
+        return storedRecentContacts;
+    }
+
+    /**
+     * Records the timestamp of a recent message in the contacts stored in
+     * the recent messages history. Must be called while holding the lock of
+     * <tt>historyID</tt>.
+     *
+     * @param msc the recent message
+     */
+    private void storeRecentContact(ComparableEvtObj msc)
+    {
+        getStoredRecentContacts().put(
+            Arrays.asList(
+                msc.getProtocolProviderService()
+                    .getAccountID().getAccountUniqueID(),
+                msc.getContactAddress()),
+            msc.getTimestamp());
     }
 
     /**
@@ -767,14 +857,10 @@ private History getHistory()
      */
     int getIndex(MessageSourceContact messageSourceContact)
     {
-        synchronized(recentMessages)
-        {
-            for (int i = 0; i < recentMessages.size(); i++)
-                if(recentMessages.get(i).equals(messageSourceContact))
-                    return i;
-
-            return -1;
-        }
+        return recentMessages.indexOf(
+            ComparableEvtObj.getKey(
+                messageSourceContact.getProtocolProviderService(),
+                messageSourceContact.getContactAddress()));
     }
 
     /**
@@ -806,15 +892,12 @@ public void contactPresenceStatusChanged(
         if(recentQuery == null)
             return;
 
-        synchronized(recentMessages)
+        for(ComparableEvtObj msg : recentMessages.getValues())
         {
-            for(ComparableEvtObj msg : recentMessages)
+            if(msg.getContact() != null
+                && msg.getContact().equals(evt.getSourceContact()))
             {
-                if(msg.getContact() != null
-                    && msg.getContact().equals(evt.getSourceContact()))
-                {
-                    recentQuery.updateContactStatus(msg, evt.getNewStatus());
-                }
+                recentQuery.updateContactStatus(msg, evt.getNewStatus());
             }
         }
     }
@@ -841,16 +924,13 @@ public void localUserPresenceChanged(
 
         ComparableEvtObj srcContact = null;
 
-        synchronized(recentMessages)
+        for(ComparableEvtObj msg : recentMessages.getValues())
         {
-            for(ComparableEvtObj msg : recentMessages)
+            if(msg.getRoom() != null
+                && msg.getRoom().equals(evt.getChatRoom()))
             {
-                if(msg.getRoom() != null
-                    && msg.getRoom().equals(evt.getChatRoom()))
-                {
-                    srcContact = msg;
-                    break;
-                }
+                srcContact = msg;
+                break;
             }
         }
 
@@ -894,25 +974,16 @@ private void handle(EventObject obj,
         // check if provider - contact exist update message content
         synchronized(recentMessages)
         {
-            ComparableEvtObj existingMsc = null;
-            for(ComparableEvtObj msc : recentMessages)
-            {
-                if(msc.getProtocolProviderService().equals(provider)
-                    && msc.getContactAddress().equals(id))
-                {
-                    // update
-                    msc.update(obj);
-                    updateRecentMessageToHistory(msc);
-
-                    existingMsc = msc;
-                }
-            }
+            List<Object> key = ComparableEvtObj.getKey(provider, id);
+            ComparableEvtObj existingMsc = recentMessages.get(key);
 
             if(existingMsc != null)
             {
-                Collections.sort(recentMessages);
-                oldestRecentMessage = recentMessages
-                    .get(recentMessages.size() - 1).getTimestamp();
+                // update and move it to its new position
+                existingMsc.update(obj);
+                recentMessages.put(
+                    key, existingMsc, existingMsc.getTimestamp());
+                updateRecentMessageToHistory(existingMsc);
 
                 if(recentQuery != null)
                 {
@@ -925,28 +996,15 @@ private void handle(EventObject obj,
             }
 
             // if missing create source contact
-            // and update recent messages, trim and sort
+            // and update recent messages, trimming the oldest ones
             MessageSourceContact newSourceContact =
                 new MessageSourceContact(obj, MessageSourceService.this);
             newSourceContact.initDetails(obj);
             // we have already checked for duplicate
             ComparableEvtObj newMsg = new ComparableEvtObj(obj);
-            recentMessages.add(newMsg);
-
-            Collections.sort(recentMessages);
-            oldestRecentMessage
-                = recentMessages.get(recentMessages.size() - 1).getTimestamp();
-
-            // trim
-            List<ComparableEvtObj> removedItems = null;
-            if(recentMessages.size() > numberOfMessages)
-            {
-                removedItems = new ArrayList<ComparableEvtObj>(
-                    recentMessages.subList(
-                        numberOfMessages, recentMessages.size()));
-
-                recentMessages.removeAll(removedItems);
-            }
+            List<ComparableEvtObj> removedItems
+                = recentMessages.put(
+                    newMsg.getKey(), newMsg, newMsg.getTimestamp());
 
             // save
             saveRecentMessageToHistory(newMsg);
@@ -956,12 +1014,9 @@ private void handle(EventObject obj,
                 return;
 
             // now fire
-            if(removedItems != null)
+            for(ComparableEvtObj msc : removedItems)
             {
-                for(ComparableEvtObj msc : removedItems)
-                {
-                    recentQuery.fireContactRemoved(msc);
-                }
+                recentQuery.fireContactRemoved(msc);
             }
 
             recentQuery.addQueryResult(newSourceContact);
@@ -975,6 +1030,8 @@ private void saveRecentMessageToHistory(ComparableEvtObj msc)
     {
         synchronized(historyID)
         {
+            storeRecentContact(msc);
+
             // and create it
             try
             {
@@ -1004,9 +1061,81 @@ private void saveRecentMessageToHistory(ComparableEvtObj msc)
     }
 
     /**
-     * Updates recent message in history.
+     * Updates recent message in history. The update is written after a
+     * delay, together with the other updates made meanwhile, so that a
+     * conversation with many messages does not rewrite the history for each
+     * of them.
+     */
+    private void updateRecentMessageToHistory(ComparableEvtObj msg)
+    {
+        synchronized(historyID)
+        {
+            storeRecentContact(msg);
+        }
+
+        synchronized(pendingHistoryUpdates)
+        {
+            if(!pendingHistoryUpdates.add(msg)
+                || historyUpdateTask != null
+                || executor.isShutdown())
+                return;
+
+            historyUpdateTask = executor.schedule(
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        writePendingHistoryUpdates();
+                    }
+                },
+                HISTORY_UPDATE_DELAY,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the recent message updates which are not written yet to the
+     * history.
+     */
+    private void writePendingHistoryUpdates()
+    {
+        List<ComparableEvtObj> updates;
+
+        synchronized(pendingHistoryUpdates)
+        {
+            updates = new ArrayList<ComparableEvtObj>(pendingHistoryUpdates);
+            pendingHistoryUpdates.clear();
+            historyUpdateTask = null;
+        }
+
+        for(ComparableEvtObj msg : updates)
+            writeRecentMessageUpdate(msg);
+    }
+
+    /**
+     * Stops this service. The recent message updates which are not written
+     * yet are written to the history and the executor is shut down.
+     */
+    void stop()
+    {
+        synchronized(pendingHistoryUpdates)
+        {
+            if(historyUpdateTask != null)
+            {
+                historyUpdateTask.cancel(false);
+                historyUpdateTask = null;
+            }
+            executor.shutdown();
+        }
+
+        writePendingHistoryUpdates();
+    }
+
+    /**
+     * Writes the update of a recent message to the history.
      */
-    private void updateRecentMessageToHistory(final ComparableEvtObj msg)
+    private void writeRecentMessageUpdate(final ComparableEvtObj msg)
     {
         synchronized(historyID)
         {
@@ -1240,7 +1369,7 @@ public void contactModified(ContactPropertyChangeEvent evt)
         if(contact == null)
             return;
 
-        for(ComparableEvtObj msc : recentMessages)
+        for(ComparableEvtObj msc : recentMessages.getValues())
         {
             if(contact.equals(msc.getContact()))
             {
@@ -1260,7 +1389,7 @@ public void contactModified(ContactPropertyChangeEvent evt)
      */
     public void metaContactRenamed(MetaContactRenamedEvent evt)
     {
-        for(ComparableEvtObj msc : recentMessages)
+        for(ComparableEvtObj msc : recentMessages.getValues())
         {
             if(evt.getSourceMetaContact().containsContact(msc.getContact()))
             {
@@ -1280,7 +1409,7 @@ public void supportedOperationSetsChanged(ContactCapabilitiesEvent event)
         if(contact == null)
             return;
 
-        for(ComparableEvtObj msc : recentMessages)
+        for(ComparableEvtObj msc : recentMessages.getValues())
         {
             if(contact.equals(msc.getContact()))
             {
@@ -1299,12 +1428,21 @@ public void supportedOperationSetsChanged(ContactCapabilitiesEvent event)
     public void eraseLocallyStoredHistory()
         throws IOException
     {
-        List<ComparableEvtObj> toRemove = null;
-        synchronized(recentMessages)
+        List<ComparableEvtObj> toRemove = recentMessages.clear();
+
+        synchronized(historyID)
         {
-            toRemove = new ArrayList<ComparableEvtObj>(recentMessages);
+            storedRecentContacts = null;
+        }
 
-            recentMessages.clear();
+        synchronized(pendingHistoryUpdates)
+        {
+            pendingHistoryUpdates.clear();
+            if(historyUpdateTask != null)
+            {
+                historyUpdateTask.cancel(false);
+                historyUpdateTask = null;
+            }
         }
 
         if(recentQuery != null)
@@ -1334,17 +1472,13 @@ public void eraseLocallyStoredHistory(MetaContact contact)
                 String id = item.getAddress();
                 ProtocolProviderService provider = item.getProtocolProvider();
 
-                for(ComparableEvtObj msc : recentMessages)
-                {
-                    if(msc.getProtocolProviderService().equals(provider)
-                        && msc.getContactAddress().equals(id))
-                    {
-                        toRemove.add(msc);
-                    }
-                }
-            }
+                ComparableEvtObj msc
+                    = recentMessages.remove(
+                        ComparableEvtObj.getKey(provider, id));
 
-            recentMessages.removeAll(toRemove);
+                if(msc != null)
+                    toRemove.add(msc);
+            }
         }
         if(recentQuery != null)
         {
@@ -1364,7 +1498,7 @@ public void eraseLocallyStoredHistory(ChatRoom room)
         ComparableEvtObj toRemove = null;
         synchronized(recentMessages)
         {
-            for(ComparableEvtObj msg : recentMessages)
+            for(ComparableEvtObj msg : recentMessages.getValues())
             {
                 if(msg.getRoom() != null
                     && msg.getRoom().equals(room))
@@ -1377,7 +1511,7 @@ public void eraseLocallyStoredHistory(ChatRoom room)
             if(toRemove == null)
                 return;
 
-            recentMessages.remove(toRemove);
+            recentMessages.remove(toRemove.getKey());
         }
 
         if(recentQuery != null)
@@ -1387,8 +1521,7 @@ public void eraseLocallyStoredHistory(ChatRoom room)
     /**
      * Object used to cache recent messages.
      */
-    private class ComparableEvtObj
-        implements Comparable<ComparableEvtObj>
+    private static class ComparableEvtObj
     {
         private EventObject eventObject;
 
@@ -1545,20 +1678,25 @@ public EventObject getEventObject()
         }
 
         /**
-         * Compares two ComparableEvtObj.
-         * @param o the object to compare with
-         * @return 0, less than zero, greater than zero, if equals,
-         * less or greater.
+         * The key of this recent message in the recent messages view.
+         * @return the key of this recent message.
          */
-        @Override
-        public int compareTo(ComparableEvtObj o)
+        public List<Object> getKey()
         {
-            if(o == null
-                || o.getTimestamp() == null)
-                return 1;
+            return getKey(ppService, address);
+        }
 
-            return o.getTimestamp()
-                .compareTo(getTimestamp());
+        /**
+         * The key of the recent message of a contact or chat room in the
+         * recent messages view.
+         * @param ppService the protocol provider
+         * @param address the address of the contact or chat room
+         * @return the key of the recent message.
+         */
+        static List<Object> getKey(
+            ProtocolProviderService ppService, String address)
+        {
+            return Arrays.<Object>asList(ppService, address);
         }
 
         /**
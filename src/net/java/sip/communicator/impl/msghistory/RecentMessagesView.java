@@ -0,0 +1,284 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.msghistory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The most recent conversations, at most one per key, ordered by the
+ * timestamp of their last message, the most recent first. Only the given
+ * number of most recent conversations are kept, the older ones are evicted
+ * when newer ones are added.
+ * <p>
+ * The conversations are kept in a concurrent skip list, so that they are read
+ * without locking and a conversation is moved to its new position without
+ * sorting the whole list. Changes are serialized on the view.
+ *
+ * @param <K> the type of the keys identifying a conversation
+ * @param <V> the type of the conversations
+ */
+class RecentMessagesView<K, V>
+{
+    /**
+     * The maximum number of conversations.
+     */
+    private final int capacity;
+
+    /**
+     * The conversations by position.
+     */
+    private final ConcurrentSkipListSet<Position<K, V>> byTime
+        = new ConcurrentSkipListSet<Position<K, V>>();
+
+    /**
+     * The position of every conversation by key.
+     */
+    private final ConcurrentHashMap<K, Position<K, V>> byKey
+        = new ConcurrentHashMap<K, Position<K, V>>();
+
+    /**
+     * The sequence number of the last change, used to order conversations
+     * with the same timestamp in the order they were changed.
+     */
+    private long sequence = 0;
+
+    /**
+     * Creates a view keeping the given number of conversations.
+     *
+     * @param capacity the maximum number of conversations
+     */
+    RecentMessagesView(int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Adds a conversation or moves it to the position of its new timestamp.
+     *
+     * @param key the key of the conversation
+     * @param value the conversation
+     * @param timestamp the timestamp of its last message or <tt>null</tt>
+     * @return the conversations evicted because the view is full, possibly
+     * including <tt>value</tt>
+     */
+    synchronized List<V> put(K key, V value, Date timestamp)
+    {
+        Position<K, V> old = byKey.get(key);
+
+        if (old != null)
+            byTime.remove(old);
+
+        Position<K, V> position
+            = new Position<K, V>(
+                key,
+                value,
+                (timestamp == null) ? 0 : timestamp.getTime(),
+                sequence++);
+
+        byKey.put(key, position);
+        byTime.add(position);
+
+        List<V> evicted = null;
+        while (byKey.size() > capacity)
+        {
+            Position<K, V> last = byTime.pollLast();
+
+            byKey.remove(last.key, last);
+            if (evicted == null)
+                evicted = new ArrayList<V>();
+            evicted.add(last.value);
+        }
+
+        return (evicted == null) ? Collections.<V>emptyList() : evicted;
+    }
+
+    /**
+     * Removes a conversation.
+     *
+     * @param key the key of the conversation
+     * @return the removed conversation or <tt>null</tt> if there was none
+     */
+    synchronized V remove(K key)
+    {
+        Position<K, V> position = byKey.remove(key);
+
+        if (position == null)
+            return null;
+
+        byTime.remove(position);
+        return position.value;
+    }
+
+    /**
+     * Removes all the conversations.
+     *
+     * @return the removed conversations, the most recent first
+     */
+    synchronized List<V> clear()
+    {
+        List<V> values = getValues();
+
+        byTime.clear();
+        byKey.clear();
+        return values;
+    }
+
+    /**
+     * Returns the conversation with the given key.
+     *
+     * @param key the key of the conversation
+     * @return the conversation or <tt>null</tt> if there is none
+     */
+    V get(K key)
+    {
+        Position<K, V> position = byKey.get(key);
+
+        return (position == null) ? null : position.value;
+    }
+
+    /**
+     * Checks whether there is a conversation with the given key.
+     *
+     * @param key the key of the conversation
+     * @return <tt>true</tt> if there is such a conversation
+     */
+    boolean contains(K key)
+    {
+        return byKey.containsKey(key);
+    }
+
+    /**
+     * Returns the index of a conversation, 0 being the most recent one.
+     *
+     * @param key the key of the conversation
+     * @return the index of the conversation or -1 if there is none
+     */
+    int indexOf(K key)
+    {
+        Position<K, V> position = byKey.get(key);
+
+        return (position == null) ? -1 : byTime.headSet(position).size();
+    }
+
+    /**
+     * Returns the conversations, the most recent first.
+     *
+     * @return the conversations
+     */
+    List<V> getValues()
+    {
+        List<V> values = new ArrayList<V>(capacity);
+
+        for (Position<K, V> position : byTime)
+            values.add(position.value);
+        return values;
+    }
+
+    /**
+     * Returns the least recent conversation.
+     *
+     * @return the least recent conversation or <tt>null</tt> if there is none
+     */
+    V getLast()
+    {
+        try
+        {
+            return byTime.last().value;
+        }
+        catch (NoSuchElementException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the timestamp of the least recent conversation.
+     *
+     * @return the timestamp of the least recent conversation or
+     * <tt>null</tt> if there is none
+     */
+    Date getOldestTimestamp()
+    {
+        try
+        {
+            return new Date(byTime.last().timestamp);
+        }
+        catch (NoSuchElementException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the view holds as many conversations as it keeps, in
+     * which case older conversations are not added.
+     *
+     * @return <tt>true</tt> if the view is full
+     */
+    boolean isFull()
+    {
+        return byKey.size() >= capacity;
+    }
+
+    /**
+     * Returns the number of conversations.
+     *
+     * @return the number of conversations
+     */
+    int size()
+    {
+        return byKey.size();
+    }
+
+    /**
+     * The position of a conversation in the view.
+     */
+    private static class Position<K, V>
+        implements Comparable<Position<K, V>>
+    {
+        final K key;
+
+        final V value;
+
+        final long timestamp;
+
+        final long sequence;
+
+        Position(K key, V value, long timestamp, long sequence)
+        {
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+
+        /**
+         * Orders the most recent timestamps first and the conversations with
+         * the same timestamp in the order they were changed.
+         */
+        public int compareTo(Position<K, V> o)
+        {
+            if (timestamp != o.timestamp)
+                return (timestamp > o.timestamp) ? -1 : 1;
+            if (sequence != o.sequence)
+                return (sequence < o.sequence) ? -1 : 1;
+            return 0;
+        }
+    }
+}
@@ -18,6 +18,8 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 import com.google.common.collect.*;
@@ -28,7 +30,11 @@
 
 /**
  * Packet Logging Service implementation dumping logs in
- * pcap(tcpdump/wireshark) format file.
+ * pcap(tcpdump/wireshark) format file, or in pcapng format with one interface
+ * per logging protocol when {@link #PCAPNG_FORMAT_PROPERTY_NAME} is set.
+ * <p>
+ * The packets are written by a single saver thread, which takes all the
+ * queued packets at once and writes them through a reusable buffer.
  *
  * @author Damian Minkov
  */
@@ -50,9 +56,53 @@
     private static final int EVICTING_QUEUE_MAX_SIZE = 1000;
 
     /**
-     * The OutputStream we are currently writing to.
+     * The property which enables writing the files in pcapng format instead
+     * of pcap. The format is checked when the files are opened.
      */
-    private FileOutputStream outputStream = null;
+    public static final String PCAPNG_FORMAT_PROPERTY_NAME
+        = "net.java.sip.communicator.impl.packetlogging.PCAPNG_FORMAT";
+
+    /**
+     * The size of the buffer the packets are written to before they are
+     * written to the file.
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The pcapng block type of a section header block.
+     */
+    private static final int PCAPNG_SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+
+    /**
+     * The pcapng block type of an interface description block.
+     */
+    private static final int PCAPNG_INTERFACE_DESCRIPTION_BLOCK = 0x00000001;
+
+    /**
+     * The pcapng block type of an enhanced packet block.
+     */
+    private static final int PCAPNG_ENHANCED_PACKET_BLOCK = 0x00000006;
+
+    /**
+     * The pcapng option code of the name of an interface.
+     */
+    private static final short PCAPNG_OPTION_IF_NAME = 2;
+
+    /**
+     * The channel of the file we are currently writing to.
+     */
+    private FileChannel channel = null;
+
+    /**
+     * Whether the current file is written in pcapng format.
+     */
+    private boolean pcapng = false;
+
+    /**
+     * The buffer the packets are written to before they are written to the
+     * file. Allocated when the first file is opened.
+     */
+    private ByteBuffer writeBuffer = null;
 
     /**
      * The thread that queues packets and saves them to file.
@@ -145,6 +195,30 @@
                 (byte)0x6e, (byte)0xcc, (byte)0x76, (byte)0xbd  // options
             };
 
+    /**
+     * The ipv4 header of the packet being written, reused for all the packets
+     * by the saver thread.
+     */
+    private final byte[] ipHeader = new byte[ipHeaderTemplate.length];
+
+    /**
+     * The ipv6 header of the packet being written, reused for all the packets
+     * by the saver thread.
+     */
+    private final byte[] ip6Header = new byte[ip6HeaderTemplate.length];
+
+    /**
+     * The udp header of the packet being written, reused for all the packets
+     * by the saver thread.
+     */
+    private final byte[] udpHeader = new byte[udpHeaderTemplate.length];
+
+    /**
+     * The tcp header of the packet being written, reused for all the packets
+     * by the saver thread.
+     */
+    private final byte[] tcpHeader = new byte[tcpHeaderTemplate.length];
+
     /**
      * Using this object to lock and protectd the two counters
      * used for tcp seq and ack numbers.
@@ -188,6 +262,8 @@ private void getFileNames()
         throws Exception
     {
         int fileCount = getConfiguration().getLogfileCount();
+        pcapng = PacketLoggingActivator.getConfigurationService().getBoolean(
+            PCAPNG_FORMAT_PROPERTY_NAME, false);
 
         files = new File[fileCount];
         for(int i = 0; i < fileCount; i++)
@@ -196,7 +272,8 @@ private void getFileNames()
                 = PacketLoggingActivator.getFileAccessService()
                     .getPrivatePersistentFile(
                         new File(PacketLoggingActivator.LOGGING_DIR_NAME,
-                            "jitsi" + i + ".pcap").toString(),
+                            "jitsi" + i + (pcapng ? ".pcapng" : ".pcap"))
+                            .toString(),
                         FileCategory.LOG);
         }
     }
@@ -209,10 +286,10 @@ private void getFileNames()
     private void rotateFiles()
         throws IOException
     {
-        if(outputStream != null)
+        if(channel != null)
         {
-            outputStream.flush();
-            outputStream.close();
+            writeBuffer();
+            channel.close();
         }
 
         for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
@@ -228,9 +305,21 @@ private void rotateFiles()
             }
         }
 
-        outputStream = new FileOutputStream(files[0]);
+        channel = new FileOutputStream(files[0]).getChannel();
         written = 0;
-        createGlobalHeader();
+
+        if (writeBuffer == null)
+        {
+            writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        if (pcapng)
+            createSectionHeader(writeBuffer);
+        else
+            createGlobalHeader(writeBuffer);
+
+        writeBuffer();
     }
 
     /**
@@ -240,68 +329,109 @@ public void stop()
     {
         saverThread.stopRunning();
 
-        if(outputStream != null)
+        synchronized(this)
         {
-            try
-            {
-                outputStream.flush();
-                outputStream.close();
-            }
-            catch(IOException e)
-            {
-                e.printStackTrace();
-            }
-            finally
+            if(channel != null)
             {
-                outputStream = null;
+                try
+                {
+                    writeBuffer();
+                    channel.close();
+                }
+                catch(IOException e)
+                {
+                    e.printStackTrace();
+                }
+                finally
+                {
+                    channel = null;
+                }
             }
         }
     }
 
     /**
      * Creates pcap file global header.
-     * @throws IOException
+     * @param out the buffer to write the header to.
      */
-    private void createGlobalHeader()
-            throws IOException
+    private void createGlobalHeader(ByteBuffer out)
     {
         /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
+        out.putInt(0xa1b2c3d4);
 
         /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
+        out.putShort((short) 2);
 
         /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
+        out.putShort((short) 4);
 
         /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        out.putInt(0);
 
         /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        out.putInt(0);
 
         /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        out.putInt(0xffff);
 
         /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        out.putInt(1);
+    }
+
+    /**
+     * Creates the pcapng section header block followed by an interface
+     * description block for each protocol, the interface ID of a protocol
+     * being its ordinal.
+     * @param out the buffer to write the blocks to.
+     */
+    private void createSectionHeader(ByteBuffer out)
+    {
+        out.putInt(PCAPNG_SECTION_HEADER_BLOCK);
+        out.putInt(28);
+        /* byte-order magic */
+        out.putInt(0x1A2B3C4D);
+        /* major and minor version number */
+        out.putShort((short) 1);
+        out.putShort((short) 0);
+        /* section length, unspecified */
+        out.putLong(-1);
+        out.putInt(28);
+
+        for (ProtocolName protocol : ProtocolName.values())
+        {
+            byte[] name = protocol.name().getBytes();
+            int paddedNameLength = pad(name.length);
+            int blockLength = 20 + 4 + paddedNameLength + 4;
+
+            out.putInt(PCAPNG_INTERFACE_DESCRIPTION_BLOCK);
+            out.putInt(blockLength);
+            /* link type(ethernet) and reserved */
+            out.putShort((short) 1);
+            out.putShort((short) 0);
+            /* max length of captured packets, in octets */
+            out.putInt(0xffff);
+
+            /* if_name option and end of options */
+            out.putShort(PCAPNG_OPTION_IF_NAME);
+            out.putShort((short) name.length);
+            out.put(name);
+            for (int i = name.length; i < paddedNameLength; i++)
+                out.put((byte) 0);
+            out.putInt(0);
+
+            out.putInt(blockLength);
+        }
+    }
+
+    /**
+     * Rounds a length up to a multiple of 4, as pcapng blocks are 32-bit
+     * aligned.
+     * @param length the length to round.
+     * @return <tt>length</tt> rounded up to a multiple of 4.
+     */
+    private static int pad(int length)
+    {
+        return (length + 3) & ~3;
     }
 
     /**
@@ -430,14 +560,46 @@ public PacketLoggingConfiguration getConfiguration()
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Dumps the packets to the output file, opening or rotating the files
+     * if needed. The packets are collected in the write buffer, which is
+     * written to the file when it is full and after the last packet.
      *
-     * @param packet the packet ot save.
-     * @throws Exception when error occurs saving to file stream or when
+     * @param packets the packets to save.
+     * @throws Exception when error occurs saving to file or when
      *  rotating files.
      */
-    private void savePacket(Packet packet)
+    private synchronized void savePackets(List<Packet> packets)
         throws Exception
+    {
+        // open files only if needed
+        if(channel == null)
+        {
+            getFileNames();
+            rotateFiles();// this one opens the file for write
+        }
+
+        long limit = getConfiguration().getLimit();
+
+        for (Packet packet : packets)
+        {
+            if((limit > 0) && (written > limit))
+                rotateFiles();
+
+            savePacket(packet);
+        }
+
+        writeBuffer();
+    }
+
+    /**
+     * Dump the packet to the write buffer.
+     *
+     * @param packet the packet ot save.
+     * @throws IOException when error occurs writing the full buffer to the
+     * file.
+     */
+    private void savePacket(Packet packet)
+        throws IOException
     {
         // if one of the addresses is ipv4 we are using ipv4,
         // local udp addresses come as 0.0.0.0.0....0.0.0 when
@@ -449,7 +611,7 @@ private void savePacket(Packet packet)
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
+            ipHeader = this.ipHeader;
             System.arraycopy(
                     ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(packet.sourceAddress,
@@ -465,7 +627,7 @@ private void savePacket(Packet packet)
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
+            ipHeader = this.ip6Header;
             System.arraycopy(
                     ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
             System.arraycopy(packet.sourceAddress,
@@ -485,7 +647,6 @@ private void savePacket(Packet packet)
         short len;
         if(packet.transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
             transportHeader = udpHeader;
             System.arraycopy(udpHeaderTemplate, 0,
                     udpHeader, 0, udpHeader.length);
@@ -497,7 +658,7 @@ private void savePacket(Packet packet)
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
+            transportHeader = tcpHeader;
             System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
                    0, transportHeader.length);
 
@@ -565,60 +726,94 @@ private void savePacket(Packet packet)
                 ipHeader[6] = (byte)0x06;
         }
 
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
         int feakHeaderLen = fakeEthernetHeader.length +
                 (isIPv4 ? ipv4EtherType : ipv6EtherType).length +
                 ipHeader.length + transportHeader.length;
         int inclLen = packet.packetLength + feakHeaderLen;
         int origLen = inclLen;
 
-        synchronized(this)
+        // the record header and the padding of the pcapng blocks
+        int recordLen = pcapng ? (28 + pad(inclLen) + 4) : (16 + inclLen);
+
+        ByteBuffer out = writeBuffer;
+        if (out.remaining() < recordLen)
         {
-            // open files only if needed
-            if(outputStream == null)
+            writeBuffer();
+
+            // bigger than the whole buffer, use a buffer just for it
+            if (out.capacity() < recordLen)
             {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
+                out = ByteBuffer.allocate(recordLen)
+                    .order(ByteOrder.LITTLE_ENDIAN);
             }
+        }
 
-            long limit = getConfiguration().getLimit();
+        if (pcapng)
+        {
+            long tsUsec = packet.timestamp * 1000;
+
+            out.putInt(PCAPNG_ENHANCED_PACKET_BLOCK);
+            out.putInt(recordLen);
+            out.putInt(packet.protocol.ordinal());
+            out.putInt((int) (tsUsec >>> 32));
+            out.putInt((int) tsUsec);
+            out.putInt(inclLen);
+            out.putInt(origLen);
+        }
+        else
+        {
+            out.putInt((int)(packet.timestamp/1000));
+            out.putInt((int)((packet.timestamp%1000) * 1000));
+            out.putInt(inclLen);
+            out.putInt(origLen);
+        }
 
-            if((limit > 0) && (written > limit))
-                rotateFiles();
+        out.put(fakeEthernetHeader);
+        out.put(isIPv4 ? ipv4EtherType : ipv6EtherType);
+        out.put(ipHeader);
+        out.put(transportHeader);
+        out.put(
+                packet.packetContent,
+                packet.packetOffset,
+                packet.packetLength);
 
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(isIPv4 ? ipv4EtherType : ipv6EtherType);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written += inclLen + 16;
+        if (pcapng)
+        {
+            for (int i = inclLen; i < pad(inclLen); i++)
+                out.put((byte) 0);
+            out.putInt(recordLen);
         }
+
+        if (out != writeBuffer)
+            write(out);
+
+        written += recordLen;
     }
 
     /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
-     * @throws IOException
+     * Writes the content of the write buffer to the current file and clears
+     * it.
+     * @throws IOException if the buffer cannot be written.
+     */
+    private void writeBuffer()
+        throws IOException
+    {
+        if (writeBuffer != null && writeBuffer.position() > 0)
+            write(writeBuffer);
+    }
+
+    /**
+     * Writes the content of a buffer to the current file and clears it.
+     * @param buffer the buffer to write.
+     * @throws IOException if the buffer cannot be written.
      */
-    private void addInt(int d)
+    private void write(ByteBuffer buffer)
         throws IOException
     {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
     }
 
     /**
@@ -686,6 +881,11 @@ private int computeChecksum(byte[] data)
          */
         ProtocolName protocol;
 
+        /**
+         * The time the packet was logged, in milliseconds.
+         */
+        long timestamp;
+
         /**
          * The source address of the packet.
          */
@@ -758,6 +958,7 @@ private Packet(ProtocolName protocol,
                        int packetLength)
         {
             this.protocol = protocol;
+            this.timestamp = System.currentTimeMillis();
             this.sourceAddress
                 = sourceAddress != null ? sourceAddress : new byte[4];
             this.sourcePort = sourcePort;
@@ -805,11 +1006,11 @@ private Packet(ProtocolName protocol,
         @Override
         public void run()
         {
+            List<Packet> pktsToWrite = new ArrayList<Packet>();
+
             stopped = false;
             while(!stopped)
             {
-                Packet pktToSave;
-
                 synchronized(this)
                 {
                     if(pktsToSave.isEmpty())
@@ -824,26 +1025,30 @@ public void run()
                         continue;
                     }
 
-                    pktToSave = pktsToSave.poll();
+                    // take all the queued packets and write them at once
+                    Packet pkt;
+                    while((pkt = pktsToSave.poll()) != null)
+                        pktsToWrite.add(pkt);
                 }
 
-                if(pktToSave != null)
+                try
                 {
-                    try
-                    {
-                        savePacket(pktToSave);
-                    }
-                    catch(Throwable t)
-                    {
-                        /*
-                         * XXX ThreadDeath must be rethrown; otherwise, the
-                         * related Thread will not die.
-                         */
-                        if (t instanceof ThreadDeath)
-                            throw (ThreadDeath) t;
-                        else
-                            logger.error("Error writing packet to file", t);
-                    }
+                    savePackets(pktsToWrite);
+                }
+                catch(Throwable t)
+                {
+                    /*
+                     * XXX ThreadDeath must be rethrown; otherwise, the
+                     * related Thread will not die.
+                     */
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    else
+                        logger.error("Error writing packets to file", t);
+                }
+                finally
+                {
+                    pktsToWrite.clear();
                 }
             }
         }
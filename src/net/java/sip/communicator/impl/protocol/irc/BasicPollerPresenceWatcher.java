@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.protocol.irc;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.util.*;
@@ -42,10 +43,22 @@
     private static final long INITIAL_PRESENCE_WATCHER_DELAY = 10000L;
 
     /**
-     * Period for the presence watcher timer.
+     * Initial period for the presence watcher timer.
      */
     private static final long PRESENCE_WATCHER_PERIOD = 60000L;
 
+    /**
+     * Minimum period for the presence watcher timer, used while many presence
+     * changes are observed.
+     */
+    static final long MIN_PRESENCE_WATCHER_PERIOD = 30000L;
+
+    /**
+     * Maximum period for the presence watcher timer, used while no presence
+     * changes are observed.
+     */
+    static final long MAX_PRESENCE_WATCHER_PERIOD = 300000L;
+
     /**
      * Instance of IRCAPi.
      */
@@ -66,6 +79,38 @@
      */
     private final Set<String> nickWatchList;
 
+    /**
+     * Time at which the presence of a nick was last confirmed by a message
+     * other than an ISON reply.
+     */
+    private final Map<String, Long> confirmed =
+        new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Number of presence changes since the last round of queries.
+     */
+    private final AtomicInteger changes = new AtomicInteger();
+
+    /**
+     * Number of ISON queries sent.
+     */
+    private final AtomicLong queryCount = new AtomicLong();
+
+    /**
+     * Number of bytes sent in ISON queries.
+     */
+    private final AtomicLong queryBytes = new AtomicLong();
+
+    /**
+     * Time at which this watcher was set up.
+     */
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * Current period between two rounds of queries.
+     */
+    private volatile long period = PRESENCE_WATCHER_PERIOD;
+
     /**
      * Constructor.
      *
@@ -115,13 +160,11 @@ private void setUpPresenceWatcher(
         // presence reply listener.
         final List<List<String>> queryList =
             Collections.synchronizedList(new LinkedList<List<String>>());
-        final Timer presenceWatcher = new Timer();
-        irc.addListener(new PresenceReplyListener(presenceWatcher, queryList));
         final PresenceWatcherTask task =
             new PresenceWatcherTask(this.nickWatchList, queryList,
                 serverIdentity);
-        presenceWatcher.schedule(task, INITIAL_PRESENCE_WATCHER_DELAY,
-            PRESENCE_WATCHER_PERIOD);
+        irc.addListener(new PresenceReplyListener(task, queryList));
+        task.schedule(INITIAL_PRESENCE_WATCHER_DELAY);
         LOGGER.trace("Basic Poller presence watcher set up.");
     }
 
@@ -135,14 +178,152 @@ public void add(String nick)
     public void remove(String nick)
     {
         this.nickWatchList.remove(nick);
+        this.confirmed.remove(nick);
+    }
+
+    /**
+     * Get the number of ISON queries sent per minute since this watcher was
+     * set up.
+     *
+     * @return returns the average number of queries per minute
+     */
+    double getQueriesPerMinute()
+    {
+        return perMinute(this.queryCount.get());
+    }
+
+    /**
+     * Get the number of bytes sent per minute in ISON queries since this
+     * watcher was set up.
+     *
+     * @return returns the average number of bytes per minute
+     */
+    double getBytesPerMinute()
+    {
+        return perMinute(this.queryBytes.get());
+    }
+
+    /**
+     * Get the current period between two rounds of presence queries.
+     *
+     * @return returns the current period in milliseconds
+     */
+    long getPeriod()
+    {
+        return this.period;
+    }
+
+    /**
+     * Compute the average per minute of a count since this watcher was set
+     * up.
+     *
+     * @param count the count
+     * @return returns the average per minute
+     */
+    private double perMinute(final long count)
+    {
+        final long elapsed = System.currentTimeMillis() - this.startTime;
+        if (elapsed <= 0)
+        {
+            return 0d;
+        }
+        return count * 60000d / elapsed;
+    }
+
+    /**
+     * Compute the period until the next round of presence queries.
+     *
+     * The period is halved if presence changes were observed since the last
+     * round, such that changes are picked up sooner when contacts are active.
+     * Otherwise the period grows by a quarter, such that a quiet watch list
+     * is polled less and less often.
+     *
+     * @param current the current period
+     * @param changes the number of presence changes since the last round
+     * @return returns the next period, within the bounds
+     *         <tt>MIN_PRESENCE_WATCHER_PERIOD</tt> and
+     *         <tt>MAX_PRESENCE_WATCHER_PERIOD</tt>
+     */
+    static long nextPeriod(final long current, final int changes)
+    {
+        final long next;
+        if (changes > 0)
+        {
+            next = current / 2;
+        }
+        else
+        {
+            next = current + current / 4;
+        }
+        return Math.max(MIN_PRESENCE_WATCHER_PERIOD,
+            Math.min(MAX_PRESENCE_WATCHER_PERIOD, next));
+    }
+
+    /**
+     * Pack nicks into as few ISON queries as possible.
+     *
+     * Every query contains as many nicks as fit in <tt>maxLength</tt>
+     * characters, including the separating spaces.
+     *
+     * @param nicks the nicks to query
+     * @param maxLength the maximum length of the nick list of a query
+     * @return returns the list of nicks for every query
+     */
+    static List<List<String>> packQueries(final Collection<String> nicks,
+        final int maxLength)
+    {
+        final List<List<String>> queries = new LinkedList<List<String>>();
+        List<String> current = new LinkedList<String>();
+        int length = 0;
+        for (String nick : nicks)
+        {
+            final int required =
+                current.isEmpty() ? nick.length() : nick.length() + 1;
+            if (!current.isEmpty() && length + required > maxLength)
+            {
+                queries.add(current);
+                current = new LinkedList<String>();
+                length = nick.length();
+            }
+            else
+            {
+                length += required;
+            }
+            current.add(nick);
+        }
+        if (!current.isEmpty())
+        {
+            queries.add(current);
+        }
+        return queries;
+    }
+
+    /**
+     * Create an ISON query for a list of nicks.
+     *
+     * @param nicks the nicks to query
+     * @return returns the ISON query string
+     */
+    static String createQuery(final List<String> nicks)
+    {
+        final StringBuilder query = new StringBuilder("ISON");
+        for (String nick : nicks)
+        {
+            query.append(' ');
+            query.append(nick);
+        }
+        return query.toString();
     }
 
     /**
      * Task for watching nick presence.
      *
+     * The task reschedules itself after every round, using a period that
+     * adapts to the observed presence changes.
+     *
      * @author Danny van Heumen
      */
-    private final class PresenceWatcherTask extends TimerTask
+    private final class PresenceWatcherTask implements Runnable
     {
         /**
          * Static overhead for ISON response message.
@@ -168,6 +349,16 @@ private final class PresenceWatcherTask extends TimerTask
          */
         private final AtomicReference<String> serverIdentity;
 
+        /**
+         * The next scheduled run of this task.
+         */
+        private ScheduledFuture<?> future;
+
+        /**
+         * Indicates whether the task is stopped.
+         */
+        private boolean stopped = false;
+
         /**
          * Constructor.
          *
@@ -198,11 +389,60 @@ public PresenceWatcherTask(final Set<String> watchList,
             this.serverIdentity = serverIdentity;
         }
 
+        /**
+         * Schedule the next run of this task, unless it is stopped.
+         *
+         * @param delay the delay in milliseconds
+         */
+        synchronized void schedule(final long delay)
+        {
+            if (this.stopped)
+            {
+                return;
+            }
+            this.future =
+                IrcActivator.getSchedulerService().schedule(
+                    PresenceWatcherTask.class.getName(), this, delay);
+        }
+
+        /**
+         * Stop the task and cancel its next run.
+         */
+        synchronized void stop()
+        {
+            this.stopped = true;
+            if (this.future != null)
+            {
+                this.future.cancel(false);
+                this.future = null;
+            }
+        }
+
         /**
          * The implementation of the task.
          */
         @Override
         public void run()
+        {
+            final BasicPollerPresenceWatcher watcher =
+                BasicPollerPresenceWatcher.this;
+            watcher.period =
+                nextPeriod(watcher.period, watcher.changes.getAndSet(0));
+            try
+            {
+                query();
+            }
+            finally
+            {
+                schedule(watcher.period);
+            }
+        }
+
+        /**
+         * Query the presence of the nicks on the watch list that were not
+         * confirmed by other messages during the last period.
+         */
+        private void query()
         {
             if (this.watchList.isEmpty())
             {
@@ -218,54 +458,48 @@ public void run()
             }
             LOGGER
                 .trace("Watch list contains nicks: querying presence status.");
-            final StringBuilder query = new StringBuilder();
+            final BasicPollerPresenceWatcher watcher =
+                BasicPollerPresenceWatcher.this;
             final LinkedList<String> list;
             synchronized (this.watchList)
             {
                 list = new LinkedList<String>(this.watchList);
             }
-            LinkedList<String> nicks = new LinkedList<String>();
+            // Nicks of which the presence was recently confirmed by other
+            // messages do not need to be queried again.
+            final long threshold = System.currentTimeMillis() - watcher.period;
+            final Iterator<String> it = list.iterator();
+            while (it.hasNext())
+            {
+                final Long time = watcher.confirmed.get(it.next());
+                if (time != null && time >= threshold)
+                {
+                    it.remove();
+                }
+            }
             // The ISON reply contains the most overhead, so base the maximum
             // number of nicks limit on that.
             final int maxQueryLength =
                 MessageManager.IRC_PROTOCOL_MAX_MESSAGE_SIZE
                     - MessageManager.SAFETY_NET - overhead();
-            for (String nick : list)
+            for (List<String> nicks : packQueries(list, maxQueryLength))
             {
-                if (query.length() + nick.length() >= maxQueryLength)
-                {
-                    this.queryList.add(nicks);
-                    BasicPollerPresenceWatcher.this.irc
-                        .rawMessage(createQuery(query));
-                    // Initialize new data types
-                    query.delete(0, query.length());
-                    nicks = new LinkedList<String>();
-                }
-                query.append(nick);
-                query.append(' ');
-                nicks.add(nick);
+                final String query = createQuery(nicks);
+                this.queryList.add(nicks);
+                watcher.irc.rawMessage(query);
+                watcher.queryCount.incrementAndGet();
+                // account for the terminating CR LF
+                watcher.queryBytes.addAndGet(query.length() + 2);
             }
-            if (query.length() > 0)
+            if (LOGGER.isDebugEnabled())
             {
-                // Send remaining entries.
-                this.queryList.add(nicks);
-                BasicPollerPresenceWatcher.this.irc
-                    .rawMessage(createQuery(query));
+                LOGGER.debug(String.format("Presence polling: %.1f queries, "
+                    + "%.0f bytes per minute. Next query in %d ms.",
+                    watcher.getQueriesPerMinute(),
+                    watcher.getBytesPerMinute(), watcher.period));
             }
         }
 
-        /**
-         * Create an ISON query from the StringBuilder containing the list of
-         * nicks.
-         *
-         * @param nicklist the list of nicks as a StringBuilder instance
-         * @return returns the ISON query string
-         */
-        private String createQuery(final StringBuilder nicklist)
-        {
-            return "ISON " + nicklist;
-        }
-
         /**
          * Calculate overhead for ISON response message.
          *
@@ -302,9 +536,9 @@ private int overhead()
         private static final int ERR_NOSUCHNICK = 401;
 
         /**
-         * Timer for presence watcher task.
+         * Presence watcher task.
          */
-        private final Timer timer;
+        private final PresenceWatcherTask task;
 
         /**
          * FIFO list containing list of nicks for each query.
@@ -314,19 +548,19 @@ private int overhead()
         /**
          * Constructor.
          *
-         * @param timer Timer for presence watcher task
+         * @param task presence watcher task
          * @param queryList List of executed queries with expected nicks lists.
          */
-        public PresenceReplyListener(final Timer timer,
+        public PresenceReplyListener(final PresenceWatcherTask task,
             final List<List<String>> queryList)
         {
             super(BasicPollerPresenceWatcher.this.irc,
                 BasicPollerPresenceWatcher.this.connectionState);
-            if (timer == null)
+            if (task == null)
             {
-                throw new IllegalArgumentException("timer cannot be null");
+                throw new IllegalArgumentException("task cannot be null");
             }
-            this.timer = timer;
+            this.task = task;
             if (queryList == null)
             {
                 throw new IllegalArgumentException("queryList cannot be null");
@@ -365,12 +599,12 @@ public void onNickChange(final NickMessage msg)
                 if (BasicPollerPresenceWatcher.this.nickWatchList
                     .contains(oldNick))
                 {
-                    update(oldNick, IrcStatusEnum.OFFLINE);
+                    confirm(oldNick, IrcStatusEnum.OFFLINE);
                 }
                 if (BasicPollerPresenceWatcher.this.nickWatchList
                     .contains(newNick))
                 {
-                    update(newNick, IrcStatusEnum.ONLINE);
+                    confirm(newNick, IrcStatusEnum.ONLINE);
                 }
             }
         }
@@ -423,7 +657,7 @@ public void onServerNumericMessage(final ServerNumericMessage msg)
                     return;
                 }
                 final String errNick = errortext.substring(0, idx);
-                update(errNick, IrcStatusEnum.OFFLINE);
+                confirm(errNick, IrcStatusEnum.OFFLINE);
                 break;
             default:
                 break;
@@ -444,7 +678,7 @@ public void onUserPrivMessage(final UserPrivMsg msg)
                 return;
             }
             final IRCUser user = msg.getSource();
-            update(user.getNick(), IrcStatusEnum.ONLINE);
+            confirm(user.getNick(), IrcStatusEnum.ONLINE);
         }
 
         /**
@@ -461,7 +695,7 @@ public void onUserNotice(final UserNotice msg)
                 return;
             }
             final IRCUser user = msg.getSource();
-            update(user.getNick(), IrcStatusEnum.ONLINE);
+            confirm(user.getNick(), IrcStatusEnum.ONLINE);
         }
 
         /**
@@ -478,7 +712,7 @@ public void onUserAction(final UserActionMsg msg)
                 return;
             }
             final IRCUser user = msg.getSource();
-            update(user.getNick(), IrcStatusEnum.ONLINE);
+            confirm(user.getNick(), IrcStatusEnum.ONLINE);
         }
 
         /**
@@ -492,7 +726,7 @@ public void onChannelJoin(final ChanJoinMessage msg)
                 return;
             }
             final String user = msg.getSource().getNick();
-            update(user, IrcStatusEnum.ONLINE);
+            confirm(user, IrcStatusEnum.ONLINE);
         }
 
         /**
@@ -512,12 +746,12 @@ public void onUserQuit(final QuitMessage msg)
             if (localUser(user))
             {
                 // Stop presence watcher task.
-                this.timer.cancel();
+                this.task.stop();
                 updateAll(IrcStatusEnum.OFFLINE);
             }
             else
             {
-                update(user, IrcStatusEnum.OFFLINE);
+                confirm(user, IrcStatusEnum.OFFLINE);
             }
         }
 
@@ -531,7 +765,7 @@ public void onError(final ErrorMessage msg)
         {
             super.onError(msg);
             // Stop presence watcher task.
-            this.timer.cancel();
+            this.task.stop();
             updateAll(IrcStatusEnum.OFFLINE);
         }
 
@@ -545,7 +779,7 @@ public void onClientError(ClientErrorMessage msg)
         {
             super.onClientError(msg);
             // Stop presence watcher task.
-            this.timer.cancel();
+            this.task.stop();
             updateAll(IrcStatusEnum.OFFLINE);
         }
 
@@ -562,8 +796,30 @@ private void update(final String nick, final IrcStatusEnum status)
             {
                 return;
             }
-            BasicPollerPresenceWatcher.this.operationSet
-                .updateNickContactPresence(nick, status);
+            if (BasicPollerPresenceWatcher.this.operationSet
+                .updateNickContactPresence(nick, status))
+            {
+                BasicPollerPresenceWatcher.this.changes.incrementAndGet();
+            }
+        }
+
+        /**
+         * Update the status of a single nick based on a message other than an
+         * ISON reply, and remember the confirmation such that the nick is not
+         * queried again during the next round.
+         *
+         * @param nick the nick to update
+         * @param status the new status
+         */
+        private void confirm(final String nick, final IrcStatusEnum status)
+        {
+            if (!BasicPollerPresenceWatcher.this.nickWatchList.contains(nick))
+            {
+                return;
+            }
+            BasicPollerPresenceWatcher.this.confirmed.put(nick,
+                System.currentTimeMillis());
+            update(nick, status);
         }
 
         /**
@@ -19,6 +19,7 @@
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.impl.protocol.irc.ModeParser.ModeEntry;
 import net.java.sip.communicator.impl.protocol.irc.exception.*;
@@ -864,9 +865,10 @@ public void onServerNumericMessage(final ServerNumericMessage msg)
         private final ChatRoomIrcImpl chatroom;
 
         /**
-         * Presence task timer.
+         * Scheduled presence task, or <tt>null</tt> if the periodic presence
+         * watcher is not active.
          */
-        private final Timer presenceTaskTimer = new Timer();
+        private ScheduledFuture<?> presenceTask;
 
         /**
          * Constructor. Instantiate listener for the provided chat room.
@@ -905,7 +907,7 @@ private ChatRoomListener(final ChatRoomIrcImpl chatroom,
          * Create periodic task for updating channel presence statuses.
          */
         private void createPeriodicPresenceWatcher() {
-            final TimerTask task = new TimerTask()
+            final Runnable task = new Runnable()
             {
                 @Override
                 public void run()
@@ -913,12 +915,26 @@ public void run()
                     irc.rawMessage("WHO " + chatroom.getIdentifier());
                 }
             };
-            this.presenceTaskTimer.schedule(task, TASK_INITIAL_DELAY,
-                TASK_PERIOD);
+            this.presenceTask =
+                IrcActivator.getSchedulerService().scheduleWithFixedDelay(
+                    ChatRoomListener.class.getName(), task,
+                    TASK_INITIAL_DELAY, TASK_PERIOD);
             LOGGER.debug("Scheduled periodic task for querying member presence "
                 + "for channel " + this.chatroom.getIdentifier());
         }
 
+        /**
+         * Cancel the periodic task for updating channel presence statuses, if
+         * it is active.
+         */
+        private void cancelPresenceTask()
+        {
+            if (this.presenceTask != null)
+            {
+                this.presenceTask.cancel(false);
+            }
+        }
+
         /**
          * Event in case of topic change.
          *
@@ -1158,7 +1174,7 @@ public void onUserQuit(final QuitMessage msg)
             final String user = msg.getSource().getNick();
             if (localUser(user))
             {
-                this.presenceTaskTimer.cancel();
+                cancelPresenceTask();
             }
             else
             {
@@ -1181,7 +1197,7 @@ public void onUserQuit(final QuitMessage msg)
         @Override
         public void onError(final ErrorMessage msg)
         {
-            this.presenceTaskTimer.cancel();
+            cancelPresenceTask();
             super.onError(msg);
         }
 
@@ -1192,7 +1208,7 @@ public void onError(final ErrorMessage msg)
         @Override
         public void onClientError(final ClientErrorMessage msg)
         {
-            this.presenceTaskTimer.cancel();
+            cancelPresenceTask();
             super.onClientError(msg);
         }
 
@@ -1349,7 +1365,7 @@ private void updateMemberPresence(ChatRoomMemberIrcImpl member,
          */
         private void leaveChatRoom()
         {
-            this.presenceTaskTimer.cancel();
+            cancelPresenceTask();
             this.irc.deleteListener(this);
             ChannelManager.this.joined.remove(this.chatroom.getIdentifier());
             LOGGER.debug("Leaving chat room " + this.chatroom.getIdentifier()
@@ -82,6 +82,11 @@
      */
     private static ConfigurationService configService;
 
+    /**
+     * Scheduler Service instance.
+     */
+    private static SchedulerService schedulerService;
+
     /**
      * Called when this bundle is started. In here we'll export the
      * IRC ProtocolProviderFactory implementation so that it could be
@@ -229,4 +234,23 @@ public static ConfigurationService getConfigurationService()
         }
         return configService;
     }
+
+    /**
+     * Return the scheduler service shared by all the bundles.
+     *
+     * @return the Scheduler service
+     */
+    public static SchedulerService getSchedulerService()
+    {
+        if (schedulerService == null)
+        {
+            schedulerService =
+                ServiceUtils.getService(bundleContext, SchedulerService.class);
+            if (schedulerService == null)
+            {
+                schedulerService = UtilActivator.getSchedulerService();
+            }
+        }
+        return schedulerService;
+    }
 }
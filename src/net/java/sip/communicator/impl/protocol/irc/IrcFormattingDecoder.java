@@ -0,0 +1,519 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.irc;
+
+import org.apache.commons.lang3.*;
+
+/**
+ * Streaming decoder that converts the mIRC formatting control codes of an IRC
+ * message into HTML in a single pass.
+ *
+ * The active bold, italics and underline formatting is tracked in a bit set,
+ * and the order in which formatting was applied, which is needed to nest the
+ * HTML tags correctly, is kept in an array of encoded entries. All HTML tags
+ * and entities are computed once, so that decoding does not create
+ * intermediate strings. Messages without control codes or characters that
+ * need escaping are returned as is.
+ *
+ * The output is the same as the one produced by a {@link FormattedTextBuilder}
+ * with {@link ControlChar} instances. An instance reuses its output buffer and
+ * must not be used concurrently.
+ */
+public class IrcFormattingDecoder
+{
+    /**
+     * Entry and bit set value for bold formatting.
+     */
+    private static final int BOLD = 1;
+
+    /**
+     * Entry and bit set value for italics formatting.
+     */
+    private static final int ITALICS = 2;
+
+    /**
+     * Entry and bit set value for underline formatting.
+     */
+    private static final int UNDERLINE = 4;
+
+    /**
+     * Flag that marks a color entry. The foreground color is stored in bits
+     * 5-8 and the background color in bits 0-4 of the entry.
+     */
+    private static final int COLOR = 0x200;
+
+    /**
+     * Background value of a color entry without background color.
+     */
+    private static final int NO_BACKGROUND = 16;
+
+    /**
+     * The available colors.
+     */
+    private static final Color[] COLORS = Color.values();
+
+    /**
+     * HTML start tags of the color entries, indexed by foreground and
+     * background.
+     */
+    private static final String[][] COLOR_START_TAGS =
+        new String[COLORS.length][COLORS.length + 1];
+
+    /**
+     * HTML end tag of the color entries.
+     */
+    private static final String COLOR_END_TAG =
+        new ControlChar.ColorFormat(null, null).getHtmlEnd();
+
+    /**
+     * Highest character for which an HTML entity exists.
+     */
+    private static final char MAX_ESCAPED_CHAR = '\u2666';
+
+    /**
+     * HTML entities of the characters up to <tt>MAX_ESCAPED_CHAR</tt>, or
+     * <tt>null</tt> for the characters that are not escaped.
+     */
+    private static final String[] ENTITIES = new String[MAX_ESCAPED_CHAR + 1];
+
+    static
+    {
+        for (int fg = 0; fg < COLORS.length; fg++)
+        {
+            for (int bg = 0; bg < COLORS.length; bg++)
+            {
+                COLOR_START_TAGS[fg][bg] =
+                    new ControlChar.ColorFormat(COLORS[fg], COLORS[bg])
+                        .getHtmlStart();
+            }
+            COLOR_START_TAGS[fg][NO_BACKGROUND] =
+                new ControlChar.ColorFormat(COLORS[fg], null).getHtmlStart();
+        }
+        for (char c = 0; c <= MAX_ESCAPED_CHAR; c++)
+        {
+            final String value = String.valueOf(c);
+            final String escaped = StringEscapeUtils.escapeHtml4(value);
+            if (!value.equals(escaped))
+            {
+                ENTITIES[c] = escaped;
+            }
+        }
+    }
+
+    /**
+     * Decoder instance of every thread, used by {@link #decodeToHtml(String)}.
+     */
+    private static final ThreadLocal<IrcFormattingDecoder> DECODERS =
+        new ThreadLocal<IrcFormattingDecoder>()
+        {
+            @Override
+            protected IrcFormattingDecoder initialValue()
+            {
+                return new IrcFormattingDecoder();
+            }
+        };
+
+    /**
+     * Reusable output buffer.
+     */
+    private final StringBuilder output = new StringBuilder();
+
+    /**
+     * Bit set of the active bold, italics and underline formatting.
+     */
+    private int active;
+
+    /**
+     * Applied formatting entries, in order of application.
+     */
+    private int[] stack = new int[8];
+
+    /**
+     * Number of applied formatting entries.
+     */
+    private int size;
+
+    /**
+     * Buffer for the entries that are reapplied after a cancellation.
+     */
+    private int[] rewind = new int[8];
+
+    /**
+     * Convert the control codes of an IRC message to HTML, using a decoder
+     * owned by the current thread.
+     *
+     * @param text the message
+     * @return returns the HTML message or <tt>null</tt> if <tt>text</tt> is
+     *         <tt>null</tt>
+     */
+    public static String decodeToHtml(final String text)
+    {
+        return DECODERS.get().decode(text);
+    }
+
+    /**
+     * Convert the control codes of an IRC message to HTML.
+     *
+     * @param text the message
+     * @return returns the HTML message or <tt>null</tt> if <tt>text</tt> is
+     *         <tt>null</tt>
+     */
+    public String decode(final String text)
+    {
+        if (text == null)
+        {
+            return null;
+        }
+        final int start = firstSpecialChar(text);
+        if (start == text.length())
+        {
+            return text;
+        }
+        this.output.setLength(0);
+        this.output.append(text, 0, start);
+        decode(text, start, this.output);
+        final String result = this.output.toString();
+        if (this.output.capacity() > 8192)
+        {
+            // do not hold on to the buffer of an exceptionally long message
+            this.output.setLength(0);
+            this.output.trimToSize();
+        }
+        return result;
+    }
+
+    /**
+     * Convert the control codes of an IRC message to HTML and append the
+     * result to the given builder.
+     *
+     * @param text the message
+     * @param out the builder to append to
+     */
+    public void decode(final CharSequence text, final StringBuilder out)
+    {
+        decode(text, 0, out);
+    }
+
+    /**
+     * Convert the control codes of an IRC message to HTML, starting at an
+     * offset, and append the result to the given builder.
+     *
+     * @param text the message
+     * @param offset the offset at which to start decoding
+     * @param out the builder to append to
+     */
+    private void decode(final CharSequence text, final int offset,
+        final StringBuilder out)
+    {
+        this.active = 0;
+        this.size = 0;
+        final int length = text.length();
+        for (int i = offset; i < length; i++)
+        {
+            final char c = text.charAt(i);
+            switch (c)
+            {
+            case ControlChar.Bold.CODE:
+                toggle(BOLD, out);
+                break;
+            case ControlChar.Italics.CODE:
+                toggle(ITALICS, out);
+                break;
+            case ControlChar.Underline.CODE:
+                toggle(UNDERLINE, out);
+                break;
+            case ControlChar.ColorFormat.CODE:
+                final int foreground = parseColor(text, i + 1);
+                if (foreground < 0)
+                {
+                    cancelColors(out);
+                    break;
+                }
+                i += 2;
+                int background = NO_BACKGROUND;
+                if (i + 1 < length && text.charAt(i + 1) == ',')
+                {
+                    final int bg = parseColor(text, i + 2);
+                    if (bg >= 0)
+                    {
+                        background = bg;
+                        i += 3;
+                    }
+                }
+                apply(COLOR | foreground << 5 | background, out);
+                break;
+            case ControlChar.Normal.CODE:
+                cancelAll(out);
+                break;
+            default:
+                final String entity =
+                    c <= MAX_ESCAPED_CHAR ? ENTITIES[c] : null;
+                if (entity == null)
+                {
+                    out.append(c);
+                }
+                else
+                {
+                    out.append(entity);
+                }
+                break;
+            }
+        }
+        cancelAll(out);
+    }
+
+    /**
+     * Find the first character of a message that is a control code or needs
+     * escaping.
+     *
+     * @param text the message
+     * @return returns the index of the first such character, or the length of
+     *         the message if there is none
+     */
+    private static int firstSpecialChar(final String text)
+    {
+        final int length = text.length();
+        for (int i = 0; i < length; i++)
+        {
+            final char c = text.charAt(i);
+            if (c <= MAX_ESCAPED_CHAR && ENTITIES[c] != null)
+            {
+                return i;
+            }
+            switch (c)
+            {
+            case ControlChar.Bold.CODE:
+            case ControlChar.Italics.CODE:
+            case ControlChar.Underline.CODE:
+            case ControlChar.ColorFormat.CODE:
+            case ControlChar.Normal.CODE:
+                return i;
+            default:
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Parse a two digit color code.
+     *
+     * Like {@link Integer#parseInt(String)}, which parsed color codes before,
+     * the first character may be a sign: "+9" is color 9 and "-0" is color
+     * 0. The other negative codes, such as "-1", made that parser fail with
+     * an exception and are not color codes.
+     *
+     * @param text the message
+     * @param index the index of the first digit
+     * @return returns the color index, or -1 if there is no color code at the
+     *         index
+     */
+    private static int parseColor(final CharSequence text, final int index)
+    {
+        if (index + 1 >= text.length())
+        {
+            return -1;
+        }
+        final char first = text.charAt(index);
+        final boolean signed = first == '+' || first == '-';
+        final int high = signed ? 0 : Character.digit(first, 10);
+        final int low = Character.digit(text.charAt(index + 1), 10);
+        if (high < 0 || low < 0 || (first == '-' && low != 0))
+        {
+            return -1;
+        }
+        return (high * 10 + low) % COLORS.length;
+    }
+
+    /**
+     * Apply bold, italics or underline formatting if it is not active, or
+     * cancel it otherwise.
+     *
+     * @param flag the formatting
+     * @param out the output
+     */
+    private void toggle(final int flag, final StringBuilder out)
+    {
+        if ((this.active & flag) == 0)
+        {
+            apply(flag, out);
+        }
+        else
+        {
+            cancel(flag, out);
+        }
+    }
+
+    /**
+     * Apply formatting.
+     *
+     * @param entry the formatting entry
+     * @param out the output
+     */
+    private void apply(final int entry, final StringBuilder out)
+    {
+        if (this.size == this.stack.length)
+        {
+            final int[] grown = new int[this.size * 2];
+            System.arraycopy(this.stack, 0, grown, 0, this.size);
+            this.stack = grown;
+        }
+        this.stack[this.size++] = entry;
+        if ((entry & COLOR) == 0)
+        {
+            this.active |= entry;
+        }
+        out.append(startTag(entry));
+    }
+
+    /**
+     * Cancel the most recently applied occurrence of bold, italics or
+     * underline formatting. The formatting applied after it is closed and
+     * reapplied, so that the HTML tags stay properly nested.
+     *
+     * @param flag the formatting
+     * @param out the output
+     */
+    private void cancel(final int flag, final StringBuilder out)
+    {
+        int rewound = 0;
+        while (this.size > 0)
+        {
+            final int entry = this.stack[--this.size];
+            out.append(endTag(entry));
+            if (entry == flag)
+            {
+                break;
+            }
+            rewound = push(rewound, entry);
+        }
+        this.active &= ~flag;
+        reapply(rewound, out);
+    }
+
+    /**
+     * Cancel all color formatting. The other formatting is closed and
+     * reapplied, so that the HTML tags stay properly nested.
+     *
+     * @param out the output
+     */
+    private void cancelColors(final StringBuilder out)
+    {
+        int rewound = 0;
+        while (this.size > 0)
+        {
+            final int entry = this.stack[--this.size];
+            out.append(endTag(entry));
+            if ((entry & COLOR) == 0)
+            {
+                rewound = push(rewound, entry);
+            }
+        }
+        this.active = 0;
+        reapply(rewound, out);
+    }
+
+    /**
+     * Cancel all formatting.
+     *
+     * @param out the output
+     */
+    private void cancelAll(final StringBuilder out)
+    {
+        while (this.size > 0)
+        {
+            out.append(endTag(this.stack[--this.size]));
+        }
+        this.active = 0;
+    }
+
+    /**
+     * Push an entry onto the rewind buffer.
+     *
+     * @param count the number of entries in the rewind buffer
+     * @param entry the entry
+     * @return returns the new number of entries in the rewind buffer
+     */
+    private int push(final int count, final int entry)
+    {
+        if (count == this.rewind.length)
+        {
+            final int[] grown = new int[count * 2];
+            System.arraycopy(this.rewind, 0, grown, 0, count);
+            this.rewind = grown;
+        }
+        this.rewind[count] = entry;
+        return count + 1;
+    }
+
+    /**
+     * Reapply the entries of the rewind buffer, in their original order.
+     *
+     * @param count the number of entries in the rewind buffer
+     * @param out the output
+     */
+    private void reapply(final int count, final StringBuilder out)
+    {
+        for (int i = count - 1; i >= 0; i--)
+        {
+            apply(this.rewind[i], out);
+        }
+    }
+
+    /**
+     * Get the HTML start tag of a formatting entry.
+     *
+     * @param entry the entry
+     * @return returns the HTML start tag
+     */
+    private static String startTag(final int entry)
+    {
+        switch (entry)
+        {
+        case BOLD:
+            return "<b>";
+        case ITALICS:
+            return "<i>";
+        case UNDERLINE:
+            return "<u>";
+        default:
+            return COLOR_START_TAGS[(entry >> 5) & 0xF][entry & 0x1F];
+        }
+    }
+
+    /**
+     * Get the HTML end tag of a formatting entry.
+     *
+     * @param entry the entry
+     * @return returns the HTML end tag
+     */
+    private static String endTag(final int entry)
+    {
+        switch (entry)
+        {
+        case BOLD:
+            return "</b>";
+        case ITALICS:
+            return "</i>";
+        case UNDERLINE:
+            return "</u>";
+        default:
+            return COLOR_END_TAG;
+        }
+    }
+}
@@ -629,10 +629,15 @@ Contact findOrCreateContactByID(final String id)
     /**
      * Update presence based for user's nick.
      *
+     * Only actual changes are processed: if the contact already has the new
+     * status, no presence status change event is fired.
+     *
      * @param nick the nick
      * @param newStatus the new status
+     * @return returns <tt>true</tt> if the presence status of the contact
+     *         changed, or <tt>false</tt> otherwise
      */
-    void updateNickContactPresence(final String nick,
+    boolean updateNickContactPresence(final String nick,
         final PresenceStatus newStatus)
     {
         LOGGER.trace("Received presence update for nick '" + nick
@@ -642,7 +647,7 @@ void updateNickContactPresence(final String nick,
         {
             LOGGER.trace("null contact instance found: presence will not be "
                 + "processed.");
-            return;
+            return false;
         }
         if (!(contact instanceof ContactIrcImpl))
         {
@@ -652,8 +657,13 @@ void updateNickContactPresence(final String nick,
         final ContactIrcImpl contactIrc = (ContactIrcImpl) contact;
         final ContactGroup group = contact.getParentContactGroup();
         final PresenceStatus previous = contactIrc.getPresenceStatus();
+        if (newStatus.equals(previous))
+        {
+            return false;
+        }
         contactIrc.setPresenceStatus(newStatus);
         fireContactPresenceStatusChangeEvent(contact, group, previous);
+        return true;
     }
 
     /**
@@ -179,11 +179,12 @@ public List<String> getList()
     private static void createCleanUpJob(
         final Container<List<String>> channellist)
     {
-        final Timer cleanUpJob = new Timer();
         final long timestamp = channellist.getTimestamp();
-        cleanUpJob.schedule(new ChannelListCacheCleanUpTask(channellist,
-            timestamp), CHAT_ROOM_LIST_CACHE_EXPIRATION
-            / RATIO_MILLISECONDS_TO_NANOSECONDS + CACHE_CLEAN_UP_DELAY);
+        IrcActivator.getSchedulerService().schedule(
+            ChannelListCacheCleanUpTask.class.getName(),
+            new ChannelListCacheCleanUpTask(channellist, timestamp),
+            CHAT_ROOM_LIST_CACHE_EXPIRATION
+                / RATIO_MILLISECONDS_TO_NANOSECONDS + CACHE_CLEAN_UP_DELAY);
     }
 
     /**
@@ -192,7 +193,7 @@ private static void createCleanUpJob(
      * @author Danny van Heumen
      */
     private static final class ChannelListCacheCleanUpTask
-        extends TimerTask
+        implements Runnable
     {
         /**
          * Expected timestamp on which the list cache was created. It is used as
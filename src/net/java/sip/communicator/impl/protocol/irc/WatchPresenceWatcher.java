@@ -115,7 +115,8 @@ private static void setUpWatch(final IRCApi irc,
             // cut off list to maximum number of entries allowed by server
             current = current.subList(0, maxListSize);
         }
-        final int maxLength = 510 - WATCH_ADD_CMD_STATIC_OVERHEAD;
+        final int maxLength = MessageManager.IRC_PROTOCOL_MAX_MESSAGE_SIZE
+            - WATCH_ADD_CMD_STATIC_OVERHEAD;
         final StringBuilder query = new StringBuilder();
         for (String nick : current)
         {
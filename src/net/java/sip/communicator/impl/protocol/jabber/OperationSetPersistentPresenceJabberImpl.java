@@ -2086,62 +2086,45 @@ public void parseContactPhotoPresence(Stanza packet)
         {
             return;
         }
-        try
+        StandardExtensionElement photoElement
+            = defaultPacketExtension.getFirstElement("photo");
+        if (photoElement == null)
+        {
+            return;
+        }
+
+        // If this presence packet has a photo tag with a SHA-1 hash
+        // which differs from the current avatar SHA-1 hash, then Jitsi
+        // retrieves the new avatar image and updates this contact image
+        // in the contact list.
+        String packetPhotoSHA1 = photoElement.getText();
+        if(packetPhotoSHA1 != null
+                && !packetPhotoSHA1.equals(
+                    VCardTempXUpdatePresenceExtension.getImageSha1(
+                        currentAvatar))
+          )
         {
-            StandardExtensionElement photoElement
-                = defaultPacketExtension.getFirstElement("photo");
-            if (photoElement == null)
+            // If there is an avatar image, retrieves it unless it is
+            // the cached one. The image retriever fires the change.
+            if(packetPhotoSHA1.length() != 0)
             {
+                ssContactList.addContactForImageUpdate(
+                    sourceContact, packetPhotoSHA1);
                 return;
             }
 
-            // If this presence packet has a photo tag with a SHA-1 hash
-            // which differs from the current avatar SHA-1 hash, then Jitsi
-            // retrieves the new avatar image and updates this contact image
-            // in the contact list.
-            String packetPhotoSHA1 = photoElement.getText();
-            if(packetPhotoSHA1 != null
-                    && !packetPhotoSHA1.equals(
-                        VCardTempXUpdatePresenceExtension.getImageSha1(
-                            currentAvatar))
-              )
-            {
-                byte[] newAvatar = null;
-
-                // If there is an avatar image, retrieves it.
-                if(packetPhotoSHA1.length() != 0)
-                {
-                    // Retrieves the new contact avatar image.
-                    VCardManager manager = VCardManager.getInstanceFor(
-                        parentProvider.getConnection());
-                    VCard vCard = manager.loadVCard(userID);
-                    newAvatar = vCard.getAvatar();
-                }
-                // Else removes the current avatar image, since the contact
-                // has removed it from the server.
-                else
-                {
-                    newAvatar = new byte[0];
-                }
-
-                // Sets the new avatar image to the Jitsi contact.
-                sourceContact.setImage(newAvatar);
-                // Fires a property change event to update the contact list.
-                this.fireContactPropertyChangeEvent(
-                    ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                    sourceContact,
-                    currentAvatar,
-                    newAvatar);
-            }
-        }
-        catch(XMPPException
-            | InterruptedException
-            | NotConnectedException
-            | NoResponseException ex)
-        {
-            logger.info("Cannot retrieve vCard from: " + packet.getFrom());
-            if(logger.isTraceEnabled())
-                logger.trace("vCard retrieval exception was: ", ex);
+            // Else removes the current avatar image, since the contact
+            // has removed it from the server.
+            byte[] newAvatar = new byte[0];
+
+            // Sets the new avatar image to the Jitsi contact.
+            sourceContact.setImage(newAvatar);
+            // Fires a property change event to update the contact list.
+            this.fireContactPropertyChangeEvent(
+                ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                sourceContact,
+                currentAvatar,
+                newAvatar);
         }
     }
 
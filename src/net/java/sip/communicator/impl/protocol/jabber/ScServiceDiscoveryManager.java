@@ -17,6 +17,7 @@
  */
 package net.java.sip.communicator.impl.protocol.jabber;
 
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -25,6 +26,7 @@
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.util.*;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.SmackException.*;
@@ -120,6 +122,48 @@
     private static String entityNode
         = OSUtils.IS_ANDROID ? "http://android.jitsi.org" : "http://jitsi.org";
 
+    /**
+     * The name of the file in the cache directory storing the Caps
+     * information of the known nodes.
+     */
+    private static final String CAPS_STORE_FILE_NAME = "caps.dat";
+
+    /**
+     * The store of the Caps information shared by all the connections.
+     */
+    private static CapsStore capsStore;
+
+    /**
+     * Returns the store of the Caps information shared by all the
+     * connections, creating it the first time.
+     *
+     * @param configService the current configuration service.
+     * @return the store of the Caps information
+     */
+    private static synchronized CapsStore getCapsStore(
+        ConfigurationService configService)
+    {
+        if (capsStore == null)
+        {
+            File file = null;
+
+            try
+            {
+                file
+                    = UtilActivator.getFileAccessService()
+                        .getPrivatePersistentFile(
+                            CAPS_STORE_FILE_NAME, FileCategory.CACHE);
+            }
+            catch (Exception e)
+            {
+                logger.warn(
+                    "Failed to get the caps store file, caps are kept in"
+                        + " memory only", e);
+            }
+            capsStore = new CapsStore(configService, file);
+        }
+        return capsStore;
+    }
 
     /**
      * We need to call this before creating any xmpp connection to be sure
@@ -202,8 +246,7 @@ public ScServiceDiscoveryManager(
         // For every XMPPConnection, add one EntityCapsManager.
         this.capsManager = EntityCapsManager.getInstanceFor(connection);
         this.capsManager.setEntityNode(entityNode);
-        EntityCapsManager.setPersistentCache(
-            new CapsConfigurationPersistence(configService));
+        EntityCapsManager.setPersistentCache(getCapsStore(configService));
         connection.addAsyncStanzaListener(
             this, new StanzaTypeFilter(Presence.class));
     }
@@ -18,6 +18,9 @@
 package net.java.sip.communicator.impl.protocol.jabber;
 
 import java.util.*;
+import java.util.concurrent.*;
+
+import org.jitsi.xmpp.extensions.vcardavatar.*;
 
 import net.java.sip.communicator.service.customavatar.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -64,6 +67,19 @@
     private static final Logger logger =
         Logger.getLogger(ServerStoredContactListJabberImpl.class);
 
+    /**
+     * The name of the property holding the maximum number of contact images
+     * retrieved at the same time.
+     */
+    public static final String AVATAR_RETRIEVERS_PROPERTY
+        = "net.java.sip.communicator.impl.protocol.jabber.AVATAR_RETRIEVERS";
+
+    /**
+     * The default maximum number of contact images retrieved at the same
+     * time.
+     */
+    private static final int DEFAULT_AVATAR_RETRIEVERS = 4;
+
     /**
      * The jabber list that we encapsulate
      */
@@ -1014,10 +1030,13 @@ void sendInitialStatus()
      */
     void cleanup()
     {
-        if(imageRetriever != null)
+        synchronized (this)
         {
-            imageRetriever.quit();
-            imageRetriever = null;
+            if(imageRetriever != null)
+            {
+                imageRetriever.quit();
+                imageRetriever = null;
+            }
         }
 
         if(this.roster != null)
@@ -1317,18 +1336,30 @@ void fireContactResolved( ContactGroup parentGroup,
      * @param contact ContactJabberImpl
      */
     protected void addContactForImageUpdate(ContactJabberImpl contact)
+    {
+        addContactForImageUpdate(contact, null);
+    }
+
+    /**
+     * Adds a contact which image is missing or has changed for image update.
+     * When the SHA-1 hash of the new image is known, the image is only
+     * requested from the server if it is not the cached one.
+     *
+     * @param contact ContactJabberImpl
+     * @param photoHash the SHA-1 hash of the avatar the contact announced in
+     * its presence or <tt>null</tt> if it is not known
+     */
+    protected synchronized void addContactForImageUpdate(
+        ContactJabberImpl contact, String photoHash)
     {
         if(contact instanceof VolatileContactJabberImpl
             && ((VolatileContactJabberImpl)contact).isPrivateMessagingContact())
             return;
 
         if(imageRetriever == null)
-        {
             imageRetriever = new ImageRetriever();
-            imageRetriever.start();
-        }
 
-        imageRetriever.addContact(contact);
+        imageRetriever.addContact(contact, photoHash);
     }
 
     /**
@@ -1762,121 +1793,278 @@ public void presenceChanged(Presence presence)
     }
 
     /**
-     * Thread retrieving images.
+     * Retrieves the images of the contacts with missing or changed avatars.
+     * The vCards are requested by a bounded number of worker threads, so that
+     * the images of a large contact list are not fetched one after another.
+     * A contact is queued at most once and the most recently requested
+     * contacts, which are the ones the user interface is currently showing,
+     * are retrieved first.
      */
     private class ImageRetriever
-        extends Thread
     {
         /**
-         * list with the accounts with missing image
+         * The contacts waiting for their image, the most recently requested
+         * first.
+         */
+        private final Deque<ContactJabberImpl> contactsForUpdate
+            = new ArrayDeque<ContactJabberImpl>();
+
+        /**
+         * The SHA-1 hash of the announced avatar of every queued contact, or
+         * <tt>null</tt> if it is not known.
+         */
+        private final Map<ContactJabberImpl, String> photoHashes
+            = new HashMap<ContactJabberImpl, String>();
+
+        /**
+         * The contacts which image is being retrieved.
          */
-        private final List<ContactJabberImpl> contactsForUpdate
-            = new Vector<ContactJabberImpl>();
+        private final Set<ContactJabberImpl> contactsInProgress
+            = new HashSet<ContactJabberImpl>();
+
+        /**
+         * The executor running the workers.
+         */
+        private final ThreadPoolExecutor executor;
+
+        /**
+         * The maximum number of images retrieved at the same time.
+         */
+        private final int maxWorkers;
+
+        /**
+         * The number of running workers.
+         */
+        private int workers = 0;
 
         /**
          * Should we stop.
          */
-        private boolean running = false;
+        private boolean running = true;
 
         /**
          * Creates image retrieving.
          */
         ImageRetriever()
         {
-            setDaemon(true);
+            int max = JabberActivator.getConfigurationService().getInt(
+                AVATAR_RETRIEVERS_PROPERTY, DEFAULT_AVATAR_RETRIEVERS);
+
+            maxWorkers = (max > 0) ? max : DEFAULT_AVATAR_RETRIEVERS;
+
+            executor = new ThreadPoolExecutor(
+                maxWorkers, maxWorkers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "ImageRetriever");
+
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true);
         }
 
         /**
-         * Thread entry point.
+         * Add contact for retrieving.
+         *
+         * @param contact ContactJabberImpl
          */
-        @Override
-        public void run()
+        void addContact(ContactJabberImpl contact)
         {
-            try
+            addContact(contact, null);
+        }
+
+        /**
+         * Add contact for retrieving. A contact which is already queued is
+         * moved to the front of the queue.
+         *
+         * @param contact ContactJabberImpl
+         * @param photoHash the SHA-1 hash of the avatar the contact announced
+         * in its presence or <tt>null</tt> if it is not known
+         */
+        synchronized void addContact(
+            ContactJabberImpl contact, String photoHash)
+        {
+            if (!running)
+                return;
+
+            if (photoHashes.containsKey(contact))
+            {
+                contactsForUpdate.remove(contact);
+                if (photoHash == null)
+                    photoHash = photoHashes.get(contact);
+            }
+
+            photoHashes.put(contact, photoHash);
+            contactsForUpdate.addFirst(contact);
+
+            startWorkers();
+        }
+
+        /**
+         * Stops retrieving images.
+         */
+        synchronized void quit()
+        {
+            running = false;
+            contactsForUpdate.clear();
+            photoHashes.clear();
+            executor.shutdownNow();
+        }
+
+        /**
+         * Starts workers until either all the queued contacts are handled or
+         * the maximum number of workers is reached.
+         */
+        private void startWorkers()
+        {
+            while (running
+                && workers < maxWorkers
+                && workers < contactsForUpdate.size())
             {
-                Collection<ContactJabberImpl> copyContactsForUpdate = null;
-                running = true;
-                while (running)
+                workers++;
+                executor.execute(new Runnable()
                 {
-                    synchronized(contactsForUpdate)
+                    @Override
+                    public void run()
                     {
-                        if(contactsForUpdate.isEmpty())
-                            contactsForUpdate.wait();
+                        retrieveImages();
+                    }
+                });
+            }
+        }
 
-                        if(!running)
-                            return;
+        /**
+         * Retrieves the images of the queued contacts until there are no more
+         * contacts to handle.
+         */
+        private void retrieveImages()
+        {
+            while (true)
+            {
+                ContactJabberImpl contact = null;
+                String photoHash;
 
-                        copyContactsForUpdate
-                            = new Vector<ContactJabberImpl>(contactsForUpdate);
-                        contactsForUpdate.clear();
+                synchronized (this)
+                {
+                    if (running)
+                    {
+                        // skip the contacts queued again while retrieving
+                        // their image, they are handled when it is over
+                        for (ContactJabberImpl c : contactsForUpdate)
+                        {
+                            if (!contactsInProgress.contains(c))
+                            {
+                                contact = c;
+                                break;
+                            }
+                        }
                     }
 
-                    Iterator<ContactJabberImpl> iter
-                        = copyContactsForUpdate.iterator();
-                    while (iter.hasNext())
+                    if (contact == null)
                     {
-                        ContactJabberImpl contact = iter.next();
-
-                        byte[] imgBytes = getAvatar(contact);
+                        workers--;
+                        return;
+                    }
 
-                        if(imgBytes != null)
-                        {
-                            byte[] oldImage = contact.getImage(false);
+                    contactsForUpdate.remove(contact);
+                    photoHash = photoHashes.remove(contact);
+                    contactsInProgress.add(contact);
+                }
 
-                            contact.setImage(imgBytes);
-                            parentOperationSet.fireContactPropertyChangeEvent(
-                                ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                                contact, oldImage, imgBytes);
-                        }
-                        else
-                            // set an empty image data so it won't be queried again
-                            contact.setImage(new byte[0]);
+                try
+                {
+                    retrieveImage(contact, photoHash);
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Cannot retrieve image for " + contact, t);
+                }
+                finally
+                {
+                    synchronized (this)
+                    {
+                        contactsInProgress.remove(contact);
                     }
                 }
             }
-            catch (InterruptedException ex)
-            {
-                logger.error("ImageRetriever error waiting will stop now!", ex);
-            }
         }
 
         /**
-         * Add contact for retrieving
-         * if the provider is register notify the retriever to get the nicks
-         * if we are not registered add a listener to wait for registering
+         * Retrieves the image of a contact and sets it.
          *
-         * @param contact ContactJabberImpl
+         * @param contact the contact
+         * @param photoHash the SHA-1 hash of the announced avatar or
+         * <tt>null</tt> if it is not known
          */
-        void addContact(ContactJabberImpl contact)
+        private void retrieveImage(ContactJabberImpl contact, String photoHash)
         {
-            synchronized(contactsForUpdate)
+            byte[] oldImage = contact.getImage(false);
+            byte[] imgBytes;
+
+            if (photoHash != null)
             {
-                if (!contactsForUpdate.contains(contact))
+                if (photoHash.equalsIgnoreCase(
+                        VCardTempXUpdatePresenceExtension.getImageSha1(
+                            oldImage)))
+                    return;
+
+                // the avatar saved on disk by the contact list may be the
+                // announced one, no need to ask the server for it then
+                byte[] cachedImage = AvatarCacheUtils.getCachedAvatar(contact);
+
+                if (cachedImage != null
+                    && photoHash.equalsIgnoreCase(
+                        VCardTempXUpdatePresenceExtension.getImageSha1(
+                            cachedImage)))
+                    imgBytes = cachedImage;
+                else
                 {
-                    contactsForUpdate.add(contact);
-                    contactsForUpdate.notifyAll();
+                    imgBytes = getAvatar(contact, true);
+
+                    // the announced avatar could not be retrieved, for
+                    // example while disconnected, so keep the current image
+                    // and leave the contact to be queried again
+                    if (imgBytes == null || imgBytes.length == 0)
+                    {
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug(
+                                "Cannot retrieve the announced avatar of "
+                                    + contact);
+                        }
+                        return;
+                    }
                 }
             }
-        }
+            else
+                imgBytes = getAvatar(contact, false);
 
-        /**
-         * Stops this thread.
-         */
-        void quit()
-        {
-            synchronized(contactsForUpdate)
+            if(imgBytes != null)
             {
-                running = false;
-                contactsForUpdate.notifyAll();
+                contact.setImage(imgBytes);
+                parentOperationSet.fireContactPropertyChangeEvent(
+                    ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                    contact, oldImage, imgBytes);
             }
+            else
+                // set an empty image data so it won't be queried again
+                contact.setImage(new byte[0]);
         }
 
         /**
          * Retrieves the avatar.
          * @param contact the contact.
+         * @param refresh whether the vCard of the contact is to be requested
+         * again even if it has already been retrieved
          * @return the contact avatar.
          */
-        private byte[] getAvatar(ContactJabberImpl contact)
+        private byte[] getAvatar(ContactJabberImpl contact, boolean refresh)
         {
             // not enabled
             if (infoRetreiver == null)
@@ -1887,10 +2075,33 @@ private byte[] getAvatar(ContactJabberImpl contact)
             byte[] result = null;
             try
             {
-                Iterator<ServerStoredDetails.GenericDetail> iter =
-                    infoRetreiver.getDetails(contact.getAddressAsJid()
-                            .asEntityBareJidOrThrow(),
-                    ServerStoredDetails.ImageDetail.class);
+                EntityBareJid jid
+                    = contact.getAddressAsJid().asEntityBareJidOrThrow();
+                Iterator<ServerStoredDetails.GenericDetail> iter;
+
+                if (refresh)
+                {
+                    List<ServerStoredDetails.GenericDetail> details
+                        = infoRetreiver.retrieveDetails(jid);
+                    List<ServerStoredDetails.GenericDetail> images
+                        = new LinkedList<ServerStoredDetails.GenericDetail>();
+
+                    if (details != null)
+                    {
+                        for (ServerStoredDetails.GenericDetail detail : details)
+                        {
+                            if (ServerStoredDetails.ImageDetail.class.equals(
+                                    detail.getClass()))
+                                images.add(detail);
+                        }
+                    }
+                    iter = images.iterator();
+                }
+                else
+                {
+                    iter = infoRetreiver.getDetails(
+                        jid, ServerStoredDetails.ImageDetail.class);
+                }
 
                 if(iter.hasNext())
                 {
@@ -0,0 +1,615 @@
+/*
+ * Copyright @ 2018 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.java.sip.communicator.impl.protocol.jabber.caps;
+
+import net.java.sip.communicator.util.*;
+import org.jitsi.service.configuration.*;
+import org.jivesoftware.smack.provider.*;
+import org.jivesoftware.smackx.caps.cache.*;
+import org.jivesoftware.smackx.disco.packet.*;
+import org.jxmpp.jid.*;
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An <tt>EntityCapsPersistentCache</tt> keeping the Caps information of the
+ * known nodes in memory and in an append-only file in the cache directory.
+ * The <tt>DiscoverInfo</tt> of a node is parsed when it is first looked up
+ * and kept parsed afterwards. The number of nodes is bounded, the least
+ * recently used ones are evicted first.
+ * <p>
+ * The file is a sequence of node and disco#info XML records, a record with
+ * an empty XML removing the node. It is compacted when it is loaded, if it
+ * holds many more records than nodes.
+ * <p>
+ * The Caps information stored in the configuration by previous versions is
+ * moved to the store the first time it is created.
+ */
+public class CapsStore
+    implements EntityCapsPersistentCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>CapsStore</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(CapsStore.class);
+
+    /**
+     * The prefix of the <tt>ConfigurationService</tt> properties in which the
+     * previous versions stored the Caps information.
+     */
+    private static final String CAPS_PROPERTY_NAME_PREFIX
+        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
+            + "EntityCapsManager.CAPS.";
+
+    /**
+     * The property setting the maximum number of nodes kept by the store.
+     */
+    public static final String MAX_NODES_PROPERTY
+        = "net.java.sip.communicator.impl.protocol.jabber.caps.MAX_NODES";
+
+    /**
+     * The default maximum number of nodes kept by the store.
+     */
+    private static final int DEFAULT_MAX_NODES = 5000;
+
+    /**
+     * The first bytes of the store file.
+     */
+    private static final int MAGIC = 0x4A435053;
+
+    /**
+     * The version of the format of the store file.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Orders the nodes of the store from the least to the most recently used.
+     */
+    private static final Comparator<Map.Entry<String, Node>>
+        LEAST_RECENTLY_USED_FIRST
+            = new Comparator<Map.Entry<String, Node>>()
+            {
+                public int compare(
+                    Map.Entry<String, Node> e1, Map.Entry<String, Node> e2)
+                {
+                    long u1 = e1.getValue().lastUsed;
+                    long u2 = e2.getValue().lastUsed;
+
+                    return (u1 < u2) ? -1 : ((u1 == u2) ? 0 : 1);
+                }
+            };
+
+    /**
+     * The nodes of the store.
+     */
+    private final Map<String, Node> nodes
+        = new ConcurrentHashMap<String, Node>();
+
+    /**
+     * The maximum number of nodes kept by the store.
+     */
+    private final int maxNodes;
+
+    /**
+     * The file the store is persisted to or <tt>null</tt> if it is kept in
+     * memory only.
+     */
+    private final File file;
+
+    /**
+     * The clock used to order the nodes by their last use.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * The number of lookups which found their node.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of lookups which did not find their node.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a store loading the nodes from the given file and moving to it
+     * the Caps information stored in the configuration.
+     *
+     * @param configService the current configuration service.
+     * @param file the file the store is persisted to or <tt>null</tt> to
+     * keep it in memory only
+     */
+    public CapsStore(ConfigurationService configService, File file)
+    {
+        this.maxNodes
+            = Math.max(
+                1, configService.getInt(MAX_NODES_PROPERTY, DEFAULT_MAX_NODES));
+        this.file = file;
+
+        load();
+        moveFromConfiguration(configService);
+    }
+
+    @Override
+    public void addDiscoverInfoByNodePersistent(String nodeVer, DiscoverInfo info)
+    {
+        cleanupDiscoverInfo(info);
+        /*
+         * DiscoverInfo carries the node we're now associating it with a
+         * specific node so we'd better keep them in sync.
+         */
+        info.setNode(nodeVer);
+
+        /*
+         * If the specified info is a new association for the specified
+         * node, remember it across application instances in order to not
+         * query for it over the network.
+         */
+        String xml = info.getChildElementXML().toString();
+
+        if ((xml != null) && (xml.length() != 0))
+        {
+            Node node = new Node(xml, clock.incrementAndGet());
+
+            node.info = info;
+            nodes.put(nodeVer, node);
+            append(nodeVer, xml);
+
+            if (nodes.size() > maxNodes)
+                evict();
+        }
+    }
+
+    /**
+     * Removes from, to and packet-id from <tt>info</tt>.
+     *
+     * @param info the {@link DiscoverInfo} that we'd like to cleanup.
+     */
+    private static void cleanupDiscoverInfo(DiscoverInfo info)
+    {
+        info.setFrom((Jid) null);
+        info.setTo((Jid) null);
+        info.setStanzaId(null);
+    }
+
+    @Override
+    public DiscoverInfo lookup(String nodeVer)
+    {
+        Node node = nodes.get(nodeVer);
+
+        if (node == null)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        node.lastUsed = clock.incrementAndGet();
+
+        DiscoverInfo discoverInfo;
+
+        synchronized (node)
+        {
+            if (node.info == null)
+                node.info = parse(nodeVer, node.xml);
+            discoverInfo = node.info;
+        }
+
+        if (discoverInfo == null)
+        {
+            /*
+             * The discoverInfo doesn't seem valid according to the caps
+             * which means that we must have stored invalid information.
+             * Delete the invalid information in order to not try to validate
+             * it again.
+             */
+            if (nodes.remove(nodeVer, node))
+                append(nodeVer, "");
+            misses.incrementAndGet();
+        }
+        else
+            hits.incrementAndGet();
+
+        return discoverInfo;
+    }
+
+    @Override
+    public void emptyCache()
+    {
+        nodes.clear();
+
+        synchronized (this)
+        {
+            if (file != null && file.exists() && !file.delete())
+                logger.warn("Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found their node.
+     *
+     * @return the number of lookups which found their node
+     */
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups which did not find their node.
+     *
+     * @return the number of lookups which did not find their node
+     */
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of nodes in the store.
+     *
+     * @return the number of nodes in the store
+     */
+    public int size()
+    {
+        return nodes.size();
+    }
+
+    /**
+     * Parses the disco#info XML of a node.
+     *
+     * @param nodeVer the node
+     * @param xml the disco#info XML of the node
+     * @return the parsed <tt>DiscoverInfo</tt> or <tt>null</tt> if it is
+     * invalid
+     */
+    private static DiscoverInfo parse(String nodeVer, String xml)
+    {
+        IQProvider discoverInfoProvider
+            = ProviderManager.getIQProvider(
+                "query",
+                "http://jabber.org/protocol/disco#info");
+
+        if(discoverInfoProvider == null)
+            return null;
+
+        XmlPullParser parser = new MXParser();
+
+        try
+        {
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(new StringReader(xml));
+            // Start the parser.
+            parser.next();
+
+            return (DiscoverInfo) discoverInfoProvider.parse(parser);
+        }
+        catch(Exception ex)
+        {
+            logger.error("Invalid DiscoverInfo for " + nodeVer, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Evicts the least recently used nodes, so that there is room for a
+     * tenth of the maximum number of nodes before the next eviction.
+     */
+    private synchronized void evict()
+    {
+        if (nodes.size() <= maxNodes)
+            return;
+
+        List<Map.Entry<String, Node>> entries
+            = new ArrayList<Map.Entry<String, Node>>(nodes.entrySet());
+
+        Collections.sort(entries, LEAST_RECENTLY_USED_FIRST);
+
+        int toEvict = entries.size() - (maxNodes - maxNodes / 10);
+
+        for (int i = 0; i < toEvict; i++)
+        {
+            Map.Entry<String, Node> entry = entries.get(i);
+
+            nodes.remove(entry.getKey(), entry.getValue());
+        }
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug(
+                "Evicted " + toEvict + " caps nodes, " + hits.get()
+                    + " hits, " + misses.get() + " misses");
+        }
+    }
+
+    /**
+     * Loads the nodes from the file, keeping the most recently written ones,
+     * and compacts the file if it holds many more records than nodes or is
+     * damaged.
+     */
+    private synchronized void load()
+    {
+        if (file == null || !file.exists())
+            return;
+
+        LinkedHashMap<String, String> xmls
+            = new LinkedHashMap<String, String>();
+        int records = 0;
+        boolean damaged = false;
+        DataInputStream in = null;
+
+        try
+        {
+            in
+                = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Unknown caps store format");
+
+            while (true)
+            {
+                // a record cut by a crash is damaged, not the end
+                in.mark(1);
+                if (in.read() < 0)
+                    break;
+                in.reset();
+
+                String nodeVer = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+
+                in.readFully(bytes);
+                records++;
+
+                // keep the order of the last writes
+                xmls.remove(nodeVer);
+                if (bytes.length != 0)
+                    xmls.put(nodeVer, new String(bytes, "UTF-8"));
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to read the caps store " + file, e);
+            damaged = true;
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        int skip = xmls.size() - maxNodes;
+
+        for (Map.Entry<String, String> e : xmls.entrySet())
+        {
+            if (skip-- > 0)
+                continue;
+            nodes.put(
+                e.getKey(), new Node(e.getValue(), clock.incrementAndGet()));
+        }
+
+        if (damaged || records > 2 * nodes.size() + 16)
+            compact();
+    }
+
+    /**
+     * Moves the Caps information stored in the configuration by previous
+     * versions to the store.
+     *
+     * @param configService the current configuration service.
+     */
+    private void moveFromConfiguration(ConfigurationService configService)
+    {
+        List<String> propertyNames
+            = configService.getPropertyNamesByPrefix(
+                CAPS_PROPERTY_NAME_PREFIX, false);
+
+        if (propertyNames == null || propertyNames.isEmpty())
+            return;
+
+        // setting the properties to null removes them in a single write
+        Map<String, Object> removed = new HashMap<String, Object>();
+
+        for (String propertyName : propertyNames)
+        {
+            String xml = configService.getString(propertyName);
+
+            if (propertyName.length() > CAPS_PROPERTY_NAME_PREFIX.length()
+                && xml != null
+                && xml.length() != 0)
+            {
+                String nodeVer
+                    = propertyName.substring(
+                        CAPS_PROPERTY_NAME_PREFIX.length());
+
+                if (!nodes.containsKey(nodeVer))
+                {
+                    nodes.put(nodeVer, new Node(xml, clock.incrementAndGet()));
+                    append(nodeVer, xml);
+                }
+            }
+            removed.put(propertyName, null);
+        }
+        configService.setProperties(removed);
+
+        if (nodes.size() > maxNodes)
+            evict();
+    }
+
+    /**
+     * Appends a record to the file.
+     *
+     * @param nodeVer the node
+     * @param xml the disco#info XML of the node or an empty string to remove
+     * the node
+     */
+    private synchronized void append(String nodeVer, String xml)
+    {
+        if (file == null)
+            return;
+
+        DataOutputStream out = null;
+
+        try
+        {
+            boolean exists = file.exists() && file.length() > 0;
+
+            out
+                = new DataOutputStream(
+                    new BufferedOutputStream(
+                        new FileOutputStream(file, true)));
+            if (!exists)
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            writeRecord(out, nodeVer, xml);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to write the caps store " + file, e);
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file with the nodes of the store only.
+     */
+    private synchronized void compact()
+    {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+
+        try
+        {
+            out
+                = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            List<Map.Entry<String, Node>> entries
+                = new ArrayList<Map.Entry<String, Node>>(nodes.entrySet());
+
+            // the least recently used first, as they are loaded
+            Collections.sort(entries, LEAST_RECENTLY_USED_FIRST);
+            for (Map.Entry<String, Node> e : entries)
+                writeRecord(out, e.getKey(), e.getValue().xml);
+
+            out.close();
+            out = null;
+            written = true;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to compact the caps store " + file, e);
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        if (written
+            && !tmp.renameTo(file)
+            && !(file.delete() && tmp.renameTo(file)))
+        {
+            logger.warn("Failed to replace the caps store " + file);
+        }
+    }
+
+    /**
+     * Writes a record of the file.
+     *
+     * @param out the stream to write to
+     * @param nodeVer the node
+     * @param xml the disco#info XML of the node or an empty string
+     * @throws IOException if writing fails
+     */
+    private static void writeRecord(
+            DataOutputStream out, String nodeVer, String xml)
+        throws IOException
+    {
+        byte[] bytes = xml.getBytes("UTF-8");
+
+        out.writeUTF(nodeVer);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * A node of the store.
+     */
+    private static class Node
+    {
+        /**
+         * The disco#info XML of the node.
+         */
+        final String xml;
+
+        /**
+         * The parsed <tt>DiscoverInfo</tt> of the node or <tt>null</tt> if
+         * it is not parsed yet.
+         */
+        DiscoverInfo info;
+
+        /**
+         * The value of the clock when the node was last used.
+         */
+        volatile long lastUsed;
+
+        Node(String xml, long lastUsed)
+        {
+            this.xml = xml;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
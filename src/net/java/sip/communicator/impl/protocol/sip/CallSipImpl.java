@@ -603,7 +603,7 @@ public CallPeerSipImpl processInvite(SipProvider       jainSipProvider,
                 if(serverTran instanceof SIPTransaction
                     && !((SIPTransaction)serverTran).isReliable())
                 {
-                    final Timer timer = new Timer();
+                    final TimerScheduler timer = new TimerScheduler();
                     int interval = retransmitsRingingInterval;
                     int delay = 0;
                     for(int i = 0; i < MAX_RETRANSMISSIONS; i++)
@@ -777,7 +777,7 @@ private static Map<String, String> extractRequestHeaders(Request req)
         /**
          * The timer that starts the task.
          */
-        private final Timer timer;
+        private final TimerScheduler timer;
 
         /**
          * Create ringing response task.
@@ -787,7 +787,7 @@ private static Map<String, String> extractRequestHeaders(Request req)
          * @param timer the timer.
          */
         RingingResponseTask(Response response, ServerTransaction serverTran,
-            CallPeerSipImpl peer, Timer timer)
+            CallPeerSipImpl peer, TimerScheduler timer)
         {
             this.response = response;
             this.serverTran = serverTran;
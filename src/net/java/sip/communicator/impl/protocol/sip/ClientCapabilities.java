@@ -69,7 +69,7 @@
     /**
      * The timer that runs the keep-alive task
      */
-    private Timer keepAliveTimer = null;
+    private final TimerScheduler keepAliveTimer = new TimerScheduler();
 
     /**
      * The next long to use as a cseq header value.
@@ -457,11 +457,7 @@ public void registrationStateChanged(RegistrationStateChangeEvent evt)
                 evt.getNewState() == RegistrationState.CONNECTION_FAILED)
             {
                 // stop any task associated with the timer
-                if (keepAliveTimer != null)
-                {
-                    keepAliveTimer.cancel();
-                    keepAliveTimer = null;
-                }
+                keepAliveTimer.cancel();
             }
             else if (evt.getNewState().equals(RegistrationState.REGISTERED))
             {
@@ -487,9 +483,6 @@ else if (evt.getNewState().equals(RegistrationState.REGISTERED))
                 if (keepAliveInterval > 0
                     && !provider.getRegistrarConnection().isRegistrarless())
                 {
-                    if (keepAliveTimer == null)
-                        keepAliveTimer = new Timer();
-
                     TimerTask keepAliveTask;
                     // CRLF is used by default on Android
                     if( (OSUtils.IS_ANDROID && keepAliveMethod == null)
@@ -548,7 +548,7 @@ public boolean processRequest(RequestEvent requestEvent)
                 // add the new timeout task
                 SubscriptionTimeoutTask timeout
                     = new SubscriptionTimeoutTask(subscription);
-                subscription.setTimerTask(timeout);
+                subscription.setTimerTask(timeout, timer);
                 timer.schedule(timeout, expires * 1000);
 
                 // send a OK
@@ -781,7 +781,7 @@ public boolean processRequest(RequestEvent requestEvent)
         // add the timeout task
         SubscriptionTimeoutTask timeout
             = new SubscriptionTimeoutTask(subscription);
-        subscription.setTimerTask(timeout);
+        subscription.setTimerTask(timeout, timer);
         timer.schedule(timeout, expires * 1000);
         return true;
     }
@@ -790,7 +790,7 @@ else if ((statusCode != Response.OK)
 
                  SubscriptionRefreshTask refreshTask
                      = new SubscriptionRefreshTask(subscription);
-                 subscription.setTimerTask(refreshTask);
+                 subscription.setTimerTask(refreshTask, timer);
 
                  int refreshDelay = expHeader.getExpires();
                  // try to keep a margin if the refresh delay allows it
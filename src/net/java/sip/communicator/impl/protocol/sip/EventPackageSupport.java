@@ -553,6 +553,12 @@ public static boolean sendNotImplementedResponse(
          */
         private TimerTask timerTask;
 
+        /**
+         * The <code>TimerScheduler</code> with which {@link #timerTask} has
+         * been scheduled.
+         */
+        private TimerScheduler timerTaskScheduler;
+
         /**
          * Initializes a new <code>Subscription</code> instance with a specific
          * subscription <code>Address</code>/Request URI and a specific id tag
@@ -679,7 +685,7 @@ public final String getEventId()
         protected void removed()
         {
             setDialog(null);
-            setTimerTask(null);
+            setTimerTask(null, null);
         }
 
         /**
@@ -706,15 +712,19 @@ protected void setDialog(Dialog dialog)
          * @param timerTask
          *            a <code>TimerTask</code> to be associated with this
          *            <code>Subscription</code>
+         * @param timer
+         *            the <code>TimerScheduler</code> with which
+         *            <tt>timerTask</tt> is scheduled
          */
-        protected void setTimerTask(TimerTask timerTask)
+        protected void setTimerTask(TimerTask timerTask, TimerScheduler timer)
         {
             if (this.timerTask != timerTask)
             {
                 if (this.timerTask != null)
-                    this.timerTask.cancel();
+                    this.timerTaskScheduler.cancel(this.timerTask);
 
                 this.timerTask = timerTask;
+                this.timerTaskScheduler = timer;
             }
         }
     }
@@ -123,9 +123,9 @@
     private final int pollingTaskPeriod;
 
     /**
-     * The task in charge of polling offline contacts
+     * The scheduler in charge of polling offline contacts
      */
-    private PollOfflineContactsTask pollingTask = null;
+    private final PresencePollScheduler pollScheduler;
 
     /**
      * If we should be totally silenced, just doing local operations
@@ -378,6 +378,12 @@ protected Subscription createSubscription(
         this.pollingTaskPeriod
             = (pollingPeriod > 0) ? (pollingPeriod * 1000) : 30000;
 
+        this.pollScheduler
+            = presenceEnabled
+                ? new PresencePollScheduler(
+                        new OfflineContactsPoller(), pollingTaskPeriod)
+                : null;
+
         // if we force the p2p mode, we start by not using a distant PA
         this.useDistantPA = !forceP2PMode;
 
@@ -439,7 +445,7 @@ private void setUseDistantPA(boolean useDistantPA)
 
         if (!this.useDistantPA && (this.republishTask != null))
         {
-            this.republishTask.cancel();
+            timer.cancel(this.republishTask);
             this.republishTask = null;
         }
     }
@@ -1279,7 +1285,7 @@ public boolean processResponse(ResponseEvent responseEvent)
 
                 // just to be sure to not have two refreshing task
                 if (this.republishTask != null)
-                    this.republishTask.cancel();
+                    timer.cancel(this.republishTask);
 
                 this.republishTask = new RePublishTask();
 
@@ -3002,8 +3008,8 @@ private void cancelTimer()
           */
          if (republishTask != null)
              republishTask = null;
-         if (pollingTask != null)
-             pollingTask = null;
+         if (pollScheduler != null)
+             pollScheduler.stop();
 
          timer.cancel();
      }
@@ -3064,45 +3070,69 @@ public void run()
      }
 
      /**
-      * A task handling polling of offline contacts.
+      * Gives the contacts we are not subscribed to, so that the
+      * <tt>PresencePollScheduler</tt> polls their presence.
       */
-     private class PollOfflineContactsTask extends TimerTask
+     private class OfflineContactsPoller
+         implements PresencePollScheduler.Poller
      {
          /**
-          * Check if we can't subscribe to this contact now
+          * Returns the resolvable persistent contacts we have no subscription
+          * to.
+          *
+          * @return the contacts to poll
           */
-         @Override
-        public void run()
+         public List<ContactSipImpl> getContactsToPoll()
          {
-             // send a subscription for every contact
-             Iterator<Contact> rootContactsIter
-                = getServerStoredContactListRoot().contacts();
-
-            while (rootContactsIter.hasNext())
-            {
-                ContactSipImpl contact =
-                    (ContactSipImpl) rootContactsIter.next();
+             List<ContactSipImpl> contacts = new ArrayList<ContactSipImpl>();
 
-                 // poll this contact
-                 forcePollContact(contact);
+             for (ContactSipImpl contact : ssContactList
+                     .getUniqueContacts(ssContactList.getRootGroup()))
+             {
+                 if (isToPoll(contact))
+                     contacts.add(contact);
              }
+             return contacts;
+         }
 
-             Iterator<ContactGroup> groupsIter
-                 = getServerStoredContactListRoot().subgroups();
+         /**
+          * Sends a SUBSCRIBE to a specific contact, if it is still to be
+          * polled.
+          *
+          * @param contact the contact to poll
+          * @return <tt>true</tt> if a SUBSCRIBE has been sent
+          * @throws OperationFailedException if sending the SUBSCRIBE failed
+          */
+         public boolean pollContact(ContactSipImpl contact)
+             throws OperationFailedException
+         {
+             if (!isToPoll(contact))
+                 return false;
 
-             while (groupsIter.hasNext())
-             {
-                 ContactGroup group = groupsIter.next();
-                 Iterator<Contact> contactsIter = group.contacts();
+             subscriber.subscribe(new PresenceSubscriberSubscription(contact));
+             return true;
+         }
 
-                 while (contactsIter.hasNext())
-                 {
-                     ContactSipImpl contact
-                         = (ContactSipImpl) contactsIter.next();
+         /**
+          * Tells whether a specific contact is to be polled, because it is
+          * resolvable and persistent and we have no subscription to it.
+          *
+          * @param contact the contact to check
+          * @return <tt>true</tt> if <tt>contact</tt> is to be polled
+          */
+         private boolean isToPoll(ContactSipImpl contact)
+         {
+             if (!contact.isResolvable() || !contact.isPersistent())
+                 return false;
 
-                     // poll this contact
-                     forcePollContact(contact);
-                 }
+             try
+             {
+                 return subscriber.getSubscription(getAddress(contact), null)
+                     == null;
+             }
+             catch (OperationFailedException ex)
+             {
+                 return false;
              }
          }
      }
@@ -3191,23 +3221,14 @@ else if (evt.getNewState().equals(RegistrationState.REGISTERED))
             * anything because we've already set it up in response to
             * the first REGISTERED.
             */
-            if ((!presenceEnabled) || (pollingTask != null))
+            if ((!presenceEnabled) || pollScheduler.isStarted())
             {
                 return;
             }
 
-            // Subcribe to each contact in the list
-            for (ContactSipImpl contact : ssContactList
-                    .getAllContacts(ssContactList.getRootGroup()))
-            {
-                forcePollContact(contact);
-            }
-
-            // create the new polling task
-            pollingTask = new PollOfflineContactsTask();
-
-            // start polling the offline contacts
-            timer.schedule(pollingTask, pollingTaskPeriod, pollingTaskPeriod);
+            // subscribe to each contact in the list and keep polling the
+            // offline ones
+            pollScheduler.start();
 
             if(this.useDistantPA)
             {
@@ -3544,6 +3565,9 @@ protected void processFailureResponse(
             ResponseEvent responseEvent,
             int statusCode)
         {
+            if (pollScheduler != null)
+                pollScheduler.pollFailed(contact);
+
             // we probably won't be able to communicate with the contact
             changePresenceStatusForContact(
                 contact, sipStatusEnum.getStatus(
@@ -3567,6 +3591,9 @@ protected void processSuccessResponse(
             ResponseEvent responseEvent,
             int statusCode)
         {
+            if (pollScheduler != null)
+                pollScheduler.pollSucceeded(contact);
+
             switch (statusCode)
             {
             case Response.OK:
@@ -118,7 +118,7 @@
     /**
      * The global timer managing the tasks.
      */
-    private Timer timer = new Timer();
+    private final TimerScheduler timer = new TimerScheduler();
 
     /**
      * The timer tasks for received events, it timer time is reached this
@@ -314,7 +314,7 @@ public boolean processMessage(RequestEvent requestEvent)
             if(task != null)
             {
                 typingTasks.remove(task);
-                task.cancel();
+                timer.cancel(task);
             }
 
             // when a task is canceled it cannot be
@@ -557,7 +557,7 @@ public void messageReceived(MessageReceivedEvent evt)
 
         if(task != null)
         {
-            task.cancel();
+            timer.cancel(task);
 
             fireTypingNotificationsEvent(from, STATE_STOPPED);
         }
@@ -0,0 +1,580 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Polls the presence of the contacts we are not subscribed to. Instead of
+ * sending a SUBSCRIBE to every such contact at once, each polling round
+ * queues them and sends the polls one after the other, spread over the
+ * polling period with some jitter. The number of polls waiting for a response
+ * is capped, and a contact whose poll fails is not polled again for a time
+ * which doubles with each failure.
+ */
+class PresencePollScheduler
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>PresencePollScheduler</tt> class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PresencePollScheduler.class);
+
+    /**
+     * The maximum number of polls waiting for a response at a time.
+     */
+    static final int MAX_OUTSTANDING_POLLS = 16;
+
+    /**
+     * The time in milliseconds after which a poll without response is
+     * considered failed, the timeout of a non-INVITE SIP transaction.
+     */
+    static final long OUTSTANDING_POLL_TIMEOUT = 32000;
+
+    /**
+     * The minimum time in milliseconds between two polls.
+     */
+    private static final long MIN_POLL_SPACING = 20;
+
+    /**
+     * The time in milliseconds over which the polls of the first round are
+     * spread, so that the presence of the contacts is known soon after we
+     * register.
+     */
+    private static final long FIRST_ROUND_WINDOW = 5000;
+
+    /**
+     * The part of the polling period over which the polls of a round are
+     * spread, leaving some time for the last ones to complete before the
+     * next round.
+     */
+    private static final double ROUND_WINDOW_RATIO = 0.8;
+
+    /**
+     * The maximum time in milliseconds a contact is not polled after failed
+     * polls.
+     */
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+
+    /**
+     * Gives the contacts to poll and polls them.
+     */
+    interface Poller
+    {
+        /**
+         * Returns the contacts which presence is to be polled because we are
+         * not subscribed to them.
+         *
+         * @return the contacts to poll
+         */
+        public List<ContactSipImpl> getContactsToPoll();
+
+        /**
+         * Polls the presence of a specific contact by sending a SUBSCRIBE
+         * request, unless the contact is no longer to be polled.
+         *
+         * @param contact the contact to poll
+         * @return <tt>true</tt> if a SUBSCRIBE request has been sent
+         * @throws OperationFailedException if sending the request failed
+         */
+        public boolean pollContact(ContactSipImpl contact)
+            throws OperationFailedException;
+    }
+
+    /**
+     * Gives the contacts to poll and polls them.
+     */
+    private final Poller poller;
+
+    /**
+     * The scheduler running the polling rounds and the polls or
+     * <tt>null</tt> to use the one of the SIP bundle.
+     */
+    private final SchedulerService scheduler;
+
+    /**
+     * The time in milliseconds between the starts of two polling rounds.
+     */
+    private final long period;
+
+    /**
+     * The generator of the jitter of the polls.
+     */
+    private final Random random = new Random();
+
+    /**
+     * The contacts waiting to be polled in the current round, in order.
+     */
+    private final Set<ContactSipImpl> queue
+        = new LinkedHashSet<ContactSipImpl>();
+
+    /**
+     * The contacts which polls are waiting for a response, with the time at
+     * which they were sent.
+     */
+    private final Map<ContactSipImpl, Long> outstandingPolls
+        = new HashMap<ContactSipImpl, Long>();
+
+    /**
+     * The contacts which polls have failed, with their backoff state.
+     */
+    private final Map<ContactSipImpl, Backoff> backoffs
+        = new HashMap<ContactSipImpl, Backoff>();
+
+    /**
+     * The task starting the polling rounds or <tt>null</tt> if we are
+     * stopped.
+     */
+    private ScheduledFuture<?> roundTask;
+
+    /**
+     * The task sending the next poll or <tt>null</tt> if none is scheduled.
+     */
+    private ScheduledFuture<?> pollTask;
+
+    /**
+     * Whether the next polling round is the first one since we started.
+     */
+    private boolean firstRound;
+
+    /**
+     * The average time in milliseconds between two polls of the current
+     * round.
+     */
+    private long pollSpacing = MIN_POLL_SPACING;
+
+    /**
+     * The number of polls sent.
+     */
+    private long sentPolls;
+
+    /**
+     * The number of polls which succeeded.
+     */
+    private long succeededPolls;
+
+    /**
+     * The number of polls which failed or got no response.
+     */
+    private long failedPolls;
+
+    /**
+     * The number of times a poll has been delayed because too many polls
+     * were waiting for a response.
+     */
+    private long delayedPolls;
+
+    /**
+     * Creates a new <tt>PresencePollScheduler</tt>.
+     *
+     * @param poller gives the contacts to poll and polls them
+     * @param period the time in milliseconds between the starts of two
+     * polling rounds
+     */
+    PresencePollScheduler(Poller poller, long period)
+    {
+        this(poller, period, null);
+    }
+
+    /**
+     * Creates a new <tt>PresencePollScheduler</tt> running its tasks on a
+     * specific scheduler.
+     *
+     * @param poller gives the contacts to poll and polls them
+     * @param period the time in milliseconds between the starts of two
+     * polling rounds
+     * @param scheduler the scheduler running the polling rounds and the
+     * polls or <tt>null</tt> to use the one of the SIP bundle
+     */
+    PresencePollScheduler(
+            Poller poller,
+            long period,
+            SchedulerService scheduler)
+    {
+        this.poller = poller;
+        this.period = period;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts polling, with a first round right away.
+     */
+    synchronized void start()
+    {
+        if (roundTask != null)
+            return;
+
+        firstRound = true;
+        roundTask = getScheduler().scheduleWithFixedDelay(
+                PresencePollScheduler.class.getName(),
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        startRound();
+                    }
+                },
+                0,
+                period);
+    }
+
+    /**
+     * Stops polling and forgets the pending polls and the failures.
+     */
+    synchronized void stop()
+    {
+        if (roundTask != null)
+        {
+            roundTask.cancel(false);
+            roundTask = null;
+        }
+        if (pollTask != null)
+        {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+        queue.clear();
+        outstandingPolls.clear();
+        backoffs.clear();
+    }
+
+    /**
+     * Tells whether polling is started.
+     *
+     * @return <tt>true</tt> if polling is started
+     */
+    synchronized boolean isStarted()
+    {
+        return roundTask != null;
+    }
+
+    /**
+     * Notifies this scheduler that a SUBSCRIBE to a specific contact has
+     * succeeded.
+     *
+     * @param contact the contact
+     */
+    synchronized void pollSucceeded(ContactSipImpl contact)
+    {
+        if (outstandingPolls.remove(contact) != null)
+            succeededPolls++;
+        backoffs.remove(contact);
+    }
+
+    /**
+     * Notifies this scheduler that a SUBSCRIBE to a specific contact has
+     * failed, so that it is not polled again for a while. Failures of
+     * SUBSCRIBEs which were not sent by a poll, or whose poll has already
+     * timed out, are ignored.
+     *
+     * @param contact the contact
+     */
+    synchronized void pollFailed(ContactSipImpl contact)
+    {
+        if (outstandingPolls.remove(contact) == null)
+            return;
+
+        failedPolls++;
+        backOff(contact, currentTimeMillis());
+    }
+
+    /**
+     * Returns the number of polls waiting for a response.
+     *
+     * @return the number of polls waiting for a response
+     */
+    synchronized int getOutstandingPollCount()
+    {
+        return outstandingPolls.size();
+    }
+
+    /**
+     * Returns the number of contacts waiting to be polled in the current
+     * round.
+     *
+     * @return the number of contacts waiting to be polled
+     */
+    synchronized int getQueuedPollCount()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of contacts which are not polled for a while after
+     * failed polls.
+     *
+     * @return the number of contacts backing off
+     */
+    synchronized int getBackedOffContactCount()
+    {
+        return backoffs.size();
+    }
+
+    /**
+     * Returns a description of the state and counters of this scheduler.
+     *
+     * @return a description of the state and counters of this scheduler
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "queued=" + queue.size()
+            + ", outstanding=" + outstandingPolls.size()
+            + ", backing off=" + backoffs.size()
+            + ", sent=" + sentPolls
+            + ", succeeded=" + succeededPolls
+            + ", failed=" + failedPolls
+            + ", delayed=" + delayedPolls;
+    }
+
+    /**
+     * Starts a polling round: queues the contacts to poll, except the ones
+     * already queued, waiting for a response or backing off, and spreads
+     * their polls over most of the polling period, or over a few seconds for
+     * the first round.
+     */
+    private void startRound()
+    {
+        List<ContactSipImpl> contacts = poller.getContactsToPoll();
+
+        synchronized (this)
+        {
+            if (roundTask == null)
+                return;
+
+            long window
+                = firstRound
+                    ? Math.min(FIRST_ROUND_WINDOW, period)
+                    : (long) (period * ROUND_WINDOW_RATIO);
+            long now = currentTimeMillis();
+
+            firstRound = false;
+            expireOutstandingPolls(now);
+
+            for (ContactSipImpl contact : contacts)
+            {
+                Backoff backoff = backoffs.get(contact);
+
+                if ((backoff != null && backoff.nextPoll > now)
+                        || outstandingPolls.containsKey(contact))
+                    continue;
+
+                queue.add(contact);
+            }
+
+            if (queue.isEmpty())
+                return;
+
+            pollSpacing = Math.max(MIN_POLL_SPACING, window / queue.size());
+            if (pollTask == null)
+                schedulePoll(jitter(pollSpacing));
+
+            if (logger.isDebugEnabled())
+                logger.debug("Presence polling round started: " + this);
+        }
+    }
+
+    /**
+     * Sends the poll of the next queued contact, unless too many polls are
+     * waiting for a response, and schedules the following one.
+     */
+    private void pollNext()
+    {
+        ContactSipImpl contact;
+
+        synchronized (this)
+        {
+            pollTask = null;
+            if (roundTask == null || queue.isEmpty())
+                return;
+
+            long now = currentTimeMillis();
+
+            expireOutstandingPolls(now);
+            if (outstandingPolls.size() >= MAX_OUTSTANDING_POLLS)
+            {
+                delayedPolls++;
+                schedulePoll(jitter(pollSpacing));
+                return;
+            }
+
+            Iterator<ContactSipImpl> iter = queue.iterator();
+
+            contact = iter.next();
+            iter.remove();
+            outstandingPolls.put(contact, now);
+        }
+
+        boolean sent = false;
+        boolean failed = false;
+
+        try
+        {
+            sent = poller.pollContact(contact);
+        }
+        catch (Throwable t)
+        {
+            failed = true;
+            logger.error("Failed to poll the presence of " + contact, t);
+        }
+
+        synchronized (this)
+        {
+            if (sent)
+            {
+                sentPolls++;
+            }
+            else
+            {
+                outstandingPolls.remove(contact);
+                if (failed)
+                {
+                    failedPolls++;
+                    backOff(contact, currentTimeMillis());
+                }
+            }
+
+            if (roundTask != null && !queue.isEmpty() && pollTask == null)
+                schedulePoll(jitter(pollSpacing));
+        }
+    }
+
+    /**
+     * Returns the scheduler running the polling rounds and the polls.
+     *
+     * @return the scheduler running the polling rounds and the polls
+     */
+    private SchedulerService getScheduler()
+    {
+        return
+            (scheduler == null) ? SipActivator.getSchedulerService() : scheduler;
+    }
+
+    /**
+     * Returns the current time in milliseconds, as used to time the polls.
+     *
+     * @return the current time in milliseconds
+     */
+    long currentTimeMillis()
+    {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Schedules the sending of the next poll.
+     *
+     * @param delay the delay in milliseconds before the next poll
+     */
+    private void schedulePoll(long delay)
+    {
+        pollTask = getScheduler().schedule(
+                PresencePollScheduler.class.getName() + ".poll",
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        pollNext();
+                    }
+                },
+                delay);
+    }
+
+    /**
+     * Considers failed the polls which have been waiting for a response for
+     * too long.
+     *
+     * @param now the current time in milliseconds
+     */
+    private void expireOutstandingPolls(long now)
+    {
+        Iterator<Map.Entry<ContactSipImpl, Long>> iter
+            = outstandingPolls.entrySet().iterator();
+
+        while (iter.hasNext())
+        {
+            Map.Entry<ContactSipImpl, Long> e = iter.next();
+
+            if (now - e.getValue() >= OUTSTANDING_POLL_TIMEOUT)
+            {
+                iter.remove();
+                failedPolls++;
+                backOff(e.getKey(), now);
+            }
+        }
+    }
+
+    /**
+     * Delays the next poll of a specific contact after a failed poll, by the
+     * polling period doubled for each successive failure.
+     *
+     * @param contact the contact which poll failed
+     * @param now the current time in milliseconds
+     */
+    private void backOff(ContactSipImpl contact, long now)
+    {
+        Backoff backoff = backoffs.get(contact);
+
+        if (backoff == null)
+        {
+            backoff = new Backoff();
+            backoffs.put(contact, backoff);
+        }
+
+        if (backoff.delay == 0)
+            backoff.delay = period;
+        else
+            backoff.delay = Math.min(MAX_BACKOFF, backoff.delay * 2);
+        backoff.nextPoll = now + jitter(backoff.delay);
+
+        queue.remove(contact);
+    }
+
+    /**
+     * Returns a random time between the half and one and a half of a
+     * specific time.
+     *
+     * @param time the time in milliseconds
+     * @return <tt>time</tt> with random jitter
+     */
+    private long jitter(long time)
+    {
+        return time / 2 + (long) (random.nextDouble() * time);
+    }
+
+    /**
+     * The backoff state of a contact which polls have failed.
+     */
+    private static class Backoff
+    {
+        /**
+         * The time in milliseconds the contact is not polled after its last
+         * failed poll.
+         */
+        long delay;
+
+        /**
+         * The time in milliseconds before which the contact is not polled.
+         */
+        long nextPoll;
+    }
+}
@@ -55,6 +55,7 @@
     private static PacketLoggingService packetLoggingService  = null;
     private static CertificateService   certService           = null;
     private static FileAccessService    fileService           = null;
+    private static SchedulerService     schedulerService      = null;
 
     /**
      * The resource service. Used for checking for default values
@@ -332,6 +333,25 @@ public static FileAccessService getFileAccessService()
         return fileService;
     }
 
+    /**
+     * Returns the <tt>SchedulerService</tt> shared by all the bundles, which
+     * runs the delayed and periodic tasks of the SIP protocol providers.
+     *
+     * @return the shared <tt>SchedulerService</tt>
+     */
+    public static SchedulerService getSchedulerService()
+    {
+        if (schedulerService == null)
+        {
+            schedulerService
+                = ServiceUtils.getService(
+                        bundleContext, SchedulerService.class);
+            if (schedulerService == null)
+                schedulerService = UtilActivator.getSchedulerService();
+        }
+        return schedulerService;
+    }
+
     /**
      * Called when this bundle is stopped so the Framework can perform the
      * bundle-specific activities necessary to stop the bundle.
@@ -362,5 +382,6 @@ public void stop(BundleContext context) throws Exception
         packetLoggingService = null;
         certService = null;
         fileService = null;
+        schedulerService = null;
     }
 }
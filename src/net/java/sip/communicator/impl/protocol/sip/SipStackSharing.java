@@ -23,6 +23,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.net.ssl.*;
 
 import javax.sip.*;
@@ -1298,8 +1299,8 @@ private boolean applyNonConformanceHacks(RequestEvent event)
      * List of currently waiting timers that will monitor the protocol provider
      *
      */
-    Map<String, TimerTask> resetListeningPointsTimers
-            = new HashMap<String, TimerTask>();
+    Map<String, ResetListeningPoint> resetListeningPointsTimers
+            = new HashMap<String, ResetListeningPoint>();
 
     /**
      * Listens for network changes and if we have a down interface
@@ -1351,8 +1352,8 @@ public void configurationChanged(ChangeEvent event)
      * to wrong interfaces. So we will replace them.
      */
     private class ResetListeningPoint
-            extends TimerTask
-            implements RegistrationStateChangeListener
+            implements Runnable,
+                       RegistrationStateChangeListener
     {
         /**
          * The time we wait before checking is the provider still unregistering.
@@ -1364,6 +1365,11 @@ public void configurationChanged(ChangeEvent event)
          */
         private final ProtocolProviderServiceSipImpl protocolProvider;
 
+        /**
+         * The pending execution of this task, if it is scheduled.
+         */
+        private ScheduledFuture<?> scheduled;
+
         /**
          * Constructs this task.
          * @param pp
@@ -1381,13 +1387,46 @@ public void registrationStateChanged(RegistrationStateChangeEvent evt)
         {
             if(evt.getNewState() == RegistrationState.UNREGISTERING)
             {
-                new Timer().schedule(this, TIME_FOR_PP_TO_UNREGISTER);
+                synchronized(this)
+                {
+                    if(scheduled == null)
+                    {
+                        scheduled = SipActivator.getSchedulerService()
+                            .schedule(
+                                ResetListeningPoint.class.getName(),
+                                this,
+                                TIME_FOR_PP_TO_UNREGISTER);
+                    }
+                }
             }
             else
             {
                 protocolProvider.removeRegistrationStateChangeListener(this);
-                resetListeningPointsTimers.remove(
-                    protocolProvider.getRegistrarConnection().getTransport());
+                cancel();
+            }
+        }
+
+        /**
+         * Cancels the pending execution of this task, if any, and stops
+         * monitoring the transport of the provider.
+         */
+        void cancel()
+        {
+            synchronized(this)
+            {
+                if(scheduled != null)
+                {
+                    scheduled.cancel(false);
+                    scheduled = null;
+                }
+            }
+            synchronized(resetListeningPointsTimers)
+            {
+                String transport
+                    = protocolProvider.getRegistrarConnection().getTransport();
+
+                if(resetListeningPointsTimers.get(transport) == this)
+                    resetListeningPointsTimers.remove(transport);
             }
         }
 
@@ -1435,8 +1474,18 @@ public void run()
                 }
             }
 
-            resetListeningPointsTimers.remove(
-                    protocolProvider.getRegistrarConnection().getTransport());
+            synchronized(this)
+            {
+                scheduled = null;
+            }
+            synchronized(resetListeningPointsTimers)
+            {
+                String transport
+                    = protocolProvider.getRegistrarConnection().getTransport();
+
+                if(resetListeningPointsTimers.get(transport) == this)
+                    resetListeningPointsTimers.remove(transport);
+            }
         }
     }
 }
@@ -18,6 +18,9 @@
 package net.java.sip.communicator.impl.protocol.sip;
 
 import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.util.*;
 
 /**
  * Represents an analogy of <code>Timer</code> which does not have the
@@ -25,6 +28,12 @@
  * construction time. It also allows the currently scheduled
  * <code>TimerTask</code>s to be canceled while still being able to schedule new
  * <code>TimerTask</code>s later on.
+ * <p>
+ * The tasks are run by the <tt>SchedulerService</tt> shared by all the
+ * protocol providers rather than by a thread of their own. Since the shared
+ * service does not know about <code>TimerTask.cancel()</code>, the tasks
+ * scheduled with a <tt>TimerScheduler</tt> are to be canceled through its
+ * {@link #cancel(TimerTask)} method.
  *
  * @author Lubomir Marinov
  */
@@ -32,33 +41,38 @@
 {
 
     /**
-     * The timer which will handle all scheduled tasks.
+     * The futures of the currently scheduled tasks.
      */
-    private Timer timer;
+    private final Map<TimerTask, ScheduledFuture<?>> tasks
+        = new IdentityHashMap<TimerTask, ScheduledFuture<?>>();
 
     /**
      * Discarding any currently scheduled <code>TimerTask</code>s.
      */
     public synchronized void cancel()
     {
-       if (timer != null)
-       {
-           timer.cancel();
-           timer = null;
-       }
+        for (Map.Entry<TimerTask, ScheduledFuture<?>> e : tasks.entrySet())
+        {
+            e.getValue().cancel(false);
+            e.getKey().cancel();
+        }
+        tasks.clear();
     }
 
     /**
-     * Gets the timer which handles all scheduled tasks. If it still doesn't
-     * exists, a new <tt>Timer</tt> is created.
+     * Cancels a specific <code>TimerTask</code> scheduled with this instance.
      *
-     * @return the <tt>Timer</tt> which handles all scheduled tasks
+     * @param task the <code>TimerTask</code> to cancel
+     * @return <tt>true</tt> if <tt>task</tt> was scheduled with this instance
+     * and has been prevented from running again
      */
-    private synchronized Timer getTimer()
+    public synchronized boolean cancel(TimerTask task)
     {
-       if (timer == null)
-           timer = new Timer(true);
-       return timer;
+        task.cancel();
+
+        ScheduledFuture<?> future = tasks.remove(task);
+
+        return (future != null) && future.cancel(false);
     }
 
     /**
@@ -72,9 +86,24 @@ private synchronized Timer getTimer()
      *            the delay in milliseconds before the specified
      *            <code>TimerTask</code> is executed
      */
-    public synchronized void schedule(TimerTask task, long delay)
+    public synchronized void schedule(final TimerTask task, long delay)
     {
-        getTimer().schedule(task, delay);
+        tasks.put(
+            task,
+            SipActivator.getSchedulerService().schedule(
+                    task.getClass().getName(),
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            synchronized (TimerScheduler.this)
+                            {
+                                tasks.remove(task);
+                            }
+                            task.run();
+                        }
+                    },
+                    delay));
     }
 
     /**
@@ -94,6 +123,12 @@ public synchronized void schedule(TimerTask task, long delay)
      */
     public synchronized void schedule(TimerTask task, long delay, long period)
     {
-        getTimer().schedule(task, delay, period);
+        tasks.put(
+            task,
+            SipActivator.getSchedulerService().scheduleWithFixedDelay(
+                    task.getClass().getName(),
+                    task,
+                    delay,
+                    period));
     }
 }
@@ -235,6 +235,17 @@ public void start()
             executorService = SwingWorker.executorService;
         }
 
+        start(executorService);
+    }
+
+    /**
+     * Start the worker on a thread of the specified executor instead of the
+     * shared unbounded one.
+     *
+     * @param executorService the executor to run the worker on
+     */
+    public void start(ExecutorService executorService)
+    {
         synchronized (this)
         {
             if (future == null || future.isDone())
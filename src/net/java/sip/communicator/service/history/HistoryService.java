@@ -41,6 +41,59 @@ public interface HistoryService {
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property used to set the maximum memory in bytes used to cache the
+     * opened history documents. The least recently used documents are
+     * evicted when it is exceeded. When it is set it takes precedence over
+     * <tt>CACHE_ENABLED_PROPERTY</tt>.
+     */
+    public static final String CACHE_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_SIZE";
+
+    /**
+     * Property used to set the maximum delay in milliseconds after which the
+     * appended records are written to their files. Records appended meanwhile
+     * are written at once. A value of 0 writes every record when it is
+     * appended.
+     */
+    public static final String WRITE_DELAY_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_DELAY";
+
+    /**
+     * Property used to set the number of appended records after which they
+     * are written without waiting for the write delay.
+     */
+    public static final String WRITE_BATCH_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BATCH_SIZE";
+
+    /**
+     * Property used to require that every record is written and forced to
+     * the storage device before it is reported as added, so no record is lost
+     * on a crash. It disables the delayed writes.
+     */
+    public static final String SYNC_WRITES_PROPERTY =
+        "net.java.sip.communicator.service.history.SYNC_WRITES";
+
+    /**
+     * Property used to select the storage engine used for newly created
+     * histories. Histories which are stored with the XML engine will be
+     * migrated to the configured engine when they are loaded.
+     */
+    public static final String STORAGE_ENGINE_PROPERTY =
+        "net.java.sip.communicator.service.history.STORAGE_ENGINE";
+
+    /**
+     * Value of <tt>STORAGE_ENGINE_PROPERTY</tt> selecting the XML storage
+     * engine, which is the default one.
+     */
+    public static final String STORAGE_ENGINE_XML = "xml";
+
+    /**
+     * Value of <tt>STORAGE_ENGINE_PROPERTY</tt> selecting the append-only
+     * binary segment storage engine.
+     */
+    public static final String STORAGE_ENGINE_SEGMENT = "segment";
+
     /**
      * Date format used in the XML history database.
      */
@@ -125,6 +178,12 @@ public History createHistory(HistoryID id, HistoryRecordStructure recordStructur
     public void moveHistory(HistoryID oldId, HistoryID newId)
         throws IOException;
 
+    /**
+     * Writes all the appended records which are not written yet to their
+     * files.
+     */
+    public void flush();
+
     /**
      * Checks whether a history is created and stored.
      * @param id the history to check
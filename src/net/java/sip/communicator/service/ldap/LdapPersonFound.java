@@ -18,6 +18,7 @@
 package net.java.sip.communicator.service.ldap;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * An LdapPersonFound is contained in each LdapEvent
@@ -70,6 +71,16 @@
      */
     public byte[] getPhoto();
 
+    /**
+     * Fetches the photo in the directory for this person in the background.
+     * The photos of several persons asked for at the same time are fetched
+     * together.
+     *
+     * @return the future photo found in the directory for this person,
+     * completed with <tt>null</tt> if there is none
+     */
+    public CompletableFuture<byte[]> fetchPhotoAsync();
+
     /**
      * Set the photo found in the directory for this person.
      * @param photo the photo found in the directory for this person.
@@ -0,0 +1,47 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.metahistory;
+
+import java.util.*;
+
+/**
+ * The records of a query made through the <tt>MetaHistoryService</tt>,
+ * merged from the wrapped history services and returned in the order of their
+ * timestamps. The wrapped services return their whole results, so the first
+ * call to {@link #hasNext()} blocks until every service query is complete and
+ * all their records are held in memory; the records are then merged one at a
+ * time as the cursor is iterated. The query may be canceled while the
+ * services are still being queried, for example when the window showing the
+ * records is closed.
+ */
+public interface MetaHistoryCursor
+    extends Iterator<Object>
+{
+    /**
+     * Cancels the query. The queries of the wrapped services which are still
+     * running are interrupted and the cursor returns no more records.
+     */
+    public void cancel();
+
+    /**
+     * Checks whether the query was canceled.
+     *
+     * @return <tt>true</tt> if {@link #cancel()} was called
+     */
+    public boolean isCanceled();
+}
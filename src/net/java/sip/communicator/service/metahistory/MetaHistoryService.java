@@ -76,6 +76,28 @@ public Collection<Object> findByPeriod(String[] services,
             Object descriptor, Date startDate, Date endDate)
         throws RuntimeException;
 
+    /**
+     * Returns a cursor over the records between the given dates, in the order
+     * of their timestamps. The wrapped services are queried in parallel and
+     * the cursor waits for all their results before it returns the first
+     * record. The results are then merged while the cursor is iterated,
+     * without sorting them together. The <tt>count</tt> limits the number of
+     * records returned, not the number of records read from the services.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param startDate Date the date of the first record to return
+     * @param endDate Date the date of the last record to return
+     * @param count the maximum number of records to return or a negative
+     *  value to return all of them
+     * @return the cursor over the merged records of the services we wrap
+     * @throws RuntimeException
+     */
+    public MetaHistoryCursor iterateByPeriod(String[] services,
+            Object descriptor, Date startDate, Date endDate, int count)
+        throws RuntimeException;
+
     /**
      * Returns all the records between the given dates and having the given
      * keywords
@@ -224,7 +246,10 @@ public Collection<Object> findLastMessagesBefore(String[] services,
         throws RuntimeException;
 
     /**
-     * Adding progress listener for monitoring progress of search process
+     * Adding progress listener for monitoring progress of search process.
+     * The wrapped services of a cursor query are queried in parallel, so the
+     * listener receives the events of their searches interleaved and from
+     * several threads.
      *
      * @param listener HistorySearchProgressListener
      */
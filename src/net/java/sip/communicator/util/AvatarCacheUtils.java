@@ -26,6 +26,11 @@
 /**
  * The <tt>AvatarCacheUtils</tt> allows to cache an avatar or to obtain the
  * image of a cached avatar by specifying a contact or an account address.
+ * <p>
+ * The avatars are kept in an <tt>AvatarStore</tt>, which stores identical
+ * avatars of different contacts and accounts once and keeps the recently
+ * used ones in memory. The avatars cached in a file per contact by previous
+ * versions are moved to the store when it is first used.
  *
  * @author Yana Stamcheva
  */
@@ -43,6 +48,11 @@
      */
     private final static String AVATAR_DIR = "avatarcache";
 
+    /**
+     * The maximum number of bytes of the avatars kept in memory.
+     */
+    private final static long MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -50,16 +60,26 @@
     {
         {"&", "&_amp"},
         {"/", "&_sl"},
-        {"\\\\", "&_bs"},   // the char \
+        {"\\", "&_bs"},
         {":", "&_co"},
-        {"\\*", "&_as"},    // the char *
-        {"\\?", "&_qm"},    // the char ?
-        {"\"", "&_pa"},     // the char "
+        {"*", "&_as"},
+        {"?", "&_qm"},
+        {"\"", "&_pa"},
         {"<", "&_lt"},
         {">", "&_gt"},
-        {"\\|", "&_pp"}     // the char |
+        {"|", "&_pp"}
     };
 
+    /**
+     * The store of the avatars, created when first used.
+     */
+    private static AvatarStore store;
+
+    /**
+     * Indicates whether the creation of the store has failed.
+     */
+    private static boolean storeFailed = false;
+
     /**
      * Returns the bytes of the avatar image stored for the account
      * corresponding to the given protocol provider.
@@ -72,286 +92,383 @@
     public static byte[] getCachedAvatar(
                                     ProtocolProviderService protocolProvider)
     {
-        String avatarPath = getCachedAvatarPath(protocolProvider);
-
-        byte[] cachedAvatar = getLocallyStoredAvatar(avatarPath);
-
-        /*
-         * Caching a zero-length avatar happens but such an avatar isn't
-         * very useful.
-         */
-        if ((cachedAvatar != null) && (cachedAvatar.length > 0))
-            return cachedAvatar;
-
-        return null;
+        return getCachedAvatar(getKey(protocolProvider));
     }
 
     /**
-     * Returns the bytes of the avatar image stored for the account
-     * corresponding to the given protocol provider.
+     * Returns the bytes of the avatar image stored for the given contact.
      *
-     * @param protocolProvider the <tt>ProtocolProviderService</tt>, which
-     * account avatar image we're looking for
-     * @return the bytes of the avatar image stored for the account
-     * corresponding to the given protocol provider
+     * @param protocolContact the <tt>Contact</tt>, which avatar image we're
+     * looking for
+     * @return the bytes of the avatar image stored for the given contact
      */
     public static byte[] getCachedAvatar(Contact protocolContact)
     {
-        String avatarPath = getCachedAvatarPath(protocolContact);
-
-        byte[] cachedAvatar = getLocallyStoredAvatar(avatarPath);
-
-        /*
-         * Caching a zero-length avatar happens but such an avatar isn't
-         * very useful.
-         */
-        if ((cachedAvatar != null) && (cachedAvatar.length > 0))
-            return cachedAvatar;
-
-        return null;
+        return getCachedAvatar(getKey(protocolContact));
     }
 
     /**
-     * Returns the bytes of the avatar image stored for the account
-     * corresponding to the given protocol provider.
+     * Returns the path, relative to the cache directory, of the avatar image
+     * stored for the account corresponding to the given protocol provider.
      *
      * @param protocolProvider the <tt>ProtocolProviderService</tt>, which
      * account avatar image we're looking for
-     * @return the bytes of the avatar image stored for the account
+     * @return the path of the avatar image stored for the account
      * corresponding to the given protocol provider
      */
     public static String getCachedAvatarPath(
                                     ProtocolProviderService protocolProvider)
     {
-        return AVATAR_DIR
-            + File.separator
-            + escapeSpecialCharacters(
-                    protocolProvider.getAccountID().getAccountUniqueID())
-            + File.separator
-            + escapeSpecialCharacters(
-                    protocolProvider.getAccountID().getAccountUniqueID());
+        String accountUID
+            = protocolProvider.getAccountID().getAccountUniqueID();
+
+        return getCachedAvatarPath(accountUID, accountUID);
     }
 
     /**
-     * Returns the bytes of the avatar image stored for the account
-     * corresponding to the given protocol provider.
+     * Returns the path, relative to the cache directory, of the avatar image
+     * stored for the given contact.
      *
-     * @param protocolProvider the <tt>ProtocolProviderService</tt>, which
-     * account avatar image we're looking for
-     * @return the bytes of the avatar image stored for the account
-     * corresponding to the given protocol provider
+     * @param protocolContact the <tt>Contact</tt>, which avatar image we're
+     * looking for
+     * @return the path of the avatar image stored for the given contact
      */
     public static String getCachedAvatarPath(Contact protocolContact)
     {
-        return AVATAR_DIR
-            + File.separator
-            + escapeSpecialCharacters(
-                protocolContact
-                    .getProtocolProvider()
-                        .getAccountID().getAccountUniqueID())
-            + File.separator
-            + escapeSpecialCharacters(protocolContact.getAddress());
+        return getCachedAvatarPath(
+            protocolContact
+                .getProtocolProvider().getAccountID().getAccountUniqueID(),
+            protocolContact.getAddress());
     }
 
     /**
-     * Returns the bytes of the avatar image stored for the account
+     * Returns the path, relative to the cache directory, of the avatar image
+     * stored for the contact with the given address in the account
      * corresponding to the given protocol provider.
      *
-     * @param protocolProvider the <tt>ProtocolProviderService</tt>, which
-     * account avatar image we're looking for
-     * @return the bytes of the avatar image stored for the account
-     * corresponding to the given protocol provider
+     * @param protocolProvider the <tt>ProtocolProviderService</tt> of the
+     * account of the contact
+     * @param contactAddress the address of the contact
+     * @return the path of the avatar image stored for the contact
      */
     public static String getCachedAvatarPath(
                                     ProtocolProviderService protocolProvider,
                                     String contactAddress)
     {
-        return AVATAR_DIR
-            + File.separator
-            + escapeSpecialCharacters(
-                protocolProvider.getAccountID().getAccountUniqueID())
-            + File.separator
-            + escapeSpecialCharacters(contactAddress);
+        return getCachedAvatarPath(
+            protocolProvider.getAccountID().getAccountUniqueID(),
+            contactAddress);
     }
 
     /**
-     * Returns the avatar image corresponding to the given avatar path.
+     * Stores avatar bytes in the given <tt>Contact</tt>.
      *
-     * @param avatarPath The path to the lovally stored avatar.
-     * @return the avatar image corresponding to the given avatar path.
+     * @param protoContact The contact in which we store the avatar.
+     * @param avatarBytes The avatar image bytes.
      */
-    private static byte[] getLocallyStoredAvatar(String avatarPath)
+    public static void cacheAvatar( Contact protoContact,
+                                    byte[] avatarBytes)
     {
-        try
-        {
-            File avatarFile
-                = UtilActivator
-                    .getFileAccessService()
-                        .getPrivatePersistentFile(avatarPath,
-                            FileCategory.CACHE);
+        cacheAvatar(getKey(protoContact), avatarBytes);
+    }
 
-            if(avatarFile.exists())
-            {
-                FileInputStream avatarInputStream
-                    = new FileInputStream(avatarFile);
-                byte[] bs = null;
+    /**
+     * Stores avatar bytes for the account corresponding to the given
+     * <tt>protocolProvider</tt>.
+     *
+     * @param protocolProvider the protocol provider corresponding to the
+     * account, which avatar we're storing
+     * @param avatarBytes the avatar image bytes
+     */
+    public static void cacheAvatar( ProtocolProviderService protocolProvider,
+                                    byte[] avatarBytes)
+    {
+        cacheAvatar(getKey(protocolProvider), avatarBytes);
+    }
 
-                try
-                {
-                    int available = avatarInputStream.available();
+    /**
+     * Returns the number of avatar lookups which found the avatar in memory.
+     *
+     * @return the number of avatar lookups which found the avatar in memory
+     */
+    public static long getMemoryHitCount()
+    {
+        AvatarStore store = getStore();
 
-                    if (available > 0)
-                    {
-                        bs = new byte[available];
-                        avatarInputStream.read(bs);
-                    }
-                }
-                finally
-                {
-                    avatarInputStream.close();
-                }
-                if (bs != null)
-                    return bs;
-            }
-        }
-        catch (Exception ex)
-        {
-            logger.error(
-                    "Could not read avatar image from file " + avatarPath,
-                    ex);
-        }
-        return null;
+        return (store == null) ? 0 : store.getMemoryHitCount();
     }
 
     /**
-     * Replaces the characters that we must escape used for the created
-     * filename.
+     * Returns the number of avatar lookups which read the avatar from disk.
      *
-     * @param id the <tt>String</tt> which is to have its characters escaped
-     * @return a <tt>String</tt> derived from the specified <tt>id</tt> by
-     * escaping characters
+     * @return the number of avatar lookups which read the avatar from disk
      */
-    private static String escapeSpecialCharacters(String id)
+    public static long getDiskHitCount()
     {
-        String resultId = id;
+        AvatarStore store = getStore();
 
-        for (int j = 0; j < ESCAPE_SEQUENCES.length; j++)
-        {
-            resultId = resultId.
-                replaceAll(ESCAPE_SEQUENCES[j][0], ESCAPE_SEQUENCES[j][1]);
-        }
-        return resultId;
+        return (store == null) ? 0 : store.getDiskHitCount();
     }
 
     /**
-     * Stores avatar bytes in the given <tt>Contact</tt>.
+     * Returns the number of avatar lookups which found no avatar.
      *
-     * @param protoContact The contact in which we store the avatar.
-     * @param avatarBytes The avatar image bytes.
+     * @return the number of avatar lookups which found no avatar
      */
-    public static void cacheAvatar( Contact protoContact,
-                                    byte[] avatarBytes)
+    public static long getMissCount()
     {
-        String avatarDirPath
-            = AVATAR_DIR
-                + File.separator
-                + escapeSpecialCharacters(
-                        protoContact
-                            .getProtocolProvider()
-                                .getAccountID().getAccountUniqueID());
-        String avatarFileName
-            = escapeSpecialCharacters(protoContact.getAddress());
-
-        cacheAvatar(avatarDirPath, avatarFileName, avatarBytes);
+        AvatarStore store = getStore();
+
+        return (store == null) ? 0 : store.getMissCount();
     }
+
     /**
-     * Stores avatar bytes for the account corresponding to the given
-     * <tt>protocolProvider</tt>.
+     * Returns the avatar stored for the given key.
      *
-     * @param protocolProvider the protocol provider corresponding to the
-     * account, which avatar we're storing
+     * @param key the key of the contact or account
+     * @return the avatar stored for <tt>key</tt> or <tt>null</tt> if there
+     * is none
+     */
+    private static byte[] getCachedAvatar(String key)
+    {
+        AvatarStore store = getStore();
+
+        return (store == null) ? null : store.get(key);
+    }
+
+    /**
+     * Stores the avatar of the given key.
+     *
+     * @param key the key of the contact or account
      * @param avatarBytes the avatar image bytes
      */
-    public static void cacheAvatar( ProtocolProviderService protocolProvider,
-                                    byte[] avatarBytes)
+    private static void cacheAvatar(String key, byte[] avatarBytes)
+    {
+        AvatarStore store = getStore();
+
+        if (store != null)
+            store.put(key, avatarBytes);
+    }
+
+    /**
+     * Returns the path, relative to the cache directory, of the avatar image
+     * stored for a contact of an account. If there is no such image, the
+     * returned path does not exist.
+     *
+     * @param accountUID the unique ID of the account
+     * @param contactAddress the address of the contact
+     * @return the path of the avatar image
+     */
+    private static String getCachedAvatarPath(
+                                    String accountUID,
+                                    String contactAddress)
+    {
+        AvatarStore store = getStore();
+        File file
+            = (store == null)
+                ? null
+                : store.getFile(getKey(accountUID, contactAddress));
+
+        if (file != null)
+        {
+            return AVATAR_DIR
+                + File.separator
+                + AvatarStore.CONTENT_DIR
+                + File.separator
+                + file.getName();
+        }
+
+        return AVATAR_DIR
+            + File.separator
+            + escapeSpecialCharacters(accountUID)
+            + File.separator
+            + escapeSpecialCharacters(contactAddress);
+    }
+
+    /**
+     * Returns the key of the avatar of the account of the given provider.
+     *
+     * @param protocolProvider the provider of the account
+     * @return the key of the avatar of the account
+     */
+    private static String getKey(ProtocolProviderService protocolProvider)
     {
         String accountUID
             = protocolProvider.getAccountID().getAccountUniqueID();
 
-        String avatarDirPath
-            = AVATAR_DIR
-                + File.separator
-                + escapeSpecialCharacters(accountUID);
+        return getKey(accountUID, accountUID);
+    }
 
-        String avatarFileName = escapeSpecialCharacters(accountUID);
+    /**
+     * Returns the key of the avatar of the given contact.
+     *
+     * @param protocolContact the contact
+     * @return the key of the avatar of the contact
+     */
+    private static String getKey(Contact protocolContact)
+    {
+        return getKey(
+            protocolContact
+                .getProtocolProvider().getAccountID().getAccountUniqueID(),
+            protocolContact.getAddress());
+    }
 
-        cacheAvatar(avatarDirPath, avatarFileName, avatarBytes);
+    /**
+     * Returns the key of the avatar of a contact of an account. The account
+     * avatar is the one of the contact with the unique ID of the account as
+     * address.
+     *
+     * @param accountUID the unique ID of the account
+     * @param contactAddress the address of the contact
+     * @return the key of the avatar
+     */
+    static String getKey(String accountUID, String contactAddress)
+    {
+        // a line feed is neither in account IDs nor in addresses
+        return accountUID + '\n' + contactAddress;
     }
 
     /**
-     * Stores avatar bytes for the account corresponding to the given
-     * <tt>protocolProvider</tt>.
+     * Returns the store of the avatars, creating it and moving to it the
+     * avatars cached by previous versions if it is first used.
      *
-     * @param avatarDirPath the directory in which the file will be stored
-     * @param avatarFileName the name of the avatar file
-     * @param avatarBytes the avatar image bytes
+     * @return the store of the avatars or <tt>null</tt> if it cannot be
+     * created
      */
-    private static void cacheAvatar(String avatarDirPath,
-                                    String avatarFileName,
-                                    byte[] avatarBytes)
+    private static synchronized AvatarStore getStore()
     {
-        File avatarDir = null;
-        File avatarFile = null;
-        try
+        if (store == null && !storeFailed)
         {
-            FileAccessService fileAccessService
-                = UtilActivator.getFileAccessService();
-
-            avatarDir
-                = fileAccessService.getPrivatePersistentDirectory(
-                        avatarDirPath, FileCategory.CACHE);
-            avatarFile
-                = fileAccessService.getPrivatePersistentFile(
-                        new File(avatarDirPath, avatarFileName).toString(),
-                        FileCategory.CACHE);
-
-            if(!avatarFile.exists())
+            try
             {
-                if (!avatarDir.exists() && !avatarDir.mkdirs())
-                {
-                    throw
-                        new IOException(
-                                "Failed to create directory: "
-                                    + avatarDir.getAbsolutePath());
-                }
+                File dir
+                    = UtilActivator
+                        .getFileAccessService()
+                            .getPrivatePersistentDirectory(
+                                AVATAR_DIR, FileCategory.CACHE);
 
-                if (!avatarFile.createNewFile())
-                {
-                    throw
-                        new IOException(
-                                "Failed to create file"
-                                    + avatarFile.getAbsolutePath());
-                }
+                if (!dir.exists() && !dir.mkdirs())
+                    throw new IOException("Failed to create directory: " + dir);
+
+                store = new AvatarStore(dir, MAX_MEMORY_BYTES);
+                moveLegacyAvatars(dir, store);
             }
+            catch (Exception ex)
+            {
+                logger.error("Failed to open the avatar cache", ex);
+                storeFailed = true;
+            }
+        }
+        return store;
+    }
 
-            FileOutputStream fileOutStream = new FileOutputStream(avatarFile);
+    /**
+     * Moves to the store the avatars cached by previous versions in a
+     * directory per account and a file per contact.
+     *
+     * @param dir the avatar cache directory
+     * @param store the store to move the avatars to
+     */
+    static void moveLegacyAvatars(File dir, AvatarStore store)
+    {
+        File[] accountDirs = dir.listFiles();
 
-            try
+        if (accountDirs == null)
+            return;
+
+        for (File accountDir : accountDirs)
+        {
+            File[] avatarFiles;
+
+            if (!accountDir.isDirectory()
+                || accountDir.getName().equals(AvatarStore.CONTENT_DIR)
+                || (avatarFiles = accountDir.listFiles()) == null)
+                continue;
+
+            String accountUID = unescapeSpecialCharacters(accountDir.getName());
+
+            for (File avatarFile : avatarFiles)
             {
-                fileOutStream.write(avatarBytes);
-                fileOutStream.flush();
+                byte[] avatarBytes = AvatarStore.read(avatarFile);
+
+                if (avatarBytes != null)
+                {
+                    store.put(
+                        getKey(
+                            accountUID,
+                            unescapeSpecialCharacters(avatarFile.getName())),
+                        avatarBytes);
+                }
+                if (!avatarFile.delete())
+                    logger.warn("Failed to delete " + avatarFile);
             }
-            finally
+            if (!accountDir.delete())
+                logger.warn("Failed to delete " + accountDir);
+        }
+    }
+
+    /**
+     * Replaces the characters that we must escape used for the created
+     * filename.
+     *
+     * @param id the <tt>String</tt> which is to have its characters escaped
+     * @return a <tt>String</tt> derived from the specified <tt>id</tt> by
+     * escaping characters
+     */
+    static String escapeSpecialCharacters(String id)
+    {
+        StringBuilder resultId = null;
+
+        for (int i = 0; i < id.length(); i++)
+        {
+            char c = id.charAt(i);
+            String replacement = null;
+
+            for (String[] sequence : ESCAPE_SEQUENCES)
             {
-                fileOutStream.close();
+                if (sequence[0].charAt(0) == c)
+                {
+                    replacement = sequence[1];
+                    break;
+                }
             }
+
+            if (replacement != null && resultId == null)
+                resultId = new StringBuilder(id.substring(0, i));
+            if (replacement != null)
+                resultId.append(replacement);
+            else if (resultId != null)
+                resultId.append(c);
         }
-        catch (Exception ex)
+        return (resultId == null) ? id : resultId.toString();
+    }
+
+    /**
+     * Restores the characters escaped by
+     * <tt>escapeSpecialCharacters</tt>.
+     *
+     * @param escapedId the escaped <tt>String</tt>
+     * @return the <tt>String</tt> which escaping is <tt>escapedId</tt>
+     */
+    static String unescapeSpecialCharacters(String escapedId)
+    {
+        StringBuilder resultId = new StringBuilder(escapedId.length());
+        int i = 0;
+
+        sequences:
+        while (i < escapedId.length())
         {
-            logger.error(
-                    "Failed to store avatar. dir =" + avatarDir
-                        + " file=" + avatarFile,
-                    ex);
+            for (String[] sequence : ESCAPE_SEQUENCES)
+            {
+                if (escapedId.startsWith(sequence[1], i))
+                {
+                    resultId.append(sequence[0]);
+                    i += sequence[1].length();
+                    continue sequences;
+                }
+            }
+            resultId.append(escapedId.charAt(i++));
         }
+        return resultId.toString();
     }
 }
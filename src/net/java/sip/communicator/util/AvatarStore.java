@@ -0,0 +1,570 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A content-addressed store of avatar images. Every image is stored once in
+ * a file named after its SHA-1 hash, so that the same avatar cached for
+ * several contacts or accounts takes the space of a single file, and an
+ * append-only index maps the keys of the contacts and accounts to the hashes
+ * of their images. The most recently read images are also kept in memory
+ * within a limited number of bytes.
+ * <p>
+ * The index is a sequence of key and hash records, a record with an empty
+ * hash removing the key. It is compacted when it is loaded, if it holds many
+ * more records than keys, and the images no longer referenced by any key
+ * are deleted then.
+ */
+class AvatarStore
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>AvatarStore</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger = Logger.getLogger(AvatarStore.class);
+
+    /**
+     * The name of the directory holding the images.
+     */
+    static final String CONTENT_DIR = "content";
+
+    /**
+     * The name of the index file.
+     */
+    static final String INDEX_FILE = "index.dat";
+
+    /**
+     * The first bytes of the index file.
+     */
+    private static final int MAGIC = 0x4A415654;
+
+    /**
+     * The version of the format of the index file.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The directory holding the images.
+     */
+    private final File contentDir;
+
+    /**
+     * The index file.
+     */
+    private final File indexFile;
+
+    /**
+     * The hashes of the images per key.
+     */
+    private final Map<String, String> hashes = new HashMap<String, String>();
+
+    /**
+     * The most recently read images per hash, the least recently used first.
+     */
+    private final LinkedHashMap<String, byte[]> memory
+        = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**
+     * The maximum number of bytes of the images kept in memory.
+     */
+    private final long maxMemoryBytes;
+
+    /**
+     * The number of bytes of the images kept in memory.
+     */
+    private long memoryBytes = 0;
+
+    /**
+     * The number of lookups which found their image in memory.
+     */
+    private long memoryHits = 0;
+
+    /**
+     * The number of lookups which read their image from disk.
+     */
+    private long diskHits = 0;
+
+    /**
+     * The number of lookups which did not find an image.
+     */
+    private long misses = 0;
+
+    /**
+     * Creates a store in the given directory and loads its index.
+     *
+     * @param dir the directory of the store
+     * @param maxMemoryBytes the maximum number of bytes of the images kept
+     * in memory
+     */
+    AvatarStore(File dir, long maxMemoryBytes)
+    {
+        this.contentDir = new File(dir, CONTENT_DIR);
+        this.indexFile = new File(dir, INDEX_FILE);
+        this.maxMemoryBytes = maxMemoryBytes;
+
+        load();
+    }
+
+    /**
+     * Returns the image stored for the given key.
+     *
+     * @param key the key of the contact or account
+     * @return the image stored for <tt>key</tt> or <tt>null</tt> if there is
+     * none
+     */
+    byte[] get(String key)
+    {
+        String hash;
+
+        synchronized (this)
+        {
+            hash = hashes.get(key);
+            if (hash == null)
+            {
+                misses++;
+                return null;
+            }
+
+            byte[] bytes = memory.get(hash);
+
+            if (bytes != null)
+            {
+                memoryHits++;
+                return bytes;
+            }
+        }
+
+        byte[] bytes = read(new File(contentDir, hash));
+
+        synchronized (this)
+        {
+            if (bytes == null)
+            {
+                misses++;
+                if (hash.equals(hashes.get(key)))
+                    remove(key);
+                return null;
+            }
+
+            diskHits++;
+            remember(hash, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the file of the image stored for the given key.
+     *
+     * @param key the key of the contact or account
+     * @return the file of the image stored for <tt>key</tt> or <tt>null</tt>
+     * if there is none
+     */
+    synchronized File getFile(String key)
+    {
+        String hash = hashes.get(key);
+
+        return (hash == null) ? null : new File(contentDir, hash);
+    }
+
+    /**
+     * Stores the image of the given key. The image file is only written if
+     * no other key has the same image.
+     *
+     * @param key the key of the contact or account
+     * @param bytes the image or an empty array or <tt>null</tt> to remove the
+     * image of <tt>key</tt>
+     */
+    void put(String key, byte[] bytes)
+    {
+        if (bytes == null || bytes.length == 0)
+        {
+            synchronized (this)
+            {
+                remove(key);
+            }
+            return;
+        }
+
+        String hash;
+
+        try
+        {
+            hash = Sha1Crypto.encode(bytes);
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to hash avatar of " + key, e);
+            return;
+        }
+
+        File file = new File(contentDir, hash);
+
+        synchronized (this)
+        {
+            if (hash.equals(hashes.get(key)) && file.exists())
+                return;
+
+            if (!file.exists() && !write(file, bytes))
+                return;
+
+            hashes.put(key, hash);
+            append(key, hash);
+            remember(hash, bytes);
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found their image in memory.
+     *
+     * @return the number of lookups which found their image in memory
+     */
+    synchronized long getMemoryHitCount()
+    {
+        return memoryHits;
+    }
+
+    /**
+     * Returns the number of lookups which read their image from disk.
+     *
+     * @return the number of lookups which read their image from disk
+     */
+    synchronized long getDiskHitCount()
+    {
+        return diskHits;
+    }
+
+    /**
+     * Returns the number of lookups which did not find an image.
+     *
+     * @return the number of lookups which did not find an image
+     */
+    synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of keys which have an image.
+     *
+     * @return the number of keys which have an image
+     */
+    synchronized int size()
+    {
+        return hashes.size();
+    }
+
+    /**
+     * Removes the image of the given key.
+     *
+     * @param key the key of the contact or account
+     */
+    private void remove(String key)
+    {
+        if (hashes.remove(key) != null)
+            append(key, "");
+    }
+
+    /**
+     * Keeps an image in memory, evicting the least recently used images if
+     * the memory limit is exceeded.
+     *
+     * @param hash the hash of the image
+     * @param bytes the image
+     */
+    private void remember(String hash, byte[] bytes)
+    {
+        if (bytes.length > maxMemoryBytes)
+            return;
+
+        byte[] old = memory.put(hash, bytes);
+
+        if (old != null)
+            memoryBytes -= old.length;
+        memoryBytes += bytes.length;
+
+        Iterator<byte[]> iter = memory.values().iterator();
+
+        while (memoryBytes > maxMemoryBytes && iter.hasNext())
+        {
+            memoryBytes -= iter.next().length;
+            iter.remove();
+        }
+    }
+
+    /**
+     * Loads the index, and compacts it and deletes the unreferenced images
+     * if it holds many more records than keys or is damaged.
+     */
+    private synchronized void load()
+    {
+        if (!indexFile.exists())
+            return;
+
+        int records = 0;
+        boolean damaged = false;
+        DataInputStream in = null;
+
+        try
+        {
+            in
+                = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Unknown avatar index format");
+
+            while (true)
+            {
+                // a record cut by a crash is damaged, not the end
+                in.mark(1);
+                if (in.read() < 0)
+                    break;
+                in.reset();
+
+                String key = in.readUTF();
+                String hash = in.readUTF();
+
+                records++;
+                if (hash.length() == 0)
+                    hashes.remove(key);
+                else
+                    hashes.put(key, hash);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to read the avatar index " + indexFile, e);
+            damaged = true;
+        }
+        finally
+        {
+            close(in);
+        }
+
+        if (damaged || records > 2 * hashes.size() + 16)
+        {
+            compact();
+            deleteUnreferenced();
+        }
+    }
+
+    /**
+     * Appends a record to the index.
+     *
+     * @param key the key of the contact or account
+     * @param hash the hash of the image or an empty string to remove the
+     * image of <tt>key</tt>
+     */
+    private void append(String key, String hash)
+    {
+        DataOutputStream out = null;
+
+        try
+        {
+            boolean exists = indexFile.exists() && indexFile.length() > 0;
+
+            out
+                = new DataOutputStream(
+                    new BufferedOutputStream(
+                        new FileOutputStream(indexFile, true)));
+            if (!exists)
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            out.writeUTF(key);
+            out.writeUTF(hash);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to write the avatar index " + indexFile, e);
+        }
+        finally
+        {
+            close(out);
+        }
+    }
+
+    /**
+     * Rewrites the index with the current keys only.
+     */
+    private void compact()
+    {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+
+        try
+        {
+            out
+                = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, String> e : hashes.entrySet())
+            {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+
+            out.close();
+            out = null;
+            written = true;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to compact the avatar index " + indexFile, e);
+        }
+        finally
+        {
+            close(out);
+        }
+
+        if (written
+            && !tmp.renameTo(indexFile)
+            && !(indexFile.delete() && tmp.renameTo(indexFile)))
+        {
+            logger.warn("Failed to replace the avatar index " + indexFile);
+        }
+    }
+
+    /**
+     * Deletes the images which are not referenced by any key.
+     */
+    private void deleteUnreferenced()
+    {
+        File[] files = contentDir.listFiles();
+
+        if (files == null)
+            return;
+
+        Set<String> referenced = new HashSet<String>(hashes.values());
+
+        for (File file : files)
+        {
+            if (!referenced.contains(file.getName()) && !file.delete())
+                logger.warn("Failed to delete unused avatar " + file);
+        }
+    }
+
+    /**
+     * Reads a whole file.
+     *
+     * @param file the file to read
+     * @return the content of <tt>file</tt> or <tt>null</tt> if it does not
+     * exist or cannot be read
+     */
+    static byte[] read(File file)
+    {
+        long length = file.length();
+
+        if (length <= 0 || length > Integer.MAX_VALUE)
+            return null;
+
+        DataInputStream in = null;
+
+        try
+        {
+            in = new DataInputStream(new FileInputStream(file));
+
+            byte[] bytes = new byte[(int) length];
+
+            in.readFully(bytes);
+            return bytes;
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not read avatar image from file " + file, e);
+            return null;
+        }
+        finally
+        {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes an image file through a temporary file, so that an image file
+     * is never partially written.
+     *
+     * @param file the image file
+     * @param bytes the image
+     * @return <tt>true</tt> if the file is written
+     */
+    private static boolean write(File file, byte[] bytes)
+    {
+        File dir = file.getParentFile();
+
+        if (!dir.exists() && !dir.mkdirs())
+        {
+            logger.error("Failed to create directory: " + dir);
+            return false;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+
+        try
+        {
+            out = new FileOutputStream(tmp);
+            out.write(bytes);
+            out.close();
+            out = null;
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to store avatar " + file, e);
+            close(out);
+            tmp.delete();
+            return false;
+        }
+
+        if (!tmp.renameTo(file))
+        {
+            tmp.delete();
+            if (!file.exists())
+            {
+                logger.error("Failed to store avatar " + file);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes a stream ignoring errors.
+     *
+     * @param stream the stream to close or <tt>null</tt>
+     */
+    private static void close(Closeable stream)
+    {
+        if (stream != null)
+        {
+            try
+            {
+                stream.close();
+            }
+            catch (IOException e)
+            {
+            }
+        }
+    }
+}
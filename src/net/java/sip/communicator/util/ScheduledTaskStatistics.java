@@ -0,0 +1,207 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+/**
+ * The statistics of the tasks of one type scheduled with the
+ * <tt>SchedulerService</tt>. The lateness of an execution is the time between
+ * the moment it was scheduled for and the moment it started.
+ */
+public class ScheduledTaskStatistics
+{
+    /**
+     * The number of times a task of this type has been scheduled.
+     */
+    private long scheduledCount;
+
+    /**
+     * The number of executions of the tasks of this type.
+     */
+    private long executionCount;
+
+    /**
+     * The number of executions which ended with an exception.
+     */
+    private long failureCount;
+
+    /**
+     * The sum of the lateness of all the executions, in nanoseconds.
+     */
+    private long totalLateness;
+
+    /**
+     * The largest lateness of an execution, in nanoseconds.
+     */
+    private long maxLateness;
+
+    /**
+     * The sum of the duration of all the executions, in nanoseconds.
+     */
+    private long totalExecutionTime;
+
+    /**
+     * The longest duration of an execution, in nanoseconds.
+     */
+    private long maxExecutionTime;
+
+    /**
+     * Accounts that a task of this type has been scheduled.
+     */
+    synchronized void taskScheduled()
+    {
+        scheduledCount++;
+    }
+
+    /**
+     * Accounts an execution of a task of this type.
+     *
+     * @param lateness the lateness of the execution in nanoseconds
+     * @param executionTime the duration of the execution in nanoseconds
+     * @param failed whether the execution ended with an exception
+     */
+    synchronized void taskExecuted(
+            long lateness,
+            long executionTime,
+            boolean failed)
+    {
+        executionCount++;
+        if (failed)
+            failureCount++;
+
+        if (lateness > 0)
+        {
+            totalLateness += lateness;
+            if (lateness > maxLateness)
+                maxLateness = lateness;
+        }
+
+        totalExecutionTime += executionTime;
+        if (executionTime > maxExecutionTime)
+            maxExecutionTime = executionTime;
+    }
+
+    /**
+     * Returns a copy of these statistics.
+     *
+     * @return a copy of these statistics
+     */
+    synchronized ScheduledTaskStatistics copy()
+    {
+        ScheduledTaskStatistics copy = new ScheduledTaskStatistics();
+
+        copy.scheduledCount = scheduledCount;
+        copy.executionCount = executionCount;
+        copy.failureCount = failureCount;
+        copy.totalLateness = totalLateness;
+        copy.maxLateness = maxLateness;
+        copy.totalExecutionTime = totalExecutionTime;
+        copy.maxExecutionTime = maxExecutionTime;
+        return copy;
+    }
+
+    /**
+     * Returns the number of times a task of this type has been scheduled.
+     *
+     * @return the number of times a task of this type has been scheduled
+     */
+    public synchronized long getScheduledCount()
+    {
+        return scheduledCount;
+    }
+
+    /**
+     * Returns the number of executions of the tasks of this type.
+     *
+     * @return the number of executions of the tasks of this type
+     */
+    public synchronized long getExecutionCount()
+    {
+        return executionCount;
+    }
+
+    /**
+     * Returns the number of executions which ended with an exception.
+     *
+     * @return the number of executions which ended with an exception
+     */
+    public synchronized long getFailureCount()
+    {
+        return failureCount;
+    }
+
+    /**
+     * Returns the average lateness of the executions in milliseconds.
+     *
+     * @return the average lateness of the executions in milliseconds
+     */
+    public synchronized double getAverageLateness()
+    {
+        return (executionCount == 0)
+            ? 0
+            : totalLateness / (executionCount * 1000000.0);
+    }
+
+    /**
+     * Returns the largest lateness of an execution in milliseconds.
+     *
+     * @return the largest lateness of an execution in milliseconds
+     */
+    public synchronized double getMaxLateness()
+    {
+        return maxLateness / 1000000.0;
+    }
+
+    /**
+     * Returns the average duration of the executions in milliseconds.
+     *
+     * @return the average duration of the executions in milliseconds
+     */
+    public synchronized double getAverageExecutionTime()
+    {
+        return (executionCount == 0)
+            ? 0
+            : totalExecutionTime / (executionCount * 1000000.0);
+    }
+
+    /**
+     * Returns the longest duration of an execution in milliseconds.
+     *
+     * @return the longest duration of an execution in milliseconds
+     */
+    public synchronized double getMaxExecutionTime()
+    {
+        return maxExecutionTime / 1000000.0;
+    }
+
+    /**
+     * Returns a string representation of these statistics.
+     *
+     * @return a string representation of these statistics
+     */
+    @Override
+    public synchronized String toString()
+    {
+        return "scheduled=" + scheduledCount
+            + ", executed=" + executionCount
+            + ", failed=" + failureCount
+            + ", lateness avg/max=" + String.format("%.2f/%.2f ms",
+                    getAverageLateness(), getMaxLateness())
+            + ", execution time avg/max=" + String.format("%.2f/%.2f ms",
+                    getAverageExecutionTime(), getMaxExecutionTime());
+    }
+}
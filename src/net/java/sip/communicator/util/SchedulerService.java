@@ -0,0 +1,90 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A scheduling service shared by all the bundles, which runs delayed and
+ * periodic tasks on a small pool of threads instead of one
+ * <tt>java.util.Timer</tt> thread per user. Every task is scheduled with a
+ * type, usually the name of its class, under which the number of its
+ * executions, their lateness and their execution time are accounted.
+ */
+public interface SchedulerService
+{
+    /**
+     * Schedules a task for execution after a specific delay.
+     *
+     * @param type the type of the task under which its executions are
+     * accounted
+     * @param task the task to execute
+     * @param delay the delay in milliseconds before the task is executed
+     * @return the <tt>ScheduledFuture</tt> which may be used to cancel the
+     * task
+     */
+    public ScheduledFuture<?> schedule(String type, Runnable task, long delay);
+
+    /**
+     * Schedules a task for repeated execution, beginning after a specific
+     * delay, with a specific delay between the end of an execution and the
+     * start of the next one, as a <tt>java.util.Timer</tt> does.
+     *
+     * @param type the type of the task under which its executions are
+     * accounted
+     * @param task the task to execute
+     * @param delay the delay in milliseconds before the first execution
+     * @param period the delay in milliseconds between successive executions
+     * @return the <tt>ScheduledFuture</tt> which may be used to cancel the
+     * task
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(
+            String type,
+            Runnable task,
+            long delay,
+            long period);
+
+    /**
+     * Schedules a task for repeated execution at a fixed rate, beginning after
+     * a specific delay.
+     *
+     * @param type the type of the task under which its executions are
+     * accounted
+     * @param task the task to execute
+     * @param delay the delay in milliseconds before the first execution
+     * @param period the time in milliseconds between the starts of
+     * successive executions
+     * @return the <tt>ScheduledFuture</tt> which may be used to cancel the
+     * task
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(
+            String type,
+            Runnable task,
+            long delay,
+            long period);
+
+    /**
+     * Returns the statistics of the tasks scheduled with this service so far,
+     * per task type.
+     *
+     * @return a snapshot of the statistics of the scheduled tasks per task
+     * type
+     */
+    public Map<String, ScheduledTaskStatistics> getStatistics();
+}
@@ -0,0 +1,288 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The <tt>SchedulerService</tt> implementation registered by the
+ * <tt>UtilActivator</tt>. It runs the tasks on a
+ * <tt>ScheduledThreadPoolExecutor</tt> which threads are stopped when they
+ * have been idle for a while, so no thread is kept while nothing is
+ * scheduled.
+ */
+public class SchedulerServiceImpl
+    implements SchedulerService
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>SchedulerServiceImpl</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SchedulerServiceImpl.class);
+
+    /**
+     * The number of threads executing the tasks.
+     */
+    private static final int THREAD_COUNT
+        = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The time in seconds after which an idle thread is stopped.
+     */
+    private static final long THREAD_KEEP_ALIVE = 60;
+
+    /**
+     * The executor running the tasks.
+     */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The statistics of the scheduled tasks per task type.
+     */
+    private final ConcurrentMap<String, ScheduledTaskStatistics> statistics
+        = new ConcurrentHashMap<String, ScheduledTaskStatistics>();
+
+    /**
+     * Creates a new <tt>SchedulerServiceImpl</tt>.
+     */
+    public SchedulerServiceImpl()
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        executor = new ScheduledThreadPoolExecutor(
+            THREAD_COUNT,
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(
+                        r, "Scheduler-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        executor.setKeepAliveTime(THREAD_KEEP_ALIVE, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ScheduledFuture<?> schedule(String type, Runnable task, long delay)
+    {
+        InstrumentedTask instrumentedTask
+            = new InstrumentedTask(type, task, delay, 0, false);
+
+        return executor.schedule(
+                instrumentedTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(
+            String type,
+            Runnable task,
+            long delay,
+            long period)
+    {
+        InstrumentedTask instrumentedTask
+            = new InstrumentedTask(type, task, delay, period, false);
+
+        return executor.scheduleWithFixedDelay(
+                instrumentedTask, delay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(
+            String type,
+            Runnable task,
+            long delay,
+            long period)
+    {
+        InstrumentedTask instrumentedTask
+            = new InstrumentedTask(type, task, delay, period, true);
+
+        return executor.scheduleAtFixedRate(
+                instrumentedTask, delay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, ScheduledTaskStatistics> getStatistics()
+    {
+        Map<String, ScheduledTaskStatistics> snapshot
+            = new TreeMap<String, ScheduledTaskStatistics>();
+
+        for (Map.Entry<String, ScheduledTaskStatistics> e
+                : statistics.entrySet())
+            snapshot.put(e.getKey(), e.getValue().copy());
+        return snapshot;
+    }
+
+    /**
+     * Stops the execution of the scheduled tasks and logs their statistics.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+
+        if (logger.isDebugEnabled())
+        {
+            for (Map.Entry<String, ScheduledTaskStatistics> e
+                    : getStatistics().entrySet())
+                logger.debug(e.getKey() + ": " + e.getValue());
+        }
+    }
+
+    /**
+     * Returns the statistics of a specific task type, creating them if
+     * necessary.
+     *
+     * @param type the task type
+     * @return the statistics of <tt>type</tt>
+     */
+    private ScheduledTaskStatistics getStatistics(String type)
+    {
+        ScheduledTaskStatistics typeStatistics = statistics.get(type);
+
+        if (typeStatistics == null)
+        {
+            typeStatistics = new ScheduledTaskStatistics();
+
+            ScheduledTaskStatistics existing
+                = statistics.putIfAbsent(type, typeStatistics);
+
+            if (existing != null)
+                typeStatistics = existing;
+        }
+        return typeStatistics;
+    }
+
+    /**
+     * Runs a scheduled task, accounting its executions in the statistics of
+     * its type and logging the exceptions it throws, which would otherwise
+     * silently stop its periodic execution.
+     */
+    private class InstrumentedTask
+        implements Runnable
+    {
+        /**
+         * The type of the task.
+         */
+        private final String type;
+
+        /**
+         * The statistics of the type of the task.
+         */
+        private final ScheduledTaskStatistics typeStatistics;
+
+        /**
+         * The task to execute.
+         */
+        private final Runnable task;
+
+        /**
+         * The period of the task in nanoseconds or <tt>0</tt> if it is
+         * executed once.
+         */
+        private final long period;
+
+        /**
+         * Whether the task is executed at a fixed rate rather than with a
+         * fixed delay.
+         */
+        private final boolean fixedRate;
+
+        /**
+         * The time in nanoseconds at which the next execution is expected to
+         * start.
+         */
+        private long expectedStart;
+
+        /**
+         * Creates a new <tt>InstrumentedTask</tt>.
+         *
+         * @param type the type of the task
+         * @param task the task to execute
+         * @param delay the delay in milliseconds before the first execution
+         * @param period the period in milliseconds or <tt>0</tt>
+         * @param fixedRate whether the task is executed at a fixed rate
+         */
+        InstrumentedTask(
+                String type,
+                Runnable task,
+                long delay,
+                long period,
+                boolean fixedRate)
+        {
+            this.type = (type == null) ? task.getClass().getName() : type;
+            this.task = task;
+            this.period = TimeUnit.MILLISECONDS.toNanos(period);
+            this.fixedRate = fixedRate;
+
+            expectedStart
+                = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+
+            typeStatistics = getStatistics(this.type);
+            typeStatistics.taskScheduled();
+        }
+
+        /**
+         * Runs the task and accounts its execution.
+         */
+        public void run()
+        {
+            long start = System.nanoTime();
+            boolean failed = false;
+
+            try
+            {
+                task.run();
+            }
+            catch (Throwable t)
+            {
+                failed = true;
+                if (t instanceof ThreadDeath)
+                    throw (ThreadDeath) t;
+                logger.error("Scheduled task " + type + " failed", t);
+            }
+            finally
+            {
+                long end = System.nanoTime();
+
+                typeStatistics.taskExecuted(
+                        start - expectedStart, end - start, failed);
+
+                if (fixedRate)
+                    expectedStart += period;
+                else
+                    expectedStart = end + period;
+            }
+        }
+    }
+}
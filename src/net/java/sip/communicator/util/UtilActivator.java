@@ -69,7 +69,13 @@
     private static SystrayService systrayService;
 
     /**
-     * Calls <tt>Thread.setUncaughtExceptionHandler()</tt>
+     * The <tt>SchedulerService</tt> registered by this bundle.
+     */
+    private static SchedulerServiceImpl schedulerService;
+
+    /**
+     * Calls <tt>Thread.setUncaughtExceptionHandler()</tt> and registers the
+     * <tt>SchedulerService</tt> shared by all the bundles.
      *
      * @param context The execution context of the bundle being started
      * (unused).
@@ -89,6 +95,11 @@ public void start(BundleContext context)
         if (logger.isTraceEnabled())
             logger.trace("Setting default uncaught exception handler.");
         Thread.setDefaultUncaughtExceptionHandler(this);
+
+        context.registerService(
+                SchedulerService.class.getName(),
+                getSchedulerService(),
+                null);
     }
 
     /**
@@ -127,7 +138,7 @@ public void uncaughtException(Thread thread, Throwable exc)
     }
 
     /**
-     * Doesn't do anything.
+     * Stops the <tt>SchedulerService</tt> registered by this bundle.
      *
      * @param context The execution context of the bundle being stopped.
      * @throws Exception If this method throws an exception, the bundle is
@@ -138,6 +149,27 @@ public void uncaughtException(Thread thread, Throwable exc)
     public void stop(BundleContext context)
         throws Exception
     {
+        synchronized (UtilActivator.class)
+        {
+            if (schedulerService != null)
+            {
+                schedulerService.shutdown();
+                schedulerService = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the <tt>SchedulerService</tt> shared by all the bundles,
+     * creating it if necessary.
+     *
+     * @return the <tt>SchedulerService</tt> shared by all the bundles
+     */
+    public static synchronized SchedulerService getSchedulerService()
+    {
+        if (schedulerService == null)
+            schedulerService = new SchedulerServiceImpl();
+        return schedulerService;
     }
 
     /**
@@ -0,0 +1,135 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.callhistory;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.callhistory.*;
+
+/**
+ * Tests for the per-address queries of the <tt>CallHistoryIndex</tt>.
+ */
+public class CallHistoryIndexTest
+    extends TestCase
+{
+    private static CallRecord createCall(long start, String... addresses)
+    {
+        CallRecordImpl record = new CallRecordImpl();
+
+        record.setStartTime(new Date(start));
+        record.setEndTime(new Date(start + 1000));
+        for (String address : addresses)
+        {
+            record.getPeerRecords().add(
+                new CallPeerRecordImpl(
+                    address, new Date(start), new Date(start + 1000)));
+        }
+        return record;
+    }
+
+    private static List<Long> startTimes(List<CallRecord> records)
+    {
+        List<Long> times = new ArrayList<Long>();
+
+        for (CallRecord record : records)
+            times.add(record.getStartTime().getTime());
+        return times;
+    }
+
+    public void testNormalize()
+    {
+        assertEquals("alice@example.com",
+            CallHistoryIndex.normalize("sip:Alice@Example.com;transport=tcp"));
+        assertEquals("bob@example.com",
+            CallHistoryIndex.normalize("bob@example.com/Resource"));
+        assertEquals("+123456", CallHistoryIndex.normalize("tel:+123456"));
+        assertEquals("1234", CallHistoryIndex.normalize("1234"));
+    }
+
+    public void testFindByAddress()
+    {
+        CallHistoryIndex index = new CallHistoryIndex();
+
+        index.add(createCall(1000, "sip:alice@example.com"));
+        index.add(createCall(2000, "bob@example.com"));
+        index.add(createCall(4000, "alice@example.com", "bob@example.com"));
+        // written later as it ended later
+        index.add(createCall(3000, "Alice@example.com"));
+
+        assertEquals(
+            Arrays.asList(4000L, 3000L, 1000L),
+            startTimes(
+                index.find(
+                    Collections.singletonList("alice@example.com"),
+                    null, null, -1)));
+
+        // a call with both addresses is returned once
+        assertEquals(
+            Arrays.asList(4000L, 3000L, 2000L, 1000L),
+            startTimes(
+                index.find(
+                    Arrays.asList("alice@example.com", "bob@example.com"),
+                    null, null, -1)));
+
+        assertTrue(
+            index.find(
+                Collections.singletonList("carol@example.com"),
+                null, null, -1).isEmpty());
+    }
+
+    public void testFindByPeriodAndCount()
+    {
+        CallHistoryIndex index = new CallHistoryIndex();
+
+        for (long start = 1000; start <= 5000; start += 1000)
+            index.add(createCall(start, "alice@example.com"));
+
+        List<String> alice = Collections.singletonList("alice@example.com");
+
+        assertEquals(
+            Arrays.asList(3000L, 2000L),
+            startTimes(
+                index.find(alice, new Date(2000), new Date(4000), -1)));
+        assertEquals(
+            Arrays.asList(5000L, 4000L),
+            startTimes(index.find(alice, null, null, 2)));
+        assertEquals(
+            Arrays.asList(2000L, 1000L),
+            startTimes(index.find(alice, null, new Date(3000), -1)));
+    }
+
+    public void testUpdatePeerSecondaryAddress()
+    {
+        CallHistoryIndex index = new CallHistoryIndex();
+
+        index.add(createCall(1000, "1234"));
+        index.add(createCall(2000, "1234"));
+        index.add(createCall(3000, "alice@example.com"));
+
+        index.updatePeerSecondaryAddress(
+            new Date(1000), "1234", "alice@example.com");
+
+        assertEquals(
+            Arrays.asList(3000L, 1000L),
+            startTimes(
+                index.find(
+                    Collections.singletonList("alice@example.com"),
+                    null, null, -1)));
+    }
+}
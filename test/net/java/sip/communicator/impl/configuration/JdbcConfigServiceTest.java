@@ -0,0 +1,275 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Tests for the batched writes, the purge and the retries of the
+ * <tt>JdbcConfigService</tt>, over a database in a temporary directory.
+ */
+public class JdbcConfigServiceTest
+    extends TestCase
+{
+    private File dir;
+
+    /**
+     * Whether the database file cannot be accessed, which makes the writes
+     * fail once the connection is closed.
+     */
+    private volatile boolean failing = false;
+
+    /**
+     * The times at which the database file was accessed while failing.
+     */
+    private final List<Long> failures
+        = Collections.synchronizedList(new ArrayList<Long>());
+
+    private FileAccessService fas;
+
+    private final List<JdbcConfigService> services
+        = new ArrayList<JdbcConfigService>();
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile("jdbcconfig", "");
+        dir.delete();
+        dir.mkdirs();
+
+        fas = (FileAccessService) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { FileAccessService.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                    Object[] args)
+                    throws Throwable
+                {
+                    if (!method.getName().equals("getPrivatePersistentFile"))
+                        throw new UnsupportedOperationException();
+
+                    if (failing)
+                    {
+                        failures.add(System.currentTimeMillis());
+                        throw new IOException("not accessible");
+                    }
+                    return new File(dir, (String) args[0]);
+                }
+            });
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        failing = false;
+        for (JdbcConfigService service : services)
+            service.storeConfiguration();
+
+        for (File file : dir.listFiles())
+            delete(file);
+        dir.delete();
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private JdbcConfigService createService()
+        throws Exception
+    {
+        JdbcConfigService service = new JdbcConfigService(fas);
+
+        services.add(service);
+        return service;
+    }
+
+    /**
+     * Reads the properties stored in the database.
+     */
+    private Map<String, String> readStored()
+        throws Exception
+    {
+        Map<String, String> stored = new HashMap<String, String>();
+        Connection connection = DriverManager.getConnection(
+            "jdbc:hsqldb:file:" + new File(dir, "props.hsql").getAbsolutePath()
+                + ";shutdown=true");
+
+        try
+        {
+            ResultSet rs = connection.createStatement().executeQuery(
+                "SELECT k, v FROM Props");
+
+            while (rs.next())
+                stored.put(rs.getString(1), rs.getString(2));
+        }
+        finally
+        {
+            connection.close();
+        }
+        return stored;
+    }
+
+    public void testBatchedWrites()
+        throws Exception
+    {
+        JdbcConfigService service = createService();
+
+        service.setProperty("test.a", "1");
+        service.setProperty("test.b", "2");
+        service.setProperty("test.c", "3");
+        service.setProperty("test.a", "4");
+        service.removeProperty("test.b");
+        service.storeConfiguration();
+
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("test.a", "4");
+        expected.put("test.c", "3");
+        assertEquals(expected, readStored());
+
+        JdbcConfigService reloaded = createService();
+
+        assertEquals("4", reloaded.getString("test.a"));
+        assertNull(reloaded.getString("test.b"));
+        assertEquals("3", reloaded.getString("test.c"));
+    }
+
+    public void testPurge()
+        throws Exception
+    {
+        JdbcConfigService service = createService();
+
+        service.setProperty("test.a", "1");
+        service.setProperty("test.b", "2");
+        service.purgeStoredConfiguration();
+        service.setProperty("test.c", "3");
+        service.storeConfiguration();
+
+        assertNull(service.getString("test.a"));
+        assertEquals("3", service.getString("test.c"));
+        assertEquals(
+            Collections.singletonMap("test.c", "3"), readStored());
+    }
+
+    public void testRetryAfterFailure()
+        throws Exception
+    {
+        JdbcConfigService service = createService();
+
+        // closes the connection, so that the next write has to reopen it
+        service.storeConfiguration();
+        failing = true;
+        service.setProperty("test.a", "1");
+
+        // the write, then its retries after one and two more seconds
+        long deadline = System.currentTimeMillis() + 10000;
+        while (failures.size() < 3 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        failing = false;
+
+        assertTrue(failures.size() >= 3);
+        long firstDelay = failures.get(1) - failures.get(0);
+        long secondDelay = failures.get(2) - failures.get(1);
+        assertTrue(firstDelay >= 900);
+        assertTrue(secondDelay >= 1.8 * firstDelay);
+
+        // written by the next retry, without any other change
+        Map<String, String> stored = readStored();
+        deadline = System.currentTimeMillis() + 10000;
+        while (stored.isEmpty() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(100);
+            stored = readStored();
+        }
+        assertEquals(Collections.singletonMap("test.a", "1"), stored);
+    }
+
+    public void testStoreRetriesAtOnce()
+        throws Exception
+    {
+        JdbcConfigService service = createService();
+
+        service.storeConfiguration();
+        failing = true;
+        service.setProperty("test.a", "1");
+
+        // the database becomes accessible again while storing
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(500);
+                }
+                catch (InterruptedException e)
+                {
+                }
+                failing = false;
+            }
+        }.start();
+        service.storeConfiguration();
+
+        assertFalse(failures.isEmpty());
+        assertEquals(Collections.singletonMap("test.a", "1"), readStored());
+    }
+
+    public void testStoreFailure()
+        throws Exception
+    {
+        JdbcConfigService service = createService();
+
+        service.storeConfiguration();
+        failing = true;
+        service.setProperty("test.a", "1");
+
+        try
+        {
+            service.storeConfiguration();
+            fail("The failed store was not reported");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getCause() instanceof SQLException);
+        }
+        assertTrue(failures.size() >= 3);
+
+        // the changes are kept for the next store
+        failing = false;
+        service.storeConfiguration();
+        assertEquals(Collections.singletonMap("test.a", "1"), readStored());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.util.*;
+import java.util.regex.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.replacement.*;
+
+/**
+ * Tests for the compiled pattern cache of the chat replacements.
+ */
+public class ReplacementPatternCacheTest
+    extends TestCase
+{
+    /**
+     * Tests that a pattern is compiled once and compiled again only when the
+     * service changes its pattern.
+     */
+    public void testPatternIsCachedUntilChanged()
+    {
+        TestReplacementService service = new TestReplacementService("foo");
+
+        Pattern p1 = ReplacementPatternCache.getPattern(service);
+        Pattern p2 = ReplacementPatternCache.getPattern(service);
+        assertSame(p1, p2);
+        assertTrue(p1.matcher("a FOO b").find());
+
+        service.pattern = "bar";
+        Pattern p3 = ReplacementPatternCache.getPattern(service);
+        assertNotSame(p1, p3);
+        assertTrue(p3.matcher("BAR").find());
+        assertFalse(p3.matcher("foo").find());
+    }
+
+    /**
+     * Tests that the patterns of unregistered services are dropped.
+     */
+    public void testRetain()
+    {
+        TestReplacementService kept = new TestReplacementService("kept");
+        TestReplacementService dropped = new TestReplacementService("dropped");
+
+        Pattern p = ReplacementPatternCache.getPattern(kept);
+        Pattern d = ReplacementPatternCache.getPattern(dropped);
+
+        ReplacementPatternCache.retain(
+            Collections.<ReplacementService>singletonList(kept));
+
+        assertSame(p, ReplacementPatternCache.getPattern(kept));
+        assertNotSame(d, ReplacementPatternCache.getPattern(dropped));
+    }
+
+    /**
+     * A replacement service with a modifiable pattern.
+     */
+    private static class TestReplacementService
+        implements ReplacementService
+    {
+        /**
+         * The pattern of the service.
+         */
+        private String pattern;
+
+        /**
+         * Creates a service.
+         *
+         * @param pattern the pattern of the service
+         */
+        private TestReplacementService(String pattern)
+        {
+            this.pattern = pattern;
+        }
+
+        public String getReplacement(String sourceString)
+        {
+            return sourceString;
+        }
+
+        public String getSourceName()
+        {
+            return "TEST";
+        }
+
+        public String getPattern()
+        {
+            return pattern;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.regex.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Tests that the <tt>MetaContactSearchIndex</tt> finds the same contacts as a
+ * scan of the whole contact list, as the contact list changes. The contact
+ * list is made of <tt>MockContact</tt>s in minimal <tt>MetaContact</tt>s and
+ * <tt>MetaContactGroup</tt>s.
+ */
+public class MetaContactSearchIndexTest
+    extends TestCase
+{
+    /**
+     * The characters of the generated names, in different cases, including
+     * the long s which upper case is an ASCII letter.
+     */
+    private static final String ALPHABET = "abcdeABCDE\u00e9\u00c9\u017f .@1";
+
+    /**
+     * A <tt>MetaContactGroup</tt> holding contacts and subgroups.
+     */
+    private static class TestGroup
+        implements InvocationHandler
+    {
+        final List<MetaContact> contacts = new ArrayList<MetaContact>();
+
+        final List<MetaContactGroup> subgroups
+            = new ArrayList<MetaContactGroup>();
+
+        final MetaContactGroup proxy
+            = (MetaContactGroup) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { MetaContactGroup.class },
+                this);
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+
+            if (name.equals("getChildContacts"))
+                return new ArrayList<MetaContact>(contacts).iterator();
+            if (name.equals("getSubgroups"))
+                return new ArrayList<MetaContactGroup>(subgroups).iterator();
+            return invokeObject(proxy, method, args);
+        }
+    }
+
+    /**
+     * A <tt>MetaContact</tt> with a display name and protocol contacts.
+     */
+    private static class TestMetaContact
+        implements InvocationHandler
+    {
+        String displayName;
+
+        final List<Contact> contacts = new ArrayList<Contact>();
+
+        TestGroup parent;
+
+        final MetaContact proxy
+            = (MetaContact) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { MetaContact.class },
+                this);
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String name = method.getName();
+
+            if (name.equals("getDisplayName"))
+                return displayName;
+            if (name.equals("getContacts"))
+                return new ArrayList<Contact>(contacts).iterator();
+            if (name.equals("getParentMetaContactGroup"))
+                return (parent == null) ? null : parent.proxy;
+            return invokeObject(proxy, method, args);
+        }
+    }
+
+    private static Object invokeObject(
+        Object proxy, Method method, Object[] args)
+    {
+        String name = method.getName();
+
+        if (name.equals("hashCode"))
+            return System.identityHashCode(proxy);
+        if (name.equals("equals"))
+            return proxy == args[0];
+        if (name.equals("toString"))
+            return "proxy@" + System.identityHashCode(proxy);
+        throw new UnsupportedOperationException(name);
+    }
+
+    private final Random random = new Random(42);
+
+    private final TestGroup root = new TestGroup();
+
+    private final Map<MetaContact, TestMetaContact> metaContacts
+        = new LinkedHashMap<MetaContact, TestMetaContact>();
+
+    private MetaContactSearchIndex index;
+
+    @Override
+    protected void setUp()
+    {
+        TestGroup group1 = new TestGroup();
+        TestGroup group2 = new TestGroup();
+
+        root.subgroups.add(group1.proxy);
+        group1.subgroups.add(group2.proxy);
+
+        for (int i = 0; i < 60; i++)
+            addContact((i % 3 == 0) ? root : (i % 3 == 1) ? group1 : group2);
+
+        index = new MetaContactSearchIndex(root.proxy);
+    }
+
+    private String randomName(int maxLength)
+    {
+        StringBuilder name = new StringBuilder();
+        int length = 1 + random.nextInt(maxLength);
+
+        for (int i = 0; i < length; i++)
+            name.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return name.toString();
+    }
+
+    private TestMetaContact addContact(TestGroup group)
+    {
+        TestMetaContact metaContact = new TestMetaContact();
+
+        metaContact.displayName = randomName(10);
+        for (int i = random.nextInt(3); i > 0; i--)
+            metaContact.contacts.add(new MockContact(randomName(12), null));
+
+        metaContact.parent = group;
+        group.contacts.add(metaContact.proxy);
+        metaContacts.put(metaContact.proxy, metaContact);
+        return metaContact;
+    }
+
+    private TestMetaContact randomContact()
+    {
+        List<TestMetaContact> all
+            = new ArrayList<TestMetaContact>(metaContacts.values());
+
+        return all.get(random.nextInt(all.size()));
+    }
+
+    /**
+     * Finds the contacts matching a search string by scanning the contact
+     * list with the pattern of the <tt>SearchFilter</tt>, as
+     * <tt>MetaContactListSource.isMatching</tt> does.
+     */
+    private Set<MetaContact> scan(String searchString)
+    {
+        Pattern pattern
+            = Pattern.compile(
+                Pattern.quote(searchString),
+                Pattern.MULTILINE
+                    | Pattern.CASE_INSENSITIVE
+                    | Pattern.UNICODE_CASE);
+        Set<MetaContact> result = new HashSet<MetaContact>();
+
+        scan(pattern, root.proxy, result);
+        return result;
+    }
+
+    private static void scan(
+        Pattern pattern, MetaContactGroup group, Set<MetaContact> result)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+        {
+            MetaContact metaContact = metaContacts.next();
+
+            if (pattern.matcher(metaContact.getDisplayName()).find())
+            {
+                result.add(metaContact);
+                continue;
+            }
+
+            Iterator<Contact> contacts = metaContact.getContacts();
+            while (contacts.hasNext())
+            {
+                Contact contact = contacts.next();
+
+                if (pattern.matcher(contact.getDisplayName()).find()
+                    || pattern.matcher(contact.getAddress()).find())
+                {
+                    result.add(metaContact);
+                    break;
+                }
+            }
+        }
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            scan(pattern, subgroups.next(), result);
+    }
+
+    /**
+     * Checks the index against a scan for a search string and for the
+     * strings typed before it, so that the refinement of the previous
+     * results is exercised too.
+     */
+    private void assertSearch(String searchString)
+    {
+        for (int i = 1; i <= searchString.length(); i++)
+        {
+            String typed = searchString.substring(0, i);
+
+            assertEquals(
+                "search for \"" + typed + "\"",
+                scan(typed),
+                new HashSet<MetaContact>(index.search(typed)));
+        }
+    }
+
+    /**
+     * Checks the index against a scan for search strings taken from the
+     * names in the contact list and for random ones.
+     */
+    private void assertSearches()
+    {
+        for (TestMetaContact metaContact : metaContacts.values())
+        {
+            String name = metaContact.displayName;
+            int start = random.nextInt(name.length());
+
+            assertSearch(
+                name.substring(
+                    start,
+                    Math.min(
+                        name.length(), start + 1 + random.nextInt(4))));
+        }
+        for (int i = 0; i < 50; i++)
+            assertSearch(randomName(4));
+        assertSearch(metaContacts.values().iterator().next().displayName);
+    }
+
+    public void testSearch()
+    {
+        assertSearches();
+        assertTrue(index.search("").size() == metaContacts.size());
+        assertTrue(index.search("zzz").isEmpty());
+    }
+
+    public void testAddAndRemoveContacts()
+    {
+        assertSearches();
+
+        for (int i = 0; i < 10; i++)
+        {
+            TestMetaContact added = addContact(root);
+
+            index.updateMetaContact(added.proxy);
+        }
+        assertSearches();
+
+        for (int i = 0; i < 10; i++)
+        {
+            TestMetaContact removed = randomContact();
+
+            removed.parent.contacts.remove(removed.proxy);
+            removed.parent = null;
+            metaContacts.remove(removed.proxy);
+            if (i % 2 == 0)
+                index.removeMetaContact(removed.proxy);
+            else
+                index.updateMetaContact(removed.proxy);
+        }
+        assertSearches();
+    }
+
+    public void testRenameAndChangeProtocolContacts()
+    {
+        assertSearches();
+
+        for (int i = 0; i < 20; i++)
+        {
+            TestMetaContact changed = randomContact();
+
+            switch (i % 3)
+            {
+            case 0:
+                changed.displayName = randomName(10);
+                break;
+            case 1:
+                changed.contacts.add(new MockContact(randomName(12), null));
+                break;
+            default:
+                changed.contacts.clear();
+            }
+            index.updateMetaContact(changed.proxy);
+
+            // the previous result must not be refined with stale names
+            assertSearch(changed.displayName);
+        }
+        assertSearches();
+    }
+
+    public void testMoveContacts()
+    {
+        assertSearches();
+
+        TestGroup group
+            = (TestGroup) Proxy.getInvocationHandler(root.subgroups.get(0));
+
+        for (int i = 0; i < 10; i++)
+        {
+            TestMetaContact moved = randomContact();
+            TestGroup target = (moved.parent == root) ? group : root;
+
+            moved.parent.contacts.remove(moved.proxy);
+            target.contacts.add(moved.proxy);
+            moved.parent = target;
+            index.updateMetaContact(moved.proxy);
+        }
+        assertSearches();
+    }
+
+    public void testAddAndRemoveGroups()
+    {
+        assertSearches();
+
+        TestGroup added = new TestGroup();
+
+        for (int i = 0; i < 10; i++)
+            addContact(added);
+        root.subgroups.add(added.proxy);
+        index.addMetaContactGroup(added.proxy);
+        assertSearches();
+
+        TestGroup removed
+            = (TestGroup) Proxy.getInvocationHandler(root.subgroups.get(0));
+
+        root.subgroups.remove(removed.proxy);
+        index.removeMetaContactGroup(removed.proxy);
+        removeAll(removed);
+        assertSearches();
+    }
+
+    private void removeAll(TestGroup group)
+    {
+        for (MetaContact metaContact : group.contacts)
+            metaContacts.remove(metaContact);
+        for (MetaContactGroup subgroup : group.subgroups)
+            removeAll((TestGroup) Proxy.getInvocationHandler(subgroup));
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.osgi.framework.*;
+
+/**
+ * Tests that the history catalog follows the directory the histories are
+ * written to, which the <tt>HistoryServiceDirectory</tt> system property
+ * overrides.
+ */
+public class HistoryServiceImplTest
+    extends TestCase
+{
+    private static final String DIRECTORY_PROPERTY
+        = "HistoryServiceDirectory";
+
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "text" });
+
+    private File dir;
+
+    private String directoryProperty;
+
+    private HistoryServiceImpl service;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directoryProperty = System.getProperty(DIRECTORY_PROPERTY);
+
+        dir = File.createTempFile("history", "");
+        dir.delete();
+        dir.mkdirs();
+
+        service = createService(dir, new HashMap<String, Object>());
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        service.stop();
+
+        if (directoryProperty == null)
+            System.clearProperty(DIRECTORY_PROPERTY);
+        else
+            System.setProperty(DIRECTORY_PROPERTY, directoryProperty);
+
+        delete(dir);
+    }
+
+    /**
+     * Creates a <tt>HistoryServiceImpl</tt> storing its histories in the
+     * given directory.
+     *
+     * @param dir the directory of the private persistent files
+     * @param config the configuration properties, the other ones having
+     * their default value
+     * @return the created service
+     * @throws Exception if the service cannot be created
+     */
+    static HistoryServiceImpl createService(
+            final File dir,
+            final Map<String, Object> config)
+        throws Exception
+    {
+        final FileAccessService fileAccessService
+            = (FileAccessService) Proxy.newProxyInstance(
+                HistoryServiceImplTest.class.getClassLoader(),
+                new Class<?>[] { FileAccessService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                        Object[] args)
+                    {
+                        if (!method.getName().equals(
+                                "getPrivatePersistentDirectory"))
+                            throw new UnsupportedOperationException();
+
+                        return new File(dir, (String) args[0]);
+                    }
+                });
+        final ConfigurationService configService
+            = (ConfigurationService) Proxy.newProxyInstance(
+                HistoryServiceImplTest.class.getClassLoader(),
+                new Class<?>[] { ConfigurationService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                        Object[] args)
+                    {
+                        if (!method.getName().startsWith("get")
+                            || args == null
+                            || args.length != 2)
+                            throw new UnsupportedOperationException();
+
+                        Object value = config.get(args[0]);
+
+                        return (value == null) ? args[1] : value;
+                    }
+                });
+        final ServiceReference<?> reference
+            = (ServiceReference<?>) Proxy.newProxyInstance(
+                HistoryServiceImplTest.class.getClassLoader(),
+                new Class<?>[] { ServiceReference.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                        Object[] args)
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                });
+        BundleContext bundleContext
+            = (BundleContext) Proxy.newProxyInstance(
+                HistoryServiceImplTest.class.getClassLoader(),
+                new Class<?>[] { BundleContext.class },
+                new InvocationHandler()
+                {
+                    private Object service;
+
+                    public Object invoke(Object proxy, Method method,
+                        Object[] args)
+                    {
+                        String name = method.getName();
+
+                        if (name.equals("getServiceReference"))
+                        {
+                            Object clazz = args[0];
+
+                            if (clazz instanceof Class)
+                                clazz = ((Class<?>) clazz).getName();
+                            service
+                                = FileAccessService.class.getName().equals(
+                                        clazz)
+                                    ? fileAccessService
+                                    : configService;
+                            return reference;
+                        }
+                        else if (name.equals("getService"))
+                            return service;
+                        throw new UnsupportedOperationException();
+                    }
+                });
+
+        return new HistoryServiceImpl(bundleContext);
+    }
+
+    static void delete(File file)
+    {
+        File[] children = file.listFiles();
+
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    private void addRecord(HistoryID id)
+        throws Exception
+    {
+        History history = service.createHistory(id, STRUCTURE);
+
+        history.getWriter().addRecord(new String[] { id.toString() });
+        service.flush();
+    }
+
+    /**
+     * Tests that the catalog lists the histories of the directory set by the
+     * system property, and only them.
+     */
+    public void testCatalogFollowsDirectoryProperty()
+        throws Exception
+    {
+        HistoryID first = HistoryID.createFromRawID(new String[] { "a", "1" });
+        HistoryID second
+            = HistoryID.createFromRawID(new String[] { "a", "2" });
+
+        System.setProperty(DIRECTORY_PROPERTY, "test-history-1");
+        addRecord(first);
+        assertEquals(
+            Arrays.asList(first),
+            service.getExistingHistories(new String[] { "a" }));
+
+        System.setProperty(DIRECTORY_PROPERTY, "test-history-2");
+        assertEquals(
+            0, service.getExistingHistories(new String[] { "a" }).size());
+        addRecord(second);
+        assertEquals(
+            Arrays.asList(second),
+            service.getExistingHistories(new String[] { "a" }));
+
+        System.setProperty(DIRECTORY_PROPERTY, "test-history-1");
+        assertEquals(
+            Arrays.asList(first),
+            service.getExistingHistories(new String[] { "a" }));
+
+        assertTrue(
+            new File(
+                    new File(dir, "test-history-1"),
+                    HistoryCatalog.CATALOG_FILE)
+                .isFile());
+        assertTrue(
+            new File(
+                    new File(dir, "test-history-2"),
+                    HistoryCatalog.CATALOG_FILE)
+                .isFile());
+        assertFalse(new File(dir, HistoryServiceImpl.DATA_DIRECTORY).exists());
+    }
+
+    /**
+     * Tests that the catalog of a directory set by the system property is
+     * written there and read back by a new service.
+     */
+    public void testCatalogReloadedFromDirectoryProperty()
+        throws Exception
+    {
+        HistoryID id = HistoryID.createFromRawID(new String[] { "b", "1" });
+
+        System.setProperty(DIRECTORY_PROPERTY, "test-history-3");
+        addRecord(id);
+        service.stop();
+
+        service = createService(dir, new HashMap<String, Object>());
+        assertEquals(
+            Arrays.asList(id),
+            service.getExistingHistories(new String[] { "b" }));
+        assertEquals(Arrays.asList(id), iterate(service.getExistingIDs()));
+    }
+
+    private static List<HistoryID> iterate(Iterator<HistoryID> iterator)
+    {
+        List<HistoryID> ids = new ArrayList<HistoryID>();
+
+        while (iterator.hasNext())
+            ids.add(iterator.next());
+        return ids;
+    }
+}
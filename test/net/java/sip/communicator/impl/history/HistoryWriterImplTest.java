@@ -0,0 +1,155 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests that records appended while other records of the history are
+ * updated are all kept.
+ */
+public class HistoryWriterImplTest
+    extends TestCase
+{
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "id", "text" });
+
+    private static final HistoryID ID
+        = HistoryID.createFromRawID(new String[] { "writer", "test" });
+
+    private static final int APPENDS = 400;
+
+    private static final int UPDATES = 100;
+
+    private File dir;
+
+    private HistoryServiceImpl service;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+        dir.mkdirs();
+
+        service = HistoryServiceImplTest.createService(
+            dir, new HashMap<String, Object>());
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        service.stop();
+        HistoryServiceImplTest.delete(dir);
+    }
+
+    /**
+     * Appends records from one thread while another one updates a record,
+     * and checks that a new service reads all the appended records and the
+     * last update.
+     */
+    public void testConcurrentAppendAndUpdate()
+        throws Exception
+    {
+        final HistoryWriter writer
+            = service.createHistory(ID, STRUCTURE).getWriter();
+        final List<Exception> errors
+            = Collections.synchronizedList(new ArrayList<Exception>());
+
+        // the readers keep one of the records with the same timestamp
+        final long start = System.currentTimeMillis() - 24 * 60 * 60 * 1000;
+
+        writer.addRecord(new String[] { "updated", "0" });
+
+        Thread appender = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (int i = 0; i < APPENDS; i++)
+                    {
+                        writer.addRecord(
+                            new String[] { "a" + i, "x" },
+                            new Date(start + i));
+                    }
+                }
+                catch (Exception e)
+                {
+                    errors.add(e);
+                }
+            }
+        };
+        Thread updater = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (int i = 1; i <= UPDATES; i++)
+                    {
+                        writer.updateRecord(
+                            "id", "updated", "text", Integer.toString(i));
+                    }
+                }
+                catch (Exception e)
+                {
+                    errors.add(e);
+                }
+            }
+        };
+
+        appender.start();
+        updater.start();
+        appender.join();
+        updater.join();
+        assertEquals(Collections.emptyList(), errors);
+
+        service.stop();
+        service = HistoryServiceImplTest.createService(
+            dir, new HashMap<String, Object>());
+
+        Map<String, String> texts = new HashMap<String, String>();
+        Iterator<HistoryRecord> records
+            = service.createHistory(ID, STRUCTURE).getReader()
+                .findLast(2 * APPENDS);
+
+        while (records.hasNext())
+        {
+            HistoryRecord record = records.next();
+
+            texts.put(
+                record.getPropertyValues()[0],
+                record.getPropertyValues()[1]);
+        }
+
+        assertEquals(APPENDS + 1, texts.size());
+        assertEquals(Integer.toString(UPDATES), texts.get("updated"));
+        for (int i = 0; i < APPENDS; i++)
+            assertEquals("x", texts.get("a" + i));
+    }
+}
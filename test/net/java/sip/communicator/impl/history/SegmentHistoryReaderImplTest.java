@@ -0,0 +1,169 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests that the segment storage returns the same values as the XML storage
+ * for values holding xml characters.
+ */
+public class SegmentHistoryReaderImplTest
+    extends TestCase
+{
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "id", "text" });
+
+    private static final HistoryID ID
+        = HistoryID.createFromRawID(new String[] { "reader", "test" });
+
+    private static final String VALUE = "a<b & \"c\" 'd' > e";
+
+    private File dir;
+
+    private HistoryServiceImpl xmlService;
+
+    private HistoryServiceImpl segmentService;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile("history", "");
+        dir.delete();
+        dir.mkdirs();
+
+        xmlService = createService("xml", HistoryService.STORAGE_ENGINE_XML);
+        segmentService
+            = createService("segment", HistoryService.STORAGE_ENGINE_SEGMENT);
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        xmlService.stop();
+        segmentService.stop();
+        HistoryServiceImplTest.delete(dir);
+    }
+
+    private HistoryServiceImpl createService(String name, String engine)
+        throws Exception
+    {
+        File serviceDir = new File(dir, name);
+        Map<String, Object> config = new HashMap<String, Object>();
+
+        serviceDir.mkdirs();
+        config.put(HistoryService.STORAGE_ENGINE_PROPERTY, engine);
+        return HistoryServiceImplTest.createService(serviceDir, config);
+    }
+
+    /**
+     * Writes the same records with both storages.
+     *
+     * @return the readers of the written histories, the XML one first
+     */
+    private HistoryReader[] write()
+        throws Exception
+    {
+        HistoryServiceImpl[] services = { xmlService, segmentService };
+        HistoryReader[] readers = new HistoryReader[services.length];
+
+        for (int i = 0; i < services.length; i++)
+        {
+            History history = services[i].createHistory(ID, STRUCTURE);
+            HistoryWriter writer = history.getWriter();
+
+            assertEquals(
+                i == 0 ? HistoryImpl.class : SegmentHistoryImpl.class,
+                history.getClass());
+
+            for (int j = 0; j < 3; j++)
+            {
+                writer.addRecord(
+                    new String[] { String.valueOf(j), VALUE + j },
+                    new Date(1000000L * (j + 1)));
+            }
+            services[i].flush();
+            readers[i] = history.getReader();
+        }
+        return readers;
+    }
+
+    private static List<List<String>> values(
+            QueryResultSet<HistoryRecord> records)
+    {
+        List<List<String>> values = new ArrayList<List<String>>();
+
+        while (records.hasNext())
+        {
+            values.add(
+                Arrays.asList(records.nextRecord().getPropertyValues()));
+        }
+        return values;
+    }
+
+    /**
+     * Tests that all queries return the same values for both storages.
+     */
+    public void testSameValuesAsXmlStorage()
+        throws Exception
+    {
+        HistoryReader[] readers = write();
+        Date middle = new Date(2000000L);
+
+        for (int i = 0; i < 2; i++)
+        {
+            String storage = (i == 0) ? "xml" : "segment";
+            HistoryReader reader = readers[i];
+
+            assertEquals(
+                storage,
+                Arrays.asList("2", VALUE + 2),
+                values(reader.findLast(1)).get(0));
+            assertEquals(
+                storage,
+                Arrays.asList(Arrays.asList("0", VALUE + 0)),
+                values(
+                    reader.findByKeyword(
+                        "<b & \"c\" 'd' > e0", "text", true)));
+            assertEquals(
+                storage,
+                3,
+                values(reader.findByPeriod(new Date(0), new Date())).size());
+        }
+
+        assertEquals(
+            values(readers[0].findLast(3)),
+            values(readers[1].findLast(3)));
+        assertEquals(
+            values(readers[0].findByPeriod(new Date(0), new Date())),
+            values(readers[1].findByPeriod(new Date(0), new Date())));
+        assertEquals(
+            values(readers[0].findFirstRecordsAfter(middle, 3)),
+            values(readers[1].findFirstRecordsAfter(middle, 3)));
+        assertEquals(
+            values(readers[0].findLastRecordsBefore(middle, 3)),
+            values(readers[1].findLastRecordsBefore(middle, 3)));
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+
+/**
+ * Tests for the batching and the caching of the <tt>LdapPhotoLoader</tt>.
+ */
+public class LdapPhotoLoaderTest
+    extends TestCase
+{
+    /**
+     * A fetcher of photos which records its searches.
+     */
+    private static class TestFetcher
+        implements LdapPhotoLoader.Fetcher
+    {
+        final Map<String, byte[]> directory = new HashMap<String, byte[]>();
+
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        final List<String> single = new ArrayList<String>();
+
+        boolean batchSupported = true;
+
+        boolean fail = false;
+
+        boolean failSingle = false;
+
+        public synchronized Map<String, byte[]> fetchPhotos(List<String> dns)
+            throws Exception
+        {
+            batches.add(new ArrayList<String>(dns));
+            if (fail)
+                throw new Exception("search failed");
+
+            Map<String, byte[]> photos = new HashMap<String, byte[]>();
+
+            if (batchSupported)
+            {
+                for (String dn : dns)
+                {
+                    byte[] photo = directory.get(dn);
+
+                    photos.put(dn, (photo == null) ? new byte[0] : photo);
+                }
+            }
+            return photos;
+        }
+
+        public synchronized byte[] fetchPhoto(String dn)
+            throws Exception
+        {
+            single.add(dn);
+            if (failSingle)
+                throw new Exception("search failed");
+            return directory.get(dn);
+        }
+    }
+
+    private TestFetcher fetcher;
+
+    private ScheduledExecutorService executor;
+
+    @Override
+    protected void setUp()
+    {
+        fetcher = new TestFetcher();
+        fetcher.directory.put("cn=a", new byte[] { 1 });
+        fetcher.directory.put("cn=b", new byte[] { 2, 2 });
+        fetcher.directory.put("cn=c", new byte[] { 3, 3, 3 });
+        executor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    private static byte[] get(CompletableFuture<byte[]> photo)
+        throws Exception
+    {
+        return photo.get(5, TimeUnit.SECONDS);
+    }
+
+    public void testBatching()
+        throws Exception
+    {
+        LdapPhotoLoader loader
+            = new LdapPhotoLoader(fetcher, executor, 2, 50, 1024);
+
+        CompletableFuture<byte[]> a = loader.getPhoto("cn=a");
+        CompletableFuture<byte[]> b = loader.getPhoto("cn=b");
+        CompletableFuture<byte[]> a2 = loader.getPhoto("cn=a");
+        CompletableFuture<byte[]> c = loader.getPhoto("cn=c");
+        CompletableFuture<byte[]> d = loader.getPhoto("cn=d");
+
+        assertSame(a, a2);
+        assertTrue(Arrays.equals(new byte[] { 1 }, get(a)));
+        assertTrue(Arrays.equals(new byte[] { 2, 2 }, get(b)));
+        assertTrue(Arrays.equals(new byte[] { 3, 3, 3 }, get(c)));
+        assertNull(get(d));
+
+        assertEquals(2, fetcher.batches.size());
+        assertEquals(Arrays.asList("cn=a", "cn=b"), fetcher.batches.get(0));
+        assertEquals(Arrays.asList("cn=c", "cn=d"), fetcher.batches.get(1));
+        assertTrue(fetcher.single.isEmpty());
+
+        // cached, including the persons without photo
+        assertTrue(loader.getPhoto("cn=a").isDone());
+        assertTrue(loader.getPhoto("cn=d").isDone());
+        assertEquals(2, fetcher.batches.size());
+    }
+
+    public void testBatchUnsupported()
+        throws Exception
+    {
+        LdapPhotoLoader loader
+            = new LdapPhotoLoader(fetcher, executor, 10, 50, 1024);
+
+        fetcher.batchSupported = false;
+        CompletableFuture<byte[]> a = loader.getPhoto("cn=a");
+        CompletableFuture<byte[]> b = loader.getPhoto("cn=b");
+
+        assertTrue(Arrays.equals(new byte[] { 1 }, get(a)));
+        assertTrue(Arrays.equals(new byte[] { 2, 2 }, get(b)));
+        assertEquals(1, fetcher.batches.size());
+        assertEquals(Arrays.asList("cn=a", "cn=b"), fetcher.single);
+
+        // no more batches once they have found nothing
+        assertTrue(
+            Arrays.equals(
+                new byte[] { 3, 3, 3 }, get(loader.getPhoto("cn=c"))));
+        assertEquals(1, fetcher.batches.size());
+        assertEquals(3, fetcher.single.size());
+    }
+
+    public void testCacheEviction()
+        throws Exception
+    {
+        LdapPhotoLoader loader
+            = new LdapPhotoLoader(
+                fetcher, executor, 10, 0,
+                2 * LdapPhotoLoader.ENTRY_OVERHEAD + 4);
+
+        get(loader.getPhoto("cn=a"));
+        get(loader.getPhoto("cn=b"));
+        // use cn=a so that cn=b is the least recently used
+        assertTrue(loader.getPhoto("cn=a").isDone());
+        get(loader.getPhoto("cn=c"));
+
+        assertTrue(loader.getPhoto("cn=a").isDone());
+        assertTrue(loader.getPhoto("cn=c").isDone());
+
+        CompletableFuture<byte[]> b = loader.getPhoto("cn=b");
+
+        assertTrue(Arrays.equals(new byte[] { 2, 2 }, get(b)));
+        assertEquals(4, fetcher.batches.size());
+    }
+
+    public void testFailedSearchNotCached()
+        throws Exception
+    {
+        LdapPhotoLoader loader
+            = new LdapPhotoLoader(fetcher, executor, 10, 0, 1024);
+
+        fetcher.fail = true;
+        assertNull(get(loader.getPhoto("cn=a")));
+
+        fetcher.fail = false;
+        assertTrue(
+            Arrays.equals(new byte[] { 1 }, get(loader.getPhoto("cn=a"))));
+        assertEquals(2, fetcher.batches.size());
+    }
+
+    public void testFailedSingleSearchNotCached()
+        throws Exception
+    {
+        LdapPhotoLoader loader
+            = new LdapPhotoLoader(fetcher, executor, 10, 0, 1024);
+
+        fetcher.batchSupported = false;
+        fetcher.failSingle = true;
+        assertNull(get(loader.getPhoto("cn=a")));
+        assertEquals(Arrays.asList("cn=a"), fetcher.single);
+
+        fetcher.failSingle = false;
+        assertTrue(
+            Arrays.equals(new byte[] { 1 }, get(loader.getPhoto("cn=a"))));
+        assertEquals(Arrays.asList("cn=a", "cn=a"), fetcher.single);
+    }
+
+    public void testPersonsWithoutPhotoBounded()
+        throws Exception
+    {
+        LdapPhotoLoader loader
+            = new LdapPhotoLoader(
+                fetcher, executor, 10, 0,
+                3 * LdapPhotoLoader.ENTRY_OVERHEAD);
+
+        for (int i = 0; i < 4; i++)
+            assertNull(get(loader.getPhoto("cn=none" + i)));
+
+        // only the three most recently used persons are cached
+        assertFalse(loader.getPhoto("cn=none0").isDone());
+        for (int i = 1; i < 4; i++)
+            assertTrue(loader.getPhoto("cn=none" + i).isDone());
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.ldap;
+
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests for the lookups and the coalescing of the <tt>LdapSearchCache</tt>.
+ */
+public class LdapSearchCacheTest
+    extends TestCase
+{
+    private static List<LdapSearchCache.Result> results(String... names)
+    {
+        List<LdapSearchCache.Result> results
+            = new ArrayList<LdapSearchCache.Result>();
+
+        for (String name : names)
+        {
+            results.add(
+                new LdapSearchCache.Result(
+                    name, new HashMap<String, Set<Object>>()));
+        }
+        return results;
+    }
+
+    private static void complete(
+        LdapSearchCache cache, String substring,
+        List<LdapSearchCache.Result> results)
+    {
+        String key = LdapSearchCache.getKey("(cn=*" + substring + "*)", 2, 0);
+
+        assertNull(cache.join(key));
+        cache.complete(key, substring, 2, results, 10);
+    }
+
+    public void testExactHit()
+    {
+        LdapSearchCache cache = new LdapSearchCache(60000, 8);
+
+        complete(cache, "alex", results("cn=Alex"));
+
+        List<LdapSearchCache.Result> found
+            = cache.get(
+                LdapSearchCache.getKey(" (CN=*Alex*)", 2, 0), "Alex", 2);
+
+        assertEquals(1, found.size());
+        assertEquals("cn=Alex", found.get(0).name);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(10, cache.getAverageSearchTime());
+    }
+
+    public void testRefinementUsesTheClosestSuperset()
+    {
+        LdapSearchCache cache = new LdapSearchCache(60000, 8);
+
+        complete(cache, "al", results("cn=Al", "cn=Alex", "cn=Alexander"));
+        complete(cache, "alex", results("cn=Alex", "cn=Alexander"));
+
+        List<LdapSearchCache.Result> found
+            = cache.get(
+                LdapSearchCache.getKey("(cn=*alexand*)", 2, 0), "alexand", 2);
+
+        assertEquals(2, found.size());
+        assertEquals(1, cache.getRefinedHitCount());
+
+        // another scope or a search which is not a substring search
+        assertNull(
+            cache.get(
+                LdapSearchCache.getKey("(cn=*alexand*)", 1, 0), "alexand", 1));
+        assertNull(
+            cache.get(LdapSearchCache.getKey("(cn=alexand)", 2, 0), null, 2));
+        assertNull(
+            cache.get(LdapSearchCache.getKey("(cn=*bob*)", 2, 0), "bob", 2));
+        assertEquals(3, cache.getMissCount());
+    }
+
+    public void testExpiredAndFailedSearchesAreNotUsed()
+    {
+        LdapSearchCache cache = new LdapSearchCache(0, 8);
+
+        complete(cache, "alex", results("cn=Alex"));
+        assertNull(
+            cache.get(LdapSearchCache.getKey("(cn=*alex*)", 2, 0), "alex", 2));
+
+        cache = new LdapSearchCache(60000, 8);
+        complete(cache, "alex", null);
+        assertNull(
+            cache.get(LdapSearchCache.getKey("(cn=*alex*)", 2, 0), "alex", 2));
+    }
+
+    public void testIdenticalSearchesAreCoalesced()
+        throws Exception
+    {
+        final LdapSearchCache cache = new LdapSearchCache(60000, 8);
+        final String key = LdapSearchCache.getKey("(cn=*alex*)", 2, 0);
+
+        assertNull(cache.join(key));
+
+        LdapSearchCache.Search running = cache.join(key);
+
+        assertNotNull(running);
+        assertFalse(running.await(10));
+
+        Thread searcher = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                cache.complete(key, "alex", 2, results("cn=Alex"), 10);
+            }
+        };
+        searcher.start();
+
+        while (!running.await(1000))
+            ;
+        assertEquals(1, running.getResults().size());
+        assertEquals(1, cache.getCoalescedCount());
+
+        // the search is over, the next identical one runs again
+        assertNull(cache.join(key));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.msghistory;
+
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests for the ordering and eviction of the <tt>RecentMessagesView</tt>.
+ */
+public class RecentMessagesViewTest
+    extends TestCase
+{
+    public void testValuesAreMostRecentFirst()
+    {
+        RecentMessagesView<String, String> view
+            = new RecentMessagesView<String, String>(10);
+
+        view.put("b", "B", new Date(2000));
+        view.put("a", "A", new Date(1000));
+        view.put("c", "C", new Date(3000));
+
+        assertEquals(Arrays.asList("C", "B", "A"), view.getValues());
+        assertEquals("A", view.getLast());
+        assertEquals(new Date(1000), view.getOldestTimestamp());
+    }
+
+    public void testEqualTimestampsKeepInsertionOrder()
+    {
+        RecentMessagesView<String, String> view
+            = new RecentMessagesView<String, String>(10);
+
+        view.put("a", "A", new Date(1000));
+        view.put("b", "B", new Date(1000));
+        view.put("c", "C", null);
+
+        assertEquals(Arrays.asList("A", "B", "C"), view.getValues());
+    }
+
+    public void testPutMovesExistingConversation()
+    {
+        RecentMessagesView<String, String> view
+            = new RecentMessagesView<String, String>(10);
+
+        view.put("a", "A", new Date(1000));
+        view.put("b", "B", new Date(2000));
+        assertTrue(view.put("a", "A2", new Date(3000)).isEmpty());
+
+        assertEquals(2, view.size());
+        assertEquals(Arrays.asList("A2", "B"), view.getValues());
+        assertEquals("A2", view.get("a"));
+        assertEquals(0, view.indexOf("a"));
+        assertEquals(1, view.indexOf("b"));
+        assertEquals(-1, view.indexOf("c"));
+    }
+
+    public void testEvictsOldestWhenFull()
+    {
+        RecentMessagesView<String, String> view
+            = new RecentMessagesView<String, String>(2);
+
+        view.put("a", "A", new Date(1000));
+        assertFalse(view.isFull());
+        view.put("b", "B", new Date(2000));
+        assertTrue(view.isFull());
+
+        assertEquals(
+            Collections.singletonList("A"),
+            view.put("c", "C", new Date(3000)));
+        assertFalse(view.contains("a"));
+
+        // an older conversation than all the kept ones is evicted at once
+        assertEquals(
+            Collections.singletonList("D"),
+            view.put("d", "D", new Date(500)));
+        assertFalse(view.contains("d"));
+        assertEquals(Arrays.asList("C", "B"), view.getValues());
+        assertEquals(new Date(2000), view.getOldestTimestamp());
+    }
+
+    public void testRemoveAndClear()
+    {
+        RecentMessagesView<String, String> view
+            = new RecentMessagesView<String, String>(10);
+
+        view.put("a", "A", new Date(1000));
+        view.put("b", "B", new Date(2000));
+
+        assertEquals("A", view.remove("a"));
+        assertNull(view.remove("a"));
+        assertEquals(Collections.singletonList("B"), view.getValues());
+
+        assertEquals(Collections.singletonList("B"), view.clear());
+        assertEquals(0, view.size());
+        assertNull(view.getLast());
+        assertNull(view.getOldestTimestamp());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.irc;
+
+import java.util.*;
+
+import junit.framework.*;
+
+public class BasicPollerPresenceWatcherTest
+    extends TestCase
+{
+    public void testPackQueriesEmpty()
+    {
+        Assert.assertTrue(BasicPollerPresenceWatcher.packQueries(
+            Collections.<String> emptyList(), 20).isEmpty());
+    }
+
+    public void testPackQueriesFillsToMaxLength()
+    {
+        List<List<String>> queries =
+            BasicPollerPresenceWatcher.packQueries(
+                Arrays.asList("aaaa", "bbbb", "cccc", "dddd", "ee"), 14);
+        Assert.assertEquals(2, queries.size());
+        Assert.assertEquals(Arrays.asList("aaaa", "bbbb", "cccc"),
+            queries.get(0));
+        Assert.assertEquals(Arrays.asList("dddd", "ee"), queries.get(1));
+        for (List<String> nicks : queries)
+        {
+            String query = BasicPollerPresenceWatcher.createQuery(nicks);
+            Assert.assertTrue(query.length() - "ISON ".length() <= 14);
+        }
+    }
+
+    public void testPackQueriesOversizedNick()
+    {
+        List<List<String>> queries =
+            BasicPollerPresenceWatcher.packQueries(
+                Arrays.asList("a", "verylongnick", "b"), 5);
+        Assert.assertEquals(3, queries.size());
+        Assert.assertEquals(Arrays.asList("verylongnick"), queries.get(1));
+    }
+
+    public void testCreateQuery()
+    {
+        Assert.assertEquals("ISON alice bob",
+            BasicPollerPresenceWatcher.createQuery(
+                Arrays.asList("alice", "bob")));
+    }
+
+    public void testNextPeriodShortensOnChanges()
+    {
+        Assert.assertEquals(40000L,
+            BasicPollerPresenceWatcher.nextPeriod(80000L, 3));
+        Assert.assertEquals(
+            BasicPollerPresenceWatcher.MIN_PRESENCE_WATCHER_PERIOD,
+            BasicPollerPresenceWatcher.nextPeriod(
+                BasicPollerPresenceWatcher.MIN_PRESENCE_WATCHER_PERIOD, 1));
+    }
+
+    public void testNextPeriodGrowsWhenQuiet()
+    {
+        Assert.assertEquals(75000L,
+            BasicPollerPresenceWatcher.nextPeriod(60000L, 0));
+        Assert.assertEquals(
+            BasicPollerPresenceWatcher.MAX_PRESENCE_WATCHER_PERIOD,
+            BasicPollerPresenceWatcher.nextPeriod(
+                BasicPollerPresenceWatcher.MAX_PRESENCE_WATCHER_PERIOD, 0));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.irc;
+
+import junit.framework.*;
+
+public class IrcFormattingDecoderTest
+    extends TestCase
+{
+    public void testNullText()
+    {
+        Assert.assertNull(new IrcFormattingDecoder().decode(null));
+    }
+
+    public void testPlainTextIsReturnedAsIs()
+    {
+        final String message = "My normal message without any control codes.";
+        Assert.assertSame(message, new IrcFormattingDecoder().decode(message));
+    }
+
+    public void testEscapeNonAsciiCharacters()
+    {
+        Assert.assertEquals("caf&eacute; &gt; th&eacute;",
+            new IrcFormattingDecoder().decode("caf\u00e9 > th\u00e9"));
+    }
+
+    public void testDecoderIsReusable()
+    {
+        final IrcFormattingDecoder decoder = new IrcFormattingDecoder();
+        Assert.assertEquals("<b>bold</b>", decoder.decode("\u0002bold"));
+        Assert.assertEquals("<i>italics</i> &amp;",
+            decoder.decode("\u0016italics\u0016 &"));
+        Assert.assertEquals("plain &lt;", decoder.decode("plain <"));
+    }
+
+    public void testCancelColorsKeepsOtherFormatting()
+    {
+        final String ircMessage = "\u000302A\u0002B\u000304C\u0003D\u0002E";
+        final String htmlMessage =
+            "<font color=\"Navy\">A<b>B<font color=\"Red\">C</font></b>"
+                + "</font><b>D</b>E";
+        Assert.assertEquals(htmlMessage,
+            new IrcFormattingDecoder().decode(ircMessage));
+    }
+
+    public void testBackgroundColorDoesNotActivateBold()
+    {
+        final String ircMessage = "\u000312,09A\u0002B";
+        final String htmlMessage =
+            "<font color=\"RoyalBlue\" bgcolor=\"Lime\">A<b>B</b></font>";
+        Assert.assertEquals(htmlMessage,
+            new IrcFormattingDecoder().decode(ircMessage));
+    }
+
+    public void testDeeplyNestedColors()
+    {
+        final StringBuilder ircMessage = new StringBuilder();
+        final StringBuilder htmlMessage = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+        {
+            ircMessage.append("\u000304x");
+            htmlMessage.append("<font color=\"Red\">x");
+        }
+        for (int i = 0; i < 20; i++)
+        {
+            htmlMessage.append("</font>");
+        }
+        Assert.assertEquals(htmlMessage.toString(),
+            new IrcFormattingDecoder().decode(ircMessage.toString()));
+    }
+
+    public void testDecodeAppendsToBuilder()
+    {
+        final StringBuilder out = new StringBuilder("<p>");
+        new IrcFormattingDecoder().decode("\u001Fu\u001F", out);
+        Assert.assertEquals("<p><u>u</u>", out.toString());
+    }
+
+    public void testNegativeColorCodeIsNotAColor()
+    {
+        Assert.assertEquals("-1 text",
+            new IrcFormattingDecoder().decode("\u0003-1 text"));
+    }
+
+    public void testSignedColorCodes()
+    {
+        Assert.assertEquals("<font color=\"Lime\">A</font>",
+            new IrcFormattingDecoder().decode("\u0003+9A"));
+        Assert.assertEquals("<font color=\"White\">A</font>",
+            new IrcFormattingDecoder().decode("\u0003-0A"));
+        Assert.assertEquals(
+            "<font color=\"Red\" bgcolor=\"Yellow\">A</font>",
+            new IrcFormattingDecoder().decode("\u000304,+8A"));
+        Assert.assertEquals("<font color=\"Red\">,-5A</font>",
+            new IrcFormattingDecoder().decode("\u000304,-5A"));
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.caps;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.easymock.*;
+import org.jitsi.service.configuration.*;
+import org.jivesoftware.smack.provider.*;
+import org.jivesoftware.smackx.disco.packet.*;
+import org.jivesoftware.smackx.disco.provider.*;
+
+/**
+ * Tests for the persistence, the compaction, the recovery and the migration
+ * from the configuration of the <tt>CapsStore</tt>, over a temporary file.
+ */
+public class CapsStoreTest
+    extends TestCase
+{
+    private static final String CAPS_PROPERTY_NAME_PREFIX
+        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
+            + "EntityCapsManager.CAPS.";
+
+    private File file;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        ProviderManager.addIQProvider(
+            "query",
+            "http://jabber.org/protocol/disco#info",
+            new DiscoverInfoProvider());
+
+        file = File.createTempFile("caps", ".dat");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    /**
+     * Creates a configuration without any Caps information.
+     */
+    private static ConfigurationService createConfig()
+    {
+        ConfigurationService config
+            = EasyMock.createNiceMock(ConfigurationService.class);
+
+        EasyMock.expect(
+                config.getInt(
+                    EasyMock.eq(CapsStore.MAX_NODES_PROPERTY),
+                    EasyMock.anyInt()))
+            .andReturn(100).anyTimes();
+        EasyMock.replay(config);
+        return config;
+    }
+
+    private static DiscoverInfo createInfo(String feature)
+    {
+        DiscoverInfo info = new DiscoverInfo();
+
+        info.addFeature(feature);
+        return info;
+    }
+
+    private static String createXml(String nodeVer, String feature)
+    {
+        DiscoverInfo info = createInfo(feature);
+
+        info.setNode(nodeVer);
+        return info.getChildElementXML().toString();
+    }
+
+    private CapsStore createStore()
+    {
+        return new CapsStore(createConfig(), file);
+    }
+
+    public void testAppendAndReload()
+    {
+        CapsStore store = createStore();
+
+        store.addDiscoverInfoByNodePersistent("node#1", createInfo("a"));
+        store.addDiscoverInfoByNodePersistent("node#2", createInfo("b"));
+        store.addDiscoverInfoByNodePersistent("node#1", createInfo("c"));
+        assertEquals(2, store.size());
+
+        CapsStore reloaded = createStore();
+
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.lookup("node#1").containsFeature("c"));
+        assertFalse(reloaded.lookup("node#1").containsFeature("a"));
+        assertTrue(reloaded.lookup("node#2").containsFeature("b"));
+        assertNull(reloaded.lookup("node#3"));
+        assertEquals(3, reloaded.getHitCount());
+        assertEquals(1, reloaded.getMissCount());
+    }
+
+    public void testCompaction()
+    {
+        CapsStore store = createStore();
+
+        for (int i = 0; i < 40; i++)
+        {
+            store.addDiscoverInfoByNodePersistent(
+                "node#" + (i % 2), createInfo("f" + i));
+        }
+        long length = file.length();
+
+        // loading compacts the file, which holds many more records than
+        // nodes, keeping the last record of each node
+        CapsStore reloaded = createStore();
+
+        assertEquals(2, reloaded.size());
+        assertTrue(file.length() < length / 10);
+        assertTrue(reloaded.lookup("node#0").containsFeature("f38"));
+        assertTrue(reloaded.lookup("node#1").containsFeature("f39"));
+
+        reloaded = createStore();
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.lookup("node#1").containsFeature("f39"));
+    }
+
+    public void testTruncatedTail()
+        throws IOException
+    {
+        CapsStore store = createStore();
+
+        store.addDiscoverInfoByNodePersistent("node#1", createInfo("a"));
+        store.addDiscoverInfoByNodePersistent("node#2", createInfo("b"));
+
+        // a crash while appending the last record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            raf.setLength(raf.length() - 5);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        CapsStore reloaded = createStore();
+
+        assertEquals(1, reloaded.size());
+        assertTrue(reloaded.lookup("node#1").containsFeature("a"));
+        assertNull(reloaded.lookup("node#2"));
+
+        // the damaged record is dropped, so the next ones can be read
+        reloaded.addDiscoverInfoByNodePersistent("node#3", createInfo("c"));
+        reloaded = createStore();
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.lookup("node#3").containsFeature("c"));
+    }
+
+    public void testInvalidNodeRemoved()
+    {
+        CapsStore store = createStore();
+
+        store.addDiscoverInfoByNodePersistent("node#1", createInfo("a"));
+        assertNull(
+            new CapsStore(
+                    createConfig(
+                        Collections.singletonMap(
+                            CAPS_PROPERTY_NAME_PREFIX + "node#2",
+                            "<query xmlns='http://jabber.org/protocol/"
+                                + "disco#info'><feature")),
+                    file)
+                .lookup("node#2"));
+
+        CapsStore reloaded = createStore();
+
+        assertEquals(1, reloaded.size());
+        assertNull(reloaded.lookup("node#2"));
+    }
+
+    public void testMoveFromConfiguration()
+    {
+        Map<String, String> properties = new LinkedHashMap<String, String>();
+
+        properties.put(
+            CAPS_PROPERTY_NAME_PREFIX + "node#1", createXml("node#1", "a"));
+        properties.put(
+            CAPS_PROPERTY_NAME_PREFIX + "node#2", createXml("node#2", "b"));
+
+        ConfigurationService config = createConfig(properties);
+        CapsStore store = new CapsStore(config, file);
+
+        EasyMock.verify(config);
+        assertEquals(2, store.size());
+        assertTrue(store.lookup("node#2").containsFeature("b"));
+
+        CapsStore reloaded = createStore();
+
+        assertEquals(2, reloaded.size());
+        assertTrue(reloaded.lookup("node#1").containsFeature("a"));
+    }
+
+    /**
+     * Creates a configuration holding the given Caps information, which
+     * expects all of it to be removed with a single call.
+     */
+    private static ConfigurationService createConfig(
+        Map<String, String> properties)
+    {
+        ConfigurationService config
+            = EasyMock.createMock(ConfigurationService.class);
+        Map<String, Object> removed = new HashMap<String, Object>();
+
+        EasyMock.expect(
+                config.getInt(
+                    EasyMock.eq(CapsStore.MAX_NODES_PROPERTY),
+                    EasyMock.anyInt()))
+            .andReturn(100);
+        EasyMock.expect(
+                config.getPropertyNamesByPrefix(
+                    CAPS_PROPERTY_NAME_PREFIX, false))
+            .andReturn(new ArrayList<String>(properties.keySet()));
+        for (Map.Entry<String, String> e : properties.entrySet())
+        {
+            EasyMock.expect(config.getString(e.getKey()))
+                .andReturn(e.getValue());
+            removed.put(e.getKey(), null);
+        }
+        config.setProperties(removed);
+        EasyMock.expectLastCall().once();
+        EasyMock.replay(config);
+        return config;
+    }
+}
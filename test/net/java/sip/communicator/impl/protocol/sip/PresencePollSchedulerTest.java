@@ -0,0 +1,409 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+import org.easymock.*;
+
+/**
+ * Tests for the spreading, the cap, the timeout and the backoff of the polls
+ * of the <tt>PresencePollScheduler</tt>, driven by a manual scheduler and
+ * clock.
+ */
+public class PresencePollSchedulerTest
+    extends TestCase
+{
+    private static final long PERIOD = 60000;
+
+    /**
+     * A task scheduled on the {@link ManualScheduler}.
+     */
+    private static class Task
+        implements ScheduledFuture<Object>
+    {
+        final String type;
+
+        final Runnable runnable;
+
+        final long delay;
+
+        boolean cancelled = false;
+
+        boolean done = false;
+
+        Task(String type, Runnable runnable, long delay)
+        {
+            this.type = type;
+            this.runnable = runnable;
+            this.delay = delay;
+        }
+
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(delay, TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed o)
+        {
+            return 0;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            cancelled = true;
+            return true;
+        }
+
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        public boolean isDone()
+        {
+            return done || cancelled;
+        }
+
+        public Object get()
+        {
+            return null;
+        }
+
+        public Object get(long timeout, TimeUnit unit)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A scheduler which runs its tasks only when asked to.
+     */
+    private static class ManualScheduler
+        implements SchedulerService
+    {
+        final List<Task> tasks = new ArrayList<Task>();
+
+        public ScheduledFuture<?> schedule(
+            String type, Runnable task, long delay)
+        {
+            Task t = new Task(type, task, delay);
+
+            tasks.add(t);
+            return t;
+        }
+
+        public ScheduledFuture<?> scheduleWithFixedDelay(
+            String type, Runnable task, long delay, long period)
+        {
+            return schedule(type, task, delay);
+        }
+
+        public ScheduledFuture<?> scheduleAtFixedRate(
+            String type, Runnable task, long delay, long period)
+        {
+            return schedule(type, task, delay);
+        }
+
+        public Map<String, ScheduledTaskStatistics> getStatistics()
+        {
+            return Collections.emptyMap();
+        }
+
+        /**
+         * Returns the pending poll, if any.
+         */
+        Task getPendingPoll()
+        {
+            for (Task task : tasks)
+            {
+                if (task.type.endsWith(".poll") && !task.isDone())
+                    return task;
+            }
+            return null;
+        }
+
+        /**
+         * Runs the pending poll.
+         */
+        Task runPoll()
+        {
+            Task task = getPendingPoll();
+
+            assertNotNull(task);
+            task.done = true;
+            task.runnable.run();
+            return task;
+        }
+
+        /**
+         * Runs a polling round.
+         */
+        void runRound()
+        {
+            tasks.get(0).runnable.run();
+        }
+    }
+
+    /**
+     * A poller of mock contacts which records the polls.
+     */
+    private static class TestPoller
+        implements PresencePollScheduler.Poller
+    {
+        final List<ContactSipImpl> contacts = new ArrayList<ContactSipImpl>();
+
+        final List<ContactSipImpl> polled = new ArrayList<ContactSipImpl>();
+
+        boolean failing = false;
+
+        TestPoller(int count)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                ContactSipImpl contact
+                    = EasyMock.createNiceMock(ContactSipImpl.class);
+
+                EasyMock.replay(contact);
+                contacts.add(contact);
+            }
+        }
+
+        public List<ContactSipImpl> getContactsToPoll()
+        {
+            return new ArrayList<ContactSipImpl>(contacts);
+        }
+
+        public boolean pollContact(ContactSipImpl contact)
+            throws OperationFailedException
+        {
+            polled.add(contact);
+            if (failing)
+            {
+                throw new OperationFailedException(
+                    "failed", OperationFailedException.NETWORK_FAILURE);
+            }
+            return true;
+        }
+    }
+
+    private ManualScheduler scheduler;
+
+    private long now;
+
+    private PresencePollScheduler createScheduler(TestPoller poller)
+    {
+        scheduler = new ManualScheduler();
+        now = 1000000;
+
+        PresencePollScheduler pollScheduler
+            = new PresencePollScheduler(poller, PERIOD, scheduler)
+            {
+                @Override
+                long currentTimeMillis()
+                {
+                    return now;
+                }
+            };
+
+        pollScheduler.start();
+        return pollScheduler;
+    }
+
+    public void testPollsSpreadOverRound()
+    {
+        TestPoller poller = new TestPoller(10);
+        PresencePollScheduler pollScheduler = createScheduler(poller);
+
+        // the first round is spread over five seconds
+        scheduler.runRound();
+        assertEquals(10, pollScheduler.getQueuedPollCount());
+        for (int i = 0; i < 10; i++)
+        {
+            long delay = scheduler.runPoll().delay;
+
+            assertTrue(delay >= 250 && delay <= 750);
+        }
+        assertEquals(poller.contacts, poller.polled);
+        assertNull(scheduler.getPendingPoll());
+
+        for (ContactSipImpl contact : poller.contacts)
+            pollScheduler.pollSucceeded(contact);
+
+        // the next ones over most of the period
+        scheduler.runRound();
+        long spacing = (long) (PERIOD * 0.8) / 10;
+        for (int i = 0; i < 10; i++)
+        {
+            long delay = scheduler.runPoll().delay;
+
+            assertTrue(delay >= spacing / 2 && delay <= spacing * 3 / 2);
+        }
+        assertEquals(20, poller.polled.size());
+    }
+
+    public void testOutstandingPollsCapped()
+    {
+        TestPoller poller = new TestPoller(20);
+        PresencePollScheduler pollScheduler = createScheduler(poller);
+        int max = PresencePollScheduler.MAX_OUTSTANDING_POLLS;
+
+        scheduler.runRound();
+        for (int i = 0; i < max; i++)
+            scheduler.runPoll();
+        assertEquals(max, pollScheduler.getOutstandingPollCount());
+
+        // no more polls until one of them gets a response
+        scheduler.runPoll();
+        scheduler.runPoll();
+        assertEquals(max, poller.polled.size());
+        assertEquals(20 - max, pollScheduler.getQueuedPollCount());
+        assertNotNull(scheduler.getPendingPoll());
+
+        pollScheduler.pollSucceeded(poller.contacts.get(0));
+        scheduler.runPoll();
+        assertEquals(max + 1, poller.polled.size());
+        assertEquals(max, pollScheduler.getOutstandingPollCount());
+    }
+
+    public void testOutstandingPollsExpire()
+    {
+        TestPoller poller = new TestPoller(2);
+        PresencePollScheduler pollScheduler = createScheduler(poller);
+
+        scheduler.runRound();
+        scheduler.runPoll();
+        now += PresencePollScheduler.OUTSTANDING_POLL_TIMEOUT / 2;
+        pollScheduler.pollSucceeded(poller.contacts.get(0));
+        scheduler.runPoll();
+        assertEquals(1, pollScheduler.getOutstandingPollCount());
+
+        now += PresencePollScheduler.OUTSTANDING_POLL_TIMEOUT - 1;
+        scheduler.runRound();
+        assertEquals(1, pollScheduler.getOutstandingPollCount());
+
+        // the poll without response expires and the contact backs off
+        now += 1;
+        scheduler.runRound();
+        assertEquals(0, pollScheduler.getOutstandingPollCount());
+        assertEquals(1, pollScheduler.getBackedOffContactCount());
+        assertEquals(1, pollScheduler.getQueuedPollCount());
+    }
+
+    public void testBackoffDoublesAndResets()
+    {
+        TestPoller poller = new TestPoller(1);
+        PresencePollScheduler pollScheduler = createScheduler(poller);
+        ContactSipImpl contact = poller.contacts.get(0);
+
+        scheduler.runRound();
+        scheduler.runPoll();
+
+        // not polled again for half to one and a half periods
+        pollScheduler.pollFailed(contact);
+        long failed = now;
+        assertBackingOff(pollScheduler, failed + PERIOD / 2 - 1);
+        assertPolledAgain(pollScheduler, failed + PERIOD * 3 / 2);
+
+        // then for one to three periods
+        pollScheduler.pollFailed(contact);
+        failed = now;
+        assertBackingOff(pollScheduler, failed + PERIOD - 1);
+        assertPolledAgain(pollScheduler, failed + PERIOD * 3);
+
+        // and never more than the maximum backoff
+        for (int i = 0; i < 10; i++)
+        {
+            pollScheduler.pollFailed(contact);
+            assertPolledAgain(pollScheduler, now + 45 * 60 * 1000);
+        }
+
+        // a successful poll resets the backoff
+        pollScheduler.pollSucceeded(contact);
+        assertEquals(0, pollScheduler.getBackedOffContactCount());
+        pollScheduler.pollFailed(contact);
+        assertPolledAgain(pollScheduler, now + PERIOD * 3 / 2);
+
+        // as does a failure to send the poll, which backs off at once
+        poller.failing = true;
+        pollScheduler.pollSucceeded(contact);
+        now += PERIOD;
+        scheduler.runRound();
+        scheduler.runPoll();
+        assertEquals(0, pollScheduler.getOutstandingPollCount());
+        assertBackingOff(pollScheduler, now + PERIOD / 2 - 1);
+    }
+
+    public void testFailureWithoutPollIgnored()
+    {
+        TestPoller poller = new TestPoller(1);
+        PresencePollScheduler pollScheduler = createScheduler(poller);
+        ContactSipImpl contact = poller.contacts.get(0);
+
+        // a failure before the contact is polled is not counted
+        pollScheduler.pollFailed(contact);
+        assertEquals(0, pollScheduler.getBackedOffContactCount());
+        assertTrue(pollScheduler.toString().contains("failed=0"));
+
+        // nor is a failure after the poll has expired
+        scheduler.runRound();
+        scheduler.runPoll();
+        now += PresencePollScheduler.OUTSTANDING_POLL_TIMEOUT;
+        scheduler.runRound();
+        long expired = now;
+        assertEquals(1, pollScheduler.getBackedOffContactCount());
+
+        pollScheduler.pollFailed(contact);
+        assertTrue(pollScheduler.toString().contains("failed=1"));
+
+        // and the backoff of the expired poll is not doubled
+        assertPolledAgain(pollScheduler, expired + PERIOD * 3 / 2);
+    }
+
+    /**
+     * Checks that the contact of the poller is not polled by a round
+     * started at a specific time.
+     */
+    private void assertBackingOff(
+        PresencePollScheduler pollScheduler, long time)
+    {
+        now = time;
+        scheduler.runRound();
+        assertEquals(0, pollScheduler.getQueuedPollCount());
+        assertEquals(1, pollScheduler.getBackedOffContactCount());
+    }
+
+    /**
+     * Checks that the contact of the poller is polled by a round started at
+     * a specific time.
+     */
+    private void assertPolledAgain(
+        PresencePollScheduler pollScheduler, long time)
+    {
+        now = time;
+        scheduler.runRound();
+        assertEquals(1, pollScheduler.getQueuedPollCount());
+        scheduler.runPoll();
+        assertEquals(1, pollScheduler.getOutstandingPollCount());
+    }
+}
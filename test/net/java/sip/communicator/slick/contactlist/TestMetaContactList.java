@@ -970,6 +970,21 @@ public void testCreateRenameRemoveMetaContactGroup()
 
         assertNotNull("createMetaContact failed", newMetaContact);
 
+        //check that the new group and contact can be found
+        assertSame("findMetaContactGroupByMetaUID failed for a new group"
+            , newMetaGroup
+            , fixture.metaClService.findMetaContactGroupByMetaUID(
+                newMetaGroup.getMetaUID()));
+
+        Contact newProtoContact = newMetaContact.getDefaultContact();
+        assertSame("findMetaContactByContact failed for a new contact"
+            , newMetaContact
+            , fixture.metaClService.findMetaContactByContact(newProtoContact));
+        assertSame("findMetaContactByMetaUID failed for a new contact"
+            , newMetaContact
+            , fixture.metaClService.findMetaContactByMetaUID(
+                newMetaContact.getMetaUID()));
+
         //rename the meta contact group
         String renamedGroupName = "new" + newGroupName;
         fixture.metaClService.renameMetaContactGroup(newMetaGroup,
@@ -992,6 +1007,19 @@ public void testCreateRenameRemoveMetaContactGroup()
             , fixture.metaClService.getRoot()
                 .getMetaContactSubgroup(newGroupName));
 
+        //check that the group and its contact can no longer be found
+        assertNull(
+            "removeMetaContactGroup failed - group can still be found."
+            , fixture.metaClService.findMetaContactGroupByMetaUID(
+                newMetaGroup.getMetaUID()));
+        assertNull(
+            "removeMetaContactGroup failed - contact can still be found."
+            , fixture.metaClService.findMetaContactByMetaUID(
+                newMetaContact.getMetaUID()));
+        assertNull(
+            "removeMetaContactGroup failed - contact can still be found."
+            , fixture.metaClService.findMetaContactByContact(newProtoContact));
+
 
         //check that the mock group is removed
         assertNull(
@@ -53,6 +53,8 @@ public static Test suite()
         suite.addTest(new TestHistoryService("testCreateDB"));
         suite.addTest(new TestHistoryService("testWriteRecords"));
         suite.addTest(new TestHistoryService("testReadRecords"));
+        suite.addTest(new TestHistoryService("testConcurrentReads"));
+        suite.addTest(new TestHistoryService("testExistingHistories"));
         suite.addTest(new TestHistoryService("testPurgeLocallyStoredHistory"));
         suite.addTest(new TestHistoryService("testCreatingHistoryIDFromFS"));
         suite.addTest(new TestHistoryService("testWriteRecordsWithMaxNumber"));
@@ -189,7 +191,128 @@ public void testReadRecords()
         }
     }
 
-    public void testPurgeLocallyStoredHistory()
+    /**
+     * Runs queries from several threads while records are written and checks
+     * that all of them complete with consistent results.
+     */
+    public void testConcurrentReads()
+        throws Exception
+    {
+        final HistoryReader reader = this.history.getReader();
+        final HistoryWriter writer = this.history.getWriter();
+        final List<Throwable> errors
+            = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 4; t++)
+        {
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < 50; i++)
+                        {
+                            QueryResultSet<HistoryRecord> recs
+                                = reader.findLast(10);
+                            int count = 0;
+
+                            while (recs.hasNext())
+                            {
+                                recs.next();
+                                count++;
+                            }
+                            assertEquals("Wrong count of messages", 10, count);
+
+                            assertTrue("Nothing found",
+                                reader.findByKeyword("name2", "name")
+                                    .hasNext());
+                        }
+                    }
+                    catch (Throwable t)
+                    {
+                        errors.add(t);
+                    }
+                }
+            });
+        }
+        threads.add(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    for (int i = 0; i < 100; i++)
+                    {
+                        writer.addRecord(new String[] { "" + i,
+                            "concurrent" + i,
+                            i % 2 == 0 ? "m" : "f" });
+                    }
+                }
+                catch (Throwable t)
+                {
+                    errors.add(t);
+                }
+            }
+        });
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        if (!errors.isEmpty())
+            fail("Concurrent queries failed: " + errors);
+    }
+
+    /**
+     * Checks that the existing histories are listed with the most recently
+     * written one first and that purged histories are no longer listed.
+     */
+    public void testExistingHistories()
+        throws Exception
+    {
+        String[] prefix = new String[] { "test", "existing" };
+        HistoryID older = HistoryID.createFromRawID(
+            new String[] { "test", "existing", "older" });
+        HistoryID newer = HistoryID.createFromRawID(
+            new String[] { "test", "existing", "newer" });
+        HistoryID empty = HistoryID.createFromRawID(
+            new String[] { "test", "existing", "empty" });
+
+        try
+        {
+            long now = System.currentTimeMillis();
+
+            this.historyService.createHistory(newer, recordStructure)
+                .getWriter().addRecord(
+                    new String[] { "1", "newer", "m" }, new Date(now));
+            this.historyService.createHistory(older, recordStructure)
+                .getWriter().addRecord(
+                    new String[] { "2", "older", "f" },
+                    new Date(now - 60000));
+            this.historyService.createHistory(empty, recordStructure);
+            this.historyService.flush();
+
+            assertEquals(Arrays.asList(newer, older),
+                this.historyService.getExistingHistories(prefix));
+
+            this.historyService.purgeLocallyStoredHistory(newer);
+
+            assertEquals(Arrays.asList(older),
+                this.historyService.getExistingHistories(prefix));
+        }
+        finally
+        {
+            this.historyService.purgeLocallyStoredHistory(
+                HistoryID.createFromRawID(prefix));
+        }
+    }
+
+        public void testPurgeLocallyStoredHistory()
     {
         try
         {
@@ -452,6 +452,33 @@ public void messageTests()
         assertTrue("Message no found",
                    msgs.contains(messagesToSend[3].getContent()));
 
+        /**
+         * the cursor must return the first of the 2 messages and stop
+         */
+        MetaHistoryCursor cursor = metaHistoryService.iterateByPeriod(
+            new String[]{MessageHistoryService.class.getName()},
+            testMetaContact, controlDate1, controlDate2, 1);
+        rs = new ArrayList<Object>();
+        while(cursor.hasNext())
+            rs.add(cursor.next());
+
+        msgs = getMessages(rs);
+
+        assertEquals("Messages must be 1", 1, msgs.size());
+        assertTrue("Message no found",
+                   msgs.contains(messagesToSend[2].getContent()));
+
+        /**
+         * a canceled cursor must return nothing
+         */
+        cursor = metaHistoryService.iterateByPeriod(
+            new String[]{MessageHistoryService.class.getName()},
+            testMetaContact, controlDate1, controlDate2, -1);
+        cursor.cancel();
+
+        assertTrue("Cursor not canceled", cursor.isCanceled());
+        assertFalse("Something found after cancel", cursor.hasNext());
+
         /**
          * must find 1 record
          */
@@ -0,0 +1,165 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.util;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests for the content-addressed <tt>AvatarStore</tt> and the moving of the
+ * avatars cached by previous versions.
+ */
+public class AvatarStoreTest
+    extends TestCase
+{
+    private File dir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        dir = File.createTempFile("avatarstore", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        delete(dir);
+    }
+
+    private static void delete(File file)
+    {
+        File[] files = file.listFiles();
+
+        if (files != null)
+        {
+            for (File f : files)
+                delete(f);
+        }
+        file.delete();
+    }
+
+    private int contentFiles()
+    {
+        String[] names = new File(dir, AvatarStore.CONTENT_DIR).list();
+
+        return (names == null) ? 0 : names.length;
+    }
+
+    public void testIdenticalAvatarsAreStoredOnce()
+    {
+        AvatarStore store = new AvatarStore(dir, 1024);
+        byte[] avatar = { 1, 2, 3, 4 };
+
+        store.put("a\nalice", avatar);
+        store.put("b\nalice", avatar.clone());
+        store.put("a\nbob", new byte[] { 5, 6 });
+
+        assertEquals(3, store.size());
+        assertEquals(2, contentFiles());
+        assertEquals(store.getFile("a\nalice"), store.getFile("b\nalice"));
+        assertTrue(Arrays.equals(avatar, store.get("b\nalice")));
+        assertNull(store.get("a\ncarol"));
+        assertEquals(1, store.getMemoryHitCount());
+        assertEquals(1, store.getMissCount());
+    }
+
+    public void testReload()
+    {
+        AvatarStore store = new AvatarStore(dir, 1024);
+
+        store.put("a\nalice", new byte[] { 1, 2, 3 });
+        store.put("a\nbob", new byte[] { 4 });
+        store.put("a\nbob", new byte[0]);
+
+        store = new AvatarStore(dir, 1024);
+
+        assertEquals(1, store.size());
+        assertNull(store.get("a\nbob"));
+        assertTrue(
+            Arrays.equals(new byte[] { 1, 2, 3 }, store.get("a\nalice")));
+        assertEquals(1, store.getDiskHitCount());
+        assertTrue(
+            Arrays.equals(new byte[] { 1, 2, 3 }, store.get("a\nalice")));
+        assertEquals(1, store.getMemoryHitCount());
+    }
+
+    public void testCompactionDeletesUnreferencedAvatars()
+    {
+        AvatarStore store = new AvatarStore(dir, 0);
+
+        for (int i = 0; i < 20; i++)
+            store.put("a\nalice", new byte[] { (byte) i });
+        assertEquals(20, contentFiles());
+
+        store = new AvatarStore(dir, 0);
+
+        assertEquals(1, contentFiles());
+        assertTrue(Arrays.equals(new byte[] { 19 }, store.get("a\nalice")));
+        assertEquals(0, store.getMemoryHitCount());
+    }
+
+    public void testEscaping()
+    {
+        String id = "Jabber:alice@example.com/a&b\\c*?\"<>|";
+        String escaped = AvatarCacheUtils.escapeSpecialCharacters(id);
+
+        assertEquals(
+            "Jabber&_coalice@example.com&_sla&_ampb&_bsc&_as&_qm&_pa&_lt&_gt"
+                + "&_pp",
+            escaped);
+        assertEquals(id, AvatarCacheUtils.unescapeSpecialCharacters(escaped));
+        assertEquals("plain", AvatarCacheUtils.escapeSpecialCharacters("plain"));
+    }
+
+    public void testMoveLegacyAvatars()
+        throws IOException
+    {
+        File accountDir = new File(dir, "Jabber&_coa@example.com");
+
+        assertTrue(accountDir.mkdirs());
+
+        FileOutputStream out
+            = new FileOutputStream(new File(accountDir, "bob@example.com"));
+
+        try
+        {
+            out.write(new byte[] { 7, 8, 9 });
+        }
+        finally
+        {
+            out.close();
+        }
+
+        AvatarStore store = new AvatarStore(dir, 1024);
+
+        AvatarCacheUtils.moveLegacyAvatars(dir, store);
+
+        assertFalse(accountDir.exists());
+        assertTrue(
+            Arrays.equals(
+                new byte[] { 7, 8, 9 },
+                store.get(
+                    AvatarCacheUtils.getKey(
+                        "Jabber:a@example.com", "bob@example.com"))));
+    }
+}